@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.exposure;
+
+import com.cloudera.gertrude.ExposureEvent;
+import com.cloudera.gertrude.ExposureLogger;
+import com.cloudera.gertrude.experiments.avro.DiversionIdentifier;
+import com.cloudera.gertrude.experiments.avro.ExposureRecord;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * An {@link ExposureLogger} that writes each {@link ExposureEvent} as an {@link ExposureRecord} to a series of
+ * rolling Avro data files.
+ *
+ * <p>Request threads add events to a lock-free {@link MpscRingBuffer}, and a single writer thread drains the
+ * buffer in batches and appends them to the current file, which is hidden (i.e., its name starts with a
+ * '.') until it is rolled. Files are rolled when they reach a maximum size or age. When the buffer is full,
+ * the {@link Backpressure} policy decides what happens to new events; the number of events that were dropped,
+ * the depth of the buffer, and the lag between a request and the write of its event are reported as metrics.
+ * If writing or rolling a file fails, the file is renamed with a {@code .partial} suffix and the next batch
+ * starts a new one.
+ */
+public final class AvroExposureLogger implements ExposureLogger, Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(AvroExposureLogger.class);
+
+  /**
+   * What to do with new events when the writer thread cannot keep up.
+   */
+  public enum Backpressure {
+    /** Drop new events while the buffer is full. */
+    DROP,
+
+    /** Keep one out of every {@code sampleRate} new events once the buffer is half full. */
+    SAMPLE,
+
+    /** Block the request thread until there is room in the buffer. */
+    BLOCK
+  }
+
+  private final MpscRingBuffer<ExposureEvent> buffer;
+  private final Backpressure backpressure;
+  private final int sampleRate;
+  private final int batchSize;
+  private final File directory;
+  private final long maxFileBytes;
+  private final long rollIntervalMsec;
+  private final CodecFactory codec;
+  private final AtomicLong sampleCounter = new AtomicLong();
+  private final Meter logged;
+  private final Meter dropped;
+  private final Meter written;
+  private final Thread writerThread;
+
+  private volatile boolean running = true;
+  private volatile long lagMsec;
+
+  // Only accessed by the writer thread
+  private DataFileWriter<ExposureRecord> writer;
+  private File currentFile;
+  private long currentFileStartMsec;
+  private int fileSequence;
+
+  private AvroExposureLogger(Builder b) {
+    this.buffer = new MpscRingBuffer<ExposureEvent>(b.capacity);
+    this.backpressure = b.backpressure;
+    this.sampleRate = b.sampleRate;
+    this.batchSize = b.batchSize;
+    this.directory = b.directory;
+    this.maxFileBytes = b.maxFileBytes;
+    this.rollIntervalMsec = b.rollIntervalMsec;
+    this.codec = b.codec;
+    MetricRegistry metrics = b.metrics;
+    String metricBase = name(b.metricPrefix, AvroExposureLogger.class.getName());
+    this.logged = metrics.meter(name(metricBase, "logged"));
+    this.dropped = metrics.meter(name(metricBase, "dropped"));
+    this.written = metrics.meter(name(metricBase, "written"));
+    metrics.register(name(metricBase, "pending"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return buffer.size();
+      }
+    });
+    metrics.register(name(metricBase, "lag-msec"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return lagMsec;
+      }
+    });
+    this.writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeLoop();
+        } catch (Throwable t) {
+          log.error("Exposure log writer stopped unexpectedly, so new events will be dropped", t);
+        }
+      }
+    }, "AvroExposureLogger-" + directory.getName());
+    writerThread.setDaemon(true);
+  }
+
+  /**
+   * Creates a builder for a logger that writes its files to the given directory.
+   */
+  public static Builder builder(File directory) {
+    return new Builder(directory);
+  }
+
+  @Override
+  public void log(ExposureEvent event) {
+    logged.mark();
+    if (backpressure == Backpressure.SAMPLE && buffer.size() > buffer.capacity() / 2 &&
+        sampleCounter.incrementAndGet() % sampleRate != 0) {
+      dropped.mark();
+      return;
+    }
+    while (!buffer.offer(event)) {
+      // Never wait for a writer thread that is not going to drain the buffer.
+      if (backpressure != Backpressure.BLOCK || !running || !writerThread.isAlive()) {
+        dropped.mark();
+        return;
+      }
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+  }
+
+  /**
+   * Returns the number of events that are waiting to be written.
+   */
+  public int getPendingCount() {
+    return buffer.size();
+  }
+
+  /**
+   * Stops the writer thread after it has written all of the pending events and closes the current file.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing exposure log", e);
+    }
+  }
+
+  private void writeLoop() {
+    List<ExposureEvent> batch = Lists.newArrayListWithCapacity(batchSize);
+    while (true) {
+      boolean stopping = !running;
+      batch.clear();
+      int n = buffer.drainTo(batch, batchSize);
+      if (n > 0) {
+        try {
+          write(batch);
+        } catch (Exception e) {
+          // Includes the AvroRuntimeExceptions for events that do not fit the schema, which must not stop
+          // the writer thread.
+          log.error("Error writing " + n + " exposures to " + currentFile, e);
+          dropped.mark(n);
+          abandon();
+        }
+      }
+      try {
+        if (stopping && n == 0) {
+          roll();
+          return;
+        }
+        if (writer != null && ((n > 0 && currentFile.length() >= maxFileBytes) ||
+            System.currentTimeMillis() - currentFileStartMsec >= rollIntervalMsec)) {
+          roll();
+        }
+      } catch (Exception e) {
+        // The events in the file were already written and counted, so they are kept in its partial file.
+        log.error("Error rolling exposure log " + currentFile, e);
+        abandon();
+      }
+      if (n < batchSize && !stopping) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+    }
+  }
+
+  private void write(List<ExposureEvent> batch) throws IOException {
+    if (writer == null) {
+      open();
+    }
+    for (ExposureEvent event : batch) {
+      writer.append(toRecord(event));
+    }
+    // Avro writes a block whenever its sync interval fills up, so only flush the partial block once the
+    // buffer has been drained.
+    if (batch.size() < batchSize) {
+      writer.flush();
+    }
+    written.mark(batch.size());
+    lagMsec = System.currentTimeMillis() - batch.get(batch.size() - 1).getRequestTimeMsec();
+  }
+
+  private static ExposureRecord toRecord(ExposureEvent event) {
+    List<DiversionIdentifier> identifiers = Lists.newArrayListWithCapacity(event.getDiversionCount());
+    for (int i = 0; i < event.getDiversionCount(); i++) {
+      identifiers.add(new DiversionIdentifier(event.getDiversionId(i), event.getDiversionIdentifier(i)));
+    }
+    return ExposureRecord.newBuilder()
+        .setRequestTimeMsecUtc(event.getRequestTimeMsec())
+        .setSpaceVersion(event.getVersionIdentifier())
+        .setExperimentIds(ImmutableList.<Integer>copyOf(event.getExperimentIds().getIds()))
+        .setCombinationId(event.getExperimentIds().getCombinationId())
+        .setDiversionIdentifiers(identifiers)
+        .build();
+  }
+
+  private void open() throws IOException {
+    currentFileStartMsec = System.currentTimeMillis();
+    currentFile = new File(directory, "." + fileName());
+    writer = new DataFileWriter<ExposureRecord>(new SpecificDatumWriter<ExposureRecord>(ExposureRecord.class))
+        .setCodec(codec)
+        .create(ExposureRecord.getClassSchema(), currentFile);
+  }
+
+  private String fileName() {
+    return String.format("exposures-%d-%d.avro", currentFileStartMsec, fileSequence);
+  }
+
+  private void roll() throws IOException {
+    if (writer == null) {
+      return;
+    }
+    writer.close();
+    writer = null;
+    File done = new File(directory, fileName());
+    if (!currentFile.renameTo(done)) {
+      throw new IOException("Could not rename " + currentFile + " to " + done);
+    }
+    fileSequence++;
+  }
+
+  /**
+   * Closes the current file after an error and moves it out of the way, so that the next batch starts a new
+   * file. The records that were written before the error are kept under a visible {@code .partial} name,
+   * since every block that Avro finished writing can still be read, and empty or unrenamable files are deleted.
+   */
+  private void abandon() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        log.warn("Error closing exposure log " + currentFile, e);
+      }
+      writer = null;
+    }
+    if (currentFile != null && currentFile.exists()) {
+      File partial = new File(directory, fileName() + ".partial");
+      if (currentFile.length() > 0 && currentFile.renameTo(partial)) {
+        log.warn("Kept the records written before the error in {}", partial);
+      } else if (currentFile.delete()) {
+        log.warn("Deleted exposure log {} after the error", currentFile);
+      } else {
+        log.error("Could not rename or delete exposure log {} after the error", currentFile);
+      }
+    }
+    currentFile = null;
+    fileSequence++;
+  }
+
+  /**
+   * Configures and starts an {@code AvroExposureLogger}.
+   */
+  public static final class Builder {
+    private final File directory;
+    private int capacity = 64 * 1024;
+    private Backpressure backpressure = Backpressure.DROP;
+    private int sampleRate = 10;
+    private int batchSize = 1024;
+    private long maxFileBytes = 128L * 1024 * 1024;
+    private long rollIntervalMsec = TimeUnit.HOURS.toMillis(1);
+    private CodecFactory codec = CodecFactory.deflateCodec(1);
+    private MetricRegistry metrics = new MetricRegistry();
+    private String metricPrefix;
+
+    private Builder(File directory) {
+      this.directory = Preconditions.checkNotNull(directory);
+    }
+
+    /**
+     * The number of events that may be waiting to be written, which must be a power of two.
+     */
+    public Builder capacity(int capacity) {
+      this.capacity = capacity;
+      return this;
+    }
+
+    public Builder backpressure(Backpressure backpressure) {
+      this.backpressure = Preconditions.checkNotNull(backpressure);
+      return this;
+    }
+
+    /**
+     * For the {@link Backpressure#SAMPLE} policy, keep one out of every {@code sampleRate} events once the buffer
+     * is half full.
+     */
+    public Builder sampleRate(int sampleRate) {
+      Preconditions.checkArgument(sampleRate > 0, "Sample rate must be positive: %s", sampleRate);
+      this.sampleRate = sampleRate;
+      return this;
+    }
+
+    public Builder batchSize(int batchSize) {
+      Preconditions.checkArgument(batchSize > 0, "Batch size must be positive: %s", batchSize);
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public Builder maxFileBytes(long maxFileBytes) {
+      this.maxFileBytes = maxFileBytes;
+      return this;
+    }
+
+    public Builder rollInterval(long duration, TimeUnit unit) {
+      this.rollIntervalMsec = unit.toMillis(duration);
+      return this;
+    }
+
+    public Builder codec(CodecFactory codec) {
+      this.codec = Preconditions.checkNotNull(codec);
+      return this;
+    }
+
+    public Builder metrics(MetricRegistry metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * A prefix for the names of this logger's metrics, so that several loggers (e.g., one for each
+     * {@link com.cloudera.gertrude.ExperimentsRuntime}) may share a {@code MetricRegistry}.
+     */
+    public Builder metricPrefix(String metricPrefix) {
+      this.metricPrefix = metricPrefix;
+      return this;
+    }
+
+    public AvroExposureLogger build() {
+      Preconditions.checkArgument(directory.isDirectory(), "Not a directory: %s", directory);
+      AvroExposureLogger logger = new AvroExposureLogger(this);
+      logger.writerThread.start();
+      return logger;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.exposure;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer thread.
+ *
+ * <p>Each slot has a sequence number that tells producers when the slot is free for the current lap around
+ * the ring and tells the consumer when the slot has been filled, so producers only contend on the CAS that
+ * claims a position and never wait on each other or on the consumer.
+ */
+final class MpscRingBuffer<T> {
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<T> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  MpscRingBuffer(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "Capacity must be a positive power of two: %s", capacity);
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.slots = new AtomicReferenceArray<T>(capacity);
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the approximate number of elements in the buffer.
+   */
+  int size() {
+    return (int) Math.max(0L, Math.min(capacity, tail.get() - head));
+  }
+
+  /**
+   * Adds the given element to the buffer, returning false if the buffer is full.
+   */
+  boolean offer(T value) {
+    long pos = tail.get();
+    while (true) {
+      int idx = (int) pos & mask;
+      long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          slots.lazySet(idx, value);
+          sequences.lazySet(idx, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Moves up to {@code max} elements into the given list. Must only be called from the consumer thread.
+   *
+   * @return the number of elements that were moved
+   */
+  int drainTo(List<? super T> out, int max) {
+    long pos = head;
+    int n = 0;
+    while (n < max) {
+      int idx = (int) pos & mask;
+      if (sequences.get(idx) != pos + 1) {
+        break;
+      }
+      out.add(slots.get(idx));
+      slots.lazySet(idx, null);
+      sequences.lazySet(idx, pos + capacity);
+      pos++;
+      n++;
+    }
+    head = pos;
+    return n;
+  }
+}
@@ -14,7 +14,9 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.BucketRanges;
 import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.DiversionProfiler;
 import com.cloudera.gertrude.DiversionCriterion;
 import com.cloudera.gertrude.ExperimentSpace;
 import com.cloudera.gertrude.ExperimentSpaceDeserializer;
@@ -39,18 +41,22 @@ import com.cloudera.gertrude.experiments.avro.ModifierOperator;
 import com.cloudera.gertrude.experiments.avro.OverrideDefinition;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.FileReader;
 import org.apache.avro.file.SeekableByteArrayInput;
 import org.apache.avro.file.SeekableInput;
-import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
@@ -61,66 +67,134 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
-import java.util.Set;
-import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer {
 
   private static final Logger log = LoggerFactory.getLogger(AvroExperimentSpaceDeserializer.class);
+  private static final int NO_SEGMENT = -1;
 
-  private final DatumReader<ExperimentDeployment> reader;
   private final boolean avroFileInput;
+  private final ExecutorService executor;
+  private volatile Map<String, List<ExperimentDeployment>> decodedParts = ImmutableMap.of();
+  private volatile boolean projection = false;
+  // The conditions that are created by the load that is in progress, from any of the executor's threads, with
+  // the id of the only experiment that uses each one, or NO_SEGMENT if they belong to a flag definition
+  private final ConcurrentMap<Condition<ExperimentState>, Integer> conditions =
+      new ConcurrentHashMap<Condition<ExperimentState>, Integer>();
 
   public AvroExperimentSpaceDeserializer(boolean avroFileInput) {
-    this.reader = new SpecificDatumReader<ExperimentDeployment>(ExperimentDeployment.class);
+    this(avroFileInput, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Creates a deserializer that uses the given {@code ExecutorService} to decode and resolve the parts of
+   * each new {@code ExperimentSpace}, and to build its independent layers, concurrently.
+   *
+   * @param avroFileInput true if the serialized data is in the Avro data file format
+   * @param executor the executor to use for decoding parts and building layers
+   */
+  public AvroExperimentSpaceDeserializer(boolean avroFileInput, ExecutorService executor) {
     this.avroFileInput = avroFileInput;
+    this.executor = Preconditions.checkNotNull(executor);
+  }
+
+  /**
+   * Turns on projection of each new {@code ExperimentSpace} onto the flags that have been declared in this
+   * binary. Undeclared flags and their overrides are dropped at load time instead of being kept in memory and
+   * merged into the flag settings of every request, while every experiment is still diverted and logged as
+   * before, even if it only overrides undeclared flags. Projection skips the validation of the dropped flags,
+   * so deployments should still be fully validated (e.g., by the deploy tool) before they are served.
+   *
+   * @param projection true to drop the flags that have not been declared in this binary
+   */
+  public void setProjection(boolean projection) {
+    this.projection = projection;
   }
 
   @Override
   protected Optional<ExperimentSpace> deserialize(ExperimentSpace.Serialized serialized) throws IOException {
-    ExperimentDeployment merged = null;
-    ExperimentDeployment curr = null;
-    if (avroFileInput) {
-      for (InputSupplier<? extends InputStream> is : serialized.getSerializedData()) {
-        SeekableInput si = new SeekableByteArrayInput(ByteStreams.toByteArray(is));
-        FileReader<ExperimentDeployment> dfr = DataFileReader.openReader(si, reader);
-        while (dfr.hasNext()) {
-          merged = merge(merged, dfr.next(curr));
-        }
+    // Decode each of the parts concurrently, re-using the decoded form of any versioned part that has not
+    // changed since the last call, and then flatten them back out in their original order.
+    List<InputSupplier<? extends InputStream>> data = serialized.getSerializedData();
+    List<String> partVersions = serialized.getPartVersionIdentifiers();
+    Map<String, List<ExperimentDeployment>> previous = decodedParts;
+    List<Future<List<ExperimentDeployment>>> decoded = Lists.newArrayListWithExpectedSize(data.size());
+    int reused = 0;
+    for (int i = 0; i < data.size(); i++) {
+      List<ExperimentDeployment> cached = partVersions.isEmpty() ? null : previous.get(partVersions.get(i));
+      if (cached != null) {
+        decoded.add(Futures.immediateFuture(cached));
+        reused++;
+      } else {
+        final InputSupplier<? extends InputStream> is = data.get(i);
+        decoded.add(executor.submit(new Callable<List<ExperimentDeployment>>() {
+          @Override
+          public List<ExperimentDeployment> call() throws IOException {
+            return decode(is);
+          }
+        }));
       }
-    } else {
-      BinaryDecoder decoder = null;
-      for (InputSupplier<? extends InputStream> is : serialized.getSerializedData()) {
-        decoder = DecoderFactory.get().binaryDecoder(is.getInput(), decoder);
-        merged = merge(merged, reader.read(curr, decoder));
+    }
+    List<ExperimentDeployment> parts = Lists.newArrayList();
+    Map<String, List<ExperimentDeployment>> current = Maps.newHashMap();
+    for (int i = 0; i < decoded.size(); i++) {
+      List<ExperimentDeployment> part;
+      try {
+        part = decoded.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while decoding deployment", e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw Throwables.propagate(e.getCause());
       }
+      parts.addAll(part);
+      if (!partVersions.isEmpty()) {
+        current.put(partVersions.get(i), part);
+      }
+    }
+    // Only hold on to the parts that are in the current version of the deployment.
+    decodedParts = current;
+    if (reused > 0) {
+      log.info("Re-used {} of {} decoded deployment parts", reused, data.size());
     }
 
-    return merged == null ? Optional.<ExperimentSpace>absent() :
-        Optional.fromNullable(load(merged, serialized.getVersionIdentifier()));
+    return parts.isEmpty() ? Optional.<ExperimentSpace>absent() :
+        Optional.fromNullable(load(parts, serialized.getVersionIdentifier()));
   }
 
-  private static ExperimentDeployment merge(ExperimentDeployment one, ExperimentDeployment two) {
-    if (one == null && two != null) {
-      return two;
+  private List<ExperimentDeployment> decode(InputSupplier<? extends InputStream> is) throws IOException {
+    // Datum readers cache resolution state, so each decoding task uses its own.
+    DatumReader<ExperimentDeployment> reader = new SpecificDatumReader<ExperimentDeployment>(
+        ExperimentDeployment.class);
+    List<ExperimentDeployment> ret = Lists.newArrayList();
+    if (avroFileInput) {
+      SeekableInput si = new SeekableByteArrayInput(ByteStreams.toByteArray(is));
+      FileReader<ExperimentDeployment> dfr = DataFileReader.openReader(si, reader);
+      try {
+        while (dfr.hasNext()) {
+          ret.add(dfr.next());
+        }
+      } finally {
+        dfr.close();
+      }
     } else {
-      one.setFlagDefinitions(mergeLists(one.getFlagDefinitions(), two.getFlagDefinitions()));
-      one.setDiversions(mergeLists(one.getDiversions(), two.getDiversions()));
-      one.setLayers(mergeLists(one.getLayers(), two.getLayers()));
-      one.setExperiments(mergeLists(one.getExperiments(), two.getExperiments()));
-      return one;
-    }
-  }
-
-  private static <S> List<S> mergeLists(List<S> one, List<S> two) {
-    if (one == null) {
-      one = Lists.newArrayList();
-    }
-    if (two != null) {
-      one.addAll(two);
+      InputStream in = is.getInput();
+      try {
+        ret.add(reader.read(null, DecoderFactory.get().binaryDecoder(in, null)));
+      } finally {
+        in.close();
+      }
     }
-    return one;
+    return ret;
   }
 
   private static <S> List<S> emptyIfNull(List<S> list) {
@@ -132,23 +206,100 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
 
   // Need to merge any existing deployment configs together before calling this
   public ExperimentSpace load(ExperimentDeployment deployment, String versionIdentifier) {
-    if (deployment.getFlagDefinitions() == null || deployment.getFlagDefinitions().isEmpty()) {
+    return load(ImmutableList.of(deployment), versionIdentifier);
+  }
+
+  /**
+   * Creates a new {@code ExperimentSpace} from the given deployment parts. The flag overrides, modifiers, and
+   * conditions in each part are resolved independently on this instance's {@code ExecutorService}, which means
+   * that the {@code ConditionFactory} must be safe to use from multiple threads when that executor is a pool.
+   * The resolved parts are then merged in the order they are given, so the result does not depend on the
+   * order in which the parts finished resolving. Concurrent calls to this method are run one at a time, since
+   * each one collects the {@code Condition}s that it creates for the new space.
+   *
+   * @param parts the deployment parts to merge
+   * @param versionIdentifier the version of the new {@code ExperimentSpace}
+   * @return a new {@code ExperimentSpace}, or null if the deployment is not valid
+   */
+  public synchronized ExperimentSpace load(List<ExperimentDeployment> parts, String versionIdentifier) {
+    conditions.clear();
+    // Overrides may refer to flags that are defined in other parts, so the parsers for every flag need to be
+    // known before any of the parts can be resolved.
+    final Map<String, FlagTypeParser<Object>> parsers = Maps.newHashMap();
+    for (ExperimentDeployment part : parts) {
+      for (ExperimentFlagDefinition flagDef : emptyIfNull(part.getFlagDefinitions())) {
+        try {
+          // Safe because the flag's values are only ever produced by its own parser.
+          @SuppressWarnings("unchecked")
+          FlagTypeParser<Object> parser = (FlagTypeParser<Object>) getParser(flagDef.getFlagType());
+          parsers.put(flagDef.getName().toString(), parser);
+        } catch (ValidationException e) {
+          // Reported when the flag definition is resolved
+        }
+      }
+    }
+    if (!hasFlagDefinitions(parts)) {
       log.error("No flags defined in deployment");
       return null;
     }
 
-    ExperimentSpaceBuilder builder = new ExperimentSpaceBuilder(getExperimentFlags(), new Random());
-    Map<String, FlagTypeParser<Object>> parsers = Maps.newHashMap();
-    for (ExperimentFlagDefinition flagDef : deployment.getFlagDefinitions()) {
+    List<Future<ResolvedDeployment>> futures = Lists.newArrayListWithExpectedSize(parts.size());
+    for (final ExperimentDeployment part : parts) {
+      futures.add(executor.submit(new Callable<ResolvedDeployment>() {
+        @Override
+        public ResolvedDeployment call() {
+          return resolve(part, parsers);
+        }
+      }));
+    }
+    ResolvedDeployment merged = new ResolvedDeployment();
+    for (Future<ResolvedDeployment> f : futures) {
+      merged.addAll(Futures.getUnchecked(f));
+    }
+    return build(merged, versionIdentifier);
+  }
+
+  private static boolean hasFlagDefinitions(List<ExperimentDeployment> parts) {
+    for (ExperimentDeployment part : parts) {
+      if (part.getFlagDefinitions() != null && !part.getFlagDefinitions().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ResolvedDeployment resolve(ExperimentDeployment part, Map<String, FlagTypeParser<Object>> parsers) {
+    ResolvedDeployment ret = new ResolvedDeployment();
+    for (ExperimentFlagDefinition flagDef : emptyIfNull(part.getFlagDefinitions())) {
+      ret.flags.add(resolveFlagDefinition(flagDef));
+    }
+    ret.diversions.addAll(emptyIfNull(part.getDiversions()));
+    ret.layers.addAll(emptyIfNull(part.getLayers()));
+    for (ExperimentDefinition exptDef : emptyIfNull(part.getExperiments())) {
+      ret.experiments.add(resolveExperiment(exptDef, parsers));
+    }
+    return ret;
+  }
+
+  private ExperimentSpace build(ResolvedDeployment deployment, String versionIdentifier) {
+    ExperimentSpaceBuilder builder = new ExperimentSpaceBuilder(getExperimentFlags(), new Random(), projection);
+    for (Map.Entry<Condition<ExperimentState>, Integer> e : conditions.entrySet()) {
+      if (e.getValue() == NO_SEGMENT) {
+        builder.addCondition(e.getKey());
+      } else {
+        builder.addCondition(e.getKey(), e.getValue());
+      }
+    }
+    for (ResolvedFlag flag : deployment.flags) {
       try {
-        addFlagDefinition(flagDef, parsers, builder);
+        flag.addTo(builder);
       } catch (ValidationException e) {
-        log.error("Experiment flag validation error: {}\nFor input: {}", e, flagDef);
+        log.error("Experiment flag validation error: {}\nFor input: {}", e, flag.definition);
         return null;
       }
     }
 
-    for (DiversionDefinition divDef : emptyIfNull(deployment.getDiversions())) {
+    for (DiversionDefinition divDef : deployment.diversions) {
       try {
         addDiversionCriterion(divDef, builder);
       } catch (ValidationException e) {
@@ -157,59 +308,69 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
       }
     }
 
-    Set<Integer> configuredLayerIds = Sets.newHashSet();
-    Set<Integer> configuredSegmentId = Sets.newHashSet();
-    configuredSegmentId.add(0); // The default domain
-    List<LayerDefinition> layerDefs = emptyIfNull(deployment.getLayers());
-    while (configuredLayerIds.size() < layerDefs.size()) {
-      boolean layersAdded = false;
-
-      for (LayerDefinition layerDef : layerDefs) {
-        if (configuredSegmentId.contains(layerDef.getDomainId()) &&
-            !configuredLayerIds.contains(layerDef.getId())) {
-          try {
-            addLayer(layerDef, builder);
-          } catch (ValidationException e) {
-            log.error("Layer validation error: {}\nFor input: {}", e, layerDef);
-            return null;
-          }
-          configuredLayerIds.add(layerDef.getId());
-          layersAdded = true;
-        }
+    // Index the layers by the domain that contains them, and the experiments by the domain of their layer,
+    // so that we can load the nested domains with a single pass from the top of the domain tree downward.
+    Map<Integer, Integer> domainIdsByLayer = Maps.newHashMap();
+    ListMultimap<Integer, LayerDefinition> layersByDomain = ArrayListMultimap.create();
+    for (LayerDefinition layerDef : deployment.layers) {
+      domainIdsByLayer.put(layerDef.getId(), layerDef.getDomainId());
+      layersByDomain.put(layerDef.getDomainId(), layerDef);
+    }
+    ListMultimap<Integer, ResolvedExperiment> experimentsByDomain = ArrayListMultimap.create();
+    for (ResolvedExperiment expt : deployment.experiments) {
+      Integer domainId = domainIdsByLayer.get(expt.definition.getLayerId());
+      if (domainId != null) {
+        experimentsByDomain.put(domainId, expt);
       }
+    }
 
-      if (!layersAdded) {
-        throw new IllegalStateException("Invalid deployment configuration; infinite loop detected");
+    int configuredLayers = 0;
+    Queue<Integer> domainIds = Lists.newLinkedList();
+    domainIds.add(0); // The default domain
+    while (!domainIds.isEmpty()) {
+      int domainId = domainIds.remove();
+      for (LayerDefinition layerDef : layersByDomain.get(domainId)) {
+        try {
+          addLayer(layerDef, builder);
+        } catch (ValidationException e) {
+          log.error("Layer validation error: {}\nFor input: {}", e, layerDef);
+          return null;
+        }
+        configuredLayers++;
       }
 
-      for (ExperimentDefinition exptDef : emptyIfNull(deployment.getExperiments())) {
-        if (configuredLayerIds.contains(exptDef.getLayerId()) &&
-            !configuredSegmentId.contains(exptDef.getId())) {
-          try {
-            addExperiment(exptDef, parsers, builder);
-          } catch (ValidationException e) {
-            log.error("Experiment validation error: {}\nFor input: {}", e, exptDef);
-            return null;
-          }
-          configuredSegmentId.add(exptDef.getId());
+      for (ResolvedExperiment expt : experimentsByDomain.get(domainId)) {
+        try {
+          expt.addTo(builder);
+        } catch (ValidationException e) {
+          log.error("Experiment validation error: {}\nFor input: {}", e, expt.definition);
+          return null;
+        }
+        if (expt.definition.getDomain()) {
+          domainIds.add(expt.definition.getId());
         }
       }
     }
 
-    return builder.build(versionIdentifier);
+    if (configuredLayers < deployment.layers.size()) {
+      throw new IllegalStateException("Invalid deployment configuration; layers defined in unknown domains");
+    }
+
+    return builder.build(versionIdentifier, executor);
   }
 
-  void addFlagDefinition(
-      ExperimentFlagDefinition definition,
-      Map<String, FlagTypeParser<Object>> parsers,
-      ExperimentSpaceBuilder builder) throws ValidationException {
-    String flagName = definition.getName().toString();
-    FlagTypeParser<Object> parser = (FlagTypeParser<Object>) getParser(definition.getFlagType());
-    builder.addFlagDefinition(
-        flagName,
-        parser.parse(definition.getBaseValue()),
-        getModifiers(definition.getModifiers(), parser));
-    parsers.put(flagName, parser);
+  ResolvedFlag resolveFlagDefinition(ExperimentFlagDefinition definition) {
+    ResolvedFlag ret = new ResolvedFlag(definition);
+    try {
+      // Safe because the flag's values are only ever produced by its own parser.
+      @SuppressWarnings("unchecked")
+      FlagTypeParser<Object> parser = (FlagTypeParser<Object>) getParser(definition.getFlagType());
+      ret.baseValue = parser.parse(definition.getBaseValue());
+      ret.modifiers = getModifiers(definition.getModifiers(), parser);
+    } catch (ValidationException e) {
+      ret.error = e;
+    }
+    return ret;
   }
 
   static void addDiversionCriterion(DiversionDefinition diversion, ExperimentSpaceBuilder builder)
@@ -233,22 +394,25 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
     builder.addLayer(info);
   }
 
-  void addExperiment(ExperimentDefinition exptDef,
-                     Map<String, FlagTypeParser<Object>> parsers,
-                     ExperimentSpaceBuilder builder) throws ValidationException {
-    // Needs to be checked against existing bucket ranges
-    SortedSet<Integer> buckets = getBuckets(exptDef.getBuckets(), exptDef.getBucketRanges());
-    Condition<ExperimentState> condition = getCondition(exptDef.getConditions(), exptDef.getConditionMergeOperator());
-    long startTimeMsec = getTime(exptDef.getStartTimeMsecUtc(), 0);
-    long endTimeMsec = getTime(exptDef.getEndTimeMsecUtc(), Long.MAX_VALUE);
-    long prePeriodTimeMsec = getTime(exptDef.getPrePeriodMsecUtc(), startTimeMsec);
-    long postPeriodTimeMsec = getTime(exptDef.getPostPeriodMsecUtc(), endTimeMsec);
-    validateTimes(startTimeMsec, endTimeMsec, prePeriodTimeMsec, postPeriodTimeMsec);
-    SegmentInfo info = new SegmentInfo(exptDef.getId(), exptDef.getLayerId(), exptDef.getDiversionId(),
-        buckets, condition, startTimeMsec, endTimeMsec, prePeriodTimeMsec, postPeriodTimeMsec);
-    Map<String, FlagValueOverride<Object>> overrides = getOverrides(exptDef.getOverrides(),
-        parsers, exptDef.getId());
-    builder.addExperimentInfo(info, exptDef.getDomain(), overrides);
+  ResolvedExperiment resolveExperiment(ExperimentDefinition exptDef, Map<String, FlagTypeParser<Object>> parsers) {
+    ResolvedExperiment ret = new ResolvedExperiment(exptDef);
+    try {
+      // Needs to be checked against existing bucket ranges
+      BucketRanges buckets = getBuckets(exptDef.getBuckets(), exptDef.getBucketRanges());
+      Condition<ExperimentState> condition = getCondition(exptDef.getConditions(),
+          exptDef.getConditionMergeOperator(), exptDef.getId());
+      long startTimeMsec = getTime(exptDef.getStartTimeMsecUtc(), 0);
+      long endTimeMsec = getTime(exptDef.getEndTimeMsecUtc(), Long.MAX_VALUE);
+      long prePeriodTimeMsec = getTime(exptDef.getPrePeriodMsecUtc(), startTimeMsec);
+      long postPeriodTimeMsec = getTime(exptDef.getPostPeriodMsecUtc(), endTimeMsec);
+      validateTimes(startTimeMsec, endTimeMsec, prePeriodTimeMsec, postPeriodTimeMsec);
+      ret.info = new SegmentInfo(exptDef.getId(), exptDef.getLayerId(), exptDef.getDiversionId(),
+          buckets, condition, startTimeMsec, endTimeMsec, prePeriodTimeMsec, postPeriodTimeMsec);
+      ret.overrides = getOverrides(exptDef.getOverrides(), parsers, exptDef.getId());
+    } catch (ValidationException e) {
+      ret.error = e;
+    }
+    return ret;
   }
 
   private void validateTimes(
@@ -302,7 +466,7 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
         }
         List<Modifier<Object>> mods;
         try {
-          mods = getModifiers(definition.getModifiers(), parser);
+          mods = getModifiers(definition.getModifiers(), parser, experimentId);
         } catch (ValidationException e) {
           throw new ValidationException(String.format(
               "Invalid modifier in overrides for flag %s in experiment %d", flagName, experimentId), e);
@@ -333,33 +497,45 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
     return b.build();
   }
 
-  protected static SortedSet<Integer> getBuckets(List<Integer> buckets, List<BucketRange> bucketRanges) {
-    SortedSet<Integer> ret = Sets.newTreeSet();
+  protected static BucketRanges getBuckets(List<Integer> buckets, List<BucketRange> bucketRanges)
+      throws ValidationException {
+    BucketRanges.Builder ret = BucketRanges.builder();
     if (buckets != null) {
-      ret.addAll(buckets);
+      for (Integer bucket : buckets) {
+        ret.add(bucket);
+      }
     }
     if (bucketRanges != null) {
       for (BucketRange br : bucketRanges) {
-        for (int i = br.getStart(); i < br.getEnd(); i++) {
-          ret.add(i);
+        if (br.getEnd() < br.getStart()) {
+          throw new ValidationException("Invalid bucket range: [" + br.getStart() + ", " + br.getEnd() + ")");
         }
+        ret.addRange(br.getStart(), br.getEnd());
       }
     }
-    return ret;
+    return ret.build();
   }
 
   protected <T> List<Modifier<T>> getModifiers(List<ModifierDefinition> definitions, FlagTypeParser<T> parser)
       throws ValidationException{
+    return getModifiers(definitions, parser, NO_SEGMENT);
+  }
+
+  // Creates the modifiers of the experiment with the given id, or of a flag definition if it is NO_SEGMENT
+  private <T> List<Modifier<T>> getModifiers(
+      List<ModifierDefinition> definitions,
+      FlagTypeParser<T> parser,
+      int segmentId) throws ValidationException {
     if (definitions == null || definitions.isEmpty()) {
       return ImmutableList.of();
     } else {
       List<Modifier<T>> modifiers = Lists.newArrayListWithExpectedSize(definitions.size());
       for (ModifierDefinition definition : definitions) {
         List<Modifier<T>> mods = definition.getModifiers() != null ?
-            getModifiers(definition.getModifiers(), parser) :
+            getModifiers(definition.getModifiers(), parser, segmentId) :
             ImmutableList.<Modifier<T>>of();
         Condition<ExperimentState> condition =
-            getCondition(definition.getConditions(), definition.getConditionMergeOperator());
+            getCondition(definition.getConditions(), definition.getConditionMergeOperator(), segmentId);
         modifiers.add(new BasicModifier<T>(
             parser.parse(definition.getValue()),
             getOperatorFunction(definition.getOperator(), parser),
@@ -372,6 +548,14 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
 
   protected Condition<ExperimentState> getCondition(List<ConditionDefinition> definitions, ConditionOperator operator)
       throws ValidationException {
+    return getCondition(definitions, operator, NO_SEGMENT);
+  }
+
+  // Creates the conditions of the experiment with the given id, or of a flag definition if it is NO_SEGMENT
+  private Condition<ExperimentState> getCondition(
+      List<ConditionDefinition> definitions,
+      ConditionOperator operator,
+      int segmentId) throws ValidationException {
     if (definitions == null || definitions.isEmpty()) {
       return Condition.TRUE;
     } else {
@@ -386,10 +570,12 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
         Condition<ExperimentState> c = getConditionFactory().create(definition.getName().toString());
         if (c != null) {
           try {
-            c.initialize(args);
+            initializeCondition(c, args);
           } catch (Exception e) {
             throw new ValidationException("Exception initializing condition \"" + definition.getName() + '"', e);
           }
+          this.conditions.put(c, segmentId);
+          c = DiversionProfiler.timed(definition.getName().toString(), c);
           if (definition.getNegate() != null && definition.getNegate()) {
             c = BooleanConditions.not(c);
           }
@@ -417,4 +603,58 @@ public class AvroExperimentSpaceDeserializer extends ExperimentSpaceDeserializer
       FlagTypeParser<T> parser) {
     return AssociativeOperator.get(operator.name(), parser);
   }
+
+  // The flag, layer, and experiment definitions from one or more deployment parts, after all of the
+  // parsing and condition creation that does not depend on the other parts has been done.
+  private static final class ResolvedDeployment {
+    final List<ResolvedFlag> flags = Lists.newArrayList();
+    final List<DiversionDefinition> diversions = Lists.newArrayList();
+    final List<LayerDefinition> layers = Lists.newArrayList();
+    final List<ResolvedExperiment> experiments = Lists.newArrayList();
+
+    void addAll(ResolvedDeployment other) {
+      flags.addAll(other.flags);
+      diversions.addAll(other.diversions);
+      layers.addAll(other.layers);
+      experiments.addAll(other.experiments);
+    }
+  }
+
+  // Errors are held until the definition is added to the builder, so that they are reported in the same
+  // order (and with the same context) as they would be if the deployment was processed sequentially.
+  static final class ResolvedFlag {
+    final ExperimentFlagDefinition definition;
+    Object baseValue;
+    List<Modifier<Object>> modifiers;
+    ValidationException error;
+
+    ResolvedFlag(ExperimentFlagDefinition definition) {
+      this.definition = definition;
+    }
+
+    void addTo(ExperimentSpaceBuilder builder) throws ValidationException {
+      if (error != null) {
+        throw error;
+      }
+      builder.addFlagDefinition(definition.getName().toString(), baseValue, modifiers);
+    }
+  }
+
+  static final class ResolvedExperiment {
+    final ExperimentDefinition definition;
+    SegmentInfo info;
+    Map<String, FlagValueOverride<Object>> overrides;
+    ValidationException error;
+
+    ResolvedExperiment(ExperimentDefinition definition) {
+      this.definition = definition;
+    }
+
+    void addTo(ExperimentSpaceBuilder builder) throws ValidationException {
+      if (error != null) {
+        throw error;
+      }
+      builder.addExperimentInfo(info, definition.getDomain(), overrides);
+    }
+  }
 }
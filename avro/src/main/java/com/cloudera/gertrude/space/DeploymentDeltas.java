@@ -0,0 +1,255 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.space;
+
+import com.cloudera.gertrude.experiments.avro.DiversionDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeploymentDelta;
+import com.cloudera.gertrude.experiments.avro.ExperimentFlagDefinition;
+import com.cloudera.gertrude.experiments.avro.LayerDefinition;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes and applies {@link ExperimentDeploymentDelta} records, so that small changes to a large deployment
+ * (like ramping up the buckets of a single experiment) can be shipped to loaders as a few kilobytes.
+ *
+ * <p>Each delta is keyed by the fingerprint of the deployment it was computed against, which is an MD5 hash
+ * of the binary encoding of the deployment after its flags, diversions, layers, and experiments have been
+ * sorted by name or id. Loaders should only apply a delta to a deployment with a matching fingerprint, and
+ * should fall back to fetching the complete deployment if the fingerprint of the result does not match the
+ * delta's target version. Deltas only apply to the binary encoding of a single {@code ExperimentDeployment},
+ * which is how deployments are written to Zookeeper.
+ */
+public final class DeploymentDeltas {
+
+  private static final byte[] MAGIC = "GRTRDDLT".getBytes(Charsets.US_ASCII);
+
+  private static final Function<ExperimentFlagDefinition, String> FLAG_KEY =
+      new Function<ExperimentFlagDefinition, String>() {
+        @Override
+        public String apply(ExperimentFlagDefinition input) {
+          return input.getName().toString();
+        }
+      };
+
+  private static final Function<DiversionDefinition, Integer> DIVERSION_KEY =
+      new Function<DiversionDefinition, Integer>() {
+        @Override
+        public Integer apply(DiversionDefinition input) {
+          return input.getId();
+        }
+      };
+
+  private static final Function<LayerDefinition, Integer> LAYER_KEY = new Function<LayerDefinition, Integer>() {
+    @Override
+    public Integer apply(LayerDefinition input) {
+      return input.getId();
+    }
+  };
+
+  private static final Function<ExperimentDefinition, Integer> EXPERIMENT_KEY =
+      new Function<ExperimentDefinition, Integer>() {
+        @Override
+        public Integer apply(ExperimentDefinition input) {
+          return input.getId();
+        }
+      };
+
+  private DeploymentDeltas() {
+  }
+
+  /**
+   * Returns the fingerprint of the given deployment, which does not depend on the order of its records.
+   */
+  public static String fingerprint(ExperimentDeployment deployment) {
+    ExperimentDeployment canonical = ExperimentDeployment.newBuilder()
+        .setFlagDefinitions(Ordering.natural().onResultOf(FLAG_KEY).sortedCopy(deployment.getFlagDefinitions()))
+        .setDiversions(Ordering.natural().onResultOf(DIVERSION_KEY).sortedCopy(deployment.getDiversions()))
+        .setLayers(Ordering.natural().onResultOf(LAYER_KEY).sortedCopy(deployment.getLayers()))
+        .setExperiments(Ordering.natural().onResultOf(EXPERIMENT_KEY).sortedCopy(deployment.getExperiments()))
+        .build();
+    try {
+      return Hashing.md5().hashBytes(encode(canonical)).toString();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode deployment", e);
+    }
+  }
+
+  /**
+   * Computes the changes that turn the {@code base} deployment into the {@code target} deployment.
+   */
+  public static ExperimentDeploymentDelta compute(ExperimentDeployment base, ExperimentDeployment target) {
+    List<CharSequence> removedFlags = Lists.newArrayList();
+    for (String name : removed(base.getFlagDefinitions(), target.getFlagDefinitions(), FLAG_KEY)) {
+      removedFlags.add(name);
+    }
+    return ExperimentDeploymentDelta.newBuilder()
+        .setBaseVersion(fingerprint(base))
+        .setTargetVersion(fingerprint(target))
+        .setFlagDefinitions(changed(base.getFlagDefinitions(), target.getFlagDefinitions(), FLAG_KEY))
+        .setRemovedFlags(removedFlags)
+        .setDiversions(changed(base.getDiversions(), target.getDiversions(), DIVERSION_KEY))
+        .setRemovedDiversions(removed(base.getDiversions(), target.getDiversions(), DIVERSION_KEY))
+        .setLayers(changed(base.getLayers(), target.getLayers(), LAYER_KEY))
+        .setRemovedLayers(removed(base.getLayers(), target.getLayers(), LAYER_KEY))
+        .setExperiments(changed(base.getExperiments(), target.getExperiments(), EXPERIMENT_KEY))
+        .setRemovedExperiments(removed(base.getExperiments(), target.getExperiments(), EXPERIMENT_KEY))
+        .build();
+  }
+
+  /**
+   * Returns true if the given delta was computed against a deployment with the given fingerprint.
+   */
+  public static boolean appliesTo(String fingerprint, ExperimentDeploymentDelta delta) {
+    return fingerprint.equals(delta.getBaseVersion().toString());
+  }
+
+  /**
+   * Applies the given delta to the {@code base} deployment. Changed records replace the existing records in
+   * place, and new records are added after the existing ones.
+   *
+   * @throws IllegalArgumentException if the delta was not computed against the given deployment
+   */
+  public static ExperimentDeployment apply(ExperimentDeployment base, ExperimentDeploymentDelta delta) {
+    String fingerprint = fingerprint(base);
+    if (!appliesTo(fingerprint, delta)) {
+      throw new IllegalArgumentException(String.format("Delta for version %s cannot be applied to version %s",
+          delta.getBaseVersion(), fingerprint));
+    }
+    List<String> removedFlags = Lists.newArrayList();
+    for (CharSequence name : delta.getRemovedFlags()) {
+      removedFlags.add(name.toString());
+    }
+    return ExperimentDeployment.newBuilder()
+        .setFlagDefinitions(merge(base.getFlagDefinitions(), delta.getFlagDefinitions(), removedFlags, FLAG_KEY))
+        .setDiversions(merge(base.getDiversions(), delta.getDiversions(), delta.getRemovedDiversions(),
+            DIVERSION_KEY))
+        .setLayers(merge(base.getLayers(), delta.getLayers(), delta.getRemovedLayers(), LAYER_KEY))
+        .setExperiments(merge(base.getExperiments(), delta.getExperiments(), delta.getRemovedExperiments(),
+            EXPERIMENT_KEY))
+        .build();
+  }
+
+  /**
+   * Returns true if the given data was written by {@link #toBytes(ExperimentDeploymentDelta)}.
+   */
+  public static boolean isDelta(byte[] data) {
+    return data != null && data.length >= MAGIC.length &&
+        Arrays.equals(MAGIC, Arrays.copyOf(data, MAGIC.length));
+  }
+
+  public static byte[] toBytes(ExperimentDeploymentDelta delta) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(MAGIC);
+    baos.write(encode(delta));
+    return baos.toByteArray();
+  }
+
+  public static ExperimentDeploymentDelta deltaFromBytes(byte[] data) throws IOException {
+    if (!isDelta(data)) {
+      throw new IOException("Data is not a deployment delta");
+    }
+    return new SpecificDatumReader<ExperimentDeploymentDelta>(ExperimentDeploymentDelta.class).read(null,
+        DecoderFactory.get().binaryDecoder(data, MAGIC.length, data.length - MAGIC.length, null));
+  }
+
+  public static byte[] toBytes(ExperimentDeployment deployment) throws IOException {
+    return encode(deployment);
+  }
+
+  public static ExperimentDeployment deploymentFromBytes(byte[] data) throws IOException {
+    return new SpecificDatumReader<ExperimentDeployment>(ExperimentDeployment.class).read(null,
+        DecoderFactory.get().binaryDecoder(data, null));
+  }
+
+  private static <T extends SpecificRecord> byte[] encode(T record) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(baos, null);
+    new SpecificDatumWriter<T>(record.getSchema()).write(record, encoder);
+    encoder.flush();
+    return baos.toByteArray();
+  }
+
+  private static <K, V> List<V> changed(List<V> base, List<V> target, Function<V, K> key) {
+    Map<K, V> existing = index(base, key);
+    List<V> ret = Lists.newArrayList();
+    for (V v : target) {
+      if (!v.equals(existing.get(key.apply(v)))) {
+        ret.add(v);
+      }
+    }
+    return ret;
+  }
+
+  private static <K, V> List<K> removed(List<V> base, List<V> target, Function<V, K> key) {
+    Map<K, V> remaining = index(target, key);
+    List<K> ret = Lists.newArrayList();
+    for (V v : base) {
+      if (!remaining.containsKey(key.apply(v))) {
+        ret.add(key.apply(v));
+      }
+    }
+    return ret;
+  }
+
+  private static <K, V> List<V> merge(List<V> base, List<V> changed, Collection<K> removed, Function<V, K> key) {
+    if (changed.isEmpty() && removed.isEmpty()) {
+      return base;
+    }
+    Map<K, V> updates = index(changed, key);
+    Set<K> skip = Sets.newHashSet(removed);
+    List<V> ret = Lists.newArrayListWithExpectedSize(base.size() + changed.size());
+    for (V v : base) {
+      K k = key.apply(v);
+      if (!skip.contains(k)) {
+        V update = updates.remove(k);
+        ret.add(update == null ? v : update);
+      }
+    }
+    ret.addAll(updates.values());
+    return ImmutableList.copyOf(ret);
+  }
+
+  private static <K, V> Map<K, V> index(List<V> values, Function<V, K> key) {
+    // Keeps the order of the values so that new records are appended in the order they were defined.
+    Map<K, V> ret = Maps.newLinkedHashMap();
+    for (V v : values) {
+      ret.put(key.apply(v), v);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.exposure;
+
+import com.cloudera.gertrude.ExperimentIdSet;
+import com.cloudera.gertrude.ExposureEvent;
+import com.cloudera.gertrude.experiments.avro.ExposureRecord;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.junit.Assert.*;
+
+public class AvroExposureLoggerTest {
+
+  private static final ExperimentIdSet IDS = ExperimentIdSet.of(ImmutableSet.of(10, 20, 35));
+
+  private static void produce(final AvroExposureLogger logger, int threads, final int eventsPerThread)
+      throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] producers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int threadId = t;
+      producers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          int[] diversionIds = { 0, 1 };
+          for (int i = 0; i < eventsPerThread; i++) {
+            String[] identifiers = { "cookie" + threadId + "-" + i, null };
+            logger.log(new ExposureEvent(System.currentTimeMillis(), "v1", IDS, diversionIds, identifiers));
+          }
+        }
+      };
+      producers[t].start();
+    }
+    start.countDown();
+    for (Thread p : producers) {
+      p.join();
+    }
+    logger.close();
+  }
+
+  private static long countRecords(File dir) throws Exception {
+    long count = 0;
+    for (File f : dir.listFiles()) {
+      assertFalse("Unrolled file: " + f, f.getName().startsWith("."));
+      DataFileReader<ExposureRecord> reader = new DataFileReader<ExposureRecord>(f,
+          new SpecificDatumReader<ExposureRecord>(ExposureRecord.class));
+      for (ExposureRecord r : reader) {
+        assertEquals(IDS.getCombinationId(), r.getCombinationId().longValue());
+        assertEquals(2, r.getDiversionIdentifiers().size());
+        count++;
+      }
+      reader.close();
+    }
+    return count;
+  }
+
+  @Test
+  public void testThroughputWithDrops() throws Exception {
+    File dir = Files.createTempDir();
+    MetricRegistry metrics = new MetricRegistry();
+    AvroExposureLogger logger = AvroExposureLogger.builder(dir)
+        .capacity(16 * 1024)
+        // The file length only grows as Avro flushes its blocks, so roll on every write to get several files.
+        .maxFileBytes(1)
+        .metrics(metrics)
+        .build();
+    int threads = 4, eventsPerThread = 100000;
+    produce(logger, threads, eventsPerThread);
+    long written = countRecords(dir);
+    long dropped = metrics.meter(name(AvroExposureLogger.class, "dropped")).getCount();
+    assertEquals(threads * eventsPerThread, written + dropped);
+    assertEquals(written, metrics.meter(name(AvroExposureLogger.class, "written")).getCount());
+    assertTrue(dir.listFiles().length > 1);
+  }
+
+  @Test
+  public void testBlockingNeverDrops() throws Exception {
+    File dir = Files.createTempDir();
+    MetricRegistry metrics = new MetricRegistry();
+    AvroExposureLogger logger = AvroExposureLogger.builder(dir)
+        .capacity(64)
+        .batchSize(16)
+        .backpressure(AvroExposureLogger.Backpressure.BLOCK)
+        .metrics(metrics)
+        .build();
+    produce(logger, 4, 5000);
+    assertEquals(20000, countRecords(dir));
+    assertEquals(0, metrics.meter(name(AvroExposureLogger.class, "dropped")).getCount());
+  }
+
+  @Test
+  public void testSampling() throws Exception {
+    File dir = Files.createTempDir();
+    MetricRegistry metrics = new MetricRegistry();
+    AvroExposureLogger logger = AvroExposureLogger.builder(dir)
+        .capacity(256)
+        .backpressure(AvroExposureLogger.Backpressure.SAMPLE)
+        .sampleRate(4)
+        .metrics(metrics)
+        .build();
+    produce(logger, 2, 20000);
+    long dropped = metrics.meter(name(AvroExposureLogger.class, "dropped")).getCount();
+    assertEquals(40000, countRecords(dir) + dropped);
+  }
+
+  @Test
+  public void testFailedRollKeepsPartialFile() throws Exception {
+    File dir = Files.createTempDir();
+    MetricRegistry metrics = new MetricRegistry();
+    AvroExposureLogger logger = AvroExposureLogger.builder(dir).metrics(metrics).build();
+    int[] diversionIds = { 0, 1 };
+    for (int i = 0; i < 100; i++) {
+      String[] identifiers = { "cookie" + i, null };
+      logger.log(new ExposureEvent(System.currentTimeMillis(), "v1", IDS, diversionIds, identifiers));
+    }
+    while (metrics.meter(name(AvroExposureLogger.class, "written")).getCount() < 100) {
+      Thread.sleep(10);
+    }
+    File[] hidden = dir.listFiles();
+    assertEquals(1, hidden.length);
+    assertTrue(hidden[0].getName().startsWith("."));
+
+    // A non-empty directory where the rolled file belongs makes the rename fail.
+    String name = hidden[0].getName().substring(1);
+    File blocker = new File(dir, name);
+    assertTrue(blocker.mkdir());
+    assertTrue(new File(blocker, "x").createNewFile());
+    logger.close();
+
+    assertFalse(hidden[0].exists());
+    File partial = new File(dir, name + ".partial");
+    assertTrue(partial.exists());
+    DataFileReader<ExposureRecord> reader = new DataFileReader<ExposureRecord>(partial,
+        new SpecificDatumReader<ExposureRecord>(ExposureRecord.class));
+    long count = 0;
+    for (ExposureRecord r : reader) {
+      count++;
+    }
+    reader.close();
+    assertEquals(100, count);
+    // The events were written before the roll failed, so they were not dropped.
+    assertEquals(0, metrics.meter(name(AvroExposureLogger.class, "dropped")).getCount());
+  }
+
+  @Test
+  public void testMetricPrefix() throws Exception {
+    MetricRegistry metrics = new MetricRegistry();
+    AvroExposureLogger first = AvroExposureLogger.builder(Files.createTempDir())
+        .metrics(metrics)
+        .metricPrefix("first")
+        .build();
+    AvroExposureLogger second = AvroExposureLogger.builder(Files.createTempDir())
+        .metrics(metrics)
+        .metricPrefix("second")
+        .build();
+    produce(first, 1, 10);
+    produce(second, 1, 20);
+    assertEquals(10, metrics.meter(name("first", AvroExposureLogger.class.getName(), "written")).getCount());
+    assertEquals(20, metrics.meter(name("second", AvroExposureLogger.class.getName(), "written")).getCount());
+    assertTrue(metrics.getGauges().containsKey(name("second", AvroExposureLogger.class.getName(), "pending")));
+  }
+}
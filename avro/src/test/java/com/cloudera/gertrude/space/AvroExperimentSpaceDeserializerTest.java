@@ -14,33 +14,81 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.AbstractAsyncCondition;
+import com.cloudera.gertrude.AttributeCondition;
+import com.cloudera.gertrude.AttributeKey;
+import com.cloudera.gertrude.AttributeLoader;
+import com.cloudera.gertrude.BucketRanges;
 import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.ConditionDataSource;
+import com.cloudera.gertrude.DiversionProfiler;
+import com.cloudera.gertrude.DiversionTrace;
+import com.cloudera.gertrude.ExperimentHandler;
 import com.cloudera.gertrude.ExperimentFlag;
+import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.ExperimentState;
 import com.cloudera.gertrude.Experiments;
+import com.cloudera.gertrude.ExperimentsRuntime;
+import com.cloudera.gertrude.TestExperimentSpaceLoader;
 import com.cloudera.gertrude.TestExperimentState;
 import com.cloudera.gertrude.TestExperiments;
+import com.cloudera.gertrude.condition.AbstractCohortCondition;
+import com.cloudera.gertrude.condition.Cohort;
+import com.cloudera.gertrude.condition.CohortDataSource;
 import com.cloudera.gertrude.condition.ReflectionConditionFactory;
+import com.cloudera.gertrude.experiments.avro.BucketRange;
+import com.cloudera.gertrude.experiments.avro.ConditionDefinition;
+import com.cloudera.gertrude.experiments.avro.DiversionDefinition;
 import com.cloudera.gertrude.experiments.avro.ExperimentDefinition;
 import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
 import com.cloudera.gertrude.experiments.avro.ExperimentFlagDefinition;
 import com.cloudera.gertrude.experiments.avro.FlagType;
+import com.cloudera.gertrude.experiments.avro.LayerDefinition;
 import com.cloudera.gertrude.experiments.avro.ModifierOperator;
 import com.cloudera.gertrude.experiments.avro.OverrideDefinition;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.cloudera.gertrude.space.AvroDataUtils.*;
+import static com.codahale.metrics.MetricRegistry.name;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public final class AvroExperimentSpaceDeserializerTest {
 
@@ -48,6 +96,7 @@ public final class AvroExperimentSpaceDeserializerTest {
   private static final ExperimentFlag<String> bar = Experiments.declare("bar", "zzz");
   private static final ExperimentFlag<Boolean> baz = Experiments.declare("baz", false);
   private static final AvroExperimentSpaceDeserializer aedp = new AvroExperimentSpaceDeserializer(false);
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
   private final List<ExperimentFlagDefinition> flagDefs = ImmutableList.of(
       flagDef("foo", "17", FlagType.INT),
@@ -58,7 +107,60 @@ public final class AvroExperimentSpaceDeserializerTest {
   public static void setUp() throws Exception {
     Map<String, ExperimentFlag<?>> flags = ImmutableMap.<String, ExperimentFlag<?>>of(
         "foo", foo, "bar", bar, "baz", baz);
-    aedp.initialize(flags, new ReflectionConditionFactory());
+    aedp.initialize(flags, new ReflectionConditionFactory()
+        .register("delayed", DelayedCondition.class)
+        .register("attribute", AttributeValueCondition.class));
+  }
+
+  // Checks whether the string attribute named by its first argument has the value of its second argument.
+  public static final class AttributeValueCondition implements AttributeCondition<ExperimentState> {
+    private AttributeKey<String> key;
+    private String value;
+
+    @Override
+    public void initialize(List<String> args) {
+      key = AttributeKey.of(args.get(0), String.class);
+      value = args.get(1);
+    }
+
+    @Override
+    public boolean evaluate(ExperimentState state) {
+      return value.equals(state.getAttribute(key));
+    }
+
+    @Override
+    public CacheLevel getCacheLevel() {
+      return CacheLevel.REQUEST;
+    }
+
+    @Override
+    public Set<AttributeKey<?>> getAttributeKeys() {
+      return ImmutableSet.<AttributeKey<?>>of(key);
+    }
+  }
+
+  // Evaluates to its first argument after the number of milliseconds in its second argument.
+  public static final class DelayedCondition extends AbstractAsyncCondition<ExperimentState> {
+    private boolean value;
+    private long delayMsec;
+
+    @Override
+    public void initialize(List<String> args) {
+      value = Boolean.valueOf(args.get(0));
+      delayMsec = Long.valueOf(args.get(1));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> evaluateAsync(ExperimentState state) {
+      final SettableFuture<Boolean> ret = SettableFuture.create();
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          ret.set(value);
+        }
+      }, delayMsec, TimeUnit.MILLISECONDS);
+      return ret;
+    }
   }
 
   @Test
@@ -243,6 +345,569 @@ public final class AvroExperimentSpaceDeserializerTest {
     assertEquals("qqq", state.get(bar));
   }
 
+  @Test
+  public void testTriggeredExperimentIds() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77));
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(
+            exptDef(s1, 10, replaceDef("foo", "29")),
+            exptDef(s2, 20, replaceDef("bar", "qqq"))))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+    TestExperiments.getHandler().handle(state);
+    assertEquals(ImmutableSet.of(10, 20), state.getExperimentIds());
+    assertTrue(state.getTriggeredExperimentIds().isEmpty());
+    state.get(baz);
+    assertTrue(state.getTriggeredExperimentIds().isEmpty());
+    assertEquals(29L, state.get(foo).longValue());
+    assertEquals(ImmutableSet.of(10), state.getTriggeredExperimentIds());
+    state.get(bar);
+    assertEquals(ImmutableSet.of(10, 20), state.getTriggeredExperimentIds());
+
+    // Without tracking, every experiment counts as triggered.
+    TestExperiments.getHandler().setFlagAccessTracking(false);
+    try {
+      state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+      TestExperiments.getHandler().handle(state);
+      assertEquals(ImmutableSet.of(10, 20), state.getTriggeredExperimentIds());
+    } finally {
+      TestExperiments.getHandler().setFlagAccessTracking(true);
+    }
+  }
+
+  @Test
+  public void testProjection() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77));
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(ImmutableList.<ExperimentFlagDefinition>builder()
+            .addAll(flagDefs)
+            .add(flagDef("undeclared", "1", FlagType.INT))
+            .build())
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(
+            exptDef(s1, 10, replaceDef("undeclared", "2")),
+            exptDef(s2, 20, replaceDef("bar", "qqq"))))
+        .build();
+    AvroExperimentSpaceDeserializer projecting = new AvroExperimentSpaceDeserializer(false);
+    projecting.setProjection(true);
+    projecting.initialize(ImmutableMap.<String, ExperimentFlag<?>>of("foo", foo, "bar", bar, "baz", baz),
+        new ReflectionConditionFactory());
+
+    TestExperiments.getHandler().setTracing(0, 1);
+    try {
+      for (AvroExperimentSpaceDeserializer d : ImmutableList.of(aedp, projecting)) {
+        TestExperiments.setExperimentSpace(d.load(deployment, ""));
+        TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod").setTraceRequested(true);
+        TestExperiments.getHandler().handle(state);
+        // Experiments that only override undeclared flags are still diverted and logged.
+        assertEquals(ImmutableSet.of(10, 20), state.getExperimentIds());
+        assertEquals("qqq", state.get(bar));
+        assertEquals(17L, state.get(foo).longValue());
+
+        Map<Integer, Set<String>> overridden = Maps.newHashMap();
+        for (DiversionTrace.Step step : state.getDiversionTrace().getSteps()) {
+          if (step.getKind() == DiversionTrace.Kind.OVERRIDES) {
+            overridden.put(step.getSegmentId(), step.getFlags());
+          }
+        }
+        if (d == aedp) {
+          assertEquals(ImmutableSet.of("undeclared"), overridden.get(10));
+        } else {
+          assertTrue(overridden.get(10).isEmpty());
+        }
+        assertEquals(ImmutableSet.of("bar"), overridden.get(20));
+      }
+    } finally {
+      TestExperiments.getHandler().setTracing(0, 0);
+    }
+  }
+
+  @Test
+  public void testProfiling() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77));
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(exptDef(s1, 10), exptDef(s2, 20, replaceDef("bar", "qqq"))))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+    MetricRegistry metrics = TestExperiments.getMetrics();
+    String layerTimer = name(DiversionProfiler.class, "layer", "2");
+    String flagTimer = name(DiversionProfiler.class, "flag", "bar");
+    String segmentTimer = name(DiversionProfiler.class, "segmentconditions", "2");
+    long before = metrics.timer(layerTimer).getCount();
+    long segmentsBefore = metrics.timer(segmentTimer).getCount();
+
+    TestExperiments.getHandler().setProfilingSampleRate(2);
+    try {
+      for (int i = 0; i < 10; i++) {
+        TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+        TestExperiments.getHandler().handle(state);
+        assertEquals("qqq", state.get(bar));
+      }
+    } finally {
+      TestExperiments.getHandler().setProfilingSampleRate(0);
+    }
+    assertEquals(5, metrics.timer(layerTimer).getCount() - before);
+    assertTrue(metrics.timer(flagTimer).getCount() >= 5);
+    // Segment conditions are timed by layer rather than by segment.
+    assertTrue(metrics.timer(segmentTimer).getCount() - segmentsBefore >= 5);
+
+    // Nothing is recorded once profiling is off.
+    TestExperiments.getHandler().handle(new TestExperimentState().setDiversionIdentifier(0, "mod"));
+    assertEquals(5, metrics.timer(layerTimer).getCount() - before);
+  }
+
+  @Test
+  public void testAsyncConditions() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77));
+    ExperimentDefinition e1 = ExperimentDefinition.newBuilder(exptDef(s1, 10))
+        .setConditions(ImmutableList.of(delayedDef(true, 0)))
+        .build();
+    ExperimentDefinition e2 = ExperimentDefinition.newBuilder(exptDef(s2, 20, replaceDef("bar", "qqq")))
+        .setConditions(ImmutableList.of(delayedDef(true, 500)))
+        .build();
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(e1, e2))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+    ExperimentHandler handler = TestExperiments.getHandler();
+    MetricRegistry metrics = TestExperiments.getMetrics();
+    long timeouts = metrics.meter(name(ExperimentHandler.class, "asynctimeouts")).getCount();
+
+    // The synchronous handler waits for every condition.
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+    handler.handle(state);
+    assertEquals(ImmutableSet.of(10, 20), state.getExperimentIds());
+
+    // A condition that misses the deadline evaluates to false, so layer 2 falls back to its biased id.
+    state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+    assertSame(state, handler.handleAsync(state, 100, TimeUnit.MILLISECONDS, scheduler).get());
+    assertEquals(ImmutableSet.of(10, 5), state.getExperimentIds());
+    assertEquals("aaa", state.get(bar));
+    assertEquals(1, metrics.meter(name(ExperimentHandler.class, "asynctimeouts")).getCount() - timeouts);
+
+    state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+    handler.handleAsync(state, 10, TimeUnit.SECONDS, scheduler).get();
+    assertEquals(ImmutableSet.of(10, 20), state.getExperimentIds());
+    assertEquals("qqq", state.get(bar));
+    assertEquals(1, metrics.meter(name(ExperimentHandler.class, "asynctimeouts")).getCount() - timeouts);
+  }
+
+  @Test
+  public void testAsyncConditionsOfInactiveExperiments() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77), Condition.TRUE, 1000L, 2000L, 1000L, 2000L);
+    ExperimentDefinition e2 = ExperimentDefinition.newBuilder(exptDef(s2, 20, replaceDef("bar", "qqq")))
+        .setConditions(ImmutableList.of(delayedDef(true, 50)))
+        .build();
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(exptDef(s1, 10), e2))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+    ExperimentHandler handler = TestExperiments.getHandler();
+
+    // The condition of an experiment that is enabled is waited for.
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod").setRequestTimeMsec(1500L);
+    ListenableFuture<TestExperimentState> future = handler.handleAsync(state, 10, TimeUnit.SECONDS, scheduler);
+    assertFalse(future.isDone());
+    assertEquals(ImmutableSet.of(10, 20), future.get().getExperimentIds());
+
+    // Once the experiment has ended, its condition is not started at all.
+    state = new TestExperimentState().setDiversionIdentifier(0, "mod").setRequestTimeMsec(2500L);
+    future = handler.handleAsync(state, 10, TimeUnit.SECONDS, scheduler);
+    assertTrue(future.isDone());
+    assertFalse(future.get().getExperimentIds().contains(20));
+  }
+
+  @Test
+  public void testAttributeConditions() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77));
+    ExperimentDefinition e1 = ExperimentDefinition.newBuilder(exptDef(s1, 10))
+        .setConditions(ImmutableList.of(conditionDef("attribute", "tier", "gold")))
+        .build();
+    ExperimentDefinition e2 = ExperimentDefinition.newBuilder(exptDef(s2, 20))
+        .setConditions(ImmutableList.of(conditionDef("attribute", "country", "US")))
+        .build();
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(e1, e2))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+    ExperimentHandler handler = TestExperiments.getHandler();
+
+    // Without a loader, none of the attributes have values.
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+    handler.handle(state);
+    assertEquals(ImmutableSet.of(2, 5), state.getExperimentIds());
+
+    final List<Set<AttributeKey<?>>> requested = Lists.newArrayList();
+    handler.setAttributeLoader(new AttributeLoader() {
+      @Override
+      public Map<AttributeKey<?>, Object> load(ExperimentState state, Set<AttributeKey<?>> keys) {
+        requested.add(keys);
+        return ImmutableMap.<AttributeKey<?>, Object>of(AttributeKey.of("tier", String.class), "gold");
+      }
+    });
+    try {
+      state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+      handler.handle(state);
+    } finally {
+      handler.setAttributeLoader(null);
+    }
+    assertEquals(ImmutableSet.of(10, 5), state.getExperimentIds());
+    assertEquals("gold", state.getAttribute(AttributeKey.of("tier", String.class)));
+    // Both attributes were requested with a single call.
+    assertEquals(ImmutableList.of(ImmutableSet.of(
+        AttributeKey.of("tier", String.class), AttributeKey.of("country", String.class))), requested);
+  }
+
+  private static ConditionDefinition conditionDef(String name, String... args) {
+    return ConditionDefinition.newBuilder()
+        .setName(name)
+        .setArgs(ImmutableList.<CharSequence>copyOf(args))
+        .build();
+  }
+
+  private static ConditionDefinition delayedDef(boolean value, long delayMsec) {
+    return conditionDef("delayed", String.valueOf(value), String.valueOf(delayMsec));
+  }
+
+  @Test
+  public void testTracing() throws Exception {
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+    SegmentInfo s2 = new SegmentInfo(20, 2, 0, ImmutableSortedSet.of(77));
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)))
+        .setExperiments(ImmutableList.of(exptDef(s1, 10), exptDef(s2, 20, replaceDef("bar", "qqq"))))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+    ExperimentHandler handler = TestExperiments.getHandler();
+
+    handler.setTracing(0, 4);
+    try {
+      TestExperimentState untraced = new TestExperimentState().setDiversionIdentifier(0, "mod");
+      handler.handle(untraced);
+      assertNull(untraced.getDiversionTrace());
+      assertTrue(handler.getRecentTraces().isEmpty());
+
+      TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod").setTraceRequested(true);
+      handler.handle(state);
+      DiversionTrace trace = state.getDiversionTrace();
+      assertTrue(trace.isRequested());
+      assertEquals(ImmutableSet.of(10, 20), trace.getExperimentIds().getIds());
+      List<DiversionTrace.Kind> kinds = Lists.newArrayList();
+      for (DiversionTrace.Step step : trace.getSteps()) {
+        kinds.add(step.getKind());
+      }
+      assertEquals(2, Collections.frequency(kinds, DiversionTrace.Kind.BUCKET));
+      assertEquals(2, Collections.frequency(kinds, DiversionTrace.Kind.ASSIGNED));
+      assertEquals(2, Collections.frequency(kinds, DiversionTrace.Kind.CONDITION));
+      DiversionTrace.Step bucket = trace.getSteps().get(0);
+      assertEquals("mod", bucket.getIdentifier());
+      assertEquals(LongMath.mod(bucket.getHash(), 100), bucket.getBucket());
+      DiversionTrace.Step overrides = trace.getSteps().get(kinds.lastIndexOf(DiversionTrace.Kind.OVERRIDES));
+      assertEquals(20, overrides.getSegmentId());
+      assertEquals(ImmutableSet.of("bar"), overrides.getFlags());
+
+      assertEquals(ImmutableList.of(trace), handler.findTraces("mod"));
+      assertTrue(handler.findTraces("other").isEmpty());
+
+      // The ring only keeps the most recent traces.
+      for (int i = 0; i < 5; i++) {
+        handler.handle(new TestExperimentState().setDiversionIdentifier(0, "c" + i).setTraceRequested(true));
+      }
+      assertEquals(4, handler.getRecentTraces().size());
+      assertTrue(handler.findTraces("mod").isEmpty());
+      assertEquals(1, handler.findTraces("c4").size());
+    } finally {
+      handler.setTracing(0, 0);
+    }
+    assertTrue(handler.getRecentTraces().isEmpty());
+  }
+
+  @Test
+  public void testLargeBucketRanges() throws Exception {
+    int numBuckets = 1000000;
+    ExperimentDefinition e1 = exptDef(new SegmentInfo(10, 1, 0, BucketRanges.of()), 10);
+    e1.setBucketRanges(ImmutableList.of(new BucketRange(0, 400000), new BucketRange(400000, 500000)));
+    ExperimentDefinition e2 = exptDef(new SegmentInfo(20, 1, 0, BucketRanges.of()), 20);
+    e2.setBucketRanges(ImmutableList.of(new BucketRange(500000, numBuckets)));
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, numBuckets, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+        .setExperiments(ImmutableList.of(e1, e2))
+        .build();
+    TestExperiments.setExperimentSpace(aedp.load(deployment, ""));
+
+    // Every bucket is claimed by one of the two experiments
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "cookie");
+    TestExperiments.getHandler().handle(state);
+    assertEquals(1, Sets.intersection(ImmutableSet.of(10, 20), state.getExperimentIds()).size());
+  }
+
+  @Test
+  public void testOverlappingBucketRanges() throws Exception {
+    int numBuckets = 1000000;
+    ExperimentDefinition e1 = exptDef(new SegmentInfo(10, 1, 0, BucketRanges.of()), 10);
+    e1.setBucketRanges(ImmutableList.of(new BucketRange(0, 400000)));
+    ExperimentDefinition e2 = exptDef(new SegmentInfo(20, 1, 0, BucketRanges.of(17)), 20);
+    e2.setBucketRanges(ImmutableList.of(new BucketRange(500000, numBuckets)));
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, numBuckets, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+        .setExperiments(ImmutableList.of(e1, e2))
+        .build();
+    assertNull(aedp.load(deployment, ""));
+  }
+
+  @Test
+  public void testMultiplePartsDecodedConcurrently() throws Exception {
+    int numBuckets = 100;
+    SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(82));
+    ExperimentDeployment flagsAndLayers = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, numBuckets, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+        .setExperiments(ImmutableList.<ExperimentDefinition>of())
+        .build();
+    ExperimentDeployment experiments = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.<DiversionDefinition>of())
+        .setFlagDefinitions(ImmutableList.<ExperimentFlagDefinition>of())
+        .setLayers(ImmutableList.<LayerDefinition>of())
+        .setExperiments(ImmutableList.of(exptDef(s1, 10, replaceDef("foo", "29"))))
+        .build();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      AvroExperimentSpaceDeserializer pooled = new AvroExperimentSpaceDeserializer(false, executor);
+      pooled.initialize(ImmutableMap.<String, ExperimentFlag<?>>of("foo", foo, "bar", bar, "baz", baz),
+          new ReflectionConditionFactory());
+      ExperimentSpace.Serialized serialized = new ExperimentSpace.Serialized("v1",
+          ImmutableList.<InputSupplier<? extends InputStream>>of(serialize(experiments), serialize(flagsAndLayers)));
+      TestExperiments.setExperimentSpace(pooled.deserialize(serialized).get());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "cookie");
+    TestExperiments.getHandler().handle(state);
+    assertEquals(ImmutableSet.of(10), state.getExperimentIds());
+    assertEquals(29, state.getInt(foo));
+  }
+
+  @Test
+  public void testUnchangedPartsAreNotDecodedAgain() throws Exception {
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(flagDefs)
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+        .setExperiments(ImmutableList.<ExperimentDefinition>of())
+        .build();
+    AvroExperimentSpaceDeserializer cached = new AvroExperimentSpaceDeserializer(false);
+    cached.initialize(ImmutableMap.<String, ExperimentFlag<?>>of("foo", foo, "bar", bar, "baz", baz),
+        new ReflectionConditionFactory());
+    List<String> partVersions = ImmutableList.of("part@1");
+    assertTrue(cached.deserialize(new ExperimentSpace.Serialized("v1",
+        ImmutableList.<InputSupplier<? extends InputStream>>of(serialize(deployment)), partVersions)).isPresent());
+
+    InputSupplier<InputStream> unreadable = new InputSupplier<InputStream>() {
+      @Override
+      public InputStream getInput() throws IOException {
+        throw new IOException("Unchanged part should not be read");
+      }
+    };
+    assertTrue(cached.deserialize(new ExperimentSpace.Serialized("v2",
+        ImmutableList.<InputSupplier<? extends InputStream>>of(unreadable), partVersions)).isPresent());
+  }
+
+  private static InputSupplier<? extends InputStream> serialize(ExperimentDeployment deployment) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(baos, null);
+    new SpecificDatumWriter<ExperimentDeployment>(ExperimentDeployment.class).write(deployment, encoder);
+    encoder.flush();
+    return ByteStreams.newInputStreamSupplier(baos.toByteArray());
+  }
+
+  @Test
+  public void testIndependentRuntimes() throws Exception {
+    ReflectionConditionFactory conditionFactory = new ReflectionConditionFactory();
+    List<ExperimentsRuntime> runtimes = Lists.newArrayList();
+    List<ExperimentFlag<Long>> flags = Lists.newArrayList();
+    // Named runtimes may share a registry, since their metric names are prefixed with their names.
+    MetricRegistry metrics = new MetricRegistry();
+    for (int i = 0; i < 2; i++) {
+      ExperimentsRuntime runtime = new ExperimentsRuntime("runtime" + i);
+      // The same flag name may have a different default in each runtime.
+      flags.add(runtime.declare("foo", 100L + i));
+      SegmentInfo s1 = new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80));
+      ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+          .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+          .setFlagDefinitions(ImmutableList.of(flagDef("foo", String.valueOf(200 + i), FlagType.INT)))
+          .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+          .setExperiments(ImmutableList.of(exptDef(s1, 10, replaceDef("foo", String.valueOf(300 + i)))))
+          .build();
+      runtime.registerConditionFactory(conditionFactory);
+      runtime.registerDeserializer(new AvroExperimentSpaceDeserializer(false));
+      runtime.registerLoader(new TestExperimentSpaceLoader("v" + i, serialize(deployment)));
+      runtime.registerMetricRegistry(metrics);
+      runtimes.add(runtime);
+    }
+
+    for (int i = 0; i < 2; i++) {
+      TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+      runtimes.get(i).getHandler().handle(state);
+      assertEquals(ImmutableSet.of(10), state.getExperimentIds());
+      assertEquals(300L + i, state.get(flags.get(i)).longValue());
+      state = new TestExperimentState().setDiversionIdentifier(0, "cookie");
+      runtimes.get(i).getHandler().handle(state);
+      assertEquals(200L + i, state.get(flags.get(i)).longValue());
+    }
+    assertTrue(runtimes.get(0).getHandler() != runtimes.get(1).getHandler());
+    for (int i = 0; i < 2; i++) {
+      assertEquals(2, metrics.meter(name("runtime" + i, ExperimentHandler.class.getName(), "requests")).getCount());
+    }
+    assertTrue(runtimes.get(0).getExperimentFlags().get("foo") == flags.get(0));
+
+    // Flags may be declared after the handler has been created, but not with an incompatible default.
+    ExperimentFlag<String> late = runtimes.get(0).declare("late", "x");
+    assertTrue(runtimes.get(0).getExperimentFlags().get("late") == late);
+    assertNull(runtimes.get(1).getExperimentFlags().get("late"));
+    try {
+      runtimes.get(0).declare("late", "y");
+      fail("Expected an incompatible flag error");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private static File cohortFile(long... ids) throws IOException {
+    File file = File.createTempFile("cohort", ".cohort");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      Cohort.writeSorted(ids, ids.length, out);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @Test
+  public void testHandlerPublishedAfterSetup() throws Exception {
+    ExperimentsRuntime runtime = new ExperimentsRuntime("retry");
+    runtime.getConditionDataSources().register(
+        new CohortDataSource("users", cohortFile(1L, 2L), 1, TimeUnit.MINUTES));
+    ExperimentFlag<Long> flag = runtime.declare("foo", 100L);
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(ImmutableList.of(flagDef("foo", "200", FlagType.INT)))
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+        .setExperiments(ImmutableList.of(
+            exptDef(new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80)), 10, replaceDef("foo", "300"))))
+        .build();
+    runtime.registerConditionFactory(new ReflectionConditionFactory());
+    runtime.registerDeserializer(new AvroExperimentSpaceDeserializer(false));
+    runtime.registerLoader(new TestExperimentSpaceLoader("v1", serialize(deployment)));
+    MetricRegistry metrics = new MetricRegistry();
+    runtime.registerMetricRegistry(metrics);
+
+    // The data source's metrics collide with an existing one, so starting the data sources fails.
+    String age = name("retry", ConditionDataSource.class.getName(), "users", "age");
+    metrics.counter(age);
+    try {
+      runtime.getHandler();
+      fail("Expected the metric names to collide");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertTrue(metrics.getGauges().isEmpty());
+
+    // Once the collision is gone, the next call sets up and publishes a working handler.
+    metrics.remove(age);
+    ExperimentHandler handler = runtime.getHandler();
+    assertEquals("v1", handler.getVersionIdentifier());
+    TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "mod");
+    handler.handle(state);
+    assertEquals(ImmutableSet.of(10), state.getExperimentIds());
+    assertEquals(300L, state.get(flag).longValue());
+    assertSame(handler, runtime.getHandler());
+    assertEquals(2, metrics.getGauges().size());
+  }
+
+  public static final class IdCohortCondition extends AbstractCohortCondition<ExperimentState> {
+    @Override
+    public long getId(ExperimentState state) {
+      return Long.parseLong(state.getDiversionIdentifier(1).get());
+    }
+  }
+
+  @Test
+  public void testCohortDataSourceInRuntime() throws Exception {
+    // The data source is only registered with this runtime, not with the default one.
+    ExperimentsRuntime runtime = new ExperimentsRuntime("cohorts");
+    File file = cohortFile(1L, 2L);
+    CohortDataSource source = new CohortDataSource("users", file, 1, TimeUnit.MINUTES);
+    runtime.getConditionDataSources().register(source);
+    ExperimentFlag<Long> flag = runtime.declare("foo", 100L);
+    ExperimentDefinition e1 = ExperimentDefinition.newBuilder(
+        exptDef(new SegmentInfo(10, 1, 0, ImmutableSortedSet.of(80)), 10, replaceDef("foo", "300")))
+        .setConditions(ImmutableList.of(conditionDef("cohort", "@users")))
+        .build();
+    ExperimentDeployment deployment = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 100, false)))
+        .setFlagDefinitions(ImmutableList.of(flagDef("foo", "200", FlagType.INT)))
+        .setLayers(ImmutableList.of(layerDef(1, 0, false, 1)))
+        .setExperiments(ImmutableList.of(e1))
+        .build();
+    runtime.registerConditionFactory(new ReflectionConditionFactory().register("cohort", IdCohortCondition.class));
+    runtime.registerDeserializer(new AvroExperimentSpaceDeserializer(false));
+    runtime.registerLoader(new TestExperimentSpaceLoader("v1", serialize(deployment)));
+    ExperimentHandler handler = runtime.getHandler();
+    assertEquals("v1", handler.getVersionIdentifier());
+
+    TestExperimentState member = new TestExperimentState().setDiversionIdentifier(0, "mod")
+        .setDiversionIdentifier(1, "2");
+    handler.handle(member);
+    assertEquals(300L, member.get(flag).longValue());
+    TestExperimentState other = new TestExperimentState().setDiversionIdentifier(0, "mod")
+        .setDiversionIdentifier(1, "3");
+    handler.handle(other);
+    assertEquals(200L, other.get(flag).longValue());
+
+    // A new cohort is picked up without reloading the space.
+    File next = cohortFile(3L);
+    assertTrue(next.renameTo(file));
+    assertTrue(source.refresh());
+    other = new TestExperimentState().setDiversionIdentifier(0, "mod").setDiversionIdentifier(1, "3");
+    handler.handle(other);
+    assertEquals(300L, other.get(flag).longValue());
+  }
+
   @Test
   public void testLaunchLayer() throws Exception {
     int numBuckets = 100;
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.space;
+
+import com.cloudera.gertrude.BucketRanges;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeploymentDelta;
+import com.cloudera.gertrude.experiments.avro.FlagType;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static com.cloudera.gertrude.space.AvroDataUtils.*;
+import static org.junit.Assert.*;
+
+public final class DeploymentDeltasTest {
+
+  private static ExperimentDeployment deployment(int rampEnd, boolean withBar, boolean withSecondLayer) {
+    ExperimentDeployment.Builder b = ExperimentDeployment.newBuilder()
+        .setDiversions(ImmutableList.of(divDef(0, 1000, false)));
+    if (withBar) {
+      b.setFlagDefinitions(ImmutableList.of(flagDef("foo", "17", FlagType.INT), flagDef("bar", "a", FlagType.STRING)));
+    } else {
+      b.setFlagDefinitions(ImmutableList.of(flagDef("foo", "17", FlagType.INT)));
+    }
+    SegmentInfo ramp = new SegmentInfo(10, 1, 0, BucketRanges.range(0, rampEnd));
+    SegmentInfo other = new SegmentInfo(20, 2, 0, BucketRanges.range(0, 500));
+    if (withSecondLayer) {
+      b.setLayers(ImmutableList.of(layerDef(1, 0, false, 1), layerDef(2, 0, false, 4)));
+      b.setExperiments(ImmutableList.of(exptDef(ramp, 10), exptDef(other, 20)));
+    } else {
+      b.setLayers(ImmutableList.of(layerDef(1, 0, false, 1)));
+      b.setExperiments(ImmutableList.of(exptDef(ramp, 10)));
+    }
+    return b.build();
+  }
+
+  @Test
+  public void testRamp() throws Exception {
+    ExperimentDeployment base = deployment(10, true, false);
+    ExperimentDeployment target = deployment(50, true, false);
+    ExperimentDeploymentDelta delta = DeploymentDeltas.compute(base, target);
+    assertTrue(delta.getFlagDefinitions().isEmpty());
+    assertTrue(delta.getLayers().isEmpty());
+    assertEquals(1, delta.getExperiments().size());
+    assertTrue(delta.getRemovedExperiments().isEmpty());
+
+    ExperimentDeployment applied = DeploymentDeltas.apply(base, delta);
+    assertEquals(target, applied);
+    assertEquals(delta.getTargetVersion().toString(), DeploymentDeltas.fingerprint(applied));
+  }
+
+  @Test
+  public void testAddAndRemove() throws Exception {
+    ExperimentDeployment base = deployment(10, true, false);
+    ExperimentDeployment target = deployment(10, false, true);
+    ExperimentDeploymentDelta delta = DeploymentDeltas.compute(base, target);
+    assertEquals(ImmutableList.of("bar"), delta.getRemovedFlags());
+    assertEquals(ImmutableList.of(layerDef(2, 0, false, 4)), delta.getLayers());
+
+    ExperimentDeployment applied = DeploymentDeltas.apply(base, delta);
+    assertEquals(DeploymentDeltas.fingerprint(target), DeploymentDeltas.fingerprint(applied));
+
+    // And back again
+    ExperimentDeploymentDelta reverse = DeploymentDeltas.compute(applied, base);
+    assertEquals(ImmutableList.of(2), reverse.getRemovedLayers());
+    assertEquals(ImmutableList.of(20), reverse.getRemovedExperiments());
+    assertEquals(DeploymentDeltas.fingerprint(base),
+        DeploymentDeltas.fingerprint(DeploymentDeltas.apply(applied, reverse)));
+  }
+
+  @Test
+  public void testFingerprintIgnoresOrder() throws Exception {
+    ExperimentDeployment d = deployment(10, true, true);
+    ExperimentDeployment reversed = ExperimentDeployment.newBuilder(d)
+        .setFlagDefinitions(ImmutableList.copyOf(d.getFlagDefinitions()).reverse())
+        .setLayers(ImmutableList.copyOf(d.getLayers()).reverse())
+        .setExperiments(ImmutableList.copyOf(d.getExperiments()).reverse())
+        .build();
+    assertEquals(DeploymentDeltas.fingerprint(d), DeploymentDeltas.fingerprint(reversed));
+    assertFalse(DeploymentDeltas.fingerprint(d).equals(DeploymentDeltas.fingerprint(deployment(11, true, true))));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrongBase() throws Exception {
+    ExperimentDeploymentDelta delta = DeploymentDeltas.compute(deployment(10, true, false),
+        deployment(50, true, false));
+    DeploymentDeltas.apply(deployment(20, true, false), delta);
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    ExperimentDeployment base = deployment(10, true, false);
+    ExperimentDeployment target = deployment(50, true, true);
+    ExperimentDeploymentDelta delta = DeploymentDeltas.compute(base, target);
+    byte[] data = DeploymentDeltas.toBytes(delta);
+    byte[] full = DeploymentDeltas.toBytes(target);
+    assertTrue(DeploymentDeltas.isDelta(data));
+    assertFalse(DeploymentDeltas.isDelta(full));
+
+    ExperimentDeploymentDelta decoded = DeploymentDeltas.deltaFromBytes(data);
+    ExperimentDeployment decodedBase = DeploymentDeltas.deploymentFromBytes(DeploymentDeltas.toBytes(base));
+    assertEquals(DeploymentDeltas.fingerprint(target),
+        DeploymentDeltas.fingerprint(DeploymentDeltas.apply(decodedBase, decoded)));
+  }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.space;
+
+import com.cloudera.gertrude.ExperimentFlag;
+import com.cloudera.gertrude.ExperimentHandler;
+import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.TestExperimentState;
+import com.cloudera.gertrude.TestExperiments;
+import com.cloudera.gertrude.condition.ReflectionConditionFactory;
+import com.cloudera.gertrude.experiments.avro.ExperimentDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.ExperimentFlagDefinition;
+import com.cloudera.gertrude.experiments.avro.FlagType;
+import com.cloudera.gertrude.experiments.avro.LayerDefinition;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.cloudera.gertrude.space.AvroDataUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads synthetic deployments to check that building an {@code ExperimentSpace} concurrently, or from cached
+ * parts, diverts requests exactly like a serial load does, and logs how the load time grows with the number
+ * of experiments.
+ */
+public final class SyntheticDeploymentLoadTest {
+
+  private static final Logger log = LoggerFactory.getLogger(SyntheticDeploymentLoadTest.class);
+
+  private static final int NUM_BUCKETS = 1000;
+  private static final int LAYERS_PER_DOMAIN = 5;
+  private static final int EXPERIMENTS_PER_LAYER = 20;
+  private static final int SAMPLE_SIZE = 1000;
+
+  // Creates a single top-level layer that is split into domains, each of which contains a few layers
+  // full of experiments. Every layer in a domain gets its own flag, and the same flags are re-used in
+  // each domain, which exercises the checks for overlapping flag overrides.
+  static ExperimentDeployment createDeployment(int numDomains) {
+    List<ExperimentFlagDefinition> flagDefs = Lists.newArrayList();
+    for (int i = 0; i < LAYERS_PER_DOMAIN; i++) {
+      flagDefs.add(flagDef("flag" + i, "0", FlagType.INT));
+    }
+    List<LayerDefinition> layerDefs = Lists.newArrayList();
+    List<ExperimentDefinition> exptDefs = Lists.newArrayList();
+    layerDefs.add(layerDef(1, 0, false, 1));
+    int nextId = 10;
+    int nextLayerId = 2;
+    for (int d = 0; d < numDomains; d++) {
+      int domainId = nextId++;
+      exptDefs.add(domainDef(new SegmentInfo(domainId, 1, 0, ImmutableSortedSet.of(d % NUM_BUCKETS))));
+      for (int l = 0; l < LAYERS_PER_DOMAIN; l++) {
+        int layerId = nextLayerId++;
+        layerDefs.add(layerDef(layerId, domainId, false, nextId));
+        nextId += 3;
+        for (int e = 0; e < EXPERIMENTS_PER_LAYER; e++) {
+          int exptId = nextId++;
+          SegmentInfo info = new SegmentInfo(exptId, layerId, 0, ImmutableSortedSet.of(e));
+          exptDefs.add(exptDef(info, exptId, replaceDef("flag" + l, String.valueOf(e))));
+        }
+      }
+    }
+    return ExperimentDeployment.newBuilder()
+        .setFlagDefinitions(flagDefs)
+        .setDiversions(ImmutableList.of(divDef(0, NUM_BUCKETS, false)))
+        .setLayers(layerDefs)
+        .setExperiments(exptDefs)
+        .build();
+  }
+
+  private static long timeLoad(AvroExperimentSpaceDeserializer deserializer, ExperimentDeployment deployment) {
+    long start = System.nanoTime();
+    ExperimentSpace space = deserializer.load(deployment, "synthetic");
+    long elapsed = System.nanoTime() - start;
+    assertNotNull(space);
+    return elapsed;
+  }
+
+  private static AvroExperimentSpaceDeserializer create(ExecutorService executor) {
+    AvroExperimentSpaceDeserializer deserializer = new AvroExperimentSpaceDeserializer(false, executor);
+    deserializer.initialize(ImmutableMap.<String, ExperimentFlag<?>>of(), new ReflectionConditionFactory());
+    return deserializer;
+  }
+
+  // The experiments that each of a sample of identifiers is diverted into by the given space.
+  private static List<Set<Integer>> divert(ExperimentSpace space) {
+    ExperimentHandler handler = TestExperiments.getHandler();
+    assertTrue(TestExperiments.setExperimentSpace(space));
+    List<Set<Integer>> ret = Lists.newArrayList();
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      TestExperimentState state = new TestExperimentState().setDiversionIdentifier(0, "id" + i);
+      handler.handle(state);
+      ret.add(state.getExperimentIds());
+    }
+    return ret;
+  }
+
+  private static InputSupplier<? extends InputStream> serialize(ExperimentDeployment deployment) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(baos, null);
+    new SpecificDatumWriter<ExperimentDeployment>(ExperimentDeployment.class).write(deployment, encoder);
+    encoder.flush();
+    return ByteStreams.newInputStreamSupplier(baos.toByteArray());
+  }
+
+  @Test
+  public void testConcurrentLoadMatchesSerialLoad() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ExperimentDeployment deployment = createDeployment(50);
+      List<Set<Integer>> serial = divert(create(MoreExecutors.sameThreadExecutor()).load(deployment, "serial"));
+      List<Set<Integer>> concurrent = divert(create(executor).load(deployment, "concurrent"));
+      assertEquals(serial, concurrent);
+      // The requests that land in a domain are diverted into one experiment in each of the domain's layers, so
+      // the comparison covers the nested layers as well as the top-level one.
+      int inDomains = 0;
+      for (Set<Integer> ids : serial) {
+        if (ids.size() == LAYERS_PER_DOMAIN) {
+          inDomains++;
+        }
+      }
+      assertTrue(inDomains > 0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testUnchangedPartIsReused() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AvroExperimentSpaceDeserializer deserializer = create(executor);
+      ExperimentDeployment deployment = createDeployment(50);
+      List<String> partVersions = ImmutableList.of("synthetic@1");
+      Optional<ExperimentSpace> first = deserializer.deserialize(new ExperimentSpace.Serialized("v1",
+          ImmutableList.<InputSupplier<? extends InputStream>>of(serialize(deployment)), partVersions));
+      List<Set<Integer>> expected = divert(first.get());
+
+      // The part has the same version, so its cached decoding is used instead of reading it again.
+      InputSupplier<InputStream> unreadable = new InputSupplier<InputStream>() {
+        @Override
+        public InputStream getInput() throws IOException {
+          throw new IOException("Unchanged part should not be read");
+        }
+      };
+      Optional<ExperimentSpace> second = deserializer.deserialize(new ExperimentSpace.Serialized("v2",
+          ImmutableList.<InputSupplier<? extends InputStream>>of(unreadable), partVersions));
+      assertEquals(expected, divert(second.get()));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // Logs the load times of a small and a large deployment as a benchmark; the timings themselves are not
+  // asserted, since they depend on the machine that runs the test.
+  @Test
+  public void testLoadScaling() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AvroExperimentSpaceDeserializer deserializer = create(executor);
+      ExperimentDeployment small = createDeployment(25);
+      ExperimentDeployment large = createDeployment(200);
+
+      // Warm up the JIT before taking any measurements.
+      timeLoad(deserializer, small);
+      timeLoad(deserializer, large);
+
+      long smallNanos = timeLoad(deserializer, small);
+      long largeNanos = timeLoad(deserializer, large);
+      log.info("Loaded {} experiments in {} ms and {} experiments in {} ms", new Object[] {
+          small.getExperiments().size(), smallNanos / 1000000L,
+          large.getExperiments().size(), largeNanos / 1000000L });
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Base class for {@link AsyncCondition}s that answers {@link #evaluate(ExperimentState)} with the result of
+ * {@link #evaluateAsync(ExperimentState)} that was collected by {@link ExperimentHandler#handleAsync}.
+ *
+ * <p>If the asynchronous evaluation failed or did not finish before the request's deadline, the condition
+ * evaluates to {@link #getDefaultValue()}. If the request is diverted with the synchronous
+ * {@link ExperimentHandler#handle} method instead, {@code evaluate} blocks until the asynchronous evaluation
+ * completes.
+ */
+public abstract class AbstractAsyncCondition<S extends ExperimentState> implements AsyncCondition<S> {
+
+  private static final Logger log = LoggerFactory.getLogger(AbstractAsyncCondition.class);
+
+  @Override
+  public final boolean evaluate(S state) {
+    if (state instanceof AbstractExperimentState) {
+      Map<AsyncCondition<?>, Boolean> results = ((AbstractExperimentState) state).getAsyncResults();
+      if (results != null) {
+        Boolean result = results.get(this);
+        return result == null ? getDefaultValue() : result;
+      }
+    }
+    try {
+      return Boolean.TRUE.equals(evaluateAsync(state).get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return getDefaultValue();
+    } catch (ExecutionException e) {
+      log.warn("Asynchronous evaluation of condition {} failed", this, e.getCause());
+      return getDefaultValue();
+    }
+  }
+
+  /**
+   * Returns the value of this condition when its asynchronous evaluation fails or misses the request's
+   * deadline. By default, this method returns false.
+   */
+  protected boolean getDefaultValue() {
+    return false;
+  }
+
+  /**
+   * Returns {@link CacheLevel#REQUEST}, since the fetched data is specific to the request.
+   */
+  @Override
+  public CacheLevel getCacheLevel() {
+    return CacheLevel.REQUEST;
+  }
+}
@@ -16,11 +16,11 @@ package com.cloudera.gertrude;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.collect.MapMaker;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Abstract base class that implements the core functionality of the {@link ExperimentState} interface.
@@ -28,14 +28,25 @@ import java.util.Set;
  * class, since there are core methods in the framework (such as {@link ExperimentHandler#handle(AbstractExperimentState)}
  * that expect to operate on a subclass of {@code AbstractExperimentState}. More details on the purpose of this
  * split are described in the documentation of the {@link ExperimentState} interface.
+ *
+ * <p>Once an instance has been diverted, it is safe to read flag values and experiment ids from multiple
+ * threads, e.g., from the asynchronous continuations of a request.
  */
 public abstract class AbstractExperimentState implements ExperimentState {
 
-  private final Map<ExperimentFlag<?>, Object> valueCache = Maps.newHashMap();
-  private final Set<Integer> experimentIds = Sets.newHashSet();
+  // Stands in for null flag values, since the concurrent map does not allow them.
+  private static final Object NULL_VALUE = new Object();
+
+  private final ConcurrentMap<ExperimentFlag<?>, Object> valueCache = new MapMaker().makeMap();
   private final long requestTimeMsec = System.currentTimeMillis();
 
-  private ExperimentFlagSettings flagSettings;
+  private volatile ExperimentFlagSettings flagSettings;
+  private volatile ExperimentIdSet experimentIds = ExperimentIdSet.EMPTY;
+  private volatile FlagAccessTracker flagAccessTracker;
+  private volatile DiversionProfiler profiler;
+  private volatile DiversionTrace diversionTrace;
+  private volatile Map<AsyncCondition<?>, Boolean> asyncResults;
+  private final AttributeBag attributes = new AttributeBag();
 
   @Override
   public abstract Optional<String> getDiversionIdentifier(int diversionId);
@@ -47,12 +58,35 @@ public abstract class AbstractExperimentState implements ExperimentState {
 
   @Override
   public <T> T get(ExperimentFlag<T> flag) {
-    if (valueCache.containsKey(flag)) {
-      return (T) valueCache.get(flag);
-    } else if (flagSettings != null) {
-      FlagValue<T> value = flagSettings.getValue(flag, this);
+    FlagAccessTracker tracker = flagAccessTracker;
+    if (tracker != null) {
+      tracker.mark(flag.getOrdinal());
+    }
+    Object cached = valueCache.get(flag);
+    if (cached != null) {
+      // Safe because only values that were calculated for this flag are cached under it.
+      @SuppressWarnings("unchecked")
+      T ret = cached == NULL_VALUE ? null : (T) cached;
+      return ret;
+    }
+    ExperimentFlagSettings settings = flagSettings;
+    if (settings != null) {
+      DiversionProfiler p = profiler;
+      long start = p == null ? 0L : p.start();
+      FlagValue<T> value = settings.getValue(flag, this);
+      if (p != null) {
+        p.flag(flag.getName(), start);
+      }
       if (value.getCacheLevel() != Condition.CacheLevel.NONE) {
-        valueCache.put(flag, value.getValue());
+        // If another thread cached a value for this flag first, return it so that all readers agree.
+        Object v = value.getValue();
+        Object prev = valueCache.putIfAbsent(flag, v == null ? NULL_VALUE : v);
+        if (prev != null) {
+          // Safe because only values that were calculated for this flag are cached under it.
+          @SuppressWarnings("unchecked")
+          T ret = prev == NULL_VALUE ? null : (T) prev;
+          return ret;
+        }
       }
       return value.getValue();
     } else {
@@ -72,7 +106,54 @@ public abstract class AbstractExperimentState implements ExperimentState {
 
   @Override
   public Set<Integer> getExperimentIds()  {
-    return ImmutableSet.copyOf(experimentIds);
+    return experimentIds.getIds();
+  }
+
+  @Override
+  public String getEncodedExperimentIds() {
+    return experimentIds.getEncoded();
+  }
+
+  /**
+   * Returns the {@link ExperimentIdSet} that this state was diverted into, which is shared with the other
+   * requests that were diverted into the same experiments.
+   */
+  public ExperimentIdSet getExperimentIdSet() {
+    return experimentIds;
+  }
+
+  /**
+   * Returns the ids of the experiments that this state was diverted into that override at least one of the
+   * flags that have been read from this state so far, for use in triggered analysis at the end of a request.
+   *
+   * <p>If flag access tracking was turned off in the {@link ExperimentHandler} when this state was diverted,
+   * every experiment is treated as triggered and this method returns the same ids as
+   * {@link #getExperimentIds()}.
+   */
+  public Set<Integer> getTriggeredExperimentIds() {
+    FlagAccessTracker tracker = flagAccessTracker;
+    return tracker == null ? getExperimentIds() : tracker.triggered(getExperimentIds());
+  }
+
+  /**
+   * Indicates that the {@link ExperimentHandler} should record a {@link DiversionTrace} for this request
+   * whenever tracing is turned on, regardless of sampling.
+   *
+   * <p>By default, this method returns false. Subclasses may override it to let clients debug the diversion
+   * of a particular request, e.g., one that carries a debugging header.
+   *
+   * @return true if this request should be traced
+   */
+  public boolean isTraceRequested() {
+    return false;
+  }
+
+  /**
+   * Returns the {@link DiversionTrace} that was recorded when this state was diverted, or null if this
+   * state was not traced.
+   */
+  public DiversionTrace getDiversionTrace() {
+    return diversionTrace;
   }
 
   @Override
@@ -85,12 +166,47 @@ public abstract class AbstractExperimentState implements ExperimentState {
     return requestTimeMsec;
   }
 
+  @Override
+  public <T> T getAttribute(AttributeKey<T> key) {
+    return attributes.get(key, this);
+  }
+
   void setFlagSettings(ExperimentFlagSettings flagSettings) {
     this.valueCache.clear();
     this.flagSettings = flagSettings;
   }
 
-  void addExperimentId(int experimentId) {
-    this.experimentIds.add(experimentId);
+  DiversionProfiler getProfiler() {
+    return profiler;
+  }
+
+  void setProfiler(DiversionProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  void setDiversionTrace(DiversionTrace diversionTrace) {
+    this.diversionTrace = diversionTrace;
+  }
+
+  void setAttributes(Map<AttributeKey<?>, Object> attributes) {
+    this.attributes.putAll(attributes);
+  }
+
+  Map<AsyncCondition<?>, Boolean> getAsyncResults() {
+    return asyncResults;
+  }
+
+  void setAsyncResults(Map<AsyncCondition<?>, Boolean> asyncResults) {
+    this.asyncResults = asyncResults;
+  }
+
+  void trackFlagAccess(FlagAccessTracker tracker) {
+    if (flagAccessTracker == null) {
+      this.flagAccessTracker = tracker;
+    }
+  }
+
+  void addExperimentIds(ExperimentIdSet experimentIds) {
+    this.experimentIds = this.experimentIds.union(experimentIds);
   }
 }
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A {@link Condition} whose value depends on data that must be fetched without blocking, e.g., from a remote
+ * profile store.
+ *
+ * <p>When a request is diverted with {@link ExperimentHandler#handleAsync}, the handler starts the
+ * {@link #evaluateAsync(ExperimentState)} calls for all of the {@code AsyncCondition}s in the current
+ * {@link ExperimentSpace} at once, and diverts the request once they have all completed or its deadline has
+ * passed, so that no thread is blocked while the data is fetched. Most implementations should extend
+ * {@link AbstractAsyncCondition}, which answers {@link #evaluate(ExperimentState)} from those results.
+ */
+public interface AsyncCondition<S extends ExperimentState> extends Condition<S> {
+
+  /**
+   * Starts evaluating this condition for the given state. The returned future must not block the calling
+   * thread, and should be completed by the thread that receives the data that the condition depends on.
+   *
+   * @param state the {@code ExperimentState} that contains information about the request
+   * @return a future for the value of this condition
+   */
+  ListenableFuture<Boolean> evaluateAsync(S state);
+}
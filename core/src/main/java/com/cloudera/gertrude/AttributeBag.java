@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The attribute values of a single request, stored in an array that is indexed by the ordinals of their
+ * {@link AttributeKey}s. Values are extracted the first time that they are read and are then memoized.
+ */
+final class AttributeBag {
+
+  // Stands in for null values that have already been computed, since empty slots are null.
+  private static final Object NULL_VALUE = new Object();
+
+  private volatile AtomicReferenceArray<Object> values;
+
+  AttributeBag() {
+    this.values = new AtomicReferenceArray<Object>(AttributeKey.maxOrdinal());
+  }
+
+  <T> T get(AttributeKey<T> key, ExperimentState state) {
+    int ordinal = key.getOrdinal();
+    AtomicReferenceArray<Object> v = values;
+    Object value = ordinal < v.length() ? v.get(ordinal) : null;
+    if (value == null) {
+      AttributeExtractor<T> extractor = key.getExtractor();
+      if (extractor == null) {
+        return null;
+      }
+      // Two threads may race to extract the same value, but they will compute the same result.
+      value = extractor.extract(state);
+      put(ordinal, value);
+    }
+    return value == NULL_VALUE ? null : key.getType().cast(value);
+  }
+
+  void putAll(Map<AttributeKey<?>, Object> attributes) {
+    for (Map.Entry<AttributeKey<?>, Object> e : attributes.entrySet()) {
+      put(e.getKey().getOrdinal(), e.getKey().getType().cast(e.getValue()));
+    }
+  }
+
+  private void put(int ordinal, Object value) {
+    AtomicReferenceArray<Object> v = values;
+    if (ordinal >= v.length()) {
+      v = grow(ordinal);
+    }
+    v.set(ordinal, value == null ? NULL_VALUE : value);
+  }
+
+  // Only needed for the keys that were created after this bag was. A value that is memoized in the old array
+  // while it is being copied may be lost, which only means that it will be extracted again.
+  private synchronized AtomicReferenceArray<Object> grow(int ordinal) {
+    AtomicReferenceArray<Object> v = values;
+    if (ordinal >= v.length()) {
+      int length = Math.max(ordinal + 1, AttributeKey.maxOrdinal());
+      AtomicReferenceArray<Object> next = new AtomicReferenceArray<Object>(length);
+      for (int i = 0; i < v.length(); i++) {
+        next.set(i, v.get(i));
+      }
+      values = next;
+      v = next;
+    }
+    return v;
+  }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import java.util.Set;
+
+/**
+ * A {@link Condition} that depends on request attributes that are expensive to look up one at a time, e.g.,
+ * the fields of a user's profile in a remote store.
+ *
+ * <p>Instead of fetching its attributes during {@link #evaluate(ExperimentState)}, the condition declares the
+ * {@link AttributeKey}s that it needs, and reads the values that the {@link ExperimentHandler}'s
+ * {@link AttributeLoader} fetched for the request with {@link ExperimentState#getAttribute(AttributeKey)}.
+ */
+public interface AttributeCondition<S extends ExperimentState> extends Condition<S> {
+
+  /**
+   * Returns the keys of the attributes that this condition reads. This method is called once, after the
+   * condition has been initialized.
+   *
+   * @return the keys of the attributes that this condition reads
+   */
+  Set<AttributeKey<?>> getAttributeKeys();
+}
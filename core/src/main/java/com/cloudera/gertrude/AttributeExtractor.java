@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+/**
+ * Computes the value of an attribute from the information in a request, e.g., by parsing one of its headers.
+ *
+ * <p>An extractor is registered along with its {@link AttributeKey}, and is called at most once per request,
+ * the first time that any {@link Condition} reads the attribute.
+ */
+public interface AttributeExtractor<T> {
+
+  /**
+   * Returns the value of the attribute for the given request, or null if it has no value.
+   *
+   * @param state the request to extract the value from
+   * @return the value of the attribute, or null
+   */
+  T extract(ExperimentState state);
+}
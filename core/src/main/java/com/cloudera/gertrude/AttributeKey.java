@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names a typed attribute of a request, such as the tier or the country of the user who made it, that
+ * {@link Condition}s depend on.
+ *
+ * <p>Keys are interned by name, so every call to {@link #of} with the same name returns the same instance,
+ * and each key has a small, dense ordinal that indexes the per-request storage of its value. The value of an
+ * attribute is computed at most once per request: it is either fetched in bulk by the {@link AttributeLoader}
+ * before the request is diverted, or extracted from the request by the key's {@link AttributeExtractor} the
+ * first time that it is read with {@link ExperimentState#getAttribute(AttributeKey)}.
+ *
+ * <p>Since the first registration of a name wins, the same name must always be used for the same attribute,
+ * e.g., by building it from the arguments that determine how it is extracted.
+ */
+public final class AttributeKey<T> {
+
+  private static final ConcurrentMap<String, AttributeKey<?>> KEYS = new ConcurrentHashMap<String, AttributeKey<?>>();
+  private static final AtomicInteger NEXT_ORDINAL = new AtomicInteger();
+
+  private final String name;
+  private final Class<T> type;
+  private final AttributeExtractor<T> extractor;
+  private final int ordinal;
+
+  /**
+   * Returns the key for the attribute with the given name and type, whose values can only be provided by an
+   * {@link AttributeLoader}.
+   *
+   * @param name the name of the attribute
+   * @param type the class of the attribute's values
+   * @return the key for the attribute
+   */
+  public static <T> AttributeKey<T> of(String name, Class<T> type) {
+    return of(name, type, null);
+  }
+
+  /**
+   * Returns the key for the attribute with the given name and type, registering the given extractor for its
+   * values if this is the first time that the name has been used.
+   *
+   * @param name the name of the attribute
+   * @param type the class of the attribute's values
+   * @param extractor the extractor for the attribute's values, or null if they come from the loader
+   * @return the key for the attribute
+   * @throws IllegalStateException if the name has already been registered with a different type
+   */
+  public static <T> AttributeKey<T> of(String name, Class<T> type, AttributeExtractor<T> extractor) {
+    AttributeKey<?> existing = KEYS.get(name);
+    if (existing == null) {
+      // Ordinals that are claimed by the loser of a race are simply never used.
+      AttributeKey<T> key = new AttributeKey<T>(name, type, extractor, NEXT_ORDINAL.getAndIncrement());
+      existing = KEYS.putIfAbsent(name, key);
+      if (existing == null) {
+        return key;
+      }
+    }
+    if (!existing.type.equals(type)) {
+      throw new IllegalStateException("Incompatible attributes with the same name: " + existing + " and " + type);
+    }
+    // Safe because the existing key was created with the same type.
+    @SuppressWarnings("unchecked")
+    AttributeKey<T> ret = (AttributeKey<T>) existing;
+    return ret;
+  }
+
+  /**
+   * Returns an upper bound on the ordinals of the keys that have been created so far.
+   */
+  static int maxOrdinal() {
+    return NEXT_ORDINAL.get();
+  }
+
+  private AttributeKey(String name, Class<T> type, AttributeExtractor<T> extractor, int ordinal) {
+    this.name = Preconditions.checkNotNull(name);
+    this.type = Preconditions.checkNotNull(type);
+    this.extractor = extractor;
+    this.ordinal = ordinal;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Class<T> getType() {
+    return type;
+  }
+
+  /**
+   * Returns the extractor for this attribute's values, or null if they can only be provided by the loader.
+   */
+  public AttributeExtractor<T> getExtractor() {
+    return extractor;
+  }
+
+  int getOrdinal() {
+    return ordinal;
+  }
+
+  @Override
+  public String toString() {
+    return name + ":" + type.getSimpleName();
+  }
+}
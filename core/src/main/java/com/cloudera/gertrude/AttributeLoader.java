@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fetches the values of a set of request attributes with a single call, so that the lookups that are needed
+ * by all of the {@link AttributeCondition}s in the current {@link ExperimentSpace} are batched together.
+ *
+ * <p>A loader is registered with {@link ExperimentHandler#setAttributeLoader(AttributeLoader)}, and is called
+ * once for each request before it is diverted.
+ */
+public interface AttributeLoader {
+
+  /**
+   * Returns the values of the given attributes for the given request. Attributes that have no value for the
+   * request may be left out of the result, and all of the values must be instances of their key's type.
+   *
+   * @param state the request to load attributes for
+   * @param keys the keys of the attributes to load
+   * @return the values of the attributes, indexed by their keys
+   */
+  Map<AttributeKey<?>, Object> load(ExperimentState state, Set<AttributeKey<?>> keys);
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of buckets that is stored as a sorted list of disjoint {@code [start, end)} ranges.
+ *
+ * <p>{@link Segment} instances usually claim large, contiguous blocks of buckets within a
+ * {@link DiversionCriterion}, so storing the ranges instead of the individual buckets keeps the memory
+ * used by a segment proportional to the number of ranges it claims, which makes it practical to use
+ * criteria with millions of buckets for very small traffic allocations.
+ */
+public final class BucketRanges implements Iterable<Integer> {
+
+  private static final BucketRanges EMPTY = new BucketRanges(new int[0], new int[0], 0);
+
+  private final int[] starts;
+  private final int[] ends;
+  private final int size;
+
+  private BucketRanges(int[] starts, int[] ends, int size) {
+    this.starts = starts;
+    this.ends = ends;
+    this.size = size;
+  }
+
+  /**
+   * Returns an empty {@code BucketRanges} instance.
+   */
+  public static BucketRanges of() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns a {@code BucketRanges} that contains each of the given buckets.
+   */
+  public static BucketRanges of(int... buckets) {
+    Builder b = builder();
+    for (int bucket : buckets) {
+      b.add(bucket);
+    }
+    return b.build();
+  }
+
+  /**
+   * Returns a {@code BucketRanges} that contains the buckets in the range {@code [start, end)}.
+   */
+  public static BucketRanges range(int start, int end) {
+    return builder().addRange(start, end).build();
+  }
+
+  /**
+   * Returns a {@code BucketRanges} that contains each of the given buckets.
+   */
+  public static BucketRanges copyOf(Iterable<Integer> buckets) {
+    if (buckets instanceof BucketRanges) {
+      return (BucketRanges) buckets;
+    }
+    Builder b = builder();
+    for (Integer bucket : buckets) {
+      b.add(bucket);
+    }
+    return b.build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the total number of buckets contained in this instance.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the lowest bucket in this instance.
+   *
+   * @throws NoSuchElementException if this instance is empty
+   */
+  public int first() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return starts[0];
+  }
+
+  /**
+   * Returns the highest bucket in this instance.
+   *
+   * @throws NoSuchElementException if this instance is empty
+   */
+  public int last() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return ends[ends.length - 1] - 1;
+  }
+
+  /**
+   * Returns the number of disjoint ranges that make up this instance.
+   */
+  public int getRangeCount() {
+    return starts.length;
+  }
+
+  /**
+   * Returns the start (inclusive) of the range at the given index.
+   */
+  public int getRangeStart(int index) {
+    return starts[index];
+  }
+
+  /**
+   * Returns the end (exclusive) of the range at the given index.
+   */
+  public int getRangeEnd(int index) {
+    return ends[index];
+  }
+
+  /**
+   * Tests whether the given bucket is contained in this instance in time logarithmic in the number of ranges.
+   */
+  public boolean contains(int bucket) {
+    int idx = Arrays.binarySearch(starts, bucket);
+    if (idx >= 0) {
+      return true;
+    }
+    int rangeIdx = -idx - 2; // the range with the largest start that is less than the bucket
+    return rangeIdx >= 0 && bucket < ends[rangeIdx];
+  }
+
+  /**
+   * Returns the buckets that are contained in both this instance and the given one.
+   */
+  public BucketRanges intersection(BucketRanges other) {
+    Builder b = builder();
+    int i = 0, j = 0;
+    while (i < starts.length && j < other.starts.length) {
+      int start = Math.max(starts[i], other.starts[j]);
+      int end = Math.min(ends[i], other.ends[j]);
+      if (start < end) {
+        b.addRange(start, end);
+      }
+      if (ends[i] < other.ends[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return b.build();
+  }
+
+  /**
+   * Returns true if this instance shares at least one bucket with the given instance.
+   */
+  public boolean overlaps(BucketRanges other) {
+    return !intersection(other).isEmpty();
+  }
+
+  @Override
+  public Iterator<Integer> iterator() {
+    return new AbstractIterator<Integer>() {
+      private int rangeIdx = 0;
+      private int next = starts.length > 0 ? starts[0] : 0;
+
+      @Override
+      protected Integer computeNext() {
+        if (rangeIdx < starts.length && next >= ends[rangeIdx]) {
+          rangeIdx++;
+          if (rangeIdx < starts.length) {
+            next = starts[rangeIdx];
+          }
+        }
+        if (rangeIdx >= starts.length) {
+          return endOfData();
+        }
+        return next++;
+      }
+    };
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    BucketRanges that = (BucketRanges) o;
+    return Arrays.equals(starts, that.starts) && Arrays.equals(ends, that.ends);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(starts) + Arrays.hashCode(ends);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < starts.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      if (ends[i] - starts[i] == 1) {
+        sb.append(starts[i]);
+      } else {
+        sb.append(starts[i]).append('-').append(ends[i] - 1);
+      }
+    }
+    return sb.append(']').toString();
+  }
+
+  /**
+   * Accumulates buckets and ranges of buckets in any order and merges them into a {@code BucketRanges}.
+   */
+  public static final class Builder {
+    private int[] starts = new int[4];
+    private int[] ends = new int[4];
+    private int count = 0;
+
+    private Builder() {
+    }
+
+    public Builder add(int bucket) {
+      Preconditions.checkArgument(bucket < Integer.MAX_VALUE, "Bucket too large: %s", bucket);
+      return addRange(bucket, bucket + 1);
+    }
+
+    /**
+     * Adds the buckets in the range {@code [start, end)}; empty ranges are ignored.
+     */
+    public Builder addRange(int start, int end) {
+      Preconditions.checkArgument(start <= end, "Invalid bucket range: [%s, %s)", start, end);
+      if (start == end) {
+        return this;
+      }
+      // Extend the previous range in place for the common case of ascending, adjacent buckets.
+      if (count > 0 && ends[count - 1] == start && starts[count - 1] <= start) {
+        ends[count - 1] = end;
+        return this;
+      }
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, 2 * count);
+        ends = Arrays.copyOf(ends, 2 * count);
+      }
+      starts[count] = start;
+      ends[count] = end;
+      count++;
+      return this;
+    }
+
+    public BucketRanges build() {
+      if (count == 0) {
+        return EMPTY;
+      }
+      long[] packed = new long[count];
+      boolean sorted = true;
+      for (int i = 0; i < count; i++) {
+        packed[i] = (((long) starts[i]) << 32) | (ends[i] & 0xFFFFFFFFL);
+        sorted &= (i == 0 || starts[i - 1] <= starts[i]);
+      }
+      if (!sorted) {
+        Arrays.sort(packed);
+      }
+      int[] s = new int[count];
+      int[] e = new int[count];
+      int n = 0;
+      long size = 0;
+      for (long p : packed) {
+        int start = (int) (p >> 32);
+        int end = (int) p;
+        if (n > 0 && start <= e[n - 1]) {
+          if (end > e[n - 1]) {
+            size += end - e[n - 1];
+            e[n - 1] = end;
+          }
+        } else {
+          s[n] = start;
+          e[n] = end;
+          size += end - start;
+          n++;
+        }
+      }
+      Preconditions.checkState(size <= Integer.MAX_VALUE, "Too many buckets: %s", size);
+      return new BucketRanges(Arrays.copyOf(s, n), Arrays.copyOf(e, n), (int) size);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named dataset that {@link Condition}s depend on, such as a cohort of user ids or a table of geographic
+ * regions, that is loaded from a local file and kept up to date independently of the {@link ExperimentSpace}.
+ *
+ * <p>Once it is registered with the {@link ConditionDataSources} of a runtime, the data source checks its file
+ * on a background thread at its own refresh interval, and when the file has changed, it loads the new data and
+ * swaps it in atomically. Conditions should keep a reference to the data source and call {@link #get()} each
+ * time that they are evaluated, so that they see new data without the experiment space being reloaded.
+ *
+ * <p>Sub-classes define how the data is loaded from the file; for example:
+ * <pre>   {@code
+ * public class CohortDataSource extends ConditionDataSource<Cohort> {
+ *   protected Cohort load(File file) throws IOException {
+ *     return Cohort.open(file);
+ *   }
+ * }}</pre>
+ */
+public abstract class ConditionDataSource<T> {
+
+  private final String name;
+  private final Class<T> type;
+  private final File file;
+  private final long refreshIntervalMsec;
+
+  private volatile Snapshot<T> current;
+  private volatile long lastRefreshMsec;
+
+  /**
+   * Creates a data source with the given name for the data in the given file.
+   *
+   * @param name the name that conditions use to refer to this data source
+   * @param type the class of the data
+   * @param file the local file that the data is loaded from
+   * @param refreshInterval how often to check whether the file has changed
+   * @param unit the unit of the {@code refreshInterval}
+   */
+  protected ConditionDataSource(String name, Class<T> type, File file, long refreshInterval, TimeUnit unit) {
+    Preconditions.checkArgument(refreshInterval > 0, "Refresh interval must be positive: %s", refreshInterval);
+    this.name = Preconditions.checkNotNull(name);
+    this.type = Preconditions.checkNotNull(type);
+    this.file = Preconditions.checkNotNull(file);
+    this.refreshIntervalMsec = unit.toMillis(refreshInterval);
+  }
+
+  /**
+   * Loads the data from the given file. This method is only called by one thread at a time, and must not
+   * modify any data that it returned earlier, since conditions may still be reading it.
+   *
+   * @param file the file to load the data from
+   * @return the data in the file
+   * @throws IOException if the data could not be loaded
+   */
+  protected abstract T load(File file) throws IOException;
+
+  public String getName() {
+    return name;
+  }
+
+  public Class<T> getType() {
+    return type;
+  }
+
+  public long getRefreshIntervalMsec() {
+    return refreshIntervalMsec;
+  }
+
+  /**
+   * Returns the current version of the data, or null if it has not been loaded yet.
+   */
+  public T get() {
+    Snapshot<T> s = current;
+    return s == null ? null : s.data;
+  }
+
+  /**
+   * Returns the number of times that the data has been loaded, which is zero before the first load.
+   */
+  public long getVersion() {
+    Snapshot<T> s = current;
+    return s == null ? 0L : s.version;
+  }
+
+  /**
+   * Returns the time of the last successful check for new data in milliseconds, or zero if there has not been
+   * one yet.
+   */
+  public long getLastRefreshMsec() {
+    return lastRefreshMsec;
+  }
+
+  /**
+   * Loads the data again if the file has changed since it was last loaded.
+   *
+   * @return true if new data was swapped in, false if the file had not changed
+   * @throws IOException if the file is missing or its data could not be loaded, in which case the current
+   * data is kept
+   */
+  public synchronized boolean refresh() throws IOException {
+    long length = file.length();
+    long lastModified = file.lastModified();
+    Snapshot<T> s = current;
+    boolean changed = s == null || s.length != length || s.lastModified != lastModified;
+    if (changed) {
+      if (!file.isFile()) {
+        throw new FileNotFoundException("Missing data file for condition data source " + name + ": " + file);
+      }
+      T data = Preconditions.checkNotNull(load(file), "Condition data source %s loaded null data", name);
+      current = new Snapshot<T>(type.cast(data), s == null ? 1L : s.version + 1, length, lastModified);
+    }
+    lastRefreshMsec = System.currentTimeMillis();
+    return changed;
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + file + ", version " + getVersion() + ")";
+  }
+
+  private static final class Snapshot<T> {
+    final T data;
+    final long version;
+    final long length;
+    final long lastModified;
+
+    Snapshot(T data, long version, long length, long lastModified) {
+      this.data = data;
+      this.version = version;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * The registry of the {@link ConditionDataSource}s of an {@link ExperimentsRuntime}, which refreshes each of
+ * them on its own schedule on a background thread once the runtime's {@link ExperimentHandler} is created.
+ *
+ * <p>For each data source, the registry reports the version of its data as a gauge named
+ * {@code com.cloudera.gertrude.ConditionDataSource.<name>.version}, the time in milliseconds since its last
+ * successful refresh as the {@code age} gauge, and the number of refreshes that failed as the
+ * {@code failures} meter. A data source whose age is much larger than its refresh interval is serving stale
+ * data.
+ */
+public final class ConditionDataSources {
+
+  private static final Logger log = LoggerFactory.getLogger(ConditionDataSources.class);
+
+  private final ConcurrentMap<String, ConditionDataSource<?>> sources =
+      new ConcurrentHashMap<String, ConditionDataSource<?>>();
+  private MetricRegistry metrics;
+  private String metricBase;
+  private ScheduledExecutorService executor;
+
+  ConditionDataSources() {
+  }
+
+  /**
+   * Registers the given data source and loads its data, so that conditions that are created after this call
+   * can use it. If the runtime's handler has already been created, the data source is refreshed in the
+   * background right away; otherwise, it will be once the handler is created.
+   *
+   * @param source the data source to register
+   * @throws IOException if the initial data could not be loaded
+   * @throws IllegalStateException if another data source with the same name has already been registered
+   */
+  public synchronized void register(ConditionDataSource<?> source) throws IOException {
+    Preconditions.checkState(!sources.containsKey(source.getName()),
+        "Condition data source %s has already been registered", source.getName());
+    source.refresh();
+    if (executor != null) {
+      registerMetrics(metrics, metricBase, source);
+    }
+    sources.put(source.getName(), source);
+    if (executor != null) {
+      schedule(source);
+    }
+  }
+
+  /**
+   * Returns the data source with the given name, which must hold data of the given type.
+   *
+   * @param name the name of the data source
+   * @param type the class of the data
+   * @return the data source
+   * @throws IllegalStateException if there is no such data source, or if it holds data of another type
+   */
+  public <T> ConditionDataSource<T> get(String name, Class<T> type) {
+    ConditionDataSource<?> source = sources.get(name);
+    if (source == null) {
+      throw new IllegalStateException("Unknown condition data source: " + name);
+    }
+    if (!type.isAssignableFrom(source.getType())) {
+      throw new IllegalStateException("Condition data source " + name + " holds " +
+          source.getType().getSimpleName() + ", not " + type.getSimpleName());
+    }
+    // Safe because the source's type was checked above.
+    @SuppressWarnings("unchecked")
+    ConditionDataSource<T> ret = (ConditionDataSource<T>) source;
+    return ret;
+  }
+
+  /**
+   * Registers the metrics of every data source and starts refreshing them. If the metrics cannot be registered,
+   * e.g., because their names are already taken, nothing is started and this method may be called again.
+   */
+  synchronized void start(MetricRegistry metrics, String metricPrefix) {
+    if (executor != null) {
+      return;
+    }
+    String base = name(metricPrefix, ConditionDataSource.class.getName());
+    List<String> registered = Lists.newArrayList();
+    try {
+      for (ConditionDataSource<?> source : sources.values()) {
+        registered.addAll(registerMetrics(metrics, base, source));
+      }
+    } catch (IllegalArgumentException e) {
+      for (String metric : registered) {
+        metrics.remove(metric);
+      }
+      throw e;
+    }
+    this.metrics = metrics;
+    this.metricBase = base;
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("condition-data-sources")
+        .setDaemon(true)
+        .build());
+    for (ConditionDataSource<?> source : sources.values()) {
+      schedule(source);
+    }
+  }
+
+  private static List<String> registerMetrics(
+      MetricRegistry metrics, String base, final ConditionDataSource<?> source) {
+    String version = name(base, source.getName(), "version");
+    metrics.register(version, new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return source.getVersion();
+      }
+    });
+    String age = name(base, source.getName(), "age");
+    try {
+      metrics.register(age, new Gauge<Long>() {
+        @Override
+        public Long getValue() {
+          return System.currentTimeMillis() - source.getLastRefreshMsec();
+        }
+      });
+    } catch (IllegalArgumentException e) {
+      metrics.remove(version);
+      throw e;
+    }
+    return ImmutableList.of(version, age);
+  }
+
+  private void schedule(final ConditionDataSource<?> source) {
+    final String failures = name(metricBase, source.getName(), "failures");
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (source.refresh()) {
+            log.info("Loaded new data for condition data source {}", source);
+          }
+        } catch (Exception e) {
+          // Keep serving the current data, and try again at the next interval.
+          log.warn("Could not refresh condition data source " + source.getName(), e);
+          metrics.meter(failures).mark();
+        }
+      }
+    }, source.getRefreshIntervalMsec(), source.getRefreshIntervalMsec(), TimeUnit.MILLISECONDS);
+  }
+}
@@ -22,6 +22,9 @@ import java.util.Set;
  *
  * <p>A {@code ConditionFactory} must be registered in the {@link Experiments} namespace before
  * the {@link ExperimentHandler} for this server can be used by clients.
+ *
+ * <p>Deserializers may resolve the parts of a deployment concurrently, so implementations should
+ * be safe to call from multiple threads.
  */
 public interface ConditionFactory {
 
@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+/**
+ * A {@link Condition} that reads its data from the {@link ConditionDataSource}s of the runtime whose experiment
+ * space it belongs to, e.g., a cohort that is refreshed in the background.
+ *
+ * <p>The {@link ExperimentSpaceDeserializer} that creates the condition passes it the registry of its runtime
+ * before it calls {@link #initialize}, so that the condition can look up its data sources by name there.
+ */
+public interface DataSourceCondition<S extends ExperimentState> extends Condition<S> {
+
+  /**
+   * Sets the registry that the data sources named in this condition's arguments are looked up in. This method is
+   * called once, before the condition is initialized.
+   *
+   * @param dataSources the data sources of the runtime that the condition belongs to
+   */
+  void setConditionDataSources(ConditionDataSources dataSources);
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Records the time spent in each part of diversion for a sample of the requests that are handled by the
+ * {@link ExperimentHandler}, so that a latency regression can be traced back to the layer, domain, condition,
+ * or flag that caused it.
+ *
+ * <p>The handler attaches the profiler to one out of every {@code sampleRate} states that it diverts. The
+ * classes that implement diversion look it up with {@link #of(ExperimentState)}, which returns null for the
+ * states that were not sampled, and only read the clock when it is present:
+ * <pre>   {@code
+ * DiversionProfiler profiler = DiversionProfiler.of(state);
+ * long start = profiler == null ? 0L : profiler.start();
+ * ...
+ * if (profiler != null) {
+ *   profiler.layer(layerId, start);
+ * }}</pre>
+ *
+ * <p>The timings are recorded in {@link com.codahale.metrics.Timer}s in the handler's {@link MetricRegistry}
+ * that are named for this class and the kind and id of the component that was timed, e.g.,
+ * {@code com.cloudera.gertrude.DiversionProfiler.layer.3}, after the name of the runtime if it has one.
+ */
+public final class DiversionProfiler {
+
+  private final MetricRegistry metrics;
+  private final String metricBase;
+  private final int sampleRate;
+  private final AtomicLong counter = new AtomicLong();
+
+  DiversionProfiler(MetricRegistry metrics, String metricPrefix, int sampleRate) {
+    Preconditions.checkArgument(sampleRate > 0, "Sample rate must be positive: %s", sampleRate);
+    this.metrics = Preconditions.checkNotNull(metrics);
+    this.metricBase = name(metricPrefix, DiversionProfiler.class.getName());
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Returns the profiler for the given state, or null if the state is not being profiled.
+   */
+  public static DiversionProfiler of(ExperimentState state) {
+    return state instanceof AbstractExperimentState ? ((AbstractExperimentState) state).getProfiler() : null;
+  }
+
+  /**
+   * Returns a {@code Condition} that records the time spent evaluating the given condition under the given
+   * name for the states that are being profiled.
+   */
+  public static Condition<ExperimentState> timed(String name, Condition<ExperimentState> condition) {
+    return new TimedCondition(name, condition);
+  }
+
+  boolean sample() {
+    return sampleRate == 1 || counter.incrementAndGet() % sampleRate == 0;
+  }
+
+  /**
+   * Returns the start time of a component in nanoseconds, to pass to the method that records its timing.
+   */
+  public long start() {
+    return System.nanoTime();
+  }
+
+  public void layer(int layerId, long startNanos) {
+    record(name(metricBase, "layer", String.valueOf(layerId)), startNanos);
+  }
+
+  public void domain(int domainId, long startNanos) {
+    record(name(metricBase, "domain", String.valueOf(domainId)), startNanos);
+  }
+
+  /**
+   * Records the time spent evaluating the conditions of one of the segments in the given layer. The timings are
+   * aggregated by layer, since there is no bound on the number of segments that a series of deployments creates.
+   */
+  public void segmentConditions(int layerId, long startNanos) {
+    record(name(metricBase, "segmentconditions", String.valueOf(layerId)), startNanos);
+  }
+
+  public void condition(String conditionName, long startNanos) {
+    record(name(metricBase, "condition", conditionName), startNanos);
+  }
+
+  void flag(String flagName, long startNanos) {
+    record(name(metricBase, "flag", flagName), startNanos);
+  }
+
+  void diversion(long startNanos) {
+    record(name(metricBase, "diversion"), startNanos);
+  }
+
+  private void record(String timerName, long startNanos) {
+    metrics.timer(timerName).update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static final class TimedCondition implements Condition<ExperimentState> {
+    private final String name;
+    private final Condition<ExperimentState> delegate;
+
+    private TimedCondition(String name, Condition<ExperimentState> delegate) {
+      this.name = Preconditions.checkNotNull(name);
+      this.delegate = Preconditions.checkNotNull(delegate);
+    }
+
+    @Override
+    public void initialize(List<String> args) {
+      delegate.initialize(args);
+    }
+
+    @Override
+    public boolean evaluate(ExperimentState state) {
+      DiversionProfiler profiler = of(state);
+      if (profiler == null) {
+        return delegate.evaluate(state);
+      }
+      long start = profiler.start();
+      try {
+        return delegate.evaluate(state);
+      } finally {
+        profiler.condition(name, start);
+      }
+    }
+
+    @Override
+    public CacheLevel getCacheLevel() {
+      return delegate.getCacheLevel();
+    }
+
+    @Override
+    public String toString() {
+      return delegate.toString();
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A structured record of the decisions that were made while diverting a single request: the diversion
+ * criterion and identifier that each layer used, the hash and bucket it computed, the candidate segments for
+ * that bucket, the outcome of each segment's conditions, and the segment (or biased id) that was chosen,
+ * along with the flags that each chosen experiment overrode.
+ *
+ * <p>The {@link ExperimentHandler} creates a trace for a sample of requests, and for any request whose
+ * {@link AbstractExperimentState#isTraceRequested()} method returns true, when tracing has been turned on
+ * with {@link ExperimentHandler#setTracing(int, int)}. The classes that implement diversion look the trace
+ * up with {@link #of(ExperimentState)}, which returns null for requests that are not being traced, and the
+ * finished traces are kept in a bounded ring that is available from {@link ExperimentHandler#getRecentTraces()}.
+ */
+public final class DiversionTrace {
+
+  /**
+   * The kinds of decisions that are recorded in a trace.
+   */
+  public enum Kind {
+    /** The layer was skipped because the request was already diverted into one of its segments. */
+    ALREADY_DIVERTED,
+    /** The request had no identifier for a diversion criterion that the layer uses. */
+    NO_IDENTIFIER,
+    /** The bucket that the request was assigned to for a diversion criterion. */
+    BUCKET,
+    /** The enabled segments that claim the request's bucket. */
+    CANDIDATES,
+    /** The outcome of a candidate segment's conditions. */
+    CONDITION,
+    /** The request was diverted into a segment. */
+    ASSIGNED,
+    /** The request was forced into a segment. */
+    FORCED,
+    /** The request matched no candidate's conditions and was marked with the layer's biased id. */
+    BIASED,
+    /** No segment claimed the request's bucket, so it was marked with the layer's unbiased id. */
+    UNBIASED,
+    /** The flags that an experiment overrode, or that it would have outside of its pre- and post-periods. */
+    OVERRIDES
+  }
+
+  /**
+   * A single decision in a trace. The fields that do not apply to a step's {@link Kind} are -1, null, or empty.
+   */
+  public static final class Step {
+    private final Kind kind;
+    private final int layerId;
+    private final int diversionId;
+    private final String identifier;
+    private final long hash;
+    private final int bucket;
+    private final int segmentId;
+    private final List<Integer> segmentIds;
+    private final boolean result;
+    private final Set<String> flags;
+
+    private Step(Kind kind, int layerId, int diversionId, String identifier, long hash, int bucket,
+                 int segmentId, List<Integer> segmentIds, boolean result, Set<String> flags) {
+      this.kind = kind;
+      this.layerId = layerId;
+      this.diversionId = diversionId;
+      this.identifier = identifier;
+      this.hash = hash;
+      this.bucket = bucket;
+      this.segmentId = segmentId;
+      this.segmentIds = segmentIds;
+      this.result = result;
+      this.flags = flags;
+    }
+
+    private static Step of(Kind kind, int layerId, int segmentId) {
+      return new Step(kind, layerId, -1, null, -1L, -1, segmentId, ImmutableList.<Integer>of(), true,
+          ImmutableSortedSet.<String>of());
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    public int getLayerId() {
+      return layerId;
+    }
+
+    public int getDiversionId() {
+      return diversionId;
+    }
+
+    /** The identifier that was hashed, or null for random diversion criteria. */
+    public String getIdentifier() {
+      return identifier;
+    }
+
+    public long getHash() {
+      return hash;
+    }
+
+    public int getBucket() {
+      return bucket;
+    }
+
+    /** The segment, or the biased or unbiased id, that the step refers to. */
+    public int getSegmentId() {
+      return segmentId;
+    }
+
+    /** The candidate segments, or the launch layer experiments whose overrides an experiment combined with its own. */
+    public List<Integer> getSegmentIds() {
+      return segmentIds;
+    }
+
+    /** Whether a segment's conditions passed, or whether an experiment's overrides were applied. */
+    public boolean getResult() {
+      return result;
+    }
+
+    public Set<String> getFlags() {
+      return flags;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(kind.name()).append(" layer=").append(layerId);
+      switch (kind) {
+        case NO_IDENTIFIER:
+          sb.append(" diversion=").append(diversionId);
+          break;
+        case BUCKET:
+          sb.append(" diversion=").append(diversionId);
+          if (identifier != null) {
+            sb.append(" identifier=").append(identifier).append(" hash=").append(hash);
+          }
+          sb.append(" bucket=").append(bucket);
+          break;
+        case CANDIDATES:
+          sb.append(" bucket=").append(bucket).append(" segments=").append(segmentIds);
+          break;
+        case CONDITION:
+          sb.append(" segment=").append(segmentId).append(" valid=").append(result);
+          break;
+        case OVERRIDES:
+          sb.append(" segment=").append(segmentId).append(" applied=").append(result).append(" flags=").append(flags);
+          if (!segmentIds.isEmpty()) {
+            sb.append(" launch=").append(segmentIds);
+          }
+          break;
+        case ALREADY_DIVERTED:
+          break;
+        default:
+          sb.append(" segment=").append(segmentId);
+      }
+      return sb.toString();
+    }
+  }
+
+  private final long requestTimeMsec;
+  private final String versionIdentifier;
+  private final boolean requested;
+  private final List<Step> steps = Lists.newArrayList();
+  private volatile ExperimentIdSet experimentIds;
+
+  DiversionTrace(long requestTimeMsec, String versionIdentifier, boolean requested) {
+    this.requestTimeMsec = requestTimeMsec;
+    this.versionIdentifier = versionIdentifier;
+    this.requested = requested;
+  }
+
+  /**
+   * Returns the trace that is being recorded for the given state, or null if the state is not being traced.
+   */
+  public static DiversionTrace of(ExperimentState state) {
+    return state instanceof AbstractExperimentState ? ((AbstractExperimentState) state).getDiversionTrace() : null;
+  }
+
+  public void alreadyDiverted(int layerId) {
+    steps.add(Step.of(Kind.ALREADY_DIVERTED, layerId, -1));
+  }
+
+  public void noIdentifier(int layerId, int diversionId) {
+    steps.add(new Step(Kind.NO_IDENTIFIER, layerId, diversionId, null, -1L, -1, -1, ImmutableList.<Integer>of(),
+        false, ImmutableSortedSet.<String>of()));
+  }
+
+  public void bucket(int layerId, int diversionId, String identifier, long hash, int bucket) {
+    steps.add(new Step(Kind.BUCKET, layerId, diversionId, identifier, hash, bucket, -1, ImmutableList.<Integer>of(),
+        true, ImmutableSortedSet.<String>of()));
+  }
+
+  public void candidates(int layerId, int bucket, Iterable<? extends Segment> segments) {
+    List<Integer> ids = Lists.newArrayList();
+    for (Segment s : segments) {
+      ids.add(s.getId());
+    }
+    steps.add(new Step(Kind.CANDIDATES, layerId, -1, null, -1L, bucket, -1, ImmutableList.copyOf(ids), true,
+        ImmutableSortedSet.<String>of()));
+  }
+
+  public void condition(int layerId, int segmentId, boolean valid) {
+    steps.add(new Step(Kind.CONDITION, layerId, -1, null, -1L, -1, segmentId, ImmutableList.<Integer>of(), valid,
+        ImmutableSortedSet.<String>of()));
+  }
+
+  public void assigned(int layerId, int segmentId) {
+    steps.add(Step.of(Kind.ASSIGNED, layerId, segmentId));
+  }
+
+  public void forced(int layerId, int segmentId) {
+    steps.add(Step.of(Kind.FORCED, layerId, segmentId));
+  }
+
+  public void biased(int layerId, int biasedId) {
+    steps.add(Step.of(Kind.BIASED, layerId, biasedId));
+  }
+
+  public void unbiased(int layerId, int unbiasedId) {
+    steps.add(Step.of(Kind.UNBIASED, layerId, unbiasedId));
+  }
+
+  public void overrides(int layerId, int segmentId, boolean applied, Set<String> flags, Set<Integer> launchIds) {
+    steps.add(new Step(Kind.OVERRIDES, layerId, -1, null, -1L, -1, segmentId,
+        ImmutableList.copyOf(ImmutableSortedSet.copyOf(launchIds)), applied, ImmutableSortedSet.copyOf(flags)));
+  }
+
+  void finish(ExperimentIdSet experimentIds) {
+    this.experimentIds = experimentIds;
+  }
+
+  public long getRequestTimeMsec() {
+    return requestTimeMsec;
+  }
+
+  /**
+   * Returns the version of the {@link ExperimentSpace} that the request was diverted in.
+   */
+  public String getVersionIdentifier() {
+    return versionIdentifier;
+  }
+
+  /**
+   * Returns true if the request asked to be traced, or false if it was sampled.
+   */
+  public boolean isRequested() {
+    return requested;
+  }
+
+  /**
+   * Returns the experiment ids that the request was diverted into, or null if diversion has not finished.
+   */
+  public ExperimentIdSet getExperimentIds() {
+    return experimentIds;
+  }
+
+  /**
+   * Returns the recorded steps in the order in which the decisions were made. The steps of a trace should
+   * only be read once diversion has finished.
+   */
+  public List<Step> getSteps() {
+    return Collections.unmodifiableList(steps);
+  }
+
+  /**
+   * Returns true if any layer hashed the given identifier while diverting the request.
+   */
+  public boolean usedIdentifier(String identifier) {
+    for (Step step : steps) {
+      if (step.kind == Kind.BUCKET && identifier.equals(step.identifier)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("DiversionTrace(version=").append(versionIdentifier)
+        .append(", time=").append(requestTimeMsec)
+        .append(", experiments=").append(experimentIds).append(")");
+    for (Step step : steps) {
+      sb.append("\n  ").append(step);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decides which requests the {@link ExperimentHandler} traces, and keeps the most recent
+ * {@link DiversionTrace}s in a fixed-size ring that overwrites the oldest trace when it is full.
+ */
+final class DiversionTracer {
+
+  private final int sampleRate;
+  private final AtomicLong sampleCounter = new AtomicLong();
+  private final AtomicReferenceArray<DiversionTrace> ring;
+  private final AtomicLong next = new AtomicLong();
+
+  DiversionTracer(int sampleRate, int capacity) {
+    Preconditions.checkArgument(sampleRate >= 0, "Sample rate must not be negative: %s", sampleRate);
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s", capacity);
+    this.sampleRate = sampleRate;
+    this.ring = new AtomicReferenceArray<DiversionTrace>(capacity);
+  }
+
+  /**
+   * Returns a new trace if the given state should be traced, or null otherwise.
+   */
+  DiversionTrace start(AbstractExperimentState state, String versionIdentifier) {
+    if (state.isTraceRequested()) {
+      return new DiversionTrace(state.getRequestTimeMsec(), versionIdentifier, true);
+    } else if (sampleRate > 0 && sampleCounter.incrementAndGet() % sampleRate == 0) {
+      return new DiversionTrace(state.getRequestTimeMsec(), versionIdentifier, false);
+    }
+    return null;
+  }
+
+  void record(DiversionTrace trace) {
+    ring.set((int) (next.getAndIncrement() % ring.length()), trace);
+  }
+
+  /**
+   * Returns the traces in the ring, from the most recent to the oldest.
+   */
+  List<DiversionTrace> getRecentTraces() {
+    long end = next.get();
+    List<DiversionTrace> ret = Lists.newArrayList();
+    for (long i = end - 1; i >= 0 && i >= end - ring.length(); i--) {
+      DiversionTrace trace = ring.get((int) (i % ring.length()));
+      if (trace != null) {
+        ret.add(trace);
+      }
+    }
+    return ret;
+  }
+}
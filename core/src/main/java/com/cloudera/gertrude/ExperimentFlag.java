@@ -43,11 +43,17 @@ public final class ExperimentFlag<T> {
   private final String name;
   private final FlagTypeParser<T> flagTypeParser;
   private final T defaultValue;
+  private final int ordinal;
 
   ExperimentFlag(String name, FlagTypeParser<T> flagTypeParser, T defaultValue) {
+    this(name, flagTypeParser, defaultValue, -1);
+  }
+
+  ExperimentFlag(String name, FlagTypeParser<T> flagTypeParser, T defaultValue, int ordinal) {
     this.name = Preconditions.checkNotNull(name);
     this.flagTypeParser = Preconditions.checkNotNull(flagTypeParser);
     this.defaultValue = Preconditions.checkNotNull(defaultValue);
+    this.ordinal = ordinal;
   }
 
   /**
@@ -81,6 +87,21 @@ public final class ExperimentFlag<T> {
     return defaultValue;
   }
 
+  /**
+   * Returns the position of this flag in the order that flags were declared in its {@link ExperimentsRuntime},
+   * which is used to track the flags that are read by each request, or -1 if the flag was not declared in a
+   * runtime. Ordinals are only unique within a single runtime, so a flag that was declared in one runtime
+   * must not be read from a state that was diverted by another runtime's handler, since its ordinal would be
+   * recorded against that runtime's {@link FlagAccessTracker} as a different flag.
+   */
+  int getOrdinal() {
+    return ordinal;
+  }
+
+  ExperimentFlag<T> withOrdinal(int ordinal) {
+    return new ExperimentFlag<T>(name, flagTypeParser, defaultValue, ordinal);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -17,9 +17,26 @@ package com.cloudera.gertrude;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -48,17 +65,55 @@ import static com.codahale.metrics.MetricRegistry.name;
  * that is configured for use with this {@code ExperimentHandler} in the {@link Experiments} namespace. Subsequent
  * calls to the {@link #handle(AbstractExperimentState)} method will use the latest updates to the
  * {@code ExperimentSpace} for processing requests, and the {@code ExperimentHandler} is thread-safe.
+ *
+ * <p>If an {@link ExposureLogger} is registered with {@link Experiments#registerExposureLogger}, the handler
+ * passes it an {@link ExposureEvent} for each request that it diverts.
+ * Unless it is turned off with {@link #setFlagAccessTracking(boolean)}, the handler also arranges for each
+ * diverted state to record the flags that it reads, so that the experiments that were actually triggered by
+ * the request are available from {@link AbstractExperimentState#getTriggeredExperimentIds()}.
+ *
+ * <p>Requests whose diversion depends on {@link AsyncCondition}s, e.g., conditions that look up a user's profile
+ * in a remote store, should be diverted with {@link #handleAsync}, which does not block the calling thread while
+ * those conditions are evaluated.
  */
 public final class ExperimentHandler {
 
+  private static final Logger log = LoggerFactory.getLogger(ExperimentHandler.class);
+
   private final MetricRegistry metrics;
+  private final String metricPrefix;
+  private final String metricBase;
   private final Meter requests;
+  private final Meter asyncTimeouts;
+  private final Meter attributeLoadFailures;
+  private final ExposureLogger exposureLogger;
 
   private volatile ExperimentSpace experimentSpace = new ExperimentSpace();
+  private volatile boolean trackFlagAccess = true;
+  private volatile DiversionProfiler profiler;
+  private volatile DiversionTracer tracer;
+  private volatile AttributeLoader attributeLoader;
 
   ExperimentHandler(MetricRegistry metrics) {
+    this(metrics, null);
+  }
+
+  ExperimentHandler(MetricRegistry metrics, ExposureLogger exposureLogger) {
+    this(metrics, exposureLogger, null);
+  }
+
+  /**
+   * Creates a handler whose metric names start with the given prefix, if it is not null, so that the handlers
+   * of several runtimes may share a {@code MetricRegistry}.
+   */
+  ExperimentHandler(MetricRegistry metrics, ExposureLogger exposureLogger, String metricPrefix) {
     this.metrics = Preconditions.checkNotNull(metrics);
-    this.requests = this.metrics.meter(name(ExperimentHandler.class, "requests"));
+    this.metricPrefix = metricPrefix;
+    this.metricBase = name(metricPrefix, ExperimentHandler.class.getName());
+    this.requests = this.metrics.meter(name(metricBase, "requests"));
+    this.asyncTimeouts = this.metrics.meter(name(metricBase, "asynctimeouts"));
+    this.attributeLoadFailures = this.metrics.meter(name(metricBase, "attributeloadfailures"));
+    this.exposureLogger = exposureLogger;
   }
 
   /**
@@ -72,21 +127,197 @@ public final class ExperimentHandler {
    * @param state the request to divert
    */
   public void handle(AbstractExperimentState state) {
+    handle(state, experimentSpace);
+  }
+
+  /**
+   * Diverts the given {@code ExperimentState} like {@link #handle(AbstractExperimentState)} does, but first
+   * starts evaluating the {@link AsyncCondition}s in the current {@link ExperimentSpace} for the request at
+   * once, and only diverts the request when all of them have completed or when the deadline has passed,
+   * whichever comes first. No thread is blocked while the conditions are evaluated: the request is diverted
+   * on the thread that completes the last condition, or on the {@code scheduler}'s thread at the deadline.
+   * The conditions that have not completed by the deadline, or that fail, take their default values.
+   *
+   * <p>A condition that is only used by a single experiment (by its own conditions or by its flag overrides) is
+   * skipped unless that experiment is enabled at the time of the request. Every other condition, e.g., one that
+   * is used by the modifiers of a flag definition, is started for every request, whether or not the request
+   * ends up evaluating it, because that is not known until the request has been diverted.
+   *
+   * <p>If none of the current space's asynchronous conditions apply to the request, or if the state has already
+   * been diverted, the request is handled on the calling thread and the returned future is already complete.
+   *
+   * @param state the request to divert
+   * @param timeout the longest time to wait for the asynchronous conditions
+   * @param unit the unit of the {@code timeout}
+   * @param scheduler the executor to use for enforcing the deadline
+   * @return a future for the diverted state
+   */
+  public <S extends AbstractExperimentState> ListenableFuture<S> handleAsync(
+      S state, long timeout, TimeUnit unit, ScheduledExecutorService scheduler) {
+    Preconditions.checkArgument(timeout >= 0, "Timeout must not be negative: %s", timeout);
+    ExperimentSpace space = experimentSpace;
+    List<AsyncCondition<ExperimentState>> conditions = space.getAsyncConditions(state.getRequestTimeMsec());
+    if (conditions.isEmpty() || state.isDiverted()) {
+      handle(state, space);
+      return Futures.immediateFuture(state);
+    }
+
+    AsyncDiversion<S> diversion = new AsyncDiversion<S>(state, space, conditions.size());
+    // The deadline has to be in place before any condition can complete, so that it is always cancelled.
+    diversion.deadline = scheduler.schedule(diversion, timeout, unit);
+    for (AsyncCondition<ExperimentState> condition : conditions) {
+      ListenableFuture<Boolean> result;
+      try {
+        result = condition.evaluateAsync(state);
+      } catch (RuntimeException e) {
+        result = Futures.immediateFailedFuture(e);
+      }
+      Futures.addCallback(result, diversion.callback(condition));
+    }
+    return diversion.future;
+  }
+
+  private void handle(AbstractExperimentState state, ExperimentSpace space) {
     requests.mark();
 
+    DiversionProfiler p = profiler;
+    long start = 0L;
+    if (p != null && p.sample()) {
+      state.setProfiler(p);
+      start = p.start();
+    } else {
+      p = null;
+    }
+    DiversionTracer t = tracer;
+    DiversionTrace trace = t == null ? null : t.start(state, space.getVersionIdentifier());
+    if (trace != null) {
+      state.setDiversionTrace(trace);
+    }
+    AttributeLoader loader = attributeLoader;
+    if (loader != null && !space.getAttributeKeys().isEmpty()) {
+      loadAttributes(loader, space, state);
+    }
     Set<Integer> newExperimentIds = Sets.newHashSet();
-    experimentSpace.diversion(state, newExperimentIds);
+    space.diversion(state, newExperimentIds);
+    if (p != null) {
+      p.diversion(start);
+    }
 
     if (newExperimentIds.isEmpty()) {
-      metrics.meter(name(ExperimentHandler.class, "nodiversion")).mark();
+      metrics.meter(name(metricBase, "nodiversion")).mark();
     } else {
       for (Integer id : newExperimentIds) {
-        metrics.meter(name(ExperimentHandler.class, String.valueOf(id))).mark();
-        state.addExperimentId(id);
+        metrics.meter(name(metricBase, String.valueOf(id))).mark();
       }
+      state.addExperimentIds(space.intern(newExperimentIds));
+    }
+    if (trace != null) {
+      trace.finish(state.getExperimentIdSet());
+      t.record(trace);
+    }
+    if (trackFlagAccess) {
+      state.trackFlagAccess(space.newFlagAccessTracker());
+    }
+    if (exposureLogger != null) {
+      logExposure(space, state);
     }
   }
 
+  /**
+   * Turns the tracking of the flags that each request reads on or off for requests that are diverted after
+   * this call. Tracking is on by default, and it is what allows
+   * {@link AbstractExperimentState#getTriggeredExperimentIds()} to distinguish the experiments that affected a
+   * request from the ones that it was merely diverted into.
+   *
+   * @param trackFlagAccess whether or not to track flag reads
+   */
+  public void setFlagAccessTracking(boolean trackFlagAccess) {
+    this.trackFlagAccess = trackFlagAccess;
+  }
+
+  /**
+   * Registers the {@link AttributeLoader} that fetches the attributes that are read by the
+   * {@link AttributeCondition}s in the current space, with one call for each request that is diverted after
+   * this call, or removes the loader if it is null. If the loader fails, the request is diverted as if none of
+   * its attributes had values.
+   *
+   * @param attributeLoader the loader to use, or null
+   */
+  public void setAttributeLoader(AttributeLoader attributeLoader) {
+    this.attributeLoader = attributeLoader;
+  }
+
+  private void loadAttributes(AttributeLoader loader, ExperimentSpace space, AbstractExperimentState state) {
+    try {
+      Map<AttributeKey<?>, Object> attributes = loader.load(state, space.getAttributeKeys());
+      if (attributes != null) {
+        state.setAttributes(attributes);
+      }
+    } catch (RuntimeException e) {
+      log.warn("Could not load the attributes for a request", e);
+      attributeLoadFailures.mark();
+    }
+  }
+
+  private void logExposure(ExperimentSpace space, AbstractExperimentState state) {
+    int[] diversionIds = space.getFixedDiversionIds();
+    String[] identifiers = new String[diversionIds.length];
+    for (int i = 0; i < diversionIds.length; i++) {
+      identifiers[i] = state.getDiversionIdentifier(diversionIds[i]).orNull();
+    }
+    exposureLogger.log(new ExposureEvent(state.getRequestTimeMsec(), space.getVersionIdentifier(),
+        state.getExperimentIdSet(), diversionIds, identifiers));
+  }
+
+  /**
+   * Profiles the diversion of one out of every {@code sampleRate} requests with a {@link DiversionProfiler}
+   * that records its timings in this handler's {@link MetricRegistry}, or turns profiling off if the rate
+   * is zero. Profiling is off by default, and requests that are not sampled do not read the clock.
+   *
+   * @param sampleRate the inverse of the fraction of requests to profile, or zero to turn profiling off
+   */
+  public void setProfilingSampleRate(int sampleRate) {
+    Preconditions.checkArgument(sampleRate >= 0, "Sample rate must not be negative: %s", sampleRate);
+    this.profiler = sampleRate == 0 ? null : new DiversionProfiler(metrics, metricPrefix, sampleRate);
+  }
+
+  /**
+   * Records a {@link DiversionTrace} for one out of every {@code sampleRate} requests, and for every request
+   * whose {@link AbstractExperimentState#isTraceRequested()} method returns true, and keeps the most recent
+   * {@code capacity} traces in memory. A {@code sampleRate} of zero only traces the requests that ask for it,
+   * and a {@code capacity} of zero turns tracing off, which is the default.
+   *
+   * @param sampleRate the inverse of the fraction of requests to trace, or zero to only trace requested ones
+   * @param capacity the number of traces to keep, or zero to turn tracing off
+   */
+  public void setTracing(int sampleRate, int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "Capacity must not be negative: %s", capacity);
+    this.tracer = capacity == 0 ? null : new DiversionTracer(sampleRate, capacity);
+  }
+
+  /**
+   * Returns the most recently recorded diversion traces, from newest to oldest, or an empty list if tracing
+   * is off.
+   */
+  public List<DiversionTrace> getRecentTraces() {
+    DiversionTracer t = tracer;
+    return t == null ? ImmutableList.<DiversionTrace>of() : t.getRecentTraces();
+  }
+
+  /**
+   * Returns the most recently recorded diversion traces of the requests that were diverted with the given
+   * identifier, from newest to oldest.
+   */
+  public List<DiversionTrace> findTraces(String identifier) {
+    List<DiversionTrace> ret = Lists.newArrayList();
+    for (DiversionTrace trace : getRecentTraces()) {
+      if (trace.usedIdentifier(identifier)) {
+        ret.add(trace);
+      }
+    }
+    return ret;
+  }
+
   /**
    * Disables the experiment with the given id, preventing it from diverting any traffic.
    *
@@ -107,7 +338,83 @@ public final class ExperimentHandler {
     return experimentSpace.getVersionIdentifier();
   }
 
+  /**
+   * Returns true if the current {@code ExperimentSpace} has any {@link AsyncCondition}s, i.e., if diverting a
+   * request with {@link #handleAsync} could do more than diverting it with {@link #handle}.
+   */
+  public boolean hasAsyncConditions() {
+    return !experimentSpace.getAsyncConditions().isEmpty();
+  }
+
   void update(ExperimentSpace experimentSpace) {
     this.experimentSpace = experimentSpace;
   }
+
+  /**
+   * Collects the results of the asynchronous conditions for a single request, and diverts it exactly once,
+   * either when the last result arrives or when it runs as the request's deadline.
+   */
+  private final class AsyncDiversion<S extends AbstractExperimentState> implements Runnable {
+    private final S state;
+    private final ExperimentSpace space;
+    private final Map<AsyncCondition<?>, Boolean> results = Maps.newConcurrentMap();
+    private final AtomicInteger remaining;
+    private final AtomicBoolean diverted = new AtomicBoolean();
+    private final SettableFuture<S> future = SettableFuture.create();
+    private volatile ScheduledFuture<?> deadline;
+
+    AsyncDiversion(S state, ExperimentSpace space, int numConditions) {
+      this.state = state;
+      this.space = space;
+      this.remaining = new AtomicInteger(numConditions);
+    }
+
+    FutureCallback<Boolean> callback(final AsyncCondition<ExperimentState> condition) {
+      return new FutureCallback<Boolean>() {
+        @Override
+        public void onSuccess(Boolean result) {
+          if (result != null) {
+            results.put(condition, result);
+          }
+          completed();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          log.warn("Asynchronous evaluation of condition {} failed", condition, t);
+          completed();
+        }
+      };
+    }
+
+    private void completed() {
+      if (remaining.decrementAndGet() == 0) {
+        divert(false);
+      }
+    }
+
+    @Override
+    public void run() {
+      divert(true);
+    }
+
+    private void divert(boolean timedOut) {
+      if (!diverted.compareAndSet(false, true)) {
+        return;
+      }
+      if (timedOut) {
+        asyncTimeouts.mark();
+      } else {
+        deadline.cancel(false);
+      }
+      // Results that arrive after this point are ignored.
+      state.setAsyncResults(ImmutableMap.copyOf(results));
+      try {
+        handle(state, space);
+        future.set(state);
+      } catch (RuntimeException e) {
+        future.setException(e);
+      }
+    }
+  }
 }
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SortedSet;
+
+/**
+ * A compact, URL-safe encoding of a set of experiment ids for use in logs and HTTP headers.
+ *
+ * <p>The encoding is a version byte followed by the sorted ids, where the first id is written as a zig-zag
+ * encoded varint and each subsequent id is written as the unsigned varint difference from the id before it,
+ * and the result is encoded as base64url without padding. Since the experiment ids that a request is in are
+ * usually clustered, most ids only take a single byte before the base64 expansion. The encoding only depends
+ * on the ids themselves, so it can be decoded without access to the experiment space that produced it.
+ */
+public final class ExperimentIdCodec {
+
+  /** The version of the encoding that is written by {@link #encode}. */
+  public static final int VERSION = 1;
+
+  private static final char[] ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final int[] DECODE = new int[128];
+  static {
+    Arrays.fill(DECODE, -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      DECODE[ALPHABET[i]] = i;
+    }
+  }
+
+  private ExperimentIdCodec() {
+  }
+
+  /**
+   * Encodes the given experiment ids.
+   */
+  public static String encode(Collection<Integer> experimentIds) {
+    int[] ids = new int[experimentIds.size()];
+    int i = 0;
+    for (Integer id : experimentIds) {
+      ids[i++] = id;
+    }
+    Arrays.sort(ids);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(1 + 2 * ids.length);
+    out.write(VERSION);
+    for (i = 0; i < ids.length; i++) {
+      if (i == 0) {
+        writeVarint(out, ((ids[0] << 1) ^ (ids[0] >> 31)) & 0xFFFFFFFFL);
+      } else if (ids[i] != ids[i - 1]) {
+        writeVarint(out, (long) ids[i] - ids[i - 1]);
+      }
+    }
+    return toBase64(out.toByteArray());
+  }
+
+  /**
+   * Decodes a string that was created by {@link #encode}.
+   *
+   * @throws IllegalArgumentException if the string is not a valid encoding
+   */
+  public static SortedSet<Integer> decode(String encoded) {
+    byte[] data = fromBase64(encoded);
+    Preconditions.checkArgument(data.length > 0, "Empty experiment id encoding");
+    Preconditions.checkArgument(data[0] == VERSION, "Unsupported experiment id encoding version: %s", data[0]);
+    ImmutableSortedSet.Builder<Integer> b = ImmutableSortedSet.naturalOrder();
+    int[] pos = { 1 };
+    long prev = 0;
+    boolean first = true;
+    while (pos[0] < data.length) {
+      long value = readVarint(data, pos);
+      if (first) {
+        prev = (int) (value >>> 1) ^ -((int) value & 1);
+        first = false;
+      } else {
+        prev += value;
+      }
+      Preconditions.checkArgument(prev >= Integer.MIN_VALUE && prev <= Integer.MAX_VALUE,
+          "Invalid experiment id encoding: %s", encoded);
+      b.add((int) prev);
+    }
+    return b.build();
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarint(byte[] data, int[] pos) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      Preconditions.checkArgument(pos[0] < data.length, "Truncated experiment id encoding");
+      byte b = data[pos[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint in experiment id encoding");
+  }
+
+  private static String toBase64(byte[] data) {
+    StringBuilder sb = new StringBuilder((data.length * 4 + 2) / 3);
+    for (int i = 0; i < data.length; i += 3) {
+      int n = (data[i] & 0xFF) << 16;
+      if (i + 1 < data.length) {
+        n |= (data[i + 1] & 0xFF) << 8;
+      }
+      if (i + 2 < data.length) {
+        n |= data[i + 2] & 0xFF;
+      }
+      int chars = Math.min(4, (data.length - i) * 4 / 3 + 1);
+      for (int j = 0; j < chars; j++) {
+        sb.append(ALPHABET[(n >> (18 - 6 * j)) & 0x3F]);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static byte[] fromBase64(String encoded) {
+    int len = encoded.length();
+    Preconditions.checkArgument(len % 4 != 1, "Invalid base64url length: %s", encoded);
+    byte[] out = new byte[len * 3 / 4];
+    int bits = 0, nbits = 0, idx = 0;
+    for (int i = 0; i < len; i++) {
+      char c = encoded.charAt(i);
+      int v = c < 128 ? DECODE[c] : -1;
+      Preconditions.checkArgument(v >= 0, "Invalid base64url character in: %s", encoded);
+      bits = (bits << 6) | v;
+      nbits += 6;
+      if (nbits >= 8) {
+        nbits -= 8;
+        out[idx++] = (byte) (bits >> nbits);
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.Hashing;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable set of the experiment ids that a request was diverted into, along with its
+ * {@link ExperimentIdCodec} encoding and a 64-bit combination id that are computed once when the set is created.
+ *
+ * <p>Most requests are diverted into one of a relatively small number of distinct combinations of experiments,
+ * so each {@link ExperimentSpace} interns the sets that its requests are diverted into, and requests with the
+ * same experiments share the same instance. The combination id is a hash of the encoding, so it is stable
+ * across experiment spaces and servers and may be used as a key for logging and metrics.
+ */
+public final class ExperimentIdSet {
+
+  /** The set with no experiment ids. */
+  public static final ExperimentIdSet EMPTY = new ExperimentIdSet(ImmutableSortedSet.<Integer>of());
+
+  private final ImmutableSortedSet<Integer> ids;
+  private final String encoded;
+  private final long combinationId;
+
+  private ExperimentIdSet(ImmutableSortedSet<Integer> ids) {
+    this.ids = ids;
+    this.encoded = ExperimentIdCodec.encode(ids);
+    this.combinationId = Hashing.murmur3_128().hashString(encoded, Charsets.US_ASCII).asLong();
+  }
+
+  /**
+   * Returns a new instance for the given experiment ids that is not interned.
+   */
+  public static ExperimentIdSet of(Set<Integer> ids) {
+    return ids.isEmpty() ? EMPTY : new ExperimentIdSet(ImmutableSortedSet.copyOf(ids));
+  }
+
+  /**
+   * Returns the experiment ids in ascending order.
+   */
+  public ImmutableSortedSet<Integer> getIds() {
+    return ids;
+  }
+
+  /**
+   * Returns the {@link ExperimentIdCodec} encoding of the experiment ids.
+   */
+  public String getEncoded() {
+    return encoded;
+  }
+
+  /**
+   * Returns a 64-bit identifier for this combination of experiment ids.
+   */
+  public long getCombinationId() {
+    return combinationId;
+  }
+
+  /**
+   * Returns the union of this set and the given one.
+   */
+  public ExperimentIdSet union(ExperimentIdSet other) {
+    if (other.ids.isEmpty() || ids.containsAll(other.ids)) {
+      return this;
+    } else if (ids.isEmpty() || other.ids.containsAll(ids)) {
+      return other;
+    }
+    return new ExperimentIdSet(ImmutableSortedSet.<Integer>naturalOrder().addAll(ids).addAll(other.ids).build());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    ExperimentIdSet that = (ExperimentIdSet) o;
+    return combinationId == that.combinationId && ids.equals(that.ids);
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (combinationId ^ (combinationId >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return ids.toString();
+  }
+
+  /**
+   * Interns the experiment id sets for a single {@code ExperimentSpace}. Once the interner holds the
+   * maximum number of distinct sets, new combinations are returned as instances that are not interned.
+   */
+  static final class Interner {
+    private final int maxSize;
+    private final ConcurrentMap<Set<Integer>, ExperimentIdSet> canonical = new MapMaker().makeMap();
+
+    Interner(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    ExperimentIdSet intern(Set<Integer> ids) {
+      if (ids.isEmpty()) {
+        return EMPTY;
+      }
+      ExperimentIdSet ret = canonical.get(ids);
+      if (ret == null) {
+        ret = of(ids);
+        if (canonical.size() < maxSize) {
+          ExperimentIdSet prev = canonical.putIfAbsent(ret.getIds(), ret);
+          if (prev != null) {
+            ret = prev;
+          }
+        }
+      }
+      return ret;
+    }
+
+    int size() {
+      return canonical.size();
+    }
+  }
+}
@@ -17,11 +17,15 @@ package com.cloudera.gertrude;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.InputSupplier;
+import com.google.common.primitives.Ints;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,12 +41,24 @@ import java.util.Set;
  * based on any new experiment definitions.
  */
 public final class ExperimentSpace {
+  // An upper bound on the number of distinct combinations of experiment ids that each space will intern.
+  private static final int MAX_INTERNED_ID_SETS = 10000;
+  private static final int NO_SEGMENT = -1;
+
   private final String versionIdentifier;
   private final ExperimentFlagSettings baseSettings;
   private final Map<Integer, Segment> allSegments;
   private final List<DiversionCriterion> diversionCriteria;
   private final List<Layer> launchLayers;
   private final List<Layer> permanentLayers;
+  private final int[] fixedDiversionIds;
+  private final Map<Integer, long[]> overriddenFlags;
+  private final int overriddenFlagWords;
+  private final List<AsyncCondition<ExperimentState>> asyncConditions;
+  // The id of the only segment that can evaluate each of the async conditions, or NO_SEGMENT if any can
+  private final int[] asyncConditionSegmentIds;
+  private final Set<AttributeKey<?>> attributeKeys;
+  private final ExperimentIdSet.Interner experimentIdSets = new ExperimentIdSet.Interner(MAX_INTERNED_ID_SETS);
 
   /**
    * A container for the serialized form of the configuration data used to create a new {@code ExperimentSpace}.
@@ -52,14 +68,35 @@ public final class ExperimentSpace {
   public static class Serialized {
     private final String versionIdentifier;
     private final List<InputSupplier<? extends InputStream>> serializedData;
+    private final List<String> partVersionIdentifiers;
 
     public Serialized(String versionIdentifier, InputSupplier<? extends InputStream> supplier) {
       this(versionIdentifier, ImmutableList.<InputSupplier<? extends InputStream>>of(supplier));
     }
 
     public Serialized(String versionIdentifier, List<InputSupplier<? extends InputStream>> serialized) {
+      this(versionIdentifier, serialized, ImmutableList.<String>of());
+    }
+
+    /**
+     * Create an instance whose parts are versioned independently of one another, so that a
+     * {@link ExperimentSpaceDeserializer} may re-use the results of decoding any parts that have not changed
+     * since the last time it was called.
+     *
+     * @param versionIdentifier the version of the complete {@code ExperimentSpace}
+     * @param serialized the serialized parts
+     * @param partVersionIdentifiers a version for each part that changes whenever the part's content does
+     */
+    public Serialized(
+        String versionIdentifier,
+        List<InputSupplier<? extends InputStream>> serialized,
+        List<String> partVersionIdentifiers) {
       this.versionIdentifier = Preconditions.checkNotNull(versionIdentifier);
       this.serializedData = Preconditions.checkNotNull(serialized);
+      this.partVersionIdentifiers = Preconditions.checkNotNull(partVersionIdentifiers);
+      Preconditions.checkArgument(
+          partVersionIdentifiers.isEmpty() || partVersionIdentifiers.size() == serialized.size(),
+          "Part version identifiers do not match the number of serialized parts");
     }
 
     public String getVersionIdentifier() {
@@ -69,6 +106,14 @@ public final class ExperimentSpace {
     public List<InputSupplier<? extends InputStream>> getSerializedData() {
       return serializedData;
     }
+
+    /**
+     * Returns the version identifiers for each of the serialized parts, in the same order as the parts,
+     * or an empty list if the parts are not versioned independently.
+     */
+    public List<String> getPartVersionIdentifiers() {
+      return partVersionIdentifiers;
+    }
   }
 
   ExperimentSpace() {
@@ -80,8 +125,14 @@ public final class ExperimentSpace {
     this.baseSettings = new ExperimentFlagSettings();
     this.allSegments = ImmutableMap.of();
     this.diversionCriteria = ImmutableList.of();
+    this.fixedDiversionIds = new int[0];
+    this.overriddenFlags = ImmutableMap.of();
+    this.overriddenFlagWords = 0;
     this.launchLayers = ImmutableList.of();
     this.permanentLayers = ImmutableList.of();
+    this.asyncConditions = ImmutableList.of();
+    this.asyncConditionSegmentIds = new int[0];
+    this.attributeKeys = ImmutableSet.of();
   }
 
   public ExperimentSpace(
@@ -90,10 +141,104 @@ public final class ExperimentSpace {
       Map<Integer, Segment> allSegments,
       List<DiversionCriterion> diversionCriteria,
       List<Layer> allLayers) {
+    this(versionIdentifier, baseSettings, allSegments, diversionCriteria, allLayers,
+        ImmutableMap.<Integer, Set<ExperimentFlag<?>>>of());
+  }
+
+  /**
+   * Creates a new instance that also knows which of the declared {@link ExperimentFlag}s are overridden by each
+   * experiment, so that the {@link ExperimentHandler} can determine which experiments were triggered by the
+   * flags that a request reads.
+   */
+  public ExperimentSpace(
+      String versionIdentifier,
+      Map<String, ? extends FlagValueCalculator<Object>> baseSettings,
+      Map<Integer, Segment> allSegments,
+      List<DiversionCriterion> diversionCriteria,
+      List<Layer> allLayers,
+      Map<Integer, ? extends Set<? extends ExperimentFlag<?>>> overriddenFlags) {
+    this(versionIdentifier, baseSettings, allSegments, diversionCriteria, allLayers, overriddenFlags,
+        ImmutableList.<Condition<ExperimentState>>of());
+  }
+
+  /**
+   * Creates a new instance that also knows about every {@link Condition} that is used by its layers and flag
+   * modifiers, so that the {@link ExperimentHandler} can start evaluating all of its {@link AsyncCondition}s
+   * and fetch the attributes for all of its {@link AttributeCondition}s before a request is diverted.
+   */
+  public ExperimentSpace(
+      String versionIdentifier,
+      Map<String, ? extends FlagValueCalculator<Object>> baseSettings,
+      Map<Integer, Segment> allSegments,
+      List<DiversionCriterion> diversionCriteria,
+      List<Layer> allLayers,
+      Map<Integer, ? extends Set<? extends ExperimentFlag<?>>> overriddenFlags,
+      Collection<? extends Condition<ExperimentState>> conditions) {
+    this(versionIdentifier, baseSettings, allSegments, diversionCriteria, allLayers, overriddenFlags, conditions,
+        ImmutableMap.<Condition<ExperimentState>, Integer>of());
+  }
+
+  /**
+   * Creates a new instance that also knows which of its conditions are only evaluated by the diversion into a
+   * single experiment, i.e., the conditions of the experiment itself and of its flag overrides, so that the
+   * {@link ExperimentHandler} only starts evaluating an {@link AsyncCondition} for a request when the
+   * experiment that uses it is enabled at the time of the request.
+   *
+   * @param conditionSegmentIds the id of the experiment that uses each condition, for the conditions that are
+   *     only used by one experiment
+   */
+  public ExperimentSpace(
+      String versionIdentifier,
+      Map<String, ? extends FlagValueCalculator<Object>> baseSettings,
+      Map<Integer, Segment> allSegments,
+      List<DiversionCriterion> diversionCriteria,
+      List<Layer> allLayers,
+      Map<Integer, ? extends Set<? extends ExperimentFlag<?>>> overriddenFlags,
+      Collection<? extends Condition<ExperimentState>> conditions,
+      Map<? extends Condition<ExperimentState>, Integer> conditionSegmentIds) {
     this.versionIdentifier = versionIdentifier;
     this.baseSettings = new ExperimentFlagSettings(baseSettings);
     this.allSegments = ImmutableMap.copyOf(allSegments);
     this.diversionCriteria = ImmutableList.copyOf(diversionCriteria);
+    List<Integer> fixedIds = Lists.newArrayList();
+    for (DiversionCriterion dc : diversionCriteria) {
+      if (!dc.isRandom()) {
+        fixedIds.add(dc.getId());
+      }
+    }
+    this.fixedDiversionIds = Ints.toArray(fixedIds);
+    ImmutableMap.Builder<Integer, long[]> flagBits = ImmutableMap.builder();
+    int maxWords = 0;
+    for (Map.Entry<Integer, ? extends Set<? extends ExperimentFlag<?>>> e : overriddenFlags.entrySet()) {
+      long[] bits = toBits(e.getValue());
+      if (bits.length > 0) {
+        flagBits.put(e.getKey(), bits);
+        maxWords = Math.max(maxWords, bits.length);
+      }
+    }
+    this.overriddenFlags = flagBits.build();
+    this.overriddenFlagWords = maxWords;
+    ImmutableList.Builder<AsyncCondition<ExperimentState>> async = ImmutableList.builder();
+    List<Integer> asyncSegmentIds = Lists.newArrayList();
+    ImmutableSet.Builder<AttributeKey<?>> keys = ImmutableSet.builder();
+    for (Condition<ExperimentState> c : conditions) {
+      if (c instanceof AsyncCondition) {
+        async.add((AsyncCondition<ExperimentState>) c);
+        Integer segmentId = conditionSegmentIds.get(c);
+        asyncSegmentIds.add(segmentId == null ? NO_SEGMENT : segmentId);
+      }
+      if (c instanceof AttributeCondition) {
+        for (AttributeKey<?> key : ((AttributeCondition<ExperimentState>) c).getAttributeKeys()) {
+          // Attributes that can be extracted from the request do not need to be loaded.
+          if (key.getExtractor() == null) {
+            keys.add(key);
+          }
+        }
+      }
+    }
+    this.asyncConditions = async.build();
+    this.asyncConditionSegmentIds = Ints.toArray(asyncSegmentIds);
+    this.attributeKeys = keys.build();
     this.launchLayers = Lists.newArrayList();
     this.permanentLayers = Lists.newArrayList();
     for (Layer layer : allLayers) {
@@ -109,6 +254,64 @@ public final class ExperimentSpace {
     return versionIdentifier;
   }
 
+  List<AsyncCondition<ExperimentState>> getAsyncConditions() {
+    return asyncConditions;
+  }
+
+  /**
+   * Returns the async conditions that a request at the given time may evaluate, i.e., all of them except the
+   * ones that are only used by an experiment that is not enabled at that time.
+   */
+  List<AsyncCondition<ExperimentState>> getAsyncConditions(long requestTimeMsec) {
+    List<AsyncCondition<ExperimentState>> ret = null;
+    for (int i = 0; i < asyncConditionSegmentIds.length; i++) {
+      Segment segment = asyncConditionSegmentIds[i] == NO_SEGMENT ? null : allSegments.get(asyncConditionSegmentIds[i]);
+      boolean active = segment == null || segment.isEnabled(requestTimeMsec);
+      if (!active && ret == null) {
+        ret = Lists.newArrayList(asyncConditions.subList(0, i));
+      } else if (active && ret != null) {
+        ret.add(asyncConditions.get(i));
+      }
+    }
+    return ret == null ? asyncConditions : ret;
+  }
+
+  /**
+   * Returns the keys of every attribute without an extractor that a condition in this space may read. Which of
+   * the conditions are evaluated depends on how a request is diverted, so this is the union over all of them.
+   */
+  Set<AttributeKey<?>> getAttributeKeys() {
+    return attributeKeys;
+  }
+
+  /**
+   * Returns the ids of the diversion criteria in this space that are not random.
+   */
+  int[] getFixedDiversionIds() {
+    return fixedDiversionIds;
+  }
+
+  private static long[] toBits(Set<? extends ExperimentFlag<?>> flags) {
+    int maxOrdinal = -1;
+    for (ExperimentFlag<?> flag : flags) {
+      maxOrdinal = Math.max(maxOrdinal, flag.getOrdinal());
+    }
+    long[] bits = new long[(maxOrdinal >> 6) + 1];
+    for (ExperimentFlag<?> flag : flags) {
+      if (flag.getOrdinal() >= 0) {
+        bits[flag.getOrdinal() >> 6] |= 1L << flag.getOrdinal();
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * Returns a new tracker for the flags that are read by a request that is diverted in this space.
+   */
+  FlagAccessTracker newFlagAccessTracker() {
+    return new FlagAccessTracker(overriddenFlags, overriddenFlagWords);
+  }
+
   boolean disable(int experimentId) {
     Segment s = allSegments.get(experimentId);
     if (s != null) {
@@ -126,6 +329,27 @@ public final class ExperimentSpace {
     }
   }
 
+  /**
+   * Diverts the given state in this space without going through an {@link ExperimentHandler}, and returns the
+   * ids of the experiments that it was diverted into. This is intended for offline tools that compare how
+   * different spaces divert the same requests; servers should always use {@link ExperimentHandler#handle}.
+   *
+   * @param state a new state to divert
+   * @return the ids of the experiments that the state was diverted into
+   */
+  public Set<Integer> divert(AbstractExperimentState state) {
+    Set<Integer> experimentIds = Sets.newHashSet();
+    diversion(state, experimentIds);
+    return experimentIds;
+  }
+
+  /**
+   * Returns the canonical instance for the given set of experiment ids in this space.
+   */
+  ExperimentIdSet intern(Set<Integer> experimentIds) {
+    return experimentIdSets.intern(experimentIds);
+  }
+
   private void randomDiversion(AbstractExperimentState state, Set<Integer> newExperimentIds) {
     ExperimentFlagSettings llSettings = assignFrom(launchLayers, state, baseSettings, newExperimentIds);
     state.setFlagSettings(assignFrom(permanentLayers, state, llSettings, newExperimentIds));
@@ -133,9 +357,13 @@ public final class ExperimentSpace {
 
   private void forceDiversion(AbstractExperimentState state, Set<Integer> experimentIds) {
     Map<String, FlagValueCalculator<Object>> overrides = Maps.newHashMap();
+    DiversionTrace trace = state.getDiversionTrace();
     for (int forceId : state.forceExperimentIds()) {
       Segment s = allSegments.get(forceId);
       if (s != null) {
+        if (trace != null) {
+          trace.forced(s.getLayerId(), forceId);
+        }
         s.handle(state, diversionCriteria, overrides, experimentIds);
       }
     }
@@ -19,6 +19,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -35,10 +36,12 @@ import java.util.Map;
 public abstract class ExperimentSpaceDeserializer {
   private Map<String, ExperimentFlag<?>> experimentFlags;
   private ConditionFactory conditionFactory;
+  private ConditionDataSources conditionDataSources;
 
   /**
    * Initialize this instance with the compiled experiment flags and {@code ConditionFactory} needed to
-   * validate and parse the serialized {@code ExperimentSpace}.
+   * validate and parse the serialized {@code ExperimentSpace}, using the condition data sources of the
+   * default runtime.
    *
    * <p>This is only public for testing new serialization frameworks; clients should not use this method
    * directly.
@@ -48,9 +51,26 @@ public abstract class ExperimentSpaceDeserializer {
    */
   @VisibleForTesting
   public void initialize(Map<String, ExperimentFlag<?>> experimentFlags, ConditionFactory conditionFactory) {
+    initialize(experimentFlags, conditionFactory, Experiments.getConditionDataSources());
+  }
+
+  /**
+   * Initialize this instance with the experiment flags, {@code ConditionFactory}, and condition data sources
+   * of the runtime that it belongs to.
+   *
+   * @param experimentFlags the experiment flags that have been registered with the runtime
+   * @param conditionFactory the {@code ConditionFactory} configured for the runtime
+   * @param conditionDataSources the data sources that {@link DataSourceCondition}s are given
+   */
+  @VisibleForTesting
+  public void initialize(
+      Map<String, ExperimentFlag<?>> experimentFlags,
+      ConditionFactory conditionFactory,
+      ConditionDataSources conditionDataSources) {
     if (this.experimentFlags == null && this.conditionFactory == null) {
       this.experimentFlags = Preconditions.checkNotNull(experimentFlags);
       this.conditionFactory = Preconditions.checkNotNull(conditionFactory);
+      this.conditionDataSources = Preconditions.checkNotNull(conditionDataSources);
     } else {
       throw new IllegalStateException("ExperimentSpaceDeserializer has already been initialized");
     }
@@ -70,6 +90,27 @@ public abstract class ExperimentSpaceDeserializer {
     return conditionFactory;
   }
 
+  protected ConditionDataSources getConditionDataSources() {
+    if (conditionDataSources == null) {
+      throw new IllegalStateException("ExperimentSpaceDeserializer has not been initialized");
+    }
+    return conditionDataSources;
+  }
+
+  /**
+   * Initializes a condition that was created by the {@code ConditionFactory} with the given arguments, after
+   * passing the condition data sources to a {@link DataSourceCondition}.
+   *
+   * @param condition the new condition
+   * @param args the arguments of the condition
+   */
+  protected void initializeCondition(Condition<ExperimentState> condition, List<String> args) {
+    if (condition instanceof DataSourceCondition) {
+      ((DataSourceCondition<?>) condition).setConditionDataSources(getConditionDataSources());
+    }
+    condition.initialize(args);
+  }
+
   /**
    * Attempts to convert the {@code ExperimentSpace.Serialized} data to an {@code ExperimentSpace}, returning
    * {@link com.google.common.base.Optional#absent()} in the case that the deserialization could not be
@@ -42,6 +42,10 @@ public abstract class ExperimentSpaceLoader {
   }
 
   protected synchronized boolean reload(boolean force) {
+    if (handler == null) {
+      log.info("Skipping reload because the loader has not been initialized yet");
+      return false;
+    }
     Optional<ExperimentSpace.Serialized> serialized = getSerialized();
     if (!serialized.isPresent()) {
       log.warn("No space returned from experiment space supplier, skipping reload");
@@ -106,6 +106,14 @@ public interface ExperimentState {
    */
   Set<Integer> getExperimentIds();
 
+  /**
+   * Returns the identifiers for the experiments that this state was diverted into in the compact,
+   * URL-safe form created by {@link ExperimentIdCodec#encode}, for use in logs and headers.
+   *
+   * @return the encoded identifiers for the experiments that this state was diverted into
+   */
+  String getEncodedExperimentIds();
+
   /**
    * Indicates whether or not this {@code ExperimentState} has been passed to {@link ExperimentHandler#handle}.
    *
@@ -120,4 +128,14 @@ public interface ExperimentState {
    * @return the time that this object was created in milliseconds
    */
   long getRequestTimeMsec();
+
+  /**
+   * Returns the value of the given request attribute, either as it was fetched by the {@link AttributeLoader}
+   * before this instance was diverted or as it is extracted by the key's {@link AttributeExtractor}, or null
+   * if the attribute has no value. The value is computed at most once per instance.
+   *
+   * @param key the key of the attribute
+   * @return the value of the attribute, or null
+   */
+  <T> T getAttribute(AttributeKey<T> key);
 }
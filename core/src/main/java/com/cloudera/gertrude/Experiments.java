@@ -15,9 +15,6 @@
 package com.cloudera.gertrude;
 
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.collect.Maps;
-
-import java.util.Map;
 
 /**
  * A namespace for declaring, configuring, and accessing the core classes in the Gertrude framework.
@@ -36,21 +33,26 @@ import java.util.Map;
  *   <li>A {@link ConditionFactory} for mapping from names of {@link Condition} functions to implementations,
  *   <li>a {@link ExperimentSpaceDeserializer} for processing the serialized form of an {@link ExperimentSpace},
  *   <li>a {@link ExperimentSpaceLoader} that is configured with the location of the serialized {@link ExperimentSpace},
- *   <li>and an optional {@link MetricRegistry} for tracking experiment requests and diversions.
+ *   <li>an optional {@link MetricRegistry} for tracking experiment requests and diversions,
+ *   <li>and an optional {@link ExposureLogger} for recording the experiments that each request was diverted into.
  * </ol>
  * <p>After these instances are configured, the {@link ExperimentHandler} for the server can be accessed via the
  * {@link #getHandler()} method and used to divert client requests (represented by a subclass of
  * {@link AbstractExperimentState}) into experiments that modify parameter values as specified in the configuration
  * of the {@link ExperimentSpace}.
+ *
+ * <p>All of these methods delegate to a default {@link ExperimentsRuntime}. Processes that serve more than one
+ * experiment space should create an {@code ExperimentsRuntime} for each of them instead.
  */
 public final class Experiments {
-  private static final Map<String, ExperimentFlag<?>> EXPERIMENT_FLAGS = Maps.newHashMap();
+  private static final ExperimentsRuntime DEFAULT_RUNTIME = new ExperimentsRuntime();
 
-  private static ConditionFactory CONDITION_FACTORY;
-  private static ExperimentHandler HANDLER_INSTANCE;
-  private static ExperimentSpaceLoader LOADER_INSTANCE;
-  private static ExperimentSpaceDeserializer DESERIALIZER_INSTANCE;
-  private static MetricRegistry METRIC_REGISTRY_INSTANCE;
+  /**
+   * Returns the runtime that the static methods of this class delegate to.
+   */
+  public static ExperimentsRuntime getDefaultRuntime() {
+    return DEFAULT_RUNTIME;
+  }
 
   /**
    * Declares a boolean experiment flag with the given name and default value.
@@ -60,7 +62,7 @@ public final class Experiments {
    * @return the instance of {@code ExperimentFlag} for the name and default value
    */
   public static ExperimentFlag<Boolean> declare(String name, boolean defaultValue) {
-    return validate(new ExperimentFlag<Boolean>(name, FlagTypeParser.BOOLEAN_PARSER, defaultValue));
+    return DEFAULT_RUNTIME.declare(name, defaultValue);
   }
 
   /**
@@ -71,7 +73,7 @@ public final class Experiments {
    * @return the instance of {@code ExperimentFlag} for the name and default value
    */
   public static ExperimentFlag<Long> declare(String name, long defaultValue) {
-    return validate(new ExperimentFlag<Long>(name, FlagTypeParser.LONG_PARSER, defaultValue));
+    return DEFAULT_RUNTIME.declare(name, defaultValue);
   }
 
   /**
@@ -82,7 +84,7 @@ public final class Experiments {
    * @return the instance of {@code ExperimentFlag} for the name and default value
    */
   public static ExperimentFlag<Double> declare(String name, double defaultValue) {
-    return validate(new ExperimentFlag<Double>(name, FlagTypeParser.DOUBLE_PARSER, defaultValue));
+    return DEFAULT_RUNTIME.declare(name, defaultValue);
   }
 
   /**
@@ -93,7 +95,7 @@ public final class Experiments {
    * @return the instance of {@code ExperimentFlag} for the name and default value
    */
   public static ExperimentFlag<String> declare(String name, String defaultValue) {
-    return validate(new ExperimentFlag<String>(name, FlagTypeParser.STRING_PARSER, defaultValue));
+    return DEFAULT_RUNTIME.declare(name, defaultValue);
   }
 
   /**
@@ -106,12 +108,8 @@ public final class Experiments {
    * @param factory the configured factory
    * @return true if the given factory was configured, false if another one had already been configured
    */
-  public static synchronized boolean registerConditionFactory(ConditionFactory factory) {
-    if (CONDITION_FACTORY != null) {
-      return false;
-    }
-    CONDITION_FACTORY = factory;
-    return true;
+  public static boolean registerConditionFactory(ConditionFactory factory) {
+    return DEFAULT_RUNTIME.registerConditionFactory(factory);
   }
 
   /**
@@ -124,12 +122,8 @@ public final class Experiments {
    * @param loader the configured loader
    * @return true if the given loader was configured, false if another one had already been configured
    */
-  public static synchronized boolean registerLoader(ExperimentSpaceLoader loader) {
-    if (LOADER_INSTANCE != null) {
-      return false;
-    }
-    LOADER_INSTANCE = loader;
-    return true;
+  public static boolean registerLoader(ExperimentSpaceLoader loader) {
+    return DEFAULT_RUNTIME.registerLoader(loader);
   }
 
   /**
@@ -142,12 +136,8 @@ public final class Experiments {
    * @param deserializer the configured deserializer
    * @return true if the given deserializer was configured, false if another one had already been configured
    */
-  public static synchronized boolean registerDeserializer(ExperimentSpaceDeserializer deserializer) {
-    if (DESERIALIZER_INSTANCE != null) {
-      return false;
-    }
-    DESERIALIZER_INSTANCE = deserializer;
-    return true;
+  public static boolean registerDeserializer(ExperimentSpaceDeserializer deserializer) {
+    return DEFAULT_RUNTIME.registerDeserializer(deserializer);
   }
 
   /**
@@ -159,49 +149,31 @@ public final class Experiments {
    * @param registry the registry instance to use
    * @return true if the given registry was configured, false if another one had already been configured
    */
-  public static synchronized boolean registerMetricRegistry(MetricRegistry registry) {
-    if (METRIC_REGISTRY_INSTANCE != null) {
-      return false;
-    }
-    METRIC_REGISTRY_INSTANCE = registry;
-    return true;
+  public static boolean registerMetricRegistry(MetricRegistry registry) {
+    return DEFAULT_RUNTIME.registerMetricRegistry(registry);
   }
 
-  public static synchronized ExperimentHandler getHandler() {
-    if (HANDLER_INSTANCE == null) {
-      if (LOADER_INSTANCE == null) {
-        throw new IllegalStateException("No experiment space loader registered for the experiment handler");
-      }
-      if (DESERIALIZER_INSTANCE == null) {
-        throw new IllegalStateException("No experiment space deserializer registered for the experiment handler");
-      }
-      if (CONDITION_FACTORY == null) {
-        throw new IllegalStateException("No condition factory registered for the experiment handler");
-      }
-      if (METRIC_REGISTRY_INSTANCE == null) {
-        METRIC_REGISTRY_INSTANCE = new MetricRegistry();
-      }
-      HANDLER_INSTANCE = new ExperimentHandler(METRIC_REGISTRY_INSTANCE);
-      DESERIALIZER_INSTANCE.initialize(EXPERIMENT_FLAGS, CONDITION_FACTORY);
-      // Initialize and load an initial state
-      LOADER_INSTANCE.initialize(HANDLER_INSTANCE, DESERIALIZER_INSTANCE);
-      LOADER_INSTANCE.reload(true);
-    }
-    return HANDLER_INSTANCE;
+  /**
+   * Register the given {@code ExposureLogger} to receive an {@link ExposureEvent} for each diverted request.
+   *
+   * <p>The logger must be registered before the first call to {@link #getHandler()} in order to be used.
+   *
+   * @param logger the logger instance to use
+   * @return true if the given logger was configured, false if another one had already been configured
+   */
+  public static boolean registerExposureLogger(ExposureLogger logger) {
+    return DEFAULT_RUNTIME.registerExposureLogger(logger);
+  }
+
+  /**
+   * Returns the registry of the {@link ConditionDataSource}s of the default runtime.
+   */
+  public static ConditionDataSources getConditionDataSources() {
+    return DEFAULT_RUNTIME.getConditionDataSources();
   }
 
-  private static synchronized <T> ExperimentFlag<T> validate(ExperimentFlag<T> ret) {
-    ExperimentFlag<?> existing = EXPERIMENT_FLAGS.get(ret.getName());
-    if (existing != null) {
-      if (ret.equals(existing)) {
-        return (ExperimentFlag<T>) existing;
-      } else {
-        throw new IllegalStateException("Incompatible flags with the same name: " + existing + " and " + ret);
-      }
-    } else {
-      EXPERIMENT_FLAGS.put(ret.getName(), (ExperimentFlag<Object>) ret);
-      return ret;
-    }
+  public static ExperimentHandler getHandler() {
+    return DEFAULT_RUNTIME.getHandler();
   }
 
   private Experiments() { }
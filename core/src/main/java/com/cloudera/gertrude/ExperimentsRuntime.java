@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An independent instance of the Gertrude framework, with its own registry of {@link ExperimentFlag}s and its
+ * own {@link ExperimentSpaceLoader}, {@link ExperimentSpaceDeserializer}, and {@link ExperimentHandler}, so that
+ * a single JVM can serve several experiment spaces side by side:
+ * <pre>   {@code
+ * ExperimentsRuntime search = new ExperimentsRuntime("search");
+ * ExperimentFlag<Long> limit = search.declare("limit", 10L);
+ * search.registerConditionFactory(conditionFactory);
+ * search.registerDeserializer(new AvroExperimentSpaceDeserializer(true));
+ * search.registerLoader(searchLoader);
+ * search.getHandler().handle(state);  }</pre>
+ *
+ * <p>The static methods of {@link Experiments} delegate to a default runtime that is available from
+ * {@link Experiments#getDefaultRuntime()}.
+ *
+ * <p>Flags may be declared at any time, including after the handler has been created; flags that are declared
+ * late are validated against the experiment space the next time that it is reloaded. A flag that is declared
+ * in one runtime must only be used with the states that are diverted by that runtime's handler.
+ *
+ * <p>Each runtime needs its own loader and deserializer, since they are bound to the runtime's handler and flag
+ * registry when the handler is created. Stateless components such as a {@link ConditionFactory}, the
+ * {@link Condition}s that it creates, or an {@link ExposureLogger} may be shared by multiple runtimes. A
+ * {@link MetricRegistry} may only be shared by runtimes that were created with distinct names, since the name
+ * of a runtime is the prefix of the names of all of its metrics, e.g.,
+ * {@code search.com.cloudera.gertrude.ExperimentHandler.requests}; the metrics of an unnamed runtime, such as the
+ * default one, have no prefix.
+ */
+public final class ExperimentsRuntime {
+  private final ConcurrentMap<String, ExperimentFlag<?>> experimentFlags =
+      new ConcurrentHashMap<String, ExperimentFlag<?>>();
+  private final AtomicInteger nextOrdinal = new AtomicInteger();
+  private final ConditionDataSources conditionDataSources = new ConditionDataSources();
+  private final String name;
+
+  private ConditionFactory conditionFactory;
+  private ExperimentHandler handler;
+  private ExperimentSpaceLoader loader;
+  private ExperimentSpaceDeserializer deserializer;
+  private MetricRegistry metricRegistry;
+  private ExposureLogger exposureLogger;
+
+  /**
+   * Creates an unnamed runtime, whose metric names have no prefix.
+   */
+  public ExperimentsRuntime() {
+    this.name = null;
+  }
+
+  /**
+   * Creates a runtime whose metric names are prefixed with the given name, so that it may share a
+   * {@link MetricRegistry} with other runtimes.
+   *
+   * @param name the name of the runtime, which must not be empty
+   */
+  public ExperimentsRuntime(String name) {
+    Preconditions.checkArgument(name != null && !name.isEmpty(), "Runtime name must not be empty");
+    this.name = name;
+  }
+
+  /**
+   * Returns the name of this runtime, or null if it is unnamed.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Declares a boolean experiment flag with the given name and default value.
+   *
+   * @param name the name of the flag
+   * @param defaultValue the default value of the flag
+   * @return the instance of {@code ExperimentFlag} for the name and default value
+   */
+  public ExperimentFlag<Boolean> declare(String name, boolean defaultValue) {
+    return validate(new ExperimentFlag<Boolean>(name, FlagTypeParser.BOOLEAN_PARSER, defaultValue));
+  }
+
+  /**
+   * Declares a long experiment flag with the given name and default value.
+   *
+   * @param name the name of the flag
+   * @param defaultValue the default value of the flag
+   * @return the instance of {@code ExperimentFlag} for the name and default value
+   */
+  public ExperimentFlag<Long> declare(String name, long defaultValue) {
+    return validate(new ExperimentFlag<Long>(name, FlagTypeParser.LONG_PARSER, defaultValue));
+  }
+
+  /**
+   * Declares a double experiment flag with the given name and default value.
+   *
+   * @param name the name of the flag
+   * @param defaultValue the default value of the flag
+   * @return the instance of {@code ExperimentFlag} for the name and default value
+   */
+  public ExperimentFlag<Double> declare(String name, double defaultValue) {
+    return validate(new ExperimentFlag<Double>(name, FlagTypeParser.DOUBLE_PARSER, defaultValue));
+  }
+
+  /**
+   * Declares a string experiment flag with the given name and default value.
+   *
+   * @param name the name of the flag
+   * @param defaultValue the default value of the flag
+   * @return the instance of {@code ExperimentFlag} for the name and default value
+   */
+  public ExperimentFlag<String> declare(String name, String defaultValue) {
+    return validate(new ExperimentFlag<String>(name, FlagTypeParser.STRING_PARSER, defaultValue));
+  }
+
+  /**
+   * Returns a read-only view of the flags that have been declared in this runtime, indexed by name.
+   */
+  public Map<String, ExperimentFlag<?>> getExperimentFlags() {
+    return Collections.unmodifiableMap(experimentFlags);
+  }
+
+  /**
+   * Register the given {@code ConditionFactory} for creating new {@link Condition} instances from the serialized
+   * {@code ExperimentSpace} configuration.
+   *
+   * <p>If no factory is provided before the call to {@link #getHandler()}, an {@code IllegalStateException}
+   * will be thrown.
+   *
+   * @param factory the configured factory
+   * @return true if the given factory was configured, false if another one had already been configured
+   */
+  public synchronized boolean registerConditionFactory(ConditionFactory factory) {
+    if (conditionFactory != null) {
+      return false;
+    }
+    conditionFactory = factory;
+    return true;
+  }
+
+  /**
+   * Register the given {@code ExperimentSpaceLoader} for retrieving serialized {@link ExperimentSpace}
+   * instances.
+   *
+   * <p>If no loader is provided before the call to {@link #getHandler()}, an {@code IllegalStateException}
+   * will be thrown.
+   *
+   * @param loader the configured loader
+   * @return true if the given loader was configured, false if another one had already been configured
+   */
+  public synchronized boolean registerLoader(ExperimentSpaceLoader loader) {
+    if (this.loader != null) {
+      return false;
+    }
+    this.loader = loader;
+    return true;
+  }
+
+  /**
+   * Register the given {@code ExperimentSpaceDeserializer} for creating and validating new {@link ExperimentSpace}
+   * instances.
+   *
+   * <p>If no deserializer is provided before the call to {@link #getHandler()}, an {@code IllegalStateException}
+   * will be thrown.
+   *
+   * @param deserializer the configured deserializer
+   * @return true if the given deserializer was configured, false if another one had already been configured
+   */
+  public synchronized boolean registerDeserializer(ExperimentSpaceDeserializer deserializer) {
+    if (this.deserializer != null) {
+      return false;
+    }
+    this.deserializer = deserializer;
+    return true;
+  }
+
+  /**
+   * Register the given {@code MetricRegistry} for stat tracking with the framework.
+   *
+   * <p>If no registry is provided before the call to {@link #getHandler()}, the runtime will create its
+   * own instance and use that one.
+   *
+   * @param registry the registry instance to use
+   * @return true if the given registry was configured, false if another one had already been configured
+   */
+  public synchronized boolean registerMetricRegistry(MetricRegistry registry) {
+    if (metricRegistry != null) {
+      return false;
+    }
+    metricRegistry = registry;
+    return true;
+  }
+
+  /**
+   * Register the given {@code ExposureLogger} to receive an {@link ExposureEvent} for each diverted request.
+   *
+   * <p>The logger must be registered before the first call to {@link #getHandler()} in order to be used.
+   *
+   * @param logger the logger instance to use
+   * @return true if the given logger was configured, false if another one had already been configured
+   */
+  public synchronized boolean registerExposureLogger(ExposureLogger logger) {
+    if (exposureLogger != null) {
+      return false;
+    }
+    exposureLogger = logger;
+    return true;
+  }
+
+  /**
+   * Returns the registry of the {@link ConditionDataSource}s that the conditions of this runtime may use, which
+   * are refreshed in the background once the handler has been created.
+   */
+  public ConditionDataSources getConditionDataSources() {
+    return conditionDataSources;
+  }
+
+  public synchronized ExperimentHandler getHandler() {
+    if (handler == null) {
+      if (loader == null) {
+        throw new IllegalStateException("No experiment space loader registered for the experiment handler");
+      }
+      if (deserializer == null) {
+        throw new IllegalStateException("No experiment space deserializer registered for the experiment handler");
+      }
+      if (conditionFactory == null) {
+        throw new IllegalStateException("No condition factory registered for the experiment handler");
+      }
+      if (metricRegistry == null) {
+        metricRegistry = new MetricRegistry();
+      }
+      ExperimentHandler newHandler = new ExperimentHandler(metricRegistry, exposureLogger, name);
+      conditionDataSources.start(metricRegistry, name);
+      // The deserializer sees the live registry, so flags that are declared later are picked up on reload.
+      deserializer.initialize(getExperimentFlags(), conditionFactory, conditionDataSources);
+      // Initialize and load an initial state
+      loader.initialize(newHandler, deserializer);
+      loader.reload(true);
+      // Only publish the handler once it is fully set up, so that a failure above is retried by the next call.
+      handler = newHandler;
+    }
+    return handler;
+  }
+
+  private <T> ExperimentFlag<T> validate(ExperimentFlag<T> ret) {
+    ExperimentFlag<?> existing = experimentFlags.get(ret.getName());
+    if (existing == null) {
+      // Ordinals that are claimed by the loser of a race are simply never used.
+      existing = experimentFlags.putIfAbsent(ret.getName(), ret.withOrdinal(nextOrdinal.getAndIncrement()));
+      if (existing == null) {
+        // Safe because the stored flag is a copy of ret with an ordinal.
+        @SuppressWarnings("unchecked")
+        ExperimentFlag<T> declared = (ExperimentFlag<T>) experimentFlags.get(ret.getName());
+        return declared;
+      }
+    }
+    if (ret.equals(existing)) {
+      // Safe because equal flags have the same type of default value.
+      @SuppressWarnings("unchecked")
+      ExperimentFlag<T> declared = (ExperimentFlag<T>) existing;
+      return declared;
+    } else {
+      throw new IllegalStateException("Incompatible flags with the same name: " + existing + " and " + ret);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The record of a single request being diverted into experiments: the time of the request, the identifiers
+ * it had for each of the non-random diversion criteria, the experiments it was diverted into, and the
+ * version of the {@link ExperimentSpace} that diverted it.
+ */
+public final class ExposureEvent {
+  private final long requestTimeMsec;
+  private final String versionIdentifier;
+  private final ExperimentIdSet experimentIds;
+  private final int[] diversionIds;
+  private final String[] diversionIdentifiers;
+
+  public ExposureEvent(
+      long requestTimeMsec,
+      String versionIdentifier,
+      ExperimentIdSet experimentIds,
+      int[] diversionIds,
+      String[] diversionIdentifiers) {
+    Preconditions.checkArgument(diversionIds.length == diversionIdentifiers.length,
+        "Diversion ids and identifiers must have the same length");
+    this.requestTimeMsec = requestTimeMsec;
+    this.versionIdentifier = Preconditions.checkNotNull(versionIdentifier);
+    this.experimentIds = Preconditions.checkNotNull(experimentIds);
+    this.diversionIds = diversionIds;
+    this.diversionIdentifiers = diversionIdentifiers;
+  }
+
+  public long getRequestTimeMsec() {
+    return requestTimeMsec;
+  }
+
+  public String getVersionIdentifier() {
+    return versionIdentifier;
+  }
+
+  public ExperimentIdSet getExperimentIds() {
+    return experimentIds;
+  }
+
+  /**
+   * Returns the number of diversion criteria that identifiers were requested for.
+   */
+  public int getDiversionCount() {
+    return diversionIds.length;
+  }
+
+  public int getDiversionId(int index) {
+    return diversionIds[index];
+  }
+
+  /**
+   * Returns the identifier of the request for the diversion criterion at the given index, or null if the
+   * request did not have one.
+   */
+  public String getDiversionIdentifier(int index) {
+    return diversionIdentifiers[index];
+  }
+}
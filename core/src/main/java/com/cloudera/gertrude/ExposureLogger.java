@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+/**
+ * Receives an {@link ExposureEvent} for each request that is diverted by the {@link ExperimentHandler}.
+ *
+ * <p>Implementations are called on the thread that is handling the request, so they should hand the events
+ * off to another thread for any I/O instead of blocking. They must be safe to call from multiple threads.
+ */
+public interface ExposureLogger {
+
+  /**
+   * Records the given event.
+   *
+   * @param event the event for a request that was just diverted
+   */
+  void log(ExposureEvent event);
+}
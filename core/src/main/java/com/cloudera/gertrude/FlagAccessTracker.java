@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the {@link ExperimentFlag}s that are read by a single request in a bitset over the flags' ordinals,
+ * and determines which of the request's experiments were triggered, i.e., overrode at least one of the flags
+ * that the request read.
+ *
+ * <p>The bitset only covers the ordinals of the flags that some experiment in the {@link ExperimentSpace}
+ * overrides, since reading any other flag cannot trigger an experiment. Marking a flag that was already
+ * read is a single volatile read of the bitset.
+ */
+final class FlagAccessTracker {
+
+  private final Map<Integer, long[]> overriddenFlags;
+  private final AtomicLongArray accessed;
+
+  FlagAccessTracker(Map<Integer, long[]> overriddenFlags, int words) {
+    this.overriddenFlags = overriddenFlags;
+    this.accessed = new AtomicLongArray(words);
+  }
+
+  void mark(int ordinal) {
+    int word = ordinal >> 6;
+    if (ordinal >= 0 && word < accessed.length()) {
+      long bit = 1L << ordinal;
+      long current = accessed.get(word);
+      while ((current & bit) == 0 && !accessed.compareAndSet(word, current, current | bit)) {
+        current = accessed.get(word);
+      }
+    }
+  }
+
+  /**
+   * Returns the subset of the given experiment ids whose overridden flags intersect the flags that
+   * have been read so far.
+   */
+  Set<Integer> triggered(Set<Integer> experimentIds) {
+    ImmutableSortedSet.Builder<Integer> b = ImmutableSortedSet.naturalOrder();
+    for (Integer id : experimentIds) {
+      long[] flags = overriddenFlags.get(id);
+      if (flags != null) {
+        for (int i = 0; i < flags.length && i < accessed.length(); i++) {
+          if ((flags[i] & accessed.get(i)) != 0) {
+            b.add(id);
+            break;
+          }
+        }
+      }
+    }
+    return b.build();
+  }
+}
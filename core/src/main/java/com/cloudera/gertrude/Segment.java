@@ -17,7 +17,6 @@ package com.cloudera.gertrude;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 
 /**
  * A vertical slice of buckets contained inside of a {@link Layer} that has associated {@link Condition} logic
@@ -51,7 +50,7 @@ public interface Segment {
    * The set of buckets claimed by this {@code Segment} within its assigned {@link Layer} and
    * {@link DiversionCriterion}.
    */
-  SortedSet<Integer> getBuckets();
+  BucketRanges getBuckets();
 
   /**
    * Returns the time in milliseconds UTC that this segment starts diverting requests.
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.cloudera.gertrude.AttributeKey;
+import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.ConditionDataSource;
+import com.cloudera.gertrude.ConditionDataSources;
+import com.cloudera.gertrude.DataSourceCondition;
+import com.cloudera.gertrude.ExperimentState;
+import com.cloudera.gertrude.ExperimentsRuntime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A base class for {@link Condition}s that check whether the id of a request, such as the id of the user who
+ * made it, belongs to a {@link Cohort}. The only argument is the path of the cohort file, which is memory-mapped
+ * and shared with every other condition that references the same file, so lookups do not use any heap.
+ *
+ * <p>The cohort file is read when the condition is initialized, so it must be present on every server before
+ * the deployment that references it is loaded. Alternatively, an argument of the form {@code @name} refers to
+ * a {@link CohortDataSource} that is registered with the {@link ExperimentsRuntime#getConditionDataSources()} of
+ * the runtime that loads the deployment, whose cohort is refreshed in the background and swapped in without
+ * reloading the experiment space.
+ */
+public abstract class AbstractCohortCondition<S extends ExperimentState> implements DataSourceCondition<S> {
+
+  private ConditionDataSources dataSources;
+  private Cohort cohort;
+  private ConditionDataSource<Cohort> dataSource;
+  private AttributeKey<Long> attributeKey;
+
+  @Override
+  public void setConditionDataSources(ConditionDataSources dataSources) {
+    this.dataSources = dataSources;
+  }
+
+  @Override
+  public void initialize(List<String> args) {
+    if (args.size() != 1) {
+      throw new IllegalStateException("Cohort condition must have the path of a cohort file as its only argument");
+    }
+    if (args.get(0).startsWith("@")) {
+      if (dataSources == null) {
+        throw new IllegalStateException("Cohort condition has no condition data sources to find " + args.get(0));
+      }
+      this.dataSource = dataSources.get(args.get(0).substring(1), Cohort.class);
+    } else {
+      this.cohort = openCohort(args.get(0));
+    }
+    this.attributeKey = getAttributeKey();
+  }
+
+  private static Cohort openCohort(String path) {
+    try {
+      return Cohort.open(new File(path));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not open cohort file " + path, e);
+    }
+  }
+
+  @Override
+  public boolean evaluate(S state) {
+    Cohort c = getCohort();
+    if (attributeKey == null) {
+      return c.contains(getId(state));
+    }
+    Long id = state.getAttribute(attributeKey);
+    return id != null && c.contains(id);
+  }
+
+  /**
+   * Returns the cohort that this condition currently checks, once it has been initialized.
+   */
+  public Cohort getCohort() {
+    return dataSource == null ? cohort : dataSource.get();
+  }
+
+  /**
+   * Returns the id to look up in the cohort for the given state.
+   *
+   * @param state the {@code ExperimentState} to evaluate
+   * @return the id of the request
+   */
+  public abstract long getId(S state);
+
+  /**
+   * Returns the key of the request attribute that holds the id, or null if the id should be computed by
+   * {@link #getId} on every evaluation, which is the default. This method is called once, after the cohort has
+   * been opened.
+   *
+   * @return the key of the attribute for the id, or null
+   */
+  protected AttributeKey<Long> getAttributeKey() {
+    return null;
+  }
+
+  @Override
+  public CacheLevel getCacheLevel() {
+    return CacheLevel.REQUEST;
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.cloudera.gertrude.AttributeKey;
+import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.ExperimentState;
+
+import java.util.List;
+
+/**
+ * A version of {@link AbstractPropertyCondition} for properties whose values are primitive longs, such as
+ * account ids. The matching values are kept in an unboxed set whose representation is chosen by its size, so
+ * that evaluating the condition does not allocate and large sets of values take a fraction of the memory
+ * of a {@code Set<Long>}.
+ */
+public abstract class AbstractLongPropertyCondition<S extends ExperimentState> implements Condition<S> {
+
+  private LongValueSet matchingValues = LongValueSet.of(new long[0]);
+  private AttributeKey<Long> attributeKey;
+
+  @Override
+  public void initialize(List<String> args) {
+    this.matchingValues = LongValueSet.of(parseArgs(args));
+    this.attributeKey = getAttributeKey();
+  }
+
+  @Override
+  public boolean evaluate(S state) {
+    if (attributeKey == null) {
+      return matchingValues.contains(getValue(state));
+    }
+    Long value = state.getAttribute(attributeKey);
+    return value != null && matchingValues.contains(value);
+  }
+
+  /**
+   * Sub-classes should override this method to validate and extract the information they need to evaluate
+   * the state of a given {@code ExperimentState} instance.
+   *
+   * @param args the input arguments from the configuration
+   * @return the values to match on, which may contain duplicates
+   */
+  protected abstract long[] parseArgs(List<String> args);
+
+  /**
+   * Returns the value of the property for the given state.
+   *
+   * @param state the {@code ExperimentState} to evaluate
+   * @return the value of the property checked by this condition
+   */
+  public abstract long getValue(S state);
+
+  /**
+   * Returns the key of the request attribute that holds the value of this condition's property, or null if
+   * the value should be computed by {@link #getValue} on every evaluation, which is the default. This method
+   * is called once, after {@link #parseArgs}.
+   *
+   * @return the key of the attribute for this condition's property, or null
+   */
+  protected AttributeKey<Long> getAttributeKey() {
+    return null;
+  }
+
+  /**
+   * Parses each of the given arguments as a long.
+   */
+  protected static long[] parseLongs(List<String> args) {
+    long[] values = new long[args.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Long.parseLong(args.get(i));
+    }
+    return values;
+  }
+}
@@ -14,6 +14,7 @@
  */
 package com.cloudera.gertrude.condition;
 
+import com.cloudera.gertrude.AttributeKey;
 import com.cloudera.gertrude.Condition;
 import com.cloudera.gertrude.ExperimentState;
 import com.google.common.collect.ImmutableSet;
@@ -28,19 +29,39 @@ import java.util.Set;
  * <p>For example, the property might be the country that a request originated in, and the arguments to
  * the function would be a list of country codes. If the country returned by the {@code #getValue} method
  * is in the given list of country codes, then the {@code #evaluate} method would return {@code true}.
+ *
+ * <p>Sub-classes whose values are expensive to compute should also override {@link #getAttributeKey()}, so
+ * that the value is computed once per request and shared by every condition that reads the same attribute.
+ * Properties whose values are ints, longs, or strings should use {@link AbstractIntPropertyCondition},
+ * {@link AbstractLongPropertyCondition}, or {@link AbstractStringPropertyCondition} instead, which match
+ * without boxing and store large sets of values more compactly.
  */
 public abstract class AbstractPropertyCondition<V, S extends ExperimentState> implements Condition<S> {
 
   private Set<V> matchingValues = ImmutableSet.of();
+  private AttributeKey<V> attributeKey;
 
   @Override
   public void initialize(List<String> args) {
     this.matchingValues = parseArgs(args);
+    this.attributeKey = getAttributeKey();
   }
 
   @Override
   public boolean evaluate(S state) {
-    return matchingValues.contains(getValue(state));
+    return matchingValues.contains(attributeKey == null ? getValue(state) : state.getAttribute(attributeKey));
+  }
+
+  /**
+   * Returns the key of the request attribute that holds the value of this condition's property, or null if
+   * the value should be computed by {@link #getValue} on every evaluation, which is the default. The key's
+   * {@link com.cloudera.gertrude.AttributeExtractor} will usually just call {@code getValue}. This method is
+   * called once, after {@link #parseArgs}.
+   *
+   * @return the key of the attribute for this condition's property, or null
+   */
+  protected AttributeKey<V> getAttributeKey() {
+    return null;
   }
 
   /**
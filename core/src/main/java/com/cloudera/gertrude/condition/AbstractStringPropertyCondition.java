@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.cloudera.gertrude.AttributeKey;
+import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.ExperimentState;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A version of {@link AbstractPropertyCondition} for properties whose values are strings, such as country
+ * codes. The matching values are kept in a hash table that stores the hash code of each string, so that a
+ * large set of values is compact and evaluating the condition does not allocate.
+ */
+public abstract class AbstractStringPropertyCondition<S extends ExperimentState> implements Condition<S> {
+
+  private StringValueSet matchingValues = new StringValueSet(Collections.<String>emptySet());
+  private AttributeKey<String> attributeKey;
+
+  @Override
+  public void initialize(List<String> args) {
+    this.matchingValues = new StringValueSet(parseArgs(args));
+    this.attributeKey = getAttributeKey();
+  }
+
+  @Override
+  public boolean evaluate(S state) {
+    return matchingValues.contains(attributeKey == null ? getValue(state) : state.getAttribute(attributeKey));
+  }
+
+  /**
+   * Sub-classes should override this method to validate and extract the information they need to evaluate
+   * the state of a given {@code ExperimentState} instance.
+   *
+   * @param args the input arguments from the configuration
+   * @return the values to match on, which may contain duplicates
+   */
+  protected abstract Collection<String> parseArgs(List<String> args);
+
+  /**
+   * Returns the value of the property for the given state, or null if it has no value.
+   *
+   * @param state the {@code ExperimentState} to evaluate
+   * @return the value of the property checked by this condition
+   */
+  public abstract String getValue(S state);
+
+  /**
+   * Returns the key of the request attribute that holds the value of this condition's property, or null if
+   * the value should be computed by {@link #getValue} on every evaluation, which is the default. This method
+   * is called once, after {@link #parseArgs}.
+   *
+   * @return the key of the attribute for this condition's property, or null
+   */
+  protected AttributeKey<String> getAttributeKey() {
+    return null;
+  }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-only set of user ids that is memory-mapped from a cohort file, so that cohorts of tens of millions of
+ * ids can be used for targeting without taking up any heap or being embedded in the experiment deployment.
+ *
+ * <p>A cohort file holds either the exact ids in sorted order, which are found with a binary search, or a Bloom
+ * filter of the ids, which is smaller but reports a configurable fraction of the ids that are not in the
+ * cohort as members. Both kinds of file are created by the {@code write} methods of this class, e.g., with the
+ * {@code cohort} command of the deploy tool. The format is a 24-byte header followed by big-endian longs:
+ * <pre>
+ *   int magic, byte version, byte type (0 = sorted, 1 = Bloom), short number of hash functions,
+ *   long number of ids, long number of bits in the Bloom filter (0 for sorted files)</pre>
+ *
+ * <p>Instances are shared by every condition that opens the same file, and a file that is modified is mapped
+ * again the next time that it is opened.
+ */
+public final class Cohort {
+
+  private static final int MAGIC = 0x47434F48; // "GCOH"
+  private static final byte VERSION = 1;
+  private static final byte SORTED = 0;
+  private static final byte BLOOM = 1;
+  private static final int HEADER_SIZE = 24;
+
+  private static final ConcurrentMap<String, Cohort> OPEN = new ConcurrentHashMap<String, Cohort>();
+
+  private final ByteBuffer data;
+  private final boolean exact;
+  private final int numHashes;
+  private final long size;
+  private final long numBits;
+  private final long length;
+  private final long lastModified;
+
+  /**
+   * Returns the cohort in the given file, re-using the mapping that was created by an earlier call if the file
+   * has not changed since then.
+   *
+   * @param file the cohort file
+   * @return the cohort in the file
+   * @throws IOException if the file cannot be read or is not a valid cohort file
+   */
+  public static Cohort open(File file) throws IOException {
+    String path = file.getCanonicalPath();
+    Cohort existing = OPEN.get(path);
+    if (existing != null && existing.length == file.length() && existing.lastModified == file.lastModified()) {
+      return existing;
+    }
+    // Two threads may both map a changed file, but only one mapping is kept for later calls.
+    Cohort cohort = new Cohort(file);
+    OPEN.put(path, cohort);
+    return cohort;
+  }
+
+  private Cohort(File file) throws IOException {
+    this.length = file.length();
+    this.lastModified = file.lastModified();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+        throw new IOException("Invalid cohort file size for " + file + ": " + length);
+      }
+      // The mapping stays valid after the channel is closed.
+      this.data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      Closeables.closeQuietly(raf);
+    }
+    if (data.getInt(0) != MAGIC || data.get(4) != VERSION) {
+      throw new IOException("Not a version " + VERSION + " cohort file: " + file);
+    }
+    byte type = data.get(5);
+    this.exact = type == SORTED;
+    this.numHashes = data.getShort(6);
+    this.size = data.getLong(8);
+    this.numBits = data.getLong(16);
+    long expectedLength = HEADER_SIZE + 8L * (exact ? size : (numBits + 63) / 64);
+    if ((type != SORTED && type != BLOOM) || expectedLength != length || (!exact && (numHashes < 1 || numBits < 1))) {
+      throw new IOException("Corrupt cohort file: " + file);
+    }
+  }
+
+  /**
+   * Returns true if the given id is in this cohort. If this cohort is not exact, ids that are not in it may
+   * also return true, at the false positive rate that the file was created with.
+   *
+   * @param id the id to check
+   * @return true if the id is in the cohort
+   */
+  public boolean contains(long id) {
+    return exact ? binarySearch(id) : mightContain(id);
+  }
+
+  /**
+   * Returns true if this cohort contains the exact ids, false if it is a Bloom filter.
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  /**
+   * Returns the number of ids that were written to the cohort file, which are distinct if it is exact.
+   */
+  public long size() {
+    return size;
+  }
+
+  private boolean binarySearch(long id) {
+    long low = 0;
+    long high = size - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      long value = data.getLong(HEADER_SIZE + (int) (mid << 3));
+      if (value < id) {
+        low = mid + 1;
+      } else if (value > id) {
+        high = mid - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean mightContain(long id) {
+    long h1 = mix(id);
+    long h2 = mix(id ^ 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < numHashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      if ((data.getLong(HEADER_SIZE + (int) ((bit >>> 6) << 3)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the given ids to a cohort file that contains exactly those ids. The array is sorted in place.
+   *
+   * @param ids the ids in the cohort, which may contain duplicates
+   * @param count the number of ids in the array to use
+   * @param out the stream to write the file to, which is not closed
+   * @return the number of distinct ids that were written
+   */
+  public static long writeSorted(long[] ids, int count, OutputStream out) throws IOException {
+    Arrays.sort(ids, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || ids[i] != ids[i - 1]) {
+        ids[distinct++] = ids[i];
+      }
+    }
+    DataOutputStream dos = new DataOutputStream(out);
+    writeHeader(dos, SORTED, 0, distinct, 0L);
+    for (int i = 0; i < distinct; i++) {
+      dos.writeLong(ids[i]);
+    }
+    dos.flush();
+    return distinct;
+  }
+
+  /**
+   * Writes a Bloom filter of the given ids to a cohort file, sized so that the fraction of the ids that are not
+   * in the cohort that are reported as members is about {@code falsePositiveRate}.
+   *
+   * @param ids the ids in the cohort
+   * @param count the number of ids in the array to use
+   * @param falsePositiveRate the desired false positive rate, between 0 and 1
+   * @param out the stream to write the file to, which is not closed
+   * @return the number of bits in the filter
+   */
+  public static long writeBloom(long[] ids, int count, double falsePositiveRate, OutputStream out)
+      throws IOException {
+    Preconditions.checkArgument(falsePositiveRate > 0.0 && falsePositiveRate < 1.0,
+        "False positive rate must be between 0 and 1: %s", falsePositiveRate);
+    int n = Math.max(1, count);
+    long numBits = Math.max(64L, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+    numBits = (numBits + 63) & ~63L;
+    int numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    Preconditions.checkArgument(HEADER_SIZE + numBits / 8 <= Integer.MAX_VALUE,
+        "Bloom filter for %s ids is too large", count);
+    long[] words = new long[(int) (numBits >>> 6)];
+    for (int i = 0; i < count; i++) {
+      long h1 = mix(ids[i]);
+      long h2 = mix(ids[i] ^ 0x9E3779B97F4A7C15L);
+      for (int j = 0; j < numHashes; j++) {
+        long bit = ((h1 + j * h2) & Long.MAX_VALUE) % numBits;
+        words[(int) (bit >>> 6)] |= 1L << bit;
+      }
+    }
+    DataOutputStream dos = new DataOutputStream(out);
+    writeHeader(dos, BLOOM, numHashes, count, numBits);
+    for (long word : words) {
+      dos.writeLong(word);
+    }
+    dos.flush();
+    return numBits;
+  }
+
+  private static void writeHeader(DataOutputStream dos, byte type, int numHashes, long size, long numBits)
+      throws IOException {
+    dos.writeInt(MAGIC);
+    dos.writeByte(VERSION);
+    dos.writeByte(type);
+    dos.writeShort(numHashes);
+    dos.writeLong(size);
+    dos.writeLong(numBits);
+  }
+
+  // The finalizer of MurmurHash3's 64-bit variant, which spreads every bit of the id across the hash.
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53a34c5L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
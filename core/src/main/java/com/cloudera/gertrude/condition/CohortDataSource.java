@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.cloudera.gertrude.ConditionDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ConditionDataSource} for a {@link Cohort} file. A new version of the file is memory-mapped when it
+ * changes, so refreshing even a very large cohort does not copy it onto the heap or reload the experiment space.
+ * New versions should be written to a temporary file and then renamed over the old one, since the current
+ * mapping of a file that is modified in place will see the partial changes.
+ */
+public class CohortDataSource extends ConditionDataSource<Cohort> {
+
+  public CohortDataSource(String name, File file, long refreshInterval, TimeUnit unit) {
+    super(name, Cohort.class, file, refreshInterval, unit);
+  }
+
+  @Override
+  protected Cohort load(File file) throws IOException {
+    return Cohort.open(file);
+  }
+}
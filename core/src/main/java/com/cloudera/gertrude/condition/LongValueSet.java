@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of primitive longs that can be queried without allocating. Small sets are stored as a
+ * sorted array and searched with a binary search, while larger ones use an open-addressing hash table with
+ * linear probing, which keeps lookups constant-time at roughly twice the memory of the sorted array.
+ */
+abstract class LongValueSet {
+
+  // Binary searches over sets up to this size take no more probes than a hash lookup with a few collisions.
+  static final int MAX_SORTED_SIZE = 64;
+
+  /**
+   * Returns a set of the given values, choosing the representation by the number of distinct values.
+   */
+  static LongValueSet of(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    int size = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[size++] = sorted[i];
+      }
+    }
+    if (size <= MAX_SORTED_SIZE) {
+      return new Sorted(Arrays.copyOf(sorted, size));
+    } else {
+      return new Hashed(sorted, size);
+    }
+  }
+
+  abstract boolean contains(long value);
+
+  abstract int size();
+
+  private static final class Sorted extends LongValueSet {
+    private final long[] values;
+
+    Sorted(long[] values) {
+      this.values = values;
+    }
+
+    @Override
+    boolean contains(long value) {
+      return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    @Override
+    int size() {
+      return values.length;
+    }
+  }
+
+  private static final class Hashed extends LongValueSet {
+    // Zero marks an empty slot, so whether or not the set contains zero is tracked separately.
+    private final long[] table;
+    private final int mask;
+    private final boolean containsZero;
+    private final int size;
+
+    Hashed(long[] values, int size) {
+      this.table = new long[Integer.highestOneBit(size - 1) << 2];
+      this.mask = table.length - 1;
+      this.size = size;
+      boolean zero = false;
+      for (int i = 0; i < size; i++) {
+        long value = values[i];
+        if (value == 0L) {
+          zero = true;
+        } else {
+          int slot = hash(value) & mask;
+          while (table[slot] != 0L) {
+            slot = (slot + 1) & mask;
+          }
+          table[slot] = value;
+        }
+      }
+      this.containsZero = zero;
+    }
+
+    @Override
+    boolean contains(long value) {
+      if (value == 0L) {
+        return containsZero;
+      }
+      int slot = hash(value) & mask;
+      long current;
+      while ((current = table[slot]) != 0L) {
+        if (current == value) {
+          return true;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return false;
+    }
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    private static int hash(long value) {
+      int h = (int) (value ^ (value >>> 32)) * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of strings in an open-addressing hash table that stores each string's hash code alongside
+ * it, so that a lookup only calls {@code equals} on strings whose hashes match, and never allocates.
+ */
+final class StringValueSet {
+
+  private final String[] values;
+  private final int[] hashes;
+  private final int mask;
+  private final int size;
+
+  StringValueSet(Collection<String> strings) {
+    Set<String> distinct = new LinkedHashSet<String>(strings);
+    this.size = distinct.size();
+    int capacity = Math.max(2, Integer.highestOneBit(Math.max(1, size - 1)) << 2);
+    this.values = new String[capacity];
+    this.hashes = new int[capacity];
+    this.mask = capacity - 1;
+    for (String value : distinct) {
+      int hash = value.hashCode();
+      int slot = spread(hash) & mask;
+      while (values[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      values[slot] = value;
+      hashes[slot] = hash;
+    }
+  }
+
+  boolean contains(String value) {
+    if (value == null) {
+      return false;
+    }
+    // String caches its hash code, so this is only computed once per string instance.
+    int hash = value.hashCode();
+    int slot = spread(hash) & mask;
+    String current;
+    while ((current = values[slot]) != null) {
+      if (hashes[slot] == hash && current.equals(value)) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static int spread(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -14,7 +14,9 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.BucketRanges;
 import com.cloudera.gertrude.DiversionCriterion;
+import com.cloudera.gertrude.DiversionProfiler;
 import com.cloudera.gertrude.ExperimentState;
 import com.cloudera.gertrude.FlagValueCalculator;
 import com.cloudera.gertrude.Layer;
@@ -23,7 +25,6 @@ import com.cloudera.gertrude.Segment;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 
 public final class Domain implements Segment {
   private final SegmentInfo info;
@@ -47,7 +48,7 @@ public final class Domain implements Segment {
   }
 
   @Override
-  public SortedSet<Integer> getBuckets() {
+  public BucketRanges getBuckets() {
     return info.getBuckets();
   }
 
@@ -82,8 +83,13 @@ public final class Domain implements Segment {
       List<DiversionCriterion> diversionCriteria,
       Map<String, FlagValueCalculator<Object>> overrides,
       Set<Integer> newExperimentIds) {
+    DiversionProfiler profiler = DiversionProfiler.of(state);
+    long start = profiler == null ? 0L : profiler.start();
     for (Layer layer : layers) {
       layer.assign(state, diversionCriteria, overrides, newExperimentIds);
     }
+    if (profiler != null) {
+      profiler.domain(getId(), start);
+    }
   }
 }
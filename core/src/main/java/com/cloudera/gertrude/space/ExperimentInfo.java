@@ -14,7 +14,9 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.BucketRanges;
 import com.cloudera.gertrude.DiversionCriterion;
+import com.cloudera.gertrude.DiversionTrace;
 import com.cloudera.gertrude.ExperimentState;
 import com.cloudera.gertrude.FlagValueCalculator;
 import com.cloudera.gertrude.Segment;
@@ -25,7 +27,6 @@ import com.google.common.collect.Sets;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 
 /**
  * Information about a particular experiment.
@@ -58,7 +59,7 @@ public final class ExperimentInfo implements Segment {
   }
 
   @Override
-  public SortedSet<Integer> getBuckets() {
+  public BucketRanges getBuckets() {
     return info.getBuckets();
   }
 
@@ -95,9 +96,15 @@ public final class ExperimentInfo implements Segment {
       Map<String, FlagValueCalculator<Object>> overrides,
       Set<Integer> newExperimentIds) {
     newExperimentIds.add(getId());
-    if (info.overridesEnabled(state.getRequestTimeMsec())) { // check pre-period/post-period
+    boolean overridesEnabled = info.overridesEnabled(state.getRequestTimeMsec());
+    if (overridesEnabled) { // check pre-period/post-period
       overrides.putAll(getOverrides(newExperimentIds));
     }
+    DiversionTrace trace = DiversionTrace.of(state);
+    if (trace != null) {
+      trace.overrides(getLayerId(), getId(), overridesEnabled, getOverrides(newExperimentIds).keySet(),
+          Sets.intersection(newExperimentIds, launchOverrides.keySet()));
+    }
   }
 
 
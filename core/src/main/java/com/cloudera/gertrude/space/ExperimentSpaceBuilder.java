@@ -14,21 +14,25 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.Condition;
 import com.cloudera.gertrude.DiversionCriterion;
 import com.cloudera.gertrude.ExperimentFlag;
 import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.ExperimentState;
 import com.cloudera.gertrude.Layer;
 import com.cloudera.gertrude.Segment;
 import com.cloudera.gertrude.calculate.FlagValueCalculatorImpl;
 import com.cloudera.gertrude.calculate.FlagValueOverride;
 import com.cloudera.gertrude.calculate.Modifier;
+import com.google.common.base.Predicates;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +41,10 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 final class ExperimentSpaceBuilder {
 
@@ -47,22 +55,47 @@ final class ExperimentSpaceBuilder {
   private final SortedMap<Integer, DiversionCriterion> diversionCriteria = Maps.newTreeMap();
   private final Map<Integer, LayerBuilder> layers = Maps.newHashMap();
   private final Multimap<Integer, LayerBuilder> layersByDomain = HashMultimap.create();
+  private final Map<Integer, Integer> topLevelLayerIds = Maps.newHashMap();
   private final SetMultimap<String, Integer> flagLayerAssignments = HashMultimap.create();
+  private final SetMultimap<String, Integer> flagLaunchLayerAssignments = HashMultimap.create();
+  private final SetMultimap<String, Integer> flagTopLevelLayerAssignments = HashMultimap.create();
   private final Map<Integer, Map<String, FlagValueCalculatorImpl<Object>>> baseOverridesBySegment = Maps.newHashMap();
+  private final Map<Integer, Set<ExperimentFlag<?>>> overriddenFlagsBySegment = Maps.newHashMap();
+
+  private final Set<Condition<ExperimentState>> conditions = Sets.newLinkedHashSet();
+  private final Map<Condition<ExperimentState>, Integer> conditionSegmentIds = Maps.newHashMap();
+  private final Set<String> droppedFlags = Sets.newHashSet();
+  private int idOnlyExperiments = 0;
 
   private final Map<String, ExperimentFlag<?>> experimentFlags;
   private final Random random;
+  private final boolean projected;
 
   ExperimentSpaceBuilder(Map<String, ExperimentFlag<?>> experimentFlags, Random random) {
+    this(experimentFlags, random, false);
+  }
+
+  /**
+   * Creates a builder that, if {@code projected} is true, drops every flag that has not been declared in the
+   * compiled environment along with all of the overrides of those flags, so that experiments that only override
+   * undeclared flags are kept for diversion and logging but carry no flag values. The validation of the dropped
+   * flags' overrides is skipped, so the full deployment should still be validated before it is deployed.
+   */
+  ExperimentSpaceBuilder(Map<String, ExperimentFlag<?>> experimentFlags, Random random, boolean projected) {
     this.experimentFlags = experimentFlags;
     this.random = random;
+    this.projected = projected;
   }
 
   void addFlagDefinition(String name, Object baseValue, List<Modifier<Object>> mods) throws ValidationException {
     // Ensure that this flag hasn't been defined yet.
-    if (flagDefinitions.containsKey(name)) {
+    if (flagDefinitions.containsKey(name) || droppedFlags.contains(name)) {
       throw new ValidationException("Cannot re-define experiment flag \"" + name + '"');
     }
+    if (projected && !experimentFlags.containsKey(name)) {
+      droppedFlags.add(name);
+      return;
+    }
 
     flagDefinitions.put(name, new FlagValueCalculatorImpl<Object>(baseValue, mods));
 
@@ -81,6 +114,18 @@ final class ExperimentSpaceBuilder {
     }
   }
 
+  void addCondition(Condition<ExperimentState> condition) {
+    conditions.add(condition);
+  }
+
+  /**
+   * Adds a condition that is only evaluated by the diversion into the experiment with the given id.
+   */
+  void addCondition(Condition<ExperimentState> condition, int segmentId) {
+    conditions.add(condition);
+    conditionSegmentIds.put(condition, segmentId);
+  }
+
   void addDiversionCriterion(DiversionCriterion criteria) throws ValidationException {
     if (diversionCriteria.containsKey(criteria.getId())) {
       throw new ValidationException("Cannot re-define diversion criteria: " + criteria.getId());
@@ -96,8 +141,17 @@ final class ExperimentSpaceBuilder {
       throw new ValidationException(
           "Launch layer " + info.getLayerId() + " can only be defined in the default domain (domain_id = 0)");
     }
+    int topLevelLayerId = info.getLayerId();
+    if (info.getDomainId() > 0) {
+      SegmentInfo domain = allSegments.get(info.getDomainId());
+      if (domain == null) {
+        throw new ValidationException("Undefined domain ID " + info.getDomainId() + " for layer " + info.getLayerId());
+      }
+      topLevelLayerId = topLevelLayerIds.get(domain.getLayerId());
+    }
     LayerBuilder lb = new LayerBuilder(this, info);
     layers.put(info.getLayerId(), lb);
+    topLevelLayerIds.put(info.getLayerId(), topLevelLayerId);
     if (info.getDomainId() > 0) {
       layersByDomain.put(info.getDomainId(), lb);
     }
@@ -110,44 +164,85 @@ final class ExperimentSpaceBuilder {
     if (domain) {
       layerBuilder.addDomain(info);
     } else {
+      if (!droppedFlags.isEmpty() && !overrides.isEmpty()) {
+        overrides = Maps.filterKeys(overrides, Predicates.not(Predicates.in(droppedFlags)));
+        if (overrides.isEmpty()) {
+          idOnlyExperiments++;
+        }
+      }
       FlagValueData flagValueData = layerBuilder.checkOverrides(info.getId(), overrides);
       ExperimentInfo experimentInfo = new ExperimentInfo(info,
                                                          flagValueData.getBaseOverrides(),
                                                          flagValueData.getLaunchOverrides());
       layerBuilder.addExperiment(experimentInfo);
       baseOverridesBySegment.put(info.getId(), flagValueData.getBaseOverrides());
+      overriddenFlagsBySegment.put(info.getId(), getCompiledFlags(flagValueData));
     }
   }
 
   ExperimentSpace build(String versionIdentifier) {
-    List<Layer> ret = Lists.newArrayList();
-    Map<Integer, Segment> finalSegments = Maps.newHashMap();
-    for (LayerBuilder lb : layers.values()) {
+    return build(versionIdentifier, MoreExecutors.sameThreadExecutor());
+  }
+
+  ExperimentSpace build(String versionIdentifier, ExecutorService executor) {
+    // Layers in the default domain share no state with one another, so they (along with all of the
+    // domains and layers nested inside of them) can be built concurrently.
+    final Map<Integer, Segment> finalSegments = new ConcurrentHashMap<Integer, Segment>();
+    List<Future<Layer>> futures = Lists.newArrayList();
+    for (final LayerBuilder lb : layers.values()) {
       if (lb.getDomainId() == 0) {
-        ret.add(lb.build(finalSegments));
+        futures.add(executor.submit(new Callable<Layer>() {
+          @Override
+          public Layer call() {
+            return lb.build(finalSegments);
+          }
+        }));
       }
     }
+    List<Layer> ret = Lists.newArrayListWithCapacity(futures.size());
+    for (Future<Layer> future : futures) {
+      ret.add(Futures.getUnchecked(future));
+    }
+    if (projected) {
+      log.info("Projected experiment space {} dropped {} undeclared flags, leaving {} experiments with no overrides",
+          new Object[] { versionIdentifier, droppedFlags.size(), idOnlyExperiments });
+    }
 
     return new ExperimentSpace(
         versionIdentifier,
         flagDefinitions,
         finalSegments,
         Lists.newArrayList(diversionCriteria.values()),
-        ret);
+        ret,
+        overriddenFlagsBySegment,
+        conditions,
+        conditionSegmentIds);
   }
 
-  private Set<Integer> getLineage(int layerId) {
-    ImmutableSet.Builder<Integer> b = ImmutableSet.builder();
-    b.add(layerId);
-    int domainId = layers.get(layerId).getDomainId();
-    if (domainId > 0) {
-      b.addAll(getLineage(allSegments.get(domainId).getLayerId()));
+  // The compiled flags that an experiment overrides, either on its own or in combination with a launch layer
+  // experiment. Flags that are only defined externally can never be read, so they are left out.
+  private Set<ExperimentFlag<?>> getCompiledFlags(FlagValueData flagValueData) {
+    Set<String> names = Sets.newHashSet(flagValueData.getBaseOverrides().keySet());
+    for (Map<String, FlagValueCalculatorImpl<Object>> launchOverrides : flagValueData.getLaunchOverrides().values()) {
+      names.addAll(launchOverrides.keySet());
     }
-    return b.build();
+    Set<ExperimentFlag<?>> flags = Sets.newHashSet();
+    for (String name : names) {
+      ExperimentFlag<?> flag = experimentFlags.get(name);
+      if (flag != null) {
+        flags.add(flag);
+      }
+    }
+    return flags;
   }
 
-  boolean areLayersOverlapping(int firstLayerId, int secondLayerId) {
-    return Sets.intersection(getLineage(firstLayerId), getLineage(secondLayerId)).isEmpty();
+  // Returns true if any non-launch layer that has already claimed the given flag overlaps with the given layer.
+  // The lineage of a layer is the chain of layers that contain it, which always ends at a layer in the
+  // default domain. Two lineages share an element iff they end at the same default domain layer, so we only
+  // need to index the top-level layer ids that have claimed each flag to check for overlaps.
+  boolean hasOverlappingFlagLayer(String name, int layerId) {
+    Set<Integer> topLevel = flagTopLevelLayerAssignments.get(name);
+    return topLevel.size() > 1 || (topLevel.size() == 1 && !topLevel.contains(topLevelLayerIds.get(layerId)));
   }
 
   private LayerBuilder checkSegment(SegmentInfo info) throws ValidationException {
@@ -185,8 +280,17 @@ final class ExperimentSpaceBuilder {
     return flagLayerAssignments.get(name);
   }
 
+  Set<Integer> getFlagLaunchLayerIds(String name) {
+    return flagLaunchLayerAssignments.get(name);
+  }
+
   void addFlagLayerAssignment(String name, int layerId) {
     flagLayerAssignments.put(name, layerId);
+    if (layers.get(layerId).isLaunchLayer()) {
+      flagLaunchLayerAssignments.put(name, layerId);
+    } else {
+      flagTopLevelLayerAssignments.put(name, topLevelLayerIds.get(layerId));
+    }
   }
 
   Domain getDomain(SegmentInfo info, Map<Integer, Segment> finalSegments) {
@@ -14,6 +14,7 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.BucketRanges;
 import com.cloudera.gertrude.DiversionCriterion;
 import com.cloudera.gertrude.Layer;
 import com.cloudera.gertrude.Segment;
@@ -22,6 +23,7 @@ import com.cloudera.gertrude.calculate.FlagValueOverride;
 import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
@@ -31,7 +33,6 @@ import com.google.common.hash.Hashing;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedSet;
 
 final class LayerBuilder {
 
@@ -39,7 +40,7 @@ final class LayerBuilder {
   private final SetMultimap<String, Integer> flagOverridesByExperiment = HashMultimap.create();
   private final Map<Integer, ExperimentInfo> experiments = Maps.newHashMap();
   private final Map<Integer, SegmentInfo> domains = Maps.newHashMap();
-  private final Map<Integer, Map<Integer, Integer>> allocatedBucketsByDiversion = Maps.newHashMap();
+  private final Map<Integer, NavigableMap<Integer, Allocation>> allocationsByDiversion = Maps.newHashMap();
   private final ExperimentSpaceBuilder parent;
 
   LayerBuilder(ExperimentSpaceBuilder parent, LayerInfo info) {
@@ -66,59 +67,78 @@ final class LayerBuilder {
   Layer build(Map<Integer, Segment> finalSegments) {
     ImmutableMap.Builder<Integer, NavigableMap<Integer, Set<Segment>>> b = ImmutableMap.builder();
     Set<Integer> allSegmentIds = Sets.newHashSet();
-    for (Map.Entry<Integer, Map<Integer, Integer>> e : allocatedBucketsByDiversion.entrySet()) {
+    Map<Integer, Segment> builtSegments = Maps.newHashMap();
+    for (Map.Entry<Integer, NavigableMap<Integer, Allocation>> e : allocationsByDiversion.entrySet()) {
       int diversionId = e.getKey();
+      // The lookup table is keyed by the start of each allocated range, so the segment that owns a bucket
+      // (if any) is always found in the floor entry for that bucket.
       NavigableMap<Integer, Set<Segment>> bucketToSegment = Maps.newTreeMap();
-      for (Map.Entry<Integer, Integer> ee : e.getValue().entrySet()) {
-        int bucketId = ee.getKey();
-        int segmentId = ee.getValue();
-        Segment segment = experiments.get(segmentId);
+      for (Allocation allocation : e.getValue().values()) {
+        int segmentId = allocation.segmentId;
+        // Each segment may own many ranges, so make sure that we only build it (and any layers
+        // nested inside of it) once.
+        Segment segment = builtSegments.get(segmentId);
         if (segment == null) {
-          segment = parent.getDomain(domains.get(segmentId), finalSegments);
-        } else {
-          allSegmentIds.add(segmentId);
-        }
-        Set<Segment> segments = bucketToSegment.get(bucketId);
-        if (segments == null) {
-          segments = Sets.newHashSet();
-          bucketToSegment.put(bucketId, segments);
+          segment = experiments.get(segmentId);
+          if (segment == null) {
+            segment = parent.getDomain(domains.get(segmentId), finalSegments);
+          } else {
+            allSegmentIds.add(segmentId);
+          }
+          builtSegments.put(segmentId, segment);
+          finalSegments.put(segmentId, segment);
         }
-        segments.add(segment);
-        finalSegments.put(segmentId, segment);
+        bucketToSegment.put(allocation.start, ImmutableSet.of(segment));
       }
       b.put(diversionId, bucketToSegment);
     }
-    // TODO: check the collision properties of faster impls (e.g., MurmurHash3)
+    // TODO: check the collision properties of faster impls (e.g., MurmurHash3) with deploy's BucketAnalyzer
     return new LayerImpl(info, Hashing.md5(), allSegmentIds, b.build(), parent.getRandom());
   }
 
-  void allocateBuckets(int segmentId, DiversionCriterion criteria, SortedSet<Integer> buckets)
+  void allocateBuckets(int segmentId, DiversionCriterion criteria, BucketRanges buckets)
       throws ValidationException {
+    if (buckets.isEmpty()) {
+      return;
+    }
     if (buckets.first() < 0) {
       throw new ValidationException("Negative buckets in segment: " + segmentId);
     }
     if (buckets.last() >= criteria.getNumBuckets()) {
       throw new ValidationException("Buckets in segment " + segmentId + " exceeds max buckets for criteria");
     }
-    Map<Integer, Integer> allocatedBuckets = allocatedBucketsByDiversion.get(criteria.getId());
-    if (allocatedBuckets == null) {
-      allocatedBuckets = Maps.newHashMap();
-      allocatedBucketsByDiversion.put(criteria.getId(), allocatedBuckets);
+    NavigableMap<Integer, Allocation> allocations = allocationsByDiversion.get(criteria.getId());
+    if (allocations == null) {
+      allocations = Maps.newTreeMap();
+      allocationsByDiversion.put(criteria.getId(), allocations);
+    }
+    Set<Integer> conflictSegments = Sets.newTreeSet();
+    BucketRanges.Builder conflict = BucketRanges.builder();
+    for (int i = 0; i < buckets.getRangeCount(); i++) {
+      int start = buckets.getRangeStart(i);
+      int end = buckets.getRangeEnd(i);
+      // Allocated ranges are disjoint, so the only candidates for overlap are the range that starts at or
+      // before this one and any ranges that start inside of this one.
+      Map.Entry<Integer, Allocation> floor = allocations.floorEntry(start);
+      if (floor != null && floor.getValue().end > start) {
+        conflictSegments.add(floor.getValue().segmentId);
+        conflict.addRange(start, Math.min(end, floor.getValue().end));
+      }
+      for (Allocation other : allocations.subMap(start, false, end, false).values()) {
+        conflictSegments.add(other.segmentId);
+        conflict.addRange(other.start, Math.min(end, other.end));
+      }
     }
-    Set<Integer> conflict = Sets.intersection(buckets, allocatedBuckets.keySet());
-    if (!conflict.isEmpty()) {
+    if (!conflictSegments.isEmpty()) {
       StringBuilder sb = new StringBuilder("Overlapping buckets for segment ")
           .append(segmentId)
           .append(" and segment(s) ");
-      Set<Integer> conflictSegments = Sets.newHashSet();
-      for (Integer bucket : conflict) {
-        conflictSegments.add(allocatedBuckets.get(bucket));
-      }
-      sb.append(conflictSegments).append(" (Buckets: ").append(conflict).append(')');
+      sb.append(conflictSegments).append(" (Buckets: ").append(conflict.build()).append(')');
       throw new ValidationException(sb.toString());
     }
-    for (Integer bucket : buckets) {
-      allocatedBuckets.put(bucket, segmentId);
+    for (int i = 0; i < buckets.getRangeCount(); i++) {
+      Allocation allocation = new Allocation(segmentId, buckets.getRangeStart(i), buckets.getRangeEnd(i));
+      allocations.put(allocation.start, allocation);
     }
   }
 
@@ -154,23 +174,22 @@ final class LayerBuilder {
                 "Experiments in multiple launch layers override flag %s: layer %d (experiment %d) and layer(s) %s",
                 name, info.getLayerId(), experimentId, layerIds.toString()));
           } else {
-            for (Integer otherLayerId : layerIds) {
+            for (Integer otherLayerId : parent.getFlagLaunchLayerIds(name)) {
               LayerBuilder other = parent.getLayer(otherLayerId);
-              if (other.isLaunchLayer()) {
-                for (ExperimentInfo info : other.findExperimentsThatOverride(name)) {
-                  Map<String, FlagValueCalculatorImpl<Object>> llOverride = lb.get(info.getId());
-                  if (llOverride == null) {
-                    llOverride = Maps.newHashMap();
-                    lb.put(info.getId(), llOverride);
-                  }
-                  llOverride.put(name, valueOverride.apply(parent.getFlagFromExperiment(info.getId(), name)));
+              for (ExperimentInfo info : other.findExperimentsThatOverride(name)) {
+                Map<String, FlagValueCalculatorImpl<Object>> llOverride = lb.get(info.getId());
+                if (llOverride == null) {
+                  llOverride = Maps.newHashMap();
+                  lb.put(info.getId(), llOverride);
                 }
-              } else if (parent.areLayersOverlapping(info.getLayerId(), otherLayerId)) {
-                throw new ValidationException(String.format(
-                    "Experiments across overlapping layers override flag %s: layer %d (experiment %d) and layer(s) %s",
-                    name, info.getLayerId(), experimentId, layerIds.toString()));
+                llOverride.put(name, valueOverride.apply(parent.getFlagFromExperiment(info.getId(), name)));
               }
             }
+            if (parent.hasOverlappingFlagLayer(name, info.getLayerId())) {
+              throw new ValidationException(String.format(
+                  "Experiments across overlapping layers override flag %s: layer %d (experiment %d) and layer(s) %s",
+                  name, info.getLayerId(), experimentId, layerIds.toString()));
+            }
           }
         }
         parent.addFlagLayerAssignment(name, info.getLayerId());
@@ -179,4 +198,16 @@ final class LayerBuilder {
     }
     return new FlagValueData(bb.build(), lb);
   }
+
+  private static final class Allocation {
+    final int segmentId;
+    final int start;
+    final int end;
+
+    Allocation(int segmentId, int start, int end) {
+      this.segmentId = segmentId;
+      this.start = start;
+      this.end = end;
+    }
+  }
 }
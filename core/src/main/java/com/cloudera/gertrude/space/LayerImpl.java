@@ -15,6 +15,8 @@
 package com.cloudera.gertrude.space;
 
 import com.cloudera.gertrude.DiversionCriterion;
+import com.cloudera.gertrude.DiversionProfiler;
+import com.cloudera.gertrude.DiversionTrace;
 import com.cloudera.gertrude.ExperimentState;
 import com.cloudera.gertrude.FlagValueCalculator;
 import com.cloudera.gertrude.Layer;
@@ -24,6 +26,7 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.math.LongMath;
 
@@ -64,9 +67,25 @@ public final class LayerImpl implements Layer {
     return info.isLaunchLayer();
   }
 
-  private int computeBucket(String identifier, int numBuckets) {
-    long hc = hash.newHasher().putInt(info.getLayerId()).putString(identifier).hash().asLong();
-    return LongMath.mod(hc, numBuckets);
+  private long computeHash(String identifier) {
+    return computeHash(hash, info.getLayerId(), identifier);
+  }
+
+  /**
+   * Computes the hash that a layer with the given id uses to assign the given identifier to a bucket, so that
+   * tools can evaluate how other hash functions would distribute identifiers across buckets. Hash functions
+   * with fewer than 64 bits return their {@code int} value as an unsigned {@code long}.
+   */
+  public static long computeHash(HashFunction hash, int layerId, String identifier) {
+    HashCode hc = hash.newHasher().putInt(layerId).putString(identifier).hash();
+    return hc.bits() < 64 ? hc.asInt() & 0xFFFFFFFFL : hc.asLong();
+  }
+
+  /**
+   * Returns the bucket that a layer with the given id assigns the given identifier to.
+   */
+  public static int computeBucket(HashFunction hash, int layerId, String identifier, int numBuckets) {
+    return LongMath.mod(computeHash(hash, layerId, identifier), numBuckets);
   }
 
   @Override
@@ -75,8 +94,30 @@ public final class LayerImpl implements Layer {
       List<DiversionCriterion> diversionCriteria,
       Map<String, FlagValueCalculator<Object>> overrides,
       Set<Integer> newExperimentIds) {
+    DiversionProfiler profiler = DiversionProfiler.of(state);
+    if (profiler == null) {
+      doAssign(state, diversionCriteria, overrides, newExperimentIds);
+    } else {
+      long start = profiler.start();
+      try {
+        doAssign(state, diversionCriteria, overrides, newExperimentIds);
+      } finally {
+        profiler.layer(info.getLayerId(), start);
+      }
+    }
+  }
+
+  private void doAssign(
+      final ExperimentState state,
+      List<DiversionCriterion> diversionCriteria,
+      Map<String, FlagValueCalculator<Object>> overrides,
+      Set<Integer> newExperimentIds) {
+    DiversionTrace trace = DiversionTrace.of(state);
     if (!Sets.intersection(segmentIds, state.getExperimentIds()).isEmpty()) {
       // Diversion has already happened in this layer.
+      if (trace != null) {
+        trace.alreadyDiverted(info.getLayerId());
+      }
       return;
     }
 
@@ -84,29 +125,51 @@ public final class LayerImpl implements Layer {
       int bucket = -1;
       if (criteria.isRandom()) {
         bucket = random.nextInt(criteria.getNumBuckets());
+        if (trace != null) {
+          trace.bucket(info.getLayerId(), criteria.getId(), null, -1L, bucket);
+        }
       } else {
         Optional<String> identifier = state.getDiversionIdentifier(criteria.getId());
         if (identifier.isPresent()) {
-          bucket = computeBucket(identifier.get(), criteria.getNumBuckets());
+          long hc = computeHash(identifier.get());
+          bucket = LongMath.mod(hc, criteria.getNumBuckets());
+          if (trace != null) {
+            trace.bucket(info.getLayerId(), criteria.getId(), identifier.get(), hc, bucket);
+          }
+        } else if (trace != null) {
+          trace.noIdentifier(info.getLayerId(), criteria.getId());
         }
       }
       if (bucket != -1) {
         Set<Segment> selected = findSegments(segmentsByDiversionBuckets.get(criteria.getId()), bucket,
             state.getRequestTimeMsec());
         if (!selected.isEmpty()) {
-          Set<Segment> valid = Sets.filter(selected, new Predicate<Segment>() {
-            @Override
-            public boolean apply(Segment segment) {
-              return segment.isValidFor(state);
-            }
-          });
+          Set<Segment> valid;
+          if (trace == null) {
+            valid = Sets.filter(selected, new Predicate<Segment>() {
+              @Override
+              public boolean apply(Segment segment) {
+                return segment.isValidFor(state);
+              }
+            });
+          } else {
+            valid = traceConditions(trace, bucket, selected, state);
+          }
           if (valid.isEmpty()) {
             // There were experiments for this bucket, but this request did not match any of them.
             // Mark the request with the appropriate bias identifier.
-            newExperimentIds.add(criteria.isRandom() ? info.getRandomBiasedId() : info.getFixedBiasedId());
+            int biasedId = criteria.isRandom() ? info.getRandomBiasedId() : info.getFixedBiasedId();
+            newExperimentIds.add(biasedId);
+            if (trace != null) {
+              trace.biased(info.getLayerId(), biasedId);
+            }
           } else if (valid.size() == 1) {
             // Divert the request into this segment
-            Iterables.getOnlyElement(valid).handle(state, diversionCriteria, overrides, newExperimentIds);
+            Segment segment = Iterables.getOnlyElement(valid);
+            if (trace != null) {
+              trace.assigned(info.getLayerId(), segment.getId());
+            }
+            segment.handle(state, diversionCriteria, overrides, newExperimentIds);
           } else {
             // Bad news
             throw new IllegalStateException(String.format(
@@ -120,6 +183,27 @@ public final class LayerImpl implements Layer {
 
     // Only reach this point if there were no matching experiments in this layer for the current request.
     newExperimentIds.add(info.getUnbiasedId());
+    if (trace != null) {
+      trace.unbiased(info.getLayerId(), info.getUnbiasedId());
+    }
+  }
+
+  // Evaluates the conditions of each candidate exactly once so that every outcome appears in the trace.
+  private Set<Segment> traceConditions(
+      DiversionTrace trace,
+      int bucket,
+      Set<Segment> selected,
+      ExperimentState state) {
+    trace.candidates(info.getLayerId(), bucket, selected);
+    ImmutableSet.Builder<Segment> valid = ImmutableSet.builder();
+    for (Segment segment : selected) {
+      boolean isValid = segment.isValidFor(state);
+      trace.condition(info.getLayerId(), segment.getId(), isValid);
+      if (isValid) {
+        valid.add(segment);
+      }
+    }
+    return valid.build();
   }
 
   static Set<Segment> findSegments(
@@ -14,30 +14,30 @@
  */
 package com.cloudera.gertrude.space;
 
+import com.cloudera.gertrude.BucketRanges;
 import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.DiversionProfiler;
 import com.cloudera.gertrude.ExperimentState;
 
-import java.util.SortedSet;
-
 public final class SegmentInfo {
   private final int id;
   private final int layerId;
   private final int diversionId;
-  private final SortedSet<Integer> buckets;
+  private final BucketRanges buckets;
   private final Condition<ExperimentState> condition;
   private final long startTimeMsec;
   private final long endTimeMsec;
   private final long prePeriodTimeMsec;
   private final long postPeriodTimeMsec;
 
-  public SegmentInfo(int id, int layerId, int diversionId, SortedSet<Integer> buckets) {
+  public SegmentInfo(int id, int layerId, int diversionId, Iterable<Integer> buckets) {
     this(id, layerId, diversionId, buckets, Condition.TRUE, 0, Long.MAX_VALUE, 0, Long.MAX_VALUE);
   }
 
   public SegmentInfo(int id,
                      int layerId,
                      int diversionId,
-                     SortedSet<Integer> buckets,
+                     Iterable<Integer> buckets,
                      Condition<ExperimentState> condition,
                      long startTimeMsec,
                      long endTimeMsec,
@@ -46,7 +46,7 @@ public final class SegmentInfo {
     this.id = id;
     this.layerId = layerId;
     this.diversionId = diversionId;
-    this.buckets = buckets;
+    this.buckets = BucketRanges.copyOf(buckets);
     this.condition = condition;
     this.startTimeMsec = startTimeMsec;
     this.endTimeMsec = endTimeMsec;
@@ -58,7 +58,7 @@ public final class SegmentInfo {
     return id;
   }
 
-  public SortedSet<Integer> getBuckets() {
+  public BucketRanges getBuckets() {
     return buckets;
   }
 
@@ -97,6 +97,15 @@ public final class SegmentInfo {
   // Tests whether or not the experiment state applies to the conditions associated
   // with this segment
   public boolean isValidFor(ExperimentState state) {
-    return condition.evaluate(state);
+    DiversionProfiler profiler = DiversionProfiler.of(state);
+    if (profiler == null) {
+      return condition.evaluate(state);
+    }
+    long start = profiler.start();
+    try {
+      return condition.evaluate(state);
+    } finally {
+      profiler.segmentConditions(layerId, start);
+    }
   }
 }
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class BucketRangesTest {
+
+  @Test
+  public void testMerge() throws Exception {
+    BucketRanges br = BucketRanges.builder()
+        .addRange(10, 20)
+        .add(3)
+        .addRange(15, 25)
+        .add(4)
+        .add(25)
+        .build();
+    assertEquals(2, br.getRangeCount());
+    assertEquals(3, br.first());
+    assertEquals(25, br.last());
+    assertEquals(18, br.size());
+    assertEquals("[3-4, 10-25]", br.toString());
+    assertEquals(br, BucketRanges.copyOf(Lists.newArrayList(br)));
+  }
+
+  @Test
+  public void testContains() throws Exception {
+    BucketRanges br = BucketRanges.builder().addRange(0, 5).addRange(100, 1000000).build();
+    assertTrue(br.contains(0));
+    assertTrue(br.contains(4));
+    assertFalse(br.contains(5));
+    assertFalse(br.contains(99));
+    assertTrue(br.contains(100));
+    assertTrue(br.contains(999999));
+    assertFalse(br.contains(1000000));
+    assertFalse(br.contains(-1));
+  }
+
+  @Test
+  public void testCopyOfSortedSet() throws Exception {
+    BucketRanges br = BucketRanges.copyOf(ImmutableSortedSet.of(1, 2, 3, 7, 9, 10));
+    assertEquals(ImmutableList.of(1, 2, 3, 7, 9, 10), Lists.newArrayList(br));
+    assertEquals(3, br.getRangeCount());
+  }
+
+  @Test
+  public void testIntersection() throws Exception {
+    BucketRanges a = BucketRanges.builder().addRange(0, 10).addRange(20, 30).build();
+    BucketRanges b = BucketRanges.builder().addRange(5, 25).build();
+    assertEquals(BucketRanges.builder().addRange(5, 10).addRange(20, 25).build(), a.intersection(b));
+    assertTrue(a.overlaps(b));
+    assertFalse(a.overlaps(BucketRanges.range(10, 20)));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    BucketRanges empty = BucketRanges.of();
+    assertTrue(empty.isEmpty());
+    assertFalse(empty.contains(0));
+    assertFalse(empty.iterator().hasNext());
+    assertEquals(empty, BucketRanges.range(3, 3));
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.junit.Assert.*;
+
+public class ConditionDataSourcesTest {
+
+  private static final class TextDataSource extends ConditionDataSource<String> {
+    TextDataSource(String name, File file) {
+      super(name, String.class, file, 20, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected String load(File file) throws IOException {
+      return Files.toString(file, Charsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    File file = File.createTempFile("condition", ".txt");
+    Files.write("first", file, Charsets.UTF_8);
+    ConditionDataSources sources = new ConditionDataSources();
+    sources.register(new TextDataSource("text", file));
+    ConditionDataSource<String> source = sources.get("text", String.class);
+    assertEquals("first", source.get());
+    assertEquals(1L, source.getVersion());
+    try {
+      sources.get("text", Long.class);
+      fail("Data sources must be looked up with their type");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    MetricRegistry metrics = new MetricRegistry();
+    sources.start(metrics, null);
+    // New data is written to another file and renamed into place, so it is never read half-written.
+    File next = new File(file.getPath() + ".next");
+    Files.write("second", next, Charsets.UTF_8);
+    assertTrue(next.renameTo(file));
+    waitFor(source, 2L);
+    assertEquals("second", source.get());
+    assertEquals(2L, metrics.getGauges().get(name(ConditionDataSource.class, "text", "version")).getValue());
+
+    // A missing file keeps the current data and counts as a failure.
+    assertTrue(file.delete());
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (metrics.meter(name(ConditionDataSource.class, "text", "failures")).getCount() == 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10L);
+    }
+    assertEquals("second", source.get());
+    Gauge<?> age = metrics.getGauges().get(name(ConditionDataSource.class, "text", "age"));
+    assertTrue((Long) age.getValue() >= 0L);
+  }
+
+  private static void waitFor(ConditionDataSource<?> source, long version) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (source.getVersion() < version) {
+      assertTrue("Timed out waiting for version " + version, System.currentTimeMillis() < deadline);
+      Thread.sleep(10L);
+    }
+  }
+}
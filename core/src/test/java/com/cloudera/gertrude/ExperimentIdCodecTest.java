@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ExperimentIdCodecTest {
+
+  @Test
+  public void testEmpty() {
+    String encoded = ExperimentIdCodec.encode(ImmutableSet.<Integer>of());
+    assertEquals("AQ", encoded);
+    assertTrue(ExperimentIdCodec.decode(encoded).isEmpty());
+  }
+
+  @Test
+  public void testClusteredIds() {
+    Set<Integer> ids = ImmutableSet.of(1001, 1005, 1002, 1040, 2000);
+    String encoded = ExperimentIdCodec.encode(ids);
+    assertEquals(ImmutableSortedSet.copyOf(ids), ExperimentIdCodec.decode(encoded));
+    assertTrue(encoded.length() < "1001,1002,1005,1040,2000".length() / 2);
+  }
+
+  @Test
+  public void testExtremesAndDuplicates() {
+    ImmutableList<Integer> ids = ImmutableList.of(Integer.MAX_VALUE, Integer.MIN_VALUE, -1, 0, 0, 17);
+    assertEquals(ImmutableSortedSet.copyOf(ids), ExperimentIdCodec.decode(ExperimentIdCodec.encode(ids)));
+  }
+
+  @Test
+  public void testRandomRoundTrips() {
+    Random r = new Random(1729L);
+    for (int i = 0; i < 1000; i++) {
+      Set<Integer> ids = Sets.newHashSet();
+      for (int j = r.nextInt(20); j > 0; j--) {
+        ids.add(r.nextInt());
+      }
+      String encoded = ExperimentIdCodec.encode(ids);
+      assertTrue(encoded.matches("[A-Za-z0-9_-]+"));
+      assertEquals(ImmutableSortedSet.copyOf(ids), ExperimentIdCodec.decode(encoded));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCharacter() {
+    ExperimentIdCodec.decode("AQ+/");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownVersion() {
+    ExperimentIdCodec.decode("Ag");
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExperimentIdSetTest {
+
+  @Test
+  public void testInterning() {
+    ExperimentIdSet.Interner interner = new ExperimentIdSet.Interner(2);
+    ExperimentIdSet s1 = interner.intern(Sets.newHashSet(3, 1, 2));
+    assertSame(s1, interner.intern(Sets.newHashSet(1, 2, 3)));
+    assertSame(s1, interner.intern(ImmutableSet.of(2, 3, 1)));
+    assertSame(ExperimentIdSet.EMPTY, interner.intern(ImmutableSet.<Integer>of()));
+    assertEquals(ExperimentIdCodec.encode(ImmutableSet.of(1, 2, 3)), s1.getEncoded());
+
+    // Sets beyond the maximum size are still created, just not interned
+    ExperimentIdSet s2 = interner.intern(ImmutableSet.of(4));
+    ExperimentIdSet s3 = interner.intern(ImmutableSet.of(5));
+    assertEquals(2, interner.size());
+    assertSame(s2, interner.intern(ImmutableSet.of(4)));
+    assertNotSame(s3, interner.intern(ImmutableSet.of(5)));
+    assertEquals(s3, interner.intern(ImmutableSet.of(5)));
+  }
+
+  @Test
+  public void testCombinationIds() {
+    ExperimentIdSet s1 = ExperimentIdSet.of(ImmutableSet.of(10, 20));
+    ExperimentIdSet s2 = ExperimentIdSet.of(ImmutableSet.of(20, 10));
+    assertEquals(s1.getCombinationId(), s2.getCombinationId());
+    assertFalse(s1.getCombinationId() == ExperimentIdSet.of(ImmutableSet.of(10, 21)).getCombinationId());
+  }
+
+  @Test
+  public void testUnion() {
+    ExperimentIdSet s1 = ExperimentIdSet.of(ImmutableSet.of(10, 20));
+    ExperimentIdSet s2 = ExperimentIdSet.of(ImmutableSet.of(20));
+    assertSame(s1, s1.union(s2));
+    assertSame(s1, s2.union(s1));
+    assertSame(s1, ExperimentIdSet.EMPTY.union(s1));
+    assertEquals(ImmutableSet.of(10, 20, 30), s1.union(ExperimentIdSet.of(ImmutableSet.of(30))).getIds());
+  }
+}
@@ -28,6 +28,7 @@ public final class TestExperimentState extends AbstractExperimentState {
   private final Set<Integer> forceIds = Sets.newHashSet();
   private final Map<Integer, String> diversionIds = Maps.newHashMap();
   private Long requestTimeMsec;
+  private boolean traceRequested;
 
   @Override
   public Optional<String> getDiversionIdentifier(int diversionId) {
@@ -63,6 +64,16 @@ public final class TestExperimentState extends AbstractExperimentState {
     return this;
   }
 
+  public TestExperimentState setTraceRequested(boolean traceRequested) {
+    this.traceRequested = traceRequested;
+    return this;
+  }
+
+  @Override
+  public boolean isTraceRequested() {
+    return traceRequested;
+  }
+
   public TestExperimentState setRequestTimeMsec(Long requestTimeMsec) {
     this.requestTimeMsec = requestTimeMsec;
     return this;
@@ -42,6 +42,10 @@ public final class TestExperiments {
     return false;
   }
 
+  public static MetricRegistry getMetrics() {
+    return metrics;
+  }
+
   public static ExperimentHandler getHandler() {
     if (handler == null) {
       Experiments.registerMetricRegistry(metrics);
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.ConditionDataSources;
+import com.cloudera.gertrude.ExperimentState;
+import com.cloudera.gertrude.ExperimentsRuntime;
+import com.cloudera.gertrude.TestExperimentState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CohortTest {
+
+  private static long[] ids() {
+    long[] ids = new long[10001];
+    for (int i = 0; i < 10000; i++) {
+      ids[i] = 3L * i - 9000L;
+    }
+    ids[10000] = 0L; // a duplicate
+    return ids;
+  }
+
+  private static byte[] sorted(long[] ids) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Cohort.writeSorted(ids, ids.length, out);
+    return out.toByteArray();
+  }
+
+  private static File write(byte[] data) throws IOException {
+    File file = File.createTempFile("test", ".cohort");
+    file.deleteOnExit();
+    Files.write(data, file);
+    return file;
+  }
+
+  private static void assertInvalid(byte[] data, String message) throws IOException {
+    try {
+      Cohort.open(write(data));
+      fail("Expected an invalid cohort file");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+    }
+  }
+
+  @Test
+  public void testSorted() throws Exception {
+    File file = write(sorted(ids()));
+    Cohort cohort = Cohort.open(file);
+    assertTrue(cohort.isExact());
+    assertEquals(10000, cohort.size());
+    assertSame(cohort, Cohort.open(file));
+    for (long id = -9010L; id < 21010L; id++) {
+      assertEquals(id % 3 == 0 && id >= -9000L && id < 21000L, cohort.contains(id));
+    }
+
+    // A changed file is mapped again.
+    Files.write(sorted(new long[] { 1L, 2L }), file);
+    Cohort changed = Cohort.open(file);
+    assertNotSame(cohort, changed);
+    assertEquals(2, changed.size());
+    assertTrue(changed.contains(2L));
+    assertFalse(changed.contains(3L));
+
+    Cohort empty = Cohort.open(write(sorted(new long[0])));
+    assertEquals(0, empty.size());
+    assertFalse(empty.contains(0L));
+  }
+
+  @Test
+  public void testBloom() throws Exception {
+    long[] ids = ids();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Cohort.writeBloom(ids, ids.length, 0.01, out);
+    Cohort bloom = Cohort.open(write(out.toByteArray()));
+    assertFalse(bloom.isExact());
+    assertEquals(10001, bloom.size());
+    assertTrue(out.size() < sorted(ids).length / 4);
+    int falsePositives = 0;
+    for (long id = -9000L; id < 21000L; id++) {
+      if (id % 3 == 0) {
+        assertTrue(bloom.contains(id));
+      } else if (bloom.contains(id)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("False positives: " + falsePositives, falsePositives < 400);
+  }
+
+  @Test
+  public void testInvalidFiles() throws Exception {
+    byte[] valid = sorted(new long[] { 5L, 7L, 11L });
+
+    // Headers that are missing or cut short
+    assertInvalid(new byte[0], "Invalid cohort file size");
+    assertInvalid(Arrays.copyOf(valid, 23), "Invalid cohort file size");
+
+    byte[] magic = valid.clone();
+    magic[0] ^= 0x01;
+    assertInvalid(magic, "Not a version 1 cohort file");
+    byte[] version = valid.clone();
+    version[4] = 2;
+    assertInvalid(version, "Not a version 1 cohort file");
+
+    byte[] type = valid.clone();
+    type[5] = 7;
+    assertInvalid(type, "Corrupt cohort file");
+    assertInvalid(Arrays.copyOf(valid, valid.length - 8), "Corrupt cohort file");
+    assertInvalid(Arrays.copyOf(valid, valid.length + 8), "Corrupt cohort file");
+    byte[] size = valid.clone();
+    size[15] = 4;
+    assertInvalid(size, "Corrupt cohort file");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Cohort.writeBloom(new long[] { 5L, 7L, 11L }, 3, 0.01, out);
+    byte[] hashes = out.toByteArray();
+    hashes[6] = 0;
+    hashes[7] = 0;
+    assertInvalid(hashes, "Corrupt cohort file");
+  }
+
+  public static final class IdCohortCondition extends AbstractCohortCondition<ExperimentState> {
+    @Override
+    public long getId(ExperimentState state) {
+      return Long.parseLong(state.getDiversionIdentifier(0).get());
+    }
+  }
+
+  private static boolean evaluate(Condition<ExperimentState> condition, long id) {
+    return condition.evaluate(new TestExperimentState().setDiversionIdentifier(0, String.valueOf(id)));
+  }
+
+  @Test
+  public void testCohortCondition() throws Exception {
+    File file = write(sorted(new long[] { 5L, 7L }));
+    IdCohortCondition byPath = new IdCohortCondition();
+    byPath.initialize(ImmutableList.of(file.getPath()));
+    assertTrue(evaluate(byPath, 5L));
+    assertFalse(evaluate(byPath, 6L));
+
+    // Data sources are looked up in the registry that the condition was given.
+    ConditionDataSources dataSources = new ExperimentsRuntime().getConditionDataSources();
+    CohortDataSource source = new CohortDataSource("users", file, 1, TimeUnit.MINUTES);
+    dataSources.register(source);
+    IdCohortCondition byName = new IdCohortCondition();
+    byName.setConditionDataSources(dataSources);
+    byName.initialize(ImmutableList.of("@users"));
+    assertTrue(evaluate(byName, 7L));
+    assertFalse(evaluate(byName, 9L));
+
+    File next = write(sorted(new long[] { 9L }));
+    assertTrue(next.renameTo(file));
+    assertTrue(source.refresh());
+    assertTrue(evaluate(byName, 9L));
+    assertFalse(evaluate(byName, 7L));
+    assertTrue(evaluate(byPath, 7L));
+
+    try {
+      new IdCohortCondition().initialize(ImmutableList.of("@users"));
+      fail("Expected a missing data source registry");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
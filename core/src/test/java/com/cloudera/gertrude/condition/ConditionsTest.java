@@ -14,6 +14,8 @@
  */
 package com.cloudera.gertrude.condition;
 
+import com.cloudera.gertrude.AttributeExtractor;
+import com.cloudera.gertrude.AttributeKey;
 import com.cloudera.gertrude.Condition;
 import com.cloudera.gertrude.ExperimentState;
 import com.cloudera.gertrude.TestExperimentState;
@@ -23,6 +25,7 @@ import org.junit.Test;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -51,6 +54,56 @@ public class ConditionsTest {
     }
   }
 
+  public static class CountingPropertyCondition extends AbstractPropertyCondition<String, ExperimentState> {
+    static final AtomicInteger extractions = new AtomicInteger();
+
+    @Override
+    public CacheLevel getCacheLevel() {
+      return CacheLevel.REQUEST;
+    }
+
+    @Override
+    protected Set<String> parseArgs(List<String> args) {
+      return ImmutableSet.copyOf(args);
+    }
+
+    @Override
+    protected AttributeKey<String> getAttributeKey() {
+      return AttributeKey.of("counting", String.class, new AttributeExtractor<String>() {
+        @Override
+        public String extract(ExperimentState state) {
+          return getValue(state);
+        }
+      });
+    }
+
+    @Override
+    public String getValue(ExperimentState state) {
+      extractions.incrementAndGet();
+      return "foo";
+    }
+  }
+
+  @Test
+  public void testAttributePropertyCondition() {
+    CountingPropertyCondition c1 = new CountingPropertyCondition();
+    c1.initialize(ImmutableList.of("foo", "bar"));
+    CountingPropertyCondition c2 = new CountingPropertyCondition();
+    c2.initialize(ImmutableList.of("baz"));
+    assertSame(AttributeKey.of("counting", String.class), c2.getAttributeKey());
+
+    int before = CountingPropertyCondition.extractions.get();
+    ExperimentState state = new TestExperimentState();
+    assertTrue(c1.evaluate(state));
+    assertFalse(c2.evaluate(state));
+    assertTrue(c1.evaluate(state));
+    assertEquals(1, CountingPropertyCondition.extractions.get() - before);
+
+    // Each request extracts its own value.
+    assertTrue(c1.evaluate(new TestExperimentState()));
+    assertEquals(2, CountingPropertyCondition.extractions.get() - before);
+  }
+
   @Test
   public void testReflectConditionFactory() {
     ReflectionConditionFactory rcf = new ReflectionConditionFactory();
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.condition;
+
+import com.cloudera.gertrude.ExperimentState;
+import com.cloudera.gertrude.TestExperimentState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ValueSetsTest {
+
+  @Test
+  public void testLongValueSets() {
+    Random r = new Random(1729L);
+    for (int size : new int[] { 0, 1, 10, LongValueSet.MAX_SORTED_SIZE, LongValueSet.MAX_SORTED_SIZE + 1, 50000 }) {
+      Set<Long> expected = Sets.newHashSet();
+      long[] values = new long[size + 1];
+      for (int i = 0; i < size; i++) {
+        values[i] = r.nextInt(4 * size + 1) - 2 * size;
+        expected.add(values[i]);
+      }
+      // Duplicates are ignored.
+      values[size] = size == 0 ? 0L : values[0];
+      expected.add(values[size]);
+      LongValueSet set = LongValueSet.of(values);
+      assertEquals(expected.size(), set.size());
+      for (long v = -2 * size - 2; v <= 2 * size + 2; v++) {
+        assertEquals(String.valueOf(v), expected.contains(v), set.contains(v));
+      }
+      assertFalse(set.contains(Long.MIN_VALUE));
+      assertFalse(set.contains(Long.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testStringValueSet() {
+    List<String> values = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      values.add("account-" + (3 * i));
+    }
+    values.add("account-0");
+    StringValueSet set = new StringValueSet(values);
+    assertEquals(1000, set.size());
+    for (int i = 0; i < 3000; i++) {
+      assertEquals(i % 3 == 0, set.contains("account-" + i));
+    }
+    assertFalse(set.contains(null));
+    assertFalse(new StringValueSet(ImmutableList.<String>of()).contains("account-0"));
+  }
+
+  @Test
+  public void testIntPropertyCondition() {
+    AbstractIntPropertyCondition<ExperimentState> c = new AbstractIntPropertyCondition<ExperimentState>() {
+      @Override
+      protected int[] parseArgs(List<String> args) {
+        return parseInts(args);
+      }
+
+      @Override
+      public int getValue(ExperimentState state) {
+        return state.getExperimentIds().size();
+      }
+
+      @Override
+      public CacheLevel getCacheLevel() {
+        return CacheLevel.REQUEST;
+      }
+    };
+    c.initialize(ImmutableList.of("0", "7"));
+    assertTrue(c.evaluate(new TestExperimentState()));
+    c.initialize(ImmutableList.of("7"));
+    assertFalse(c.evaluate(new TestExperimentState()));
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.curator;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes serialized deployments to a Zookeeper node in the same gzip format that Curator's
+ * {@code compressed()} builders use, splitting payloads that are too large for a single node into chunks.
+ *
+ * <p>Chunks of the compressed payload are written as the children of a new generation node under
+ * {@code <path>/chunks} before a small manifest (also gzipped) replaces the data in the main node. Readers
+ * watching the main node therefore only see the new deployment once all of its chunks exist, and the
+ * manifest records the number of chunks, their total length, and a CRC32 checksum so that the reassembled
+ * payload can be verified. The previous generation is kept around for readers that are still fetching it.
+ */
+public final class ChunkedPayloads {
+
+  private static final Logger log = LoggerFactory.getLogger(ChunkedPayloads.class);
+
+  /** The default maximum size of a single node, well below Zookeeper's default 1MB jute.maxbuffer. */
+  public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+  static final String CHUNKS_NODE = "chunks";
+
+  private static final byte[] MAGIC = "GRTRDCHK".getBytes(Charsets.US_ASCII);
+  private static final int FORMAT_VERSION = 1;
+
+  private ChunkedPayloads() {
+  }
+
+  /**
+   * Compresses the given data and writes it to the node at {@code path}, splitting it into chunks if the
+   * compressed data is larger than {@code chunkSize}.
+   *
+   * @param client the Curator client to use
+   * @param path the path of the node that readers are watching
+   * @param data the uncompressed payload
+   * @param chunkSize the maximum number of bytes to write to a single node
+   * @param compressionLevel the gzip compression level (0-9, or -1 for the default)
+   */
+  public static void write(
+      CuratorFramework client,
+      String path,
+      byte[] data,
+      int chunkSize,
+      int compressionLevel) throws Exception {
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive: %s", chunkSize);
+    byte[] payload = gzip(data, compressionLevel);
+    if (payload.length <= chunkSize) {
+      setOrCreate(client, path, payload);
+      return;
+    }
+
+    long generation = System.currentTimeMillis();
+    String chunksPath = ZKPaths.makePath(path, CHUNKS_NODE);
+    String generationPath = ZKPaths.makePath(chunksPath, String.valueOf(generation));
+    int numChunks = (payload.length + chunkSize - 1) / chunkSize;
+    for (int i = 0; i < numChunks; i++) {
+      byte[] chunk = Arrays.copyOfRange(payload, i * chunkSize, Math.min(payload.length, (i + 1) * chunkSize));
+      String chunkPath = ZKPaths.makePath(generationPath, String.valueOf(i));
+      client.create().creatingParentsIfNeeded().forPath(chunkPath, chunk);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    setOrCreate(client, path, gzip(manifest(generation, numChunks, payload.length, crc.getValue()),
+        compressionLevel));
+    log.info("Wrote {} bytes to {} in {} chunks", new Object[] { payload.length, generationPath, numChunks });
+    deleteOldGenerations(client, chunksPath, generation);
+  }
+
+  /**
+   * Returns true if the given (decompressed) node data is a chunk manifest written by this class.
+   */
+  public static boolean isManifest(byte[] nodeData) {
+    if (nodeData == null || nodeData.length < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (nodeData[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Fetches the chunks described by the given manifest from the children of {@code path}, verifies them,
+   * and returns the decompressed payload.
+   *
+   * @param client the Curator client to use
+   * @param path the path of the node that contains the manifest
+   * @param manifest the (decompressed) data of the node at {@code path}
+   * @return the reassembled and decompressed payload
+   * @throws IOException if the chunks are missing or do not match the manifest
+   */
+  public static byte[] read(CuratorFramework client, String path, byte[] manifest) throws Exception {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifest));
+    in.skipBytes(MAGIC.length);
+    int formatVersion = in.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported chunk manifest version: " + formatVersion);
+    }
+    long generation = in.readLong();
+    int numChunks = in.readInt();
+    int length = in.readInt();
+    long checksum = in.readLong();
+
+    String generationPath = ZKPaths.makePath(ZKPaths.makePath(path, CHUNKS_NODE), String.valueOf(generation));
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(length);
+    for (int i = 0; i < numChunks; i++) {
+      payload.write(client.getData().forPath(ZKPaths.makePath(generationPath, String.valueOf(i))));
+    }
+    byte[] compressed = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(compressed);
+    if (compressed.length != length || crc.getValue() != checksum) {
+      throw new IOException("Chunks under " + generationPath + " do not match their manifest");
+    }
+    return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+  }
+
+  /**
+   * Returns the decompressed data of the node at {@code path}, reassembling it from its chunks if the node
+   * contains a manifest.
+   */
+  public static byte[] readNode(CuratorFramework client, String path) throws Exception {
+    byte[] data = client.getData().decompressed().forPath(path);
+    return isManifest(data) ? read(client, path, data) : data;
+  }
+
+  private static void setOrCreate(CuratorFramework client, String path, byte[] data) throws Exception {
+    if (client.checkExists().forPath(path) == null) {
+      client.create().creatingParentsIfNeeded().forPath(path, data);
+    } else {
+      client.setData().forPath(path, data);
+    }
+  }
+
+  private static byte[] manifest(long generation, int numChunks, int length, long checksum) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.write(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(generation);
+    out.writeInt(numChunks);
+    out.writeInt(length);
+    out.writeLong(checksum);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  private static void deleteOldGenerations(CuratorFramework client, String chunksPath, long current)
+      throws Exception {
+    List<String> generations = client.getChildren().forPath(chunksPath);
+    Collections.sort(generations);
+    // Keep the current generation and the one before it, which readers may still be fetching.
+    for (String generation : generations.subList(0, Math.max(0, generations.size() - 2))) {
+      if (!generation.equals(String.valueOf(current))) {
+        String generationPath = ZKPaths.makePath(chunksPath, generation);
+        for (String chunk : client.getChildren().forPath(generationPath)) {
+          client.delete().forPath(ZKPaths.makePath(generationPath, chunk));
+        }
+        client.delete().forPath(generationPath);
+      }
+    }
+  }
+
+  static byte[] gzip(byte[] data, final int compressionLevel) throws IOException {
+    Preconditions.checkArgument(compressionLevel == Deflater.DEFAULT_COMPRESSION ||
+        (compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION),
+        "Invalid compression level: %s", compressionLevel);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    OutputStream out = new GZIPOutputStream(baos) {
+      {
+        def.setLevel(compressionLevel);
+      }
+    };
+    out.write(data);
+    out.close();
+    return baos.toByteArray();
+  }
+}
@@ -16,45 +16,274 @@ package com.cloudera.gertrude.curator;
 
 import com.cloudera.gertrude.ExperimentSpace;
 import com.cloudera.gertrude.ExperimentSpaceLoader;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeploymentDelta;
+import com.cloudera.gertrude.space.DeploymentDeltas;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.NodeCache;
 import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public final class NodeCacheExperimentSpaceLoader extends ExperimentSpaceLoader {
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@code ExperimentSpaceLoader} that watches a single Zookeeper node.
+ *
+ * <p>Changes to the node are debounced: the loader waits for the configured window after the first change
+ * in a burst before it reloads, and then reloads from the most recent data in the {@code NodeCache}, so a
+ * series of rapid deploys only triggers a single rebuild. Reloads happen on the loader's own thread instead
+ * of Curator's event thread. The loader holds on to the last snapshot of the node that it resolved, and
+ * ignores any data that is older than that snapshot, the deletion of the node, and any events that arrive
+ * while the connection to Zookeeper is suspended or lost. If a snapshot cannot be resolved (e.g., because
+ * its chunks or the full deployment could not be fetched), the reload is retried with exponential backoff.
+ *
+ * <p>Deployments that were split into chunks by {@link ChunkedPayloads} are reassembled and verified on the
+ * reload thread before they are deserialized.
+ *
+ * <p>The node may also contain an {@code ExperimentDeploymentDelta} written by {@link DeploymentDeltas},
+ * which the loader applies to the last deployment that it loaded. If that deployment is not the base version
+ * of the delta (e.g., because the loader missed an update), the loader fetches the full deployment from the
+ * {@value #FULL_DEPLOYMENT_NODE} child of the node instead.
+ */
+public final class NodeCacheExperimentSpaceLoader extends ExperimentSpaceLoader implements Closeable {
 
   private static final Logger log = LoggerFactory.getLogger(NodeCacheExperimentSpaceLoader.class);
 
+  /**
+   * The child of the watched node that holds the most recent full deployment when deltas are in use.
+   */
+  public static final String FULL_DEPLOYMENT_NODE = "full";
+
+  private static final long DEFAULT_DEBOUNCE_MILLIS = 100L;
+  private static final long MIN_RETRY_MILLIS = 1000L;
+  private static final long MAX_RETRY_MILLIS = 60000L;
+
+  private final CuratorFramework client;
+  private final String path;
   private final NodeCache cache;
+  private final long debounceMillis;
+  private final ScheduledExecutorService reloadExecutor;
+  private final AtomicBoolean reloadScheduled = new AtomicBoolean(false);
+  private final ConnectionStateListener connectionListener;
+  private final Object lock = new Object();
+  // The newest snapshot of the node that has not been resolved yet, if any, and the last one that was
+  private volatile ChildData pending;
+  private volatile ChildData lastGood;
+  private volatile boolean connected = true;
+  private long retryMillis;
+  private long resolvedMzxid = -1L;
+  private byte[] resolved;
+  private ExperimentDeployment resolvedDeployment;
+  private String resolvedFingerprint;
+
+  private final Runnable reloadTask = new Runnable() {
+    @Override
+    public void run() {
+      reloadScheduled.set(false);
+      try {
+        reload(false);
+      } catch (RuntimeException e) {
+        log.error("Error reloading experiment space", e);
+      }
+    }
+  };
 
   public NodeCacheExperimentSpaceLoader(CuratorFramework client, String path) throws Exception {
+    this(client, path, DEFAULT_DEBOUNCE_MILLIS);
+  }
+
+  /**
+   * Creates a loader for the given path that waits for {@code debounceMillis} after a change to the node
+   * before it reloads the {@code ExperimentSpace}.
+   *
+   * @param client the Curator client to use
+   * @param path the path of the node that contains the serialized data
+   * @param debounceMillis the time to wait for additional changes before reloading
+   */
+  public NodeCacheExperimentSpaceLoader(CuratorFramework client, String path, long debounceMillis)
+      throws Exception {
+    Preconditions.checkArgument(debounceMillis >= 0, "Negative debounce window: %s", debounceMillis);
+    this.client = client;
+    this.path = path;
+    this.debounceMillis = debounceMillis;
+    this.reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("NodeCacheExperimentSpaceLoader-%d")
+        .setDaemon(true)
+        .build());
     this.cache = new NodeCache(client, path, true /* compressed */);
     cache.getListenable().addListener(new NodeCacheListener() {
       @Override
       public void nodeChanged() throws Exception {
-        log.info("Signaling space reload");
-        cache.rebuild();
-        reload(false);
+        onNodeChanged(cache.getCurrentData());
       }
     });
-    cache.start();
-    cache.rebuild();
+    this.connectionListener = new ConnectionStateListener() {
+      @Override
+      public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        switch (newState) {
+          case SUSPENDED:
+          case LOST:
+            log.warn("Connection to Zookeeper {}; serving the last good experiment space", newState);
+            connected = false;
+            break;
+          case CONNECTED:
+          case RECONNECTED:
+            connected = true;
+            // Pick up anything that changed while we were disconnected.
+            onNodeChanged(cache.getCurrentData());
+            break;
+          default:
+            break;
+        }
+      }
+    };
+    client.getConnectionStateListenable().addListener(connectionListener);
+    cache.start(true /* buildInitial */);
+    this.pending = cache.getCurrentData();
+  }
+
+  private void onNodeChanged(ChildData data) {
+    if (!connected) {
+      log.info("Ignoring node change while disconnected from Zookeeper");
+      return;
+    }
+    if (data == null || data.getStat() == null) {
+      log.warn("No data in node cache; keeping the last good experiment space");
+      return;
+    }
+    long mzxid = data.getStat().getMzxid();
+    synchronized (lock) {
+      // The mzxid only ever increases, even if the node is deleted and re-created (which resets its version).
+      // Data with the same mzxid as the pending snapshot is accepted, so that a snapshot that could not be
+      // resolved is retried when its event is repeated (e.g., on reconnect).
+      if ((lastGood != null && mzxid <= lastGood.getStat().getMzxid()) ||
+          (pending != null && mzxid < pending.getStat().getMzxid())) {
+        log.info("Skipping stale node data (mzxid {})", mzxid);
+        return;
+      }
+      pending = data;
+    }
+    scheduleReload(debounceMillis);
+  }
+
+  private void scheduleReload(long delayMillis) {
+    if (!reloadExecutor.isShutdown() && reloadScheduled.compareAndSet(false, true)) {
+      log.info("Signaling space reload in {} ms", delayMillis);
+      reloadExecutor.schedule(reloadTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
   }
 
   @Override
   protected Optional<ExperimentSpace.Serialized> getSerialized() {
-    ChildData data = cache.getCurrentData();
+    ChildData data = pending;
+    if (data == null) {
+      data = lastGood;
+    }
     if (data == null) {
       log.warn("No data in node cache");
       return Optional.absent();
-    } else {
-      return Optional.of(new ExperimentSpace.Serialized(
-          String.valueOf(data.getStat().getVersion()),
-          ByteStreams.newInputStreamSupplier(data.getData())));
     }
+    byte[] payload = resolve(data);
+    long delayMillis;
+    synchronized (lock) {
+      if (payload != null) {
+        if (lastGood == null || lastGood.getStat().getMzxid() < data.getStat().getMzxid()) {
+          lastGood = data;
+        }
+        if (pending == data) {
+          pending = null;
+        }
+        retryMillis = 0L;
+      } else {
+        retryMillis = retryMillis == 0L ? MIN_RETRY_MILLIS : Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+      }
+      delayMillis = retryMillis;
+    }
+    if (payload == null) {
+      scheduleReload(delayMillis);
+      return Optional.absent();
+    }
+    // The node's version is reset when it is deleted and re-created, which would make a new deployment look
+    // like the one that is already loaded, so use the mzxid as the version identifier instead.
+    return Optional.of(new ExperimentSpace.Serialized(
+        String.valueOf(data.getStat().getMzxid()),
+        ByteStreams.newInputStreamSupplier(payload)));
+  }
+
+  // Fetches the chunks for a manifest and applies deltas, which happens on the reload thread rather than on
+  // Curator's event thread. The result is cached so that each deployment is only fetched and patched once,
+  // and the last resolved deployment is the base that the next delta is applied to.
+  private synchronized byte[] resolve(ChildData nodeData) {
+    long mzxid = nodeData.getStat().getMzxid();
+    if (mzxid != resolvedMzxid) {
+      try {
+        byte[] payload = nodeData.getData();
+        if (ChunkedPayloads.isManifest(payload)) {
+          payload = ChunkedPayloads.read(client, path, payload);
+        }
+        if (DeploymentDeltas.isDelta(payload)) {
+          payload = applyDelta(DeploymentDeltas.deltaFromBytes(payload));
+        } else {
+          resolvedDeployment = null;
+        }
+        resolved = payload;
+        resolvedMzxid = mzxid;
+      } catch (Exception e) {
+        log.error("Could not resolve deployment (mzxid " + mzxid + ")", e);
+        return null;
+      }
+    }
+    return resolved;
+  }
+
+  private byte[] applyDelta(ExperimentDeploymentDelta delta) throws Exception {
+    if (resolvedDeployment == null && resolved != null) {
+      try {
+        resolvedDeployment = DeploymentDeltas.deploymentFromBytes(resolved);
+        resolvedFingerprint = DeploymentDeltas.fingerprint(resolvedDeployment);
+      } catch (Exception e) {
+        log.warn("Could not decode the current deployment to apply a delta to it", e);
+      }
+    }
+    if (resolvedDeployment != null && DeploymentDeltas.appliesTo(resolvedFingerprint, delta)) {
+      ExperimentDeployment next = DeploymentDeltas.apply(resolvedDeployment, delta);
+      String fingerprint = DeploymentDeltas.fingerprint(next);
+      if (fingerprint.equals(delta.getTargetVersion().toString())) {
+        resolvedDeployment = next;
+        resolvedFingerprint = fingerprint;
+        return DeploymentDeltas.toBytes(next);
+      }
+      log.warn("Applying delta did not produce version {}", delta.getTargetVersion());
+    }
+    log.info("Fetching full deployment for version {}", delta.getTargetVersion());
+    byte[] full = ChunkedPayloads.readNode(client, ZKPaths.makePath(path, FULL_DEPLOYMENT_NODE));
+    resolvedDeployment = DeploymentDeltas.deploymentFromBytes(full);
+    resolvedFingerprint = DeploymentDeltas.fingerprint(resolvedDeployment);
+    if (!resolvedFingerprint.equals(delta.getTargetVersion().toString())) {
+      // A newer deployment is on its way; serve the most recent full deployment until it arrives.
+      log.info("Full deployment has version {} instead of {}", resolvedFingerprint, delta.getTargetVersion());
+    }
+    return full;
+  }
+
+  @Override
+  public void close() throws IOException {
+    client.getConnectionStateListenable().removeListener(connectionListener);
+    reloadExecutor.shutdownNow();
+    cache.close();
   }
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.curator;
+
+import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.ExperimentSpaceLoader;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An {@code ExperimentSpaceLoader} that treats each child of a Zookeeper node as a separate fragment of the
+ * serialized {@code ExperimentSpace}, so that teams can deploy their part of the configuration independently.
+ *
+ * <p>The underlying {@code PathChildrenCache} only fetches the data for the children that change, and each
+ * fragment is versioned by its name and the transaction id of its last modification, so that the
+ * deserializer only needs to decode the fragments that have changed. Fragments are merged in the order of
+ * their names.
+ */
+public final class PathChildrenCacheExperimentSpaceLoader extends ExperimentSpaceLoader {
+
+  private static final Logger log = LoggerFactory.getLogger(PathChildrenCacheExperimentSpaceLoader.class);
+
+  private final PathChildrenCache cache;
+
+  public PathChildrenCacheExperimentSpaceLoader(CuratorFramework client, String path) throws Exception {
+    this.cache = new PathChildrenCache(client, path, true /* cacheData */, true /* compressed */,
+        new ThreadFactoryBuilder().setNameFormat("PathChildrenCacheExperimentSpaceLoader-%d").setDaemon(true).build());
+    cache.getListenable().addListener(new PathChildrenCacheListener() {
+      @Override
+      public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+        switch (event.getType()) {
+          case CHILD_ADDED:
+          case CHILD_UPDATED:
+          case CHILD_REMOVED:
+            log.info("Signaling space reload for fragment {} ({})", event.getData().getPath(), event.getType());
+            reload(false);
+            break;
+          default:
+            break;
+        }
+      }
+    });
+    cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+  }
+
+  @Override
+  protected Optional<ExperimentSpace.Serialized> getSerialized() {
+    List<ChildData> children = Lists.newArrayList(cache.getCurrentData());
+    if (children.isEmpty()) {
+      log.warn("No fragments in path children cache");
+      return Optional.absent();
+    }
+    Collections.sort(children, new Comparator<ChildData>() {
+      @Override
+      public int compare(ChildData c1, ChildData c2) {
+        return c1.getPath().compareTo(c2.getPath());
+      }
+    });
+    List<InputSupplier<? extends InputStream>> suppliers = Lists.newArrayListWithExpectedSize(children.size());
+    List<String> partVersions = Lists.newArrayListWithExpectedSize(children.size());
+    for (ChildData child : children) {
+      suppliers.add(ByteStreams.newInputStreamSupplier(child.getData()));
+      partVersions.add(ZKPaths.getNodeFromPath(child.getPath()) + '@' + child.getStat().getMzxid());
+    }
+    String version = Hashing.md5().hashString(Joiner.on(',').join(partVersions)).toString();
+    return Optional.of(new ExperimentSpace.Serialized(version, suppliers, partVersions));
+  }
+}
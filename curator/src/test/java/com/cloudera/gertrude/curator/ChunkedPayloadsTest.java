@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.curator;
+
+import com.cloudera.gertrude.ExperimentSpace;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkedPayloadsTest {
+
+  private static final String PATH = "/example/chunked";
+
+  @Test
+  public void testChunkedDeploy() throws Exception {
+    TestingServer server = new TestingServer();
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        server.getConnectString(),
+        new ExponentialBackoffRetry(500, 3));
+    client.start();
+
+    // A small payload is written directly to the node, in the same format as Curator's compressed()
+    byte[] small = "smallDeployment".getBytes();
+    ChunkedPayloads.write(client, PATH, small, 1024, 9);
+    byte[] nodeData = client.getData().decompressed().forPath(PATH);
+    assertArrayEquals(small, nodeData);
+    assertFalse(ChunkedPayloads.isManifest(nodeData));
+
+    NodeCacheExperimentSpaceLoader loader = new NodeCacheExperimentSpaceLoader(client, PATH, 0L);
+    byte[] large = new byte[100 * 1024];
+    new Random(1729L).nextBytes(large);
+    ChunkedPayloads.write(client, PATH, large, 16 * 1024, 1);
+    assertTrue(ChunkedPayloads.isManifest(client.getData().decompressed().forPath(PATH)));
+    Thread.sleep(1000L);
+
+    Optional<ExperimentSpace.Serialized> serData = loader.getSerialized();
+    assertArrayEquals(large, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+
+    // Only the two most recent generations of chunks are kept
+    ChunkedPayloads.write(client, PATH, large, 16 * 1024, 1);
+    Thread.sleep(10L);
+    ChunkedPayloads.write(client, PATH, large, 16 * 1024, 1);
+    assertEquals(2, client.getChildren().forPath(PATH + "/" + ChunkedPayloads.CHUNKS_NODE).size());
+    loader.close();
+  }
+}
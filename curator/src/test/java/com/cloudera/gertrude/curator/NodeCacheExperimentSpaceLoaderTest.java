@@ -16,8 +16,20 @@ package com.cloudera.gertrude.curator;
 
 import com.cloudera.gertrude.ExperimentHandler;
 import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.ExperimentsRuntime;
+import com.cloudera.gertrude.TestConditionFactory;
+import com.cloudera.gertrude.TestExperimentSpaceDeserializer;
 import com.cloudera.gertrude.TestExperiments;
+import com.cloudera.gertrude.experiments.avro.DiversionDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.ExperimentFlagDefinition;
+import com.cloudera.gertrude.experiments.avro.FlagType;
+import com.cloudera.gertrude.experiments.avro.LayerDefinition;
+import com.cloudera.gertrude.space.DeploymentDeltas;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
@@ -25,6 +37,8 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.test.TestingServer;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class NodeCacheExperimentSpaceLoaderTest {
@@ -54,19 +68,163 @@ public class NodeCacheExperimentSpaceLoaderTest {
     Thread.sleep(1000L);
 
     serData = loader.getSerialized();
-    assertEquals("1", serData.get().getVersionIdentifier());
+    String version = mzxid(client, PATH);
+    assertEquals(version, serData.get().getVersionIdentifier());
     assertEquals(1, serData.get().getSerializedData().size());
     assertArrayEquals(data, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
-    assertEquals("1", handler.getVersionIdentifier());
+    assertEquals(version, handler.getVersionIdentifier());
 
     byte[] data2 = "otherSerializedExperimentData".getBytes();
     client.setData().compressed().forPath(PATH, data2);
     Thread.sleep(1000L);
 
     serData = loader.getSerialized();
-    assertEquals("2", serData.get().getVersionIdentifier());
+    version = mzxid(client, PATH);
+    assertEquals(version, serData.get().getVersionIdentifier());
     assertEquals(1, serData.get().getSerializedData().size());
     assertArrayEquals(data2, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
-    assertEquals("2", handler.getVersionIdentifier());
+    assertEquals(version, handler.getVersionIdentifier());
+
+    // A re-created node that reaches the same version number is still a new deployment.
+    int nodeVersion = client.checkExists().forPath(PATH).getVersion();
+    client.delete().forPath(PATH);
+    client.create().forPath(PATH);
+    byte[] data3 = "recreatedSerializedExperimentData".getBytes();
+    for (int i = 0; i < nodeVersion; i++) {
+      client.setData().compressed().forPath(PATH, data3);
+    }
+    Thread.sleep(1000L);
+    assertEquals(nodeVersion, client.checkExists().forPath(PATH).getVersion());
+    serData = loader.getSerialized();
+    assertArrayEquals(data3, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+    assertEquals(mzxid(client, PATH), handler.getVersionIdentifier());
+  }
+
+  private static String mzxid(CuratorFramework client, String path) throws Exception {
+    return String.valueOf(client.checkExists().forPath(path).getMzxid());
+  }
+
+  @Test
+  public void testBurstAndDeletion() throws Exception {
+    TestingServer server = new TestingServer();
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        server.getConnectString(),
+        new ExponentialBackoffRetry(500, 3));
+    client.start();
+    String path = "/example/burst";
+    client.create().compressed().creatingParentsIfNeeded().forPath(path, "initial".getBytes());
+
+    NodeCacheExperimentSpaceLoader loader = new NodeCacheExperimentSpaceLoader(client, path, 500L);
+    byte[] last = null;
+    for (int i = 0; i < 5; i++) {
+      last = ("deploy" + i).getBytes();
+      client.setData().compressed().forPath(path, last);
+    }
+    Thread.sleep(1000L);
+    Optional<ExperimentSpace.Serialized> serData = loader.getSerialized();
+    String version = mzxid(client, path);
+    assertEquals(version, serData.get().getVersionIdentifier());
+    assertArrayEquals(last, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+
+    // Deleting the node keeps the last good snapshot around
+    client.delete().forPath(path);
+    Thread.sleep(1000L);
+    serData = loader.getSerialized();
+    assertEquals(version, serData.get().getVersionIdentifier());
+    loader.close();
+  }
+
+  private static ExperimentDeployment deployment(String... flagValues) {
+    List<ExperimentFlagDefinition> flags = Lists.newArrayList();
+    for (int i = 0; i < flagValues.length; i++) {
+      flags.add(ExperimentFlagDefinition.newBuilder()
+          .setName("flag" + i)
+          .setDescription("")
+          .setBaseValue(flagValues[i])
+          .setFlagType(FlagType.STRING)
+          .setModifiers(null)
+          .build());
+    }
+    return ExperimentDeployment.newBuilder()
+        .setFlagDefinitions(flags)
+        .setDiversions(ImmutableList.<DiversionDefinition>of())
+        .setLayers(ImmutableList.<LayerDefinition>of())
+        .setExperiments(ImmutableList.<ExperimentDefinition>of())
+        .build();
+  }
+
+  private static ExperimentDeployment getDeployment(NodeCacheExperimentSpaceLoader loader) throws Exception {
+    Optional<ExperimentSpace.Serialized> serData = loader.getSerialized();
+    return DeploymentDeltas.deploymentFromBytes(
+        ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+  }
+
+  @Test
+  public void testDeltas() throws Exception {
+    TestingServer server = new TestingServer();
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        server.getConnectString(),
+        new ExponentialBackoffRetry(500, 3));
+    client.start();
+    String path = "/example/delta";
+    String fullPath = path + "/" + NodeCacheExperimentSpaceLoader.FULL_DEPLOYMENT_NODE;
+    ExperimentDeployment d1 = deployment("a", "b");
+    client.create().compressed().creatingParentsIfNeeded().forPath(path, DeploymentDeltas.toBytes(d1));
+    client.create().compressed().forPath(fullPath, DeploymentDeltas.toBytes(d1));
+
+    NodeCacheExperimentSpaceLoader loader = new NodeCacheExperimentSpaceLoader(client, path, 0L);
+    assertEquals(d1, getDeployment(loader));
+
+    // Apply a delta to the current deployment
+    ExperimentDeployment d2 = deployment("a", "c", "d");
+    client.setData().compressed().forPath(fullPath, DeploymentDeltas.toBytes(d2));
+    client.setData().compressed().forPath(path, DeploymentDeltas.toBytes(DeploymentDeltas.compute(d1, d2)));
+    Thread.sleep(1000L);
+    assertEquals(DeploymentDeltas.fingerprint(d2), DeploymentDeltas.fingerprint(getDeployment(loader)));
+
+    // A delta against a deployment the loader never saw falls back to the full deployment
+    ExperimentDeployment d3 = deployment("e");
+    ExperimentDeployment d4 = deployment("f");
+    client.setData().compressed().forPath(fullPath, DeploymentDeltas.toBytes(d4));
+    client.setData().compressed().forPath(path, DeploymentDeltas.toBytes(DeploymentDeltas.compute(d3, d4)));
+    Thread.sleep(1000L);
+    assertEquals(d4, getDeployment(loader));
+    loader.close();
+  }
+
+  @Test
+  public void testRetryAfterResolveFailure() throws Exception {
+    TestingServer server = new TestingServer();
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        server.getConnectString(),
+        new ExponentialBackoffRetry(500, 3));
+    client.start();
+    String path = "/example/retry";
+    String fullPath = path + "/" + NodeCacheExperimentSpaceLoader.FULL_DEPLOYMENT_NODE;
+    ExperimentDeployment d1 = deployment("a");
+    client.create().compressed().creatingParentsIfNeeded().forPath(path, DeploymentDeltas.toBytes(d1));
+
+    NodeCacheExperimentSpaceLoader loader = new NodeCacheExperimentSpaceLoader(client, path, 0L);
+    ExperimentsRuntime runtime = new ExperimentsRuntime("retry");
+    runtime.registerLoader(loader);
+    runtime.registerDeserializer(new TestExperimentSpaceDeserializer());
+    runtime.registerConditionFactory(new TestConditionFactory());
+    ExperimentHandler handler = runtime.getHandler();
+    String version = mzxid(client, path);
+    assertEquals(version, handler.getVersionIdentifier());
+
+    // The delta does not apply and the full deployment is missing, so the new version cannot be resolved yet.
+    ExperimentDeployment d2 = deployment("b");
+    ExperimentDeployment d3 = deployment("c");
+    client.setData().compressed().forPath(path, DeploymentDeltas.toBytes(DeploymentDeltas.compute(d2, d3)));
+    Thread.sleep(500L);
+    assertEquals(version, handler.getVersionIdentifier());
+
+    // Once the full deployment shows up, the retry picks it up without another change to the node.
+    client.create().compressed().forPath(fullPath, DeploymentDeltas.toBytes(d3));
+    Thread.sleep(2500L);
+    assertEquals(mzxid(client, path), handler.getVersionIdentifier());
+    assertEquals(d3, getDeployment(loader));
+    loader.close();
   }
 }
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.curator;
+
+import com.cloudera.gertrude.ExperimentSpace;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PathChildrenCacheExperimentSpaceLoaderTest {
+
+  private static final String PATH = "/example/fragments";
+
+  @Test
+  public void testFragments() throws Exception {
+    TestingServer server = new TestingServer();
+    CuratorFramework client = CuratorFrameworkFactory.newClient(
+        server.getConnectString(),
+        new ExponentialBackoffRetry(500, 3));
+    client.start();
+    client.create().creatingParentsIfNeeded().forPath(PATH);
+
+    PathChildrenCacheExperimentSpaceLoader loader = new PathChildrenCacheExperimentSpaceLoader(client, PATH);
+    assertFalse(loader.getSerialized().isPresent());
+
+    byte[] b = "teamB".getBytes();
+    byte[] a = "teamA".getBytes();
+    client.create().compressed().forPath(PATH + "/b", b);
+    client.create().compressed().forPath(PATH + "/a", a);
+    Thread.sleep(1000L);
+
+    Optional<ExperimentSpace.Serialized> serData = loader.getSerialized();
+    assertEquals(2, serData.get().getSerializedData().size());
+    assertArrayEquals(a, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+    assertArrayEquals(b, ByteStreams.toByteArray(serData.get().getSerializedData().get(1)));
+    String firstVersion = serData.get().getVersionIdentifier();
+    String aVersion = serData.get().getPartVersionIdentifiers().get(0);
+    String bVersion = serData.get().getPartVersionIdentifiers().get(1);
+
+    byte[] b2 = "otherTeamB".getBytes();
+    client.setData().compressed().forPath(PATH + "/b", b2);
+    Thread.sleep(1000L);
+
+    serData = loader.getSerialized();
+    assertArrayEquals(b2, ByteStreams.toByteArray(serData.get().getSerializedData().get(1)));
+    assertNotEquals(firstVersion, serData.get().getVersionIdentifier());
+    assertEquals(aVersion, serData.get().getPartVersionIdentifiers().get(0));
+    assertNotEquals(bVersion, serData.get().getPartVersionIdentifiers().get(1));
+
+    client.delete().forPath(PATH + "/a");
+    Thread.sleep(1000L);
+    serData = loader.getSerialized();
+    assertEquals(1, serData.get().getSerializedData().size());
+    assertArrayEquals(b2, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+  }
+}
@@ -16,6 +16,9 @@ package com.cloudera.gertrude.deploy;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParametersDelegate;
+import com.cloudera.gertrude.ConditionFactory;
+import com.cloudera.gertrude.ExperimentFlag;
+import com.cloudera.gertrude.ExperimentSpace;
 import com.cloudera.gertrude.experiments.avro.BucketRange;
 import com.cloudera.gertrude.experiments.avro.ConditionDefinition;
 import com.cloudera.gertrude.experiments.avro.ConditionOperator;
@@ -33,21 +36,31 @@ import com.cloudera.gertrude.space.AvroExperimentSpaceDeserializer;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class AvroSupport {
 
@@ -57,6 +70,10 @@ public class AvroSupport {
   @Parameter(names = "--timezone-id", description = "ID of the defaullt timezone to use for parsing datetime values")
   private String timeZoneId = DateTimeZone.getDefault().getID();
 
+  @Parameter(names = "--codec",
+      description = "The codec for Avro data file output: null, deflate, deflate-<level>, snappy, or bzip2")
+  private String codec = "null";
+
   @ParametersDelegate
   private ConditionFactorySupport conditionFactorySupport = new ConditionFactorySupport();
 
@@ -86,8 +103,20 @@ public class AvroSupport {
     return baos.toByteArray();
   }
 
+  public void setCodec(String codec) {
+    this.codec = codec;
+  }
+
+  static CodecFactory getCodecFactory(String codec) {
+    if (codec.startsWith("deflate-")) {
+      return CodecFactory.deflateCodec(Integer.parseInt(codec.substring("deflate-".length())));
+    }
+    return CodecFactory.fromString(codec);
+  }
+
   public void deploy(ExperimentDeployment deployment, String outputFile) throws IOException {
     DataFileWriter<ExperimentDeployment> dfw = new DataFileWriter<ExperimentDeployment>(writer)
+        .setCodec(getCodecFactory(codec))
         .create(ExperimentDeployment.getClassSchema(), new File(outputFile));
     dfw.append(deployment);
     dfw.close();
@@ -108,17 +137,74 @@ public class AvroSupport {
   public ExperimentDeployment createDeployment(Config base) throws IOException {
     ExperimentDeployment deployment = toExperimentDeployment(base);
     if (!skipValidation) {
-      AvroExperimentSpaceDeserializer deserializer = new AvroExperimentSpaceDeserializer(false);
-      deserializer.initialize(
-          experimentFlagSupport.getExperimentFlags(),
-          conditionFactorySupport.getConditionFactory());
-      if (deserializer.load(deployment, "VALIDATIION") == null) {
+      if (createExperimentSpace(deployment, "VALIDATIION") == null) {
         return null;
       }
     }
     return deployment;
   }
 
+  /**
+   * Reads a deployment from either an Avro data file that was written by {@link #deploy} or a config file
+   * in JSON or HOCON format.
+   */
+  public ExperimentDeployment loadDeployment(File file) throws IOException {
+    if (isAvroDataFile(file)) {
+      DataFileReader<ExperimentDeployment> reader = new DataFileReader<ExperimentDeployment>(file,
+          new SpecificDatumReader<ExperimentDeployment>(ExperimentDeployment.class));
+      try {
+        return reader.next();
+      } finally {
+        reader.close();
+      }
+    }
+    return createDeployment(ConfigFactory.parseFileAnySyntax(file));
+  }
+
+  /**
+   * Creates the {@link ExperimentSpace} for the given deployment using the configured flags and conditions,
+   * or returns null if the deployment is not valid.
+   */
+  public ExperimentSpace createExperimentSpace(ExperimentDeployment deployment, String versionIdentifier)
+      throws IOException {
+    AvroExperimentSpaceDeserializer deserializer = new AvroExperimentSpaceDeserializer(false);
+    deserializer.initialize(getExperimentFlags(), getConditionFactory());
+    return deserializer.load(deployment, versionIdentifier);
+  }
+
+  /**
+   * Declares the flags from the {@code --flags-file} in the default runtime and returns them by name.
+   */
+  public Map<String, ExperimentFlag<?>> getExperimentFlags() throws IOException {
+    return experimentFlagSupport.getExperimentFlags();
+  }
+
+  /**
+   * Returns the condition factory for the {@code --condition-factory} class or the {@code --conditions-file}.
+   */
+  public ConditionFactory getConditionFactory() throws IOException {
+    return conditionFactorySupport.getConditionFactory();
+  }
+
+  /**
+   * Returns true if the conditions of the spaces that are created by this instance are evaluated for real,
+   * instead of always being true.
+   */
+  public boolean isEvaluatingConditions() {
+    return conditionFactorySupport.isEvaluatingConditions();
+  }
+
+  private static boolean isAvroDataFile(File file) throws IOException {
+    byte[] header = new byte[DataFileConstants.MAGIC.length];
+    InputStream in = new FileInputStream(file);
+    try {
+      return ByteStreams.read(in, header, 0, header.length) == header.length &&
+          Arrays.equals(header, DataFileConstants.MAGIC);
+    } finally {
+      in.close();
+    }
+  }
+
   private static ExperimentDeployment toExperimentDeployment(Config base) {
     List<ExperimentDefinition> experimentDefinitions = Lists.newArrayList();
     experimentDefinitions.addAll(getExperiments(getConfigList(base, "EXPERIMENTS", false), false));
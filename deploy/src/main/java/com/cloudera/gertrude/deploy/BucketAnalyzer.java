@@ -0,0 +1,462 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.deploy;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.cloudera.gertrude.space.LayerImpl;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures how well candidate hash functions assign identifiers to buckets, as evidence for whether a faster
+ * hash than MD5 could be used by the {@link LayerImpl}.
+ *
+ * <p>Each identifier is hashed with each layer id as the salt, exactly as a layer would hash it. For every
+ * hash function, the analyzer reports a chi-square test of the uniformity of the bucket counts in each layer
+ * and, for every pair of layers, a chi-square test of the independence of an identifier's buckets in the two
+ * layers (over a coarser grid of bucket ranges) along with the correlation of its bucket numbers. Each
+ * chi-square statistic is also reported as an approximate standard normal z-score using the Wilson-Hilferty
+ * transformation, so values with an absolute value of more than about 3 indicate a problem. The identifiers
+ * are read in batches that are hashed in parallel, and the time spent hashing is reported for each function.
+ */
+public class BucketAnalyzer {
+
+  private static final Logger log = LoggerFactory.getLogger(BucketAnalyzer.class);
+
+  public static final Map<String, HashFunction> HASH_FUNCTIONS = ImmutableMap.<String, HashFunction>builder()
+      .put("md5", Hashing.md5())
+      .put("sha1", Hashing.sha1())
+      .put("sha256", Hashing.sha256())
+      .put("murmur3_32", Hashing.murmur3_32())
+      .put("murmur3_128", Hashing.murmur3_128())
+      .build();
+
+  @Parameter(names = "--identifiers",
+      description = "A file of identifiers, one per line, optionally gzipped. Overrides --synthetic.")
+  private String identifiersFile;
+
+  @Parameter(names = "--synthetic", description = "The number of sequential synthetic identifiers to generate.")
+  private long synthetic = 1000000;
+
+  @Parameter(names = "--synthetic-prefix", description = "The prefix for the synthetic identifiers.")
+  private String syntheticPrefix = "user";
+
+  @Parameter(names = "--hashes", description = "The hash functions to evaluate.")
+  private List<String> hashNames = Lists.newArrayList(HASH_FUNCTIONS.keySet());
+
+  @Parameter(names = "--layers", description = "The layer ids to use as salts.")
+  private List<Integer> layerIds = Lists.newArrayList(0, 1, 2);
+
+  @Parameter(names = "--num-buckets", description = "The number of buckets for the diversion criterion.")
+  private int numBuckets = 1000;
+
+  @Parameter(names = "--grid-size",
+      description = "The number of bucket ranges per layer to use in the cross-layer independence test.")
+  private int gridSize = 20;
+
+  @Parameter(names = "--threads", description = "The number of threads to hash identifiers on.")
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = "--batch-size", description = "The number of identifiers in each batch of work.")
+  private int batchSize = 10000;
+
+  @Parameter(names = {"help", "-help", "-h", "--help"}, help = true, hidden = true)
+  private boolean help = false;
+
+  private BucketAnalyzer() {}
+
+  public BucketAnalyzer(List<String> hashNames, List<Integer> layerIds, int numBuckets, int gridSize,
+                        int threads, int batchSize) {
+    this.hashNames = hashNames;
+    this.layerIds = layerIds;
+    this.numBuckets = numBuckets;
+    this.gridSize = gridSize;
+    this.threads = threads;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Hashes the given identifiers with each of the configured hash functions and layer ids.
+   *
+   * @return the statistics for each hash function, in the order of the configured hash names
+   */
+  public Map<String, BucketStats> analyze(Iterator<String> identifiers) throws InterruptedException {
+    Preconditions.checkArgument(layerIds.size() > 0, "At least one layer id is required");
+    Preconditions.checkArgument(gridSize > 1 && gridSize <= numBuckets,
+        "Grid size must be between 2 and the number of buckets: %s", gridSize);
+    Map<String, HashFunction> hashes = Maps.newLinkedHashMap();
+    for (String name : hashNames) {
+      HashFunction hash = HASH_FUNCTIONS.get(name);
+      if (hash == null) {
+        throw new IllegalArgumentException("Unknown hash function: " + name + ", expected one of " +
+            HASH_FUNCTIONS.keySet());
+      }
+      hashes.put(name, hash);
+    }
+    int[] layers = new int[layerIds.size()];
+    for (int i = 0; i < layers.length; i++) {
+      layers[i] = layerIds.get(i);
+    }
+
+    Map<String, BucketStats> ret = Maps.newLinkedHashMap();
+    for (String name : hashes.keySet()) {
+      ret.put(name, new BucketStats(layers, numBuckets, gridSize));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("buckets-%d").setDaemon(true).build());
+    LinkedList<Future<Map<String, BucketStats>>> inFlight = Lists.newLinkedList();
+    try {
+      while (identifiers.hasNext()) {
+        List<String> batch = Lists.newArrayListWithCapacity(batchSize);
+        while (identifiers.hasNext() && batch.size() < batchSize) {
+          batch.add(identifiers.next());
+        }
+        inFlight.add(executor.submit(new Batch(batch, hashes, layers, numBuckets, gridSize)));
+        if (inFlight.size() >= 2 * threads) {
+          merge(ret, getUnchecked(inFlight.removeFirst()));
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        merge(ret, getUnchecked(inFlight.removeFirst()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return ret;
+  }
+
+  private static void merge(Map<String, BucketStats> into, Map<String, BucketStats> from) {
+    for (Map.Entry<String, BucketStats> e : from.entrySet()) {
+      into.get(e.getKey()).merge(e.getValue());
+    }
+  }
+
+  private static Map<String, BucketStats> getUnchecked(Future<Map<String, BucketStats>> future)
+      throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Error hashing identifiers", e.getCause());
+    }
+  }
+
+  private static final class Batch implements Callable<Map<String, BucketStats>> {
+    private final List<String> identifiers;
+    private final Map<String, HashFunction> hashes;
+    private final int[] layers;
+    private final int numBuckets;
+    private final int gridSize;
+
+    private Batch(List<String> identifiers, Map<String, HashFunction> hashes, int[] layers, int numBuckets,
+                  int gridSize) {
+      this.identifiers = identifiers;
+      this.hashes = hashes;
+      this.layers = layers;
+      this.numBuckets = numBuckets;
+      this.gridSize = gridSize;
+    }
+
+    @Override
+    public Map<String, BucketStats> call() {
+      Map<String, BucketStats> ret = Maps.newLinkedHashMap();
+      int[] buckets = new int[identifiers.size() * layers.length];
+      for (Map.Entry<String, HashFunction> e : hashes.entrySet()) {
+        HashFunction hash = e.getValue();
+        long start = System.nanoTime();
+        int i = 0;
+        for (String identifier : identifiers) {
+          for (int layerId : layers) {
+            buckets[i++] = LayerImpl.computeBucket(hash, layerId, identifier, numBuckets);
+          }
+        }
+        BucketStats stats = new BucketStats(layers, numBuckets, gridSize);
+        stats.hashNanos = System.nanoTime() - start;
+        for (int j = 0; j < buckets.length; j += layers.length) {
+          stats.add(buckets, j);
+        }
+        ret.put(e.getKey(), stats);
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * The bucket assignments of a set of identifiers under a single hash function.
+   */
+  public static final class BucketStats {
+    private final int[] layers;
+    private final int numBuckets;
+    private final int gridSize;
+    private final long[][] counts; // [layer][bucket]
+    private final long[][] grids; // [pair][row * gridSize + column]
+    private final double[][] sums; // [pair][x, y, xx, yy, xy]
+    private long identifiers;
+    private long hashNanos;
+
+    private BucketStats(int[] layers, int numBuckets, int gridSize) {
+      this.layers = layers;
+      this.numBuckets = numBuckets;
+      this.gridSize = gridSize;
+      this.counts = new long[layers.length][numBuckets];
+      int pairs = layers.length * (layers.length - 1) / 2;
+      this.grids = new long[pairs][gridSize * gridSize];
+      this.sums = new double[pairs][5];
+    }
+
+    private void add(int[] buckets, int offset) {
+      identifiers++;
+      int pair = 0;
+      for (int i = 0; i < layers.length; i++) {
+        int x = buckets[offset + i];
+        counts[i][x]++;
+        for (int j = i + 1; j < layers.length; j++, pair++) {
+          int y = buckets[offset + j];
+          grids[pair][cell(x) * gridSize + cell(y)]++;
+          double[] s = sums[pair];
+          s[0] += x;
+          s[1] += y;
+          s[2] += (double) x * x;
+          s[3] += (double) y * y;
+          s[4] += (double) x * y;
+        }
+      }
+    }
+
+    private int cell(int bucket) {
+      return (int) ((long) bucket * gridSize / numBuckets);
+    }
+
+    private void merge(BucketStats other) {
+      identifiers += other.identifiers;
+      hashNanos += other.hashNanos;
+      for (int i = 0; i < counts.length; i++) {
+        for (int j = 0; j < numBuckets; j++) {
+          counts[i][j] += other.counts[i][j];
+        }
+      }
+      for (int i = 0; i < grids.length; i++) {
+        for (int j = 0; j < grids[i].length; j++) {
+          grids[i][j] += other.grids[i][j];
+        }
+        for (int j = 0; j < sums[i].length; j++) {
+          sums[i][j] += other.sums[i][j];
+        }
+      }
+    }
+
+    public long getIdentifiers() {
+      return identifiers;
+    }
+
+    /** The average time spent computing one bucket, in nanoseconds. */
+    public double getNanosPerHash() {
+      return identifiers == 0 ? 0.0 : (double) hashNanos / (identifiers * layers.length);
+    }
+
+    /** The chi-square statistic for the uniformity of the bucket counts in the layer at the given index. */
+    public double getUniformityChiSquare(int layerIndex) {
+      double expected = (double) identifiers / numBuckets;
+      double ret = 0.0;
+      for (long count : counts[layerIndex]) {
+        double d = count - expected;
+        ret += d * d / expected;
+      }
+      return ret;
+    }
+
+    public int getUniformityDegreesOfFreedom() {
+      return numBuckets - 1;
+    }
+
+    /**
+     * The chi-square statistic for the independence of the bucket ranges of the identifiers in the layers
+     * at the given indices.
+     */
+    public double getIndependenceChiSquare(int firstIndex, int secondIndex) {
+      long[] grid = grids[pairIndex(firstIndex, secondIndex)];
+      long[] rows = new long[gridSize];
+      long[] columns = new long[gridSize];
+      for (int r = 0; r < gridSize; r++) {
+        for (int c = 0; c < gridSize; c++) {
+          rows[r] += grid[r * gridSize + c];
+          columns[c] += grid[r * gridSize + c];
+        }
+      }
+      double ret = 0.0;
+      for (int r = 0; r < gridSize; r++) {
+        for (int c = 0; c < gridSize; c++) {
+          double expected = (double) rows[r] * columns[c] / identifiers;
+          if (expected > 0) {
+            double d = grid[r * gridSize + c] - expected;
+            ret += d * d / expected;
+          }
+        }
+      }
+      return ret;
+    }
+
+    public int getIndependenceDegreesOfFreedom() {
+      return (gridSize - 1) * (gridSize - 1);
+    }
+
+    /** The Pearson correlation of the bucket numbers of the identifiers in the layers at the given indices. */
+    public double getCorrelation(int firstIndex, int secondIndex) {
+      double[] s = sums[pairIndex(firstIndex, secondIndex)];
+      double n = identifiers;
+      double cov = s[4] / n - (s[0] / n) * (s[1] / n);
+      double varX = s[2] / n - (s[0] / n) * (s[0] / n);
+      double varY = s[3] / n - (s[1] / n) * (s[1] / n);
+      return varX <= 0 || varY <= 0 ? 0.0 : cov / Math.sqrt(varX * varY);
+    }
+
+    private int pairIndex(int first, int second) {
+      Preconditions.checkArgument(first < second && second < layers.length,
+          "Invalid layer indices: %s, %s", first, second);
+      // Pairs are numbered in the order (0, 1), (0, 2), ..., (1, 2), ...
+      return first * (2 * layers.length - first - 1) / 2 + (second - first - 1);
+    }
+
+    public void print(String name, PrintStream out) {
+      out.printf("%s: %d identifiers, %.1f ns per hash%n", name, identifiers, getNanosPerHash());
+      out.printf("  %-16s %14s %6s %8s %10s %10s%n", "uniformity", "chi-square", "dof", "z", "min", "max");
+      for (int i = 0; i < layers.length; i++) {
+        long min = Long.MAX_VALUE;
+        long max = 0L;
+        for (long count : counts[i]) {
+          min = Math.min(min, count);
+          max = Math.max(max, count);
+        }
+        double chi2 = getUniformityChiSquare(i);
+        out.printf("  layer %-10d %14.2f %6d %8.2f %10d %10d%n", layers[i], chi2,
+            getUniformityDegreesOfFreedom(), zScore(chi2, getUniformityDegreesOfFreedom()), min, max);
+      }
+      out.printf("  %-16s %14s %6s %8s %12s%n", "independence", "chi-square", "dof", "z", "correlation");
+      for (int i = 0; i < layers.length; i++) {
+        for (int j = i + 1; j < layers.length; j++) {
+          double chi2 = getIndependenceChiSquare(i, j);
+          out.printf("  layers %-9s %14.2f %6d %8.2f %12.6f%n", layers[i] + "/" + layers[j], chi2,
+              getIndependenceDegreesOfFreedom(), zScore(chi2, getIndependenceDegreesOfFreedom()),
+              getCorrelation(i, j));
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts a chi-square statistic into an approximately standard normal z-score using the Wilson-Hilferty
+   * transformation.
+   */
+  public static double zScore(double chiSquare, int degreesOfFreedom) {
+    double k = degreesOfFreedom;
+    double v = 2.0 / (9.0 * k);
+    return (Math.cbrt(chiSquare / k) - (1.0 - v)) / Math.sqrt(v);
+  }
+
+  private static Iterator<String> synthetic(final String prefix, final long count) {
+    return new AbstractIterator<String>() {
+      private long next = 0;
+
+      @Override
+      protected String computeNext() {
+        return next < count ? prefix + (next++) : endOfData();
+      }
+    };
+  }
+
+  private static Iterator<String> lines(final BufferedReader reader) {
+    return new AbstractIterator<String>() {
+      @Override
+      protected String computeNext() {
+        try {
+          String line = reader.readLine();
+          return line == null ? endOfData() : line;
+        } catch (IOException e) {
+          throw new IllegalStateException("Error reading identifiers", e);
+        }
+      }
+    };
+  }
+
+  private int run(String[] args) throws Exception {
+    JCommander jc = new JCommander(this);
+    jc.setProgramName("buckets");
+    try {
+      jc.parse(args);
+    } catch (ParameterException e) {
+      log.error(e.getLocalizedMessage());
+      jc.usage();
+      return 1;
+    }
+
+    if (help) {
+      jc.usage();
+      return 0;
+    }
+
+    long start = System.currentTimeMillis();
+    Map<String, BucketStats> stats;
+    if (identifiersFile == null) {
+      stats = analyze(synthetic(syntheticPrefix, synthetic));
+    } else {
+      InputStream in = new FileInputStream(identifiersFile);
+      if (identifiersFile.endsWith(".gz")) {
+        in = new GZIPInputStream(in, 1 << 16);
+      }
+      try {
+        stats = analyze(lines(new BufferedReader(new InputStreamReader(in, Charsets.UTF_8), 1 << 16)));
+      } finally {
+        in.close();
+      }
+    }
+    log.info("Analyzed {} hash functions in {} ms", stats.size(), System.currentTimeMillis() - start);
+    for (Map.Entry<String, BucketStats> e : stats.entrySet()) {
+      e.getValue().print(e.getKey(), System.out);
+      System.out.println();
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(new BucketAnalyzer().run(args));
+  }
+}
@@ -0,0 +1,458 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.deploy;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+import com.cloudera.gertrude.AbstractExperimentState;
+import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.experiments.avro.ExperimentDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.LayerDefinition;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Estimates how many users will move between experiments when one experiment deployment is replaced by
+ * another, by diverting a file of diversion identifiers through the {@link ExperimentSpace} of each
+ * deployment and comparing the results for every layer and experiment.
+ *
+ * <p>Each line of the identifier file contains the tab-separated identifiers for the diversion criteria
+ * given by {@code --diversion-ids}, and files whose names end in {@code .gz} are decompressed on the fly. The
+ * file is read in batches that are diverted in parallel, with a bounded number of batches in flight. Conditions
+ * are only evaluated if a {@code --condition-factory} class is given; under the {@code --conditions-file} every
+ * condition is true, so the simulation only measures the churn due to changes in buckets, hashing, layers, and
+ * experiment timing, and a warning lists the experiments whose conditions were not modeled.
+ */
+public class ChurnSimulator {
+
+  private static final Logger log = LoggerFactory.getLogger(ChurnSimulator.class);
+  private static final Pattern TAB = Pattern.compile("\t");
+
+  @Parameter(names = "--before", description = "The current deployment, as an Avro data file or config file.",
+      required = true)
+  private String beforeFile;
+
+  @Parameter(names = "--after", description = "The new deployment, as an Avro data file or config file.",
+      required = true)
+  private String afterFile;
+
+  @Parameter(names = "--identifiers",
+      description = "A file of diversion identifiers, one request per line, optionally gzipped.", required = true)
+  private String identifiersFile;
+
+  @Parameter(names = "--diversion-ids",
+      description = "The diversion ids of the tab-separated identifiers on each line of the identifier file.")
+  private List<Integer> diversionIds = Lists.newArrayList(0);
+
+  @Parameter(names = "--request-time",
+      description = "The time of the simulated requests, as an ISO-8601 date-time or milliseconds since the epoch.")
+  private String requestTime;
+
+  @Parameter(names = "--threads", description = "The number of threads to divert requests on.")
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = "--batch-size", description = "The number of identifiers in each batch of work.")
+  private int batchSize = 10000;
+
+  @Parameter(names = {"help", "-help", "-h", "--help"}, help = true, hidden = true)
+  private boolean help = false;
+
+  @ParametersDelegate
+  private AvroSupport avroSupport = new AvroSupport();
+
+  private ChurnSimulator() {}
+
+  public ChurnSimulator(AvroSupport avroSupport, List<Integer> diversionIds, int threads, int batchSize) {
+    this.avroSupport = avroSupport;
+    this.diversionIds = diversionIds;
+    this.threads = threads;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Diverts each line of identifiers from the given reader through both deployments at the given time.
+   */
+  public ChurnReport simulate(
+      ExperimentDeployment before,
+      ExperimentDeployment after,
+      Reader identifiers,
+      long requestTimeMsec) throws IOException, InterruptedException {
+    ExperimentSpace beforeSpace = avroSupport.createExperimentSpace(before, "before");
+    ExperimentSpace afterSpace = avroSupport.createExperimentSpace(after, "after");
+    if (beforeSpace == null || afterSpace == null) {
+      throw new IllegalArgumentException("Could not create experiment spaces for both deployments");
+    }
+    if (!avroSupport.isEvaluatingConditions()) {
+      SortedSet<Integer> conditioned = conditionedExperimentIds(before);
+      conditioned.addAll(conditionedExperimentIds(after));
+      if (!conditioned.isEmpty()) {
+        log.warn("Churn due to the conditions of experiments {} is not modeled, since every condition is true " +
+            "without a --condition-factory", conditioned);
+      }
+    }
+    ChurnReport report = new ChurnReport(layersById(before), layersById(after));
+    int[] ids = new int[diversionIds.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = diversionIds.get(i);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("churn-%d").setDaemon(true).build());
+    LinkedList<Future<ChurnReport>> inFlight = Lists.newLinkedList();
+    try {
+      BufferedReader reader = new BufferedReader(identifiers, 1 << 16);
+      List<String> batch = Lists.newArrayListWithCapacity(batchSize);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        batch.add(line);
+        if (batch.size() == batchSize) {
+          inFlight.add(executor.submit(new Batch(batch, ids, requestTimeMsec, beforeSpace, afterSpace, report)));
+          batch = Lists.newArrayListWithCapacity(batchSize);
+          if (inFlight.size() >= 2 * threads) {
+            report.merge(getUnchecked(inFlight.removeFirst()));
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        inFlight.add(executor.submit(new Batch(batch, ids, requestTimeMsec, beforeSpace, afterSpace, report)));
+      }
+      while (!inFlight.isEmpty()) {
+        report.merge(getUnchecked(inFlight.removeFirst()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return report;
+  }
+
+  private static ChurnReport getUnchecked(Future<ChurnReport> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Error simulating diversion", e.getCause());
+    }
+  }
+
+  private static SortedSet<Integer> conditionedExperimentIds(ExperimentDeployment deployment) {
+    SortedSet<Integer> ret = Sets.newTreeSet();
+    for (ExperimentDefinition experiment : deployment.getExperiments()) {
+      if (experiment.getConditions() != null && !experiment.getConditions().isEmpty()) {
+        ret.add(experiment.getId());
+      }
+    }
+    return ret;
+  }
+
+  private static Map<Integer, Integer> layersById(ExperimentDeployment deployment) {
+    Map<Integer, Integer> ret = Maps.newHashMap();
+    for (LayerDefinition layer : deployment.getLayers()) {
+      ret.put(layer.getUnbiasedId(), layer.getId());
+      // Biased ids of zero mean that the layer does not use them.
+      if (layer.getFixedBiasedId() != 0) {
+        ret.put(layer.getFixedBiasedId(), layer.getId());
+      }
+      if (layer.getRandomBiasedId() != 0) {
+        ret.put(layer.getRandomBiasedId(), layer.getId());
+      }
+    }
+    for (ExperimentDefinition experiment : deployment.getExperiments()) {
+      if (!experiment.getDomain()) {
+        ret.put(experiment.getId(), experiment.getLayerId());
+      }
+    }
+    return ret;
+  }
+
+  private static final class Batch implements Callable<ChurnReport> {
+    private final List<String> lines;
+    private final int[] diversionIds;
+    private final long requestTimeMsec;
+    private final ExperimentSpace before;
+    private final ExperimentSpace after;
+    private final ChurnReport template;
+
+    private Batch(List<String> lines, int[] diversionIds, long requestTimeMsec,
+                  ExperimentSpace before, ExperimentSpace after, ChurnReport template) {
+      this.lines = lines;
+      this.diversionIds = diversionIds;
+      this.requestTimeMsec = requestTimeMsec;
+      this.before = before;
+      this.after = after;
+      this.template = template;
+    }
+
+    @Override
+    public ChurnReport call() {
+      ChurnReport ret = template.newEmpty();
+      for (String line : lines) {
+        String[] identifiers = TAB.split(line, diversionIds.length);
+        Set<Integer> beforeIds = before.divert(new SimulatedState(diversionIds, identifiers, requestTimeMsec));
+        Set<Integer> afterIds = after.divert(new SimulatedState(diversionIds, identifiers, requestTimeMsec));
+        ret.add(beforeIds, afterIds);
+      }
+      return ret;
+    }
+  }
+
+  private static final class SimulatedState extends AbstractExperimentState {
+    private final int[] diversionIds;
+    private final String[] identifiers;
+    private final long requestTimeMsec;
+
+    private SimulatedState(int[] diversionIds, String[] identifiers, long requestTimeMsec) {
+      this.diversionIds = diversionIds;
+      this.identifiers = identifiers;
+      this.requestTimeMsec = requestTimeMsec;
+    }
+
+    @Override
+    public Optional<String> getDiversionIdentifier(int diversionId) {
+      for (int i = 0; i < diversionIds.length && i < identifiers.length; i++) {
+        if (diversionIds[i] == diversionId) {
+          return identifiers[i].isEmpty() ? Optional.<String>absent() : Optional.of(identifiers[i]);
+        }
+      }
+      return Optional.absent();
+    }
+
+    @Override
+    public long getRequestTimeMsec() {
+      return requestTimeMsec;
+    }
+  }
+
+  /**
+   * The number of simulated requests that stayed in or moved between the experiments of each layer. Domains
+   * do not add their own ids to a request, so a request that moves between domains is counted as moving in
+   * each of the layers that the domains contain.
+   */
+  public static final class ChurnReport {
+    private final Map<Integer, Integer> beforeLayers;
+    private final Map<Integer, Integer> afterLayers;
+    private final Map<Integer, long[]> layerCounts = Maps.newHashMap(); // {requests, moved}
+    private final Map<Integer, long[]> experimentCounts = Maps.newHashMap(); // {before, after, stayed}
+    private long requests;
+
+    private ChurnReport(Map<Integer, Integer> beforeLayers, Map<Integer, Integer> afterLayers) {
+      this.beforeLayers = beforeLayers;
+      this.afterLayers = afterLayers;
+    }
+
+    private ChurnReport newEmpty() {
+      return new ChurnReport(beforeLayers, afterLayers);
+    }
+
+    private void add(Set<Integer> beforeIds, Set<Integer> afterIds) {
+      requests++;
+      Map<Integer, Integer> beforeByLayer = byLayer(beforeIds, beforeLayers);
+      Map<Integer, Integer> afterByLayer = byLayer(afterIds, afterLayers);
+      for (Integer layerId : Sets.union(beforeByLayer.keySet(), afterByLayer.keySet())) {
+        long[] counts = counts(layerCounts, layerId, 2);
+        counts[0]++;
+        Integer b = beforeByLayer.get(layerId);
+        if (b == null || !b.equals(afterByLayer.get(layerId))) {
+          counts[1]++;
+        }
+      }
+      for (Integer id : beforeIds) {
+        long[] counts = counts(experimentCounts, id, 3);
+        counts[0]++;
+        if (afterIds.contains(id)) {
+          counts[2]++;
+        }
+      }
+      for (Integer id : afterIds) {
+        counts(experimentCounts, id, 3)[1]++;
+      }
+    }
+
+    private static Map<Integer, Integer> byLayer(Set<Integer> ids, Map<Integer, Integer> layers) {
+      Map<Integer, Integer> ret = Maps.newHashMapWithExpectedSize(ids.size());
+      for (Integer id : ids) {
+        Integer layerId = layers.get(id);
+        if (layerId != null) {
+          ret.put(layerId, id);
+        }
+      }
+      return ret;
+    }
+
+    private static long[] counts(Map<Integer, long[]> map, Integer key, int size) {
+      long[] ret = map.get(key);
+      if (ret == null) {
+        ret = new long[size];
+        map.put(key, ret);
+      }
+      return ret;
+    }
+
+    private void merge(ChurnReport other) {
+      requests += other.requests;
+      mergeCounts(layerCounts, other.layerCounts);
+      mergeCounts(experimentCounts, other.experimentCounts);
+    }
+
+    private static void mergeCounts(Map<Integer, long[]> into, Map<Integer, long[]> from) {
+      for (Map.Entry<Integer, long[]> e : from.entrySet()) {
+        long[] counts = counts(into, e.getKey(), e.getValue().length);
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] += e.getValue()[i];
+        }
+      }
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public SortedSet<Integer> getLayerIds() {
+      return Sets.newTreeSet(layerCounts.keySet());
+    }
+
+    public SortedSet<Integer> getExperimentIds() {
+      return Sets.newTreeSet(experimentCounts.keySet());
+    }
+
+    /** The number of requests that were in a different segment of the given layer, or only in one space. */
+    public long getMoved(int layerId) {
+      long[] counts = layerCounts.get(layerId);
+      return counts == null ? 0L : counts[1];
+    }
+
+    /** The number of requests that were diverted into the given experiment by the current deployment. */
+    public long getBefore(int experimentId) {
+      long[] counts = experimentCounts.get(experimentId);
+      return counts == null ? 0L : counts[0];
+    }
+
+    /** The number of requests that were diverted into the given experiment by the new deployment. */
+    public long getAfter(int experimentId) {
+      long[] counts = experimentCounts.get(experimentId);
+      return counts == null ? 0L : counts[1];
+    }
+
+    /** The number of requests that were diverted into the given experiment by both deployments. */
+    public long getStayed(int experimentId) {
+      long[] counts = experimentCounts.get(experimentId);
+      return counts == null ? 0L : counts[2];
+    }
+
+    public void print(PrintStream out) {
+      out.printf("Simulated requests: %d%n%n", requests);
+      out.printf("%-10s %12s %12s %8s%n", "layer", "requests", "moved", "churn");
+      for (Integer layerId : getLayerIds()) {
+        long[] counts = layerCounts.get(layerId);
+        out.printf("%-10d %12d %12d %7.3f%%%n", layerId, counts[0], counts[1], percent(counts[1], counts[0]));
+      }
+      out.printf("%n%-10s %-8s %9s %9s %12s %12s %12s%n",
+          "experiment", "layer", "before", "after", "stayed", "left", "joined");
+      for (Integer id : getExperimentIds()) {
+        long[] counts = experimentCounts.get(id);
+        Integer layerId = afterLayers.containsKey(id) ? afterLayers.get(id) : beforeLayers.get(id);
+        out.printf("%-10d %-8s %8.3f%% %8.3f%% %12d %12d %12d%n", id, layerId == null ? "-" : layerId,
+            percent(counts[0], requests), percent(counts[1], requests), counts[2],
+            counts[0] - counts[2], counts[1] - counts[2]);
+      }
+    }
+
+    private static double percent(long count, long total) {
+      return total == 0 ? 0.0 : 100.0 * count / total;
+    }
+  }
+
+  private static long parseRequestTime(String requestTime) {
+    if (requestTime == null) {
+      return System.currentTimeMillis();
+    }
+    try {
+      return Long.parseLong(requestTime);
+    } catch (NumberFormatException e) {
+      return DateTime.parse(requestTime).getMillis();
+    }
+  }
+
+  private int run(String[] args) throws Exception {
+    JCommander jc = new JCommander(this);
+    jc.setProgramName("churn");
+    try {
+      jc.parse(args);
+    } catch (ParameterException e) {
+      log.error(e.getLocalizedMessage());
+      jc.usage();
+      return 1;
+    }
+
+    if (help) {
+      jc.usage();
+      return 0;
+    }
+
+    ExperimentDeployment before = avroSupport.loadDeployment(new File(beforeFile));
+    ExperimentDeployment after = avroSupport.loadDeployment(new File(afterFile));
+    if (before == null || after == null) {
+      log.error("Could not load valid experiment deployments, exiting...");
+      return 1;
+    }
+    InputStream in = new FileInputStream(identifiersFile);
+    if (identifiersFile.endsWith(".gz")) {
+      in = new GZIPInputStream(in, 1 << 16);
+    }
+    long start = System.currentTimeMillis();
+    ChurnReport report;
+    try {
+      report = simulate(before, after, new InputStreamReader(in, Charsets.UTF_8), parseRequestTime(requestTime));
+    } finally {
+      in.close();
+    }
+    log.info("Simulated {} requests in {} ms", report.getRequests(), System.currentTimeMillis() - start);
+    report.print(System.out);
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(new ChurnSimulator().run(args));
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.deploy;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.cloudera.gertrude.condition.Cohort;
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds a {@link Cohort} file from a text file of ids, one per line, for use by the cohort conditions that are
+ * referenced in an experiment deployment. Files whose names end in {@code .gz} are decompressed on the fly.
+ * By default the cohort contains the exact ids; with {@code --bloom-fpp}, it is a Bloom filter with the given
+ * false positive rate instead, which takes about 10 bits per id at a rate of 1%. The output file is replaced
+ * atomically, so servers that have the old file mapped never see a partially written one.
+ *
+ * <p>This tool is run as the {@code cohort} command of {@link Cyclone}.
+ */
+public class CohortBuilder {
+
+  private static final Logger log = LoggerFactory.getLogger(CohortBuilder.class);
+
+  @Parameter(names = "--input", description = "A file of ids, one per line, optionally gzipped.", required = true)
+  private String inputFile;
+
+  @Parameter(names = "--output", description = "The cohort file to create.", required = true)
+  private String output;
+
+  @Parameter(names = "--bloom-fpp",
+      description = "The false positive rate of a Bloom filter cohort, or 0 for a cohort of the exact ids.")
+  private double bloomFpp = 0.0;
+
+  @Parameter(names = {"help", "-help", "-h", "--help"}, help = true, hidden = true)
+  private boolean help = false;
+
+  CohortBuilder() {}
+
+  public CohortBuilder(double bloomFpp) {
+    this.bloomFpp = bloomFpp;
+  }
+
+  /**
+   * Reads the ids from the given reader and writes the cohort file to the given stream.
+   *
+   * @return the number of ids that were read
+   */
+  public int build(Reader ids, OutputStream out) throws IOException {
+    long[] values = new long[1 << 16];
+    int count = 0;
+    BufferedReader reader = new BufferedReader(ids, 1 << 16);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (!line.isEmpty()) {
+        if (count == values.length) {
+          values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = Long.parseLong(line);
+      }
+    }
+    if (bloomFpp > 0.0) {
+      long numBits = Cohort.writeBloom(values, count, bloomFpp, out);
+      log.info("Wrote a Bloom filter of {} bits for {} ids", numBits, count);
+    } else {
+      long distinct = Cohort.writeSorted(values, count, out);
+      log.info("Wrote {} distinct ids out of {}", distinct, count);
+    }
+    return count;
+  }
+
+  int run(String[] args) throws Exception {
+    JCommander jc = new JCommander(this);
+    jc.setProgramName("cyclone cohort");
+    try {
+      jc.parse(args);
+    } catch (ParameterException e) {
+      log.error(e.getLocalizedMessage());
+      jc.usage();
+      return 1;
+    }
+
+    if (help) {
+      jc.usage();
+      return 0;
+    }
+
+    InputStream in = new FileInputStream(inputFile);
+    if (inputFile.endsWith(".gz")) {
+      in = new GZIPInputStream(in, 1 << 16);
+    }
+    // Servers may have the current file mapped, so the new one is written next to it and renamed over it.
+    File target = new File(output).getAbsoluteFile();
+    File tmp = File.createTempFile("." + target.getName() + "-", ".tmp", target.getParentFile());
+    boolean renamed = false;
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+      try {
+        build(new InputStreamReader(in, Charsets.UTF_8), out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(target)) {
+        throw new IOException("Could not rename " + tmp + " to " + target);
+      }
+      renamed = true;
+    } finally {
+      in.close();
+      if (!renamed && !tmp.delete()) {
+        log.warn("Could not delete temporary cohort file {}", tmp);
+      }
+    }
+    return 0;
+  }
+}
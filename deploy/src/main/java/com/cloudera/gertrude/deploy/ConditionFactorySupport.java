@@ -39,13 +39,44 @@ public class ConditionFactorySupport {
       description = "A file containing the names of valid conditions, one per line, used for validation.")
   private String conditionsFile;
 
+  @Parameter(names = "--condition-factory",
+      description = "The class name of a ConditionFactory with a public no-arg constructor that creates the " +
+          "real conditions, which are then evaluated instead of the always-true conditions of the --conditions-file.")
+  private String conditionFactoryClass;
+
   public ConditionFactorySupport() {}
 
   public ConditionFactorySupport(String conditionsFile) {
     this.conditionsFile = conditionsFile;
   }
 
+  public ConditionFactorySupport(String conditionsFile, String conditionFactoryClass) {
+    this.conditionsFile = conditionsFile;
+    this.conditionFactoryClass = conditionFactoryClass;
+  }
+
+  /**
+   * Returns true if the conditions are created by a {@code --condition-factory} class, so that they are
+   * evaluated for real instead of always being true.
+   */
+  public boolean isEvaluatingConditions() {
+    return conditionFactoryClass != null;
+  }
+
   public ConditionFactory getConditionFactory() throws IOException {
+    if (conditionFactoryClass != null) {
+      try {
+        return Class.forName(conditionFactoryClass).asSubclass(ConditionFactory.class).newInstance();
+      } catch (ClassNotFoundException e) {
+        throw new IllegalArgumentException("Condition factory class not found: " + conditionFactoryClass, e);
+      } catch (ClassCastException e) {
+        throw new IllegalArgumentException("Not a ConditionFactory: " + conditionFactoryClass, e);
+      } catch (InstantiationException e) {
+        throw new IllegalArgumentException("Could not create condition factory: " + conditionFactoryClass, e);
+      } catch (IllegalAccessException e) {
+        throw new IllegalArgumentException("Could not create condition factory: " + conditionFactoryClass, e);
+      }
+    }
     if (conditionsFile == null) {
       return new DeployConditionFactory();
     }
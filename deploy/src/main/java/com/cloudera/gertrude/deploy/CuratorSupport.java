@@ -15,12 +15,21 @@
 package com.cloudera.gertrude.deploy;
 
 import com.beust.jcommander.Parameter;
+import com.cloudera.gertrude.curator.ChunkedPayloads;
+import com.cloudera.gertrude.curator.NodeCacheExperimentSpaceLoader;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.space.DeploymentDeltas;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class CuratorSupport {
 
+  private static final Logger log = LoggerFactory.getLogger(CuratorSupport.class);
+
   @Parameter(names = "--zk-connect", description="The connection string for the Zookeeper instance.")
   private String connectString;
 
@@ -30,12 +39,34 @@ public class CuratorSupport {
   @Parameter(names = "--zk-retry-interval", description="The retry interval for Zookeeper, in milliseconds.")
   private int retryMs = 2000;
 
+  @Parameter(names = "--zk-compression-level",
+      description="The gzip compression level (0-9, or -1 for the default) for data written to Zookeeper.")
+  private int compressionLevel = -1;
+
+  @Parameter(names = "--zk-chunk-size",
+      description="The maximum bytes to write to a single Zookeeper node; larger payloads are split into chunks.")
+  private int chunkSize = ChunkedPayloads.DEFAULT_CHUNK_SIZE;
+
+  @Parameter(names = "--delta",
+      description="Write the changes since the last deployment to Zookeeper instead of the full deployment.")
+  private boolean delta = false;
+
   public CuratorSupport() {}
 
   public CuratorSupport(String connectString) {
     this.connectString = connectString;
   }
 
+  public CuratorSupport(String connectString, int compressionLevel, int chunkSize) {
+    this.connectString = connectString;
+    this.compressionLevel = compressionLevel;
+    this.chunkSize = chunkSize;
+  }
+
+  public void setDelta(boolean delta) {
+    this.delta = delta;
+  }
+
   public boolean isEnabled() {
     return connectString != null;
   }
@@ -44,10 +75,48 @@ public class CuratorSupport {
     CuratorFramework client = CuratorFrameworkFactory.newClient(connectString,
         new RetryNTimes(retryTimes, retryMs));
     client.start();
-    if (client.checkExists().forPath(output) == null) {
-      client.create().creatingParentsIfNeeded().forPath(output);
+    try {
+      ChunkedPayloads.write(client, output, deploymentData, chunkSize, compressionLevel);
+    } finally {
+      client.close();
+    }
+  }
+
+  /**
+   * Writes the given deployment to Zookeeper. In delta mode, the full deployment is also written to a child
+   * of the output node, and the output node only receives the changes since the previous full deployment
+   * (if there was one and the changes are smaller than the full deployment).
+   */
+  public void deploy(ExperimentDeployment deployment, String output) throws Exception {
+    byte[] full = DeploymentDeltas.toBytes(deployment);
+    if (!delta) {
+      deploy(full, output);
+      return;
+    }
+    CuratorFramework client = CuratorFrameworkFactory.newClient(connectString,
+        new RetryNTimes(retryTimes, retryMs));
+    client.start();
+    try {
+      String fullPath = ZKPaths.makePath(output, NodeCacheExperimentSpaceLoader.FULL_DEPLOYMENT_NODE);
+      if (client.checkExists().forPath(fullPath) == null) {
+        log.info("No previous full deployment at {}, writing full deployment", fullPath);
+        ChunkedPayloads.write(client, output, full, chunkSize, compressionLevel);
+        ChunkedPayloads.write(client, fullPath, full, chunkSize, compressionLevel);
+        return;
+      }
+      ExperimentDeployment previous = DeploymentDeltas.deploymentFromBytes(
+          ChunkedPayloads.readNode(client, fullPath));
+      byte[] deltaData = DeploymentDeltas.toBytes(DeploymentDeltas.compute(previous, deployment));
+      // Write the full deployment first so that loaders that cannot apply the delta can fetch it.
+      ChunkedPayloads.write(client, fullPath, full, chunkSize, compressionLevel);
+      if (deltaData.length < full.length) {
+        log.info("Writing {} byte delta instead of {} byte deployment", deltaData.length, full.length);
+        ChunkedPayloads.write(client, output, deltaData, chunkSize, compressionLevel);
+      } else {
+        ChunkedPayloads.write(client, output, full, chunkSize, compressionLevel);
+      }
+    } finally {
+      client.close();
     }
-    client.setData().compressed().forPath(output, deploymentData);
-    client.close();
   }
 }
@@ -25,7 +25,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.Arrays;
 
+/**
+ * Validates an experiment deployment config file and deploys it to a local file or to Zookeeper. The
+ * {@code cohort} command ({@code cyclone cohort --input ids.txt --output users.cohort}) instead builds the
+ * cohort files that are referenced by cohort conditions; see {@link CohortBuilder}.
+ */
 public class Cyclone {
 
   private static final Logger log = LoggerFactory.getLogger(Cyclone.class);
@@ -79,7 +85,7 @@ public class Cyclone {
       return 1;
     }
     if (curatorSupport.isEnabled()) {
-      curatorSupport.deploy(avroSupport.toBytes(deployment), output);
+      curatorSupport.deploy(deployment, output);
     } else {
       avroSupport.deploy(deployment, output);
     }
@@ -87,6 +93,9 @@ public class Cyclone {
   }
 
   public static void main(String[] args) throws Exception {
+    if (args.length > 0 && "cohort".equals(args[0])) {
+      System.exit(new CohortBuilder().run(Arrays.copyOfRange(args, 1, args.length)));
+    }
     new Cyclone().run(args);
   }
 }
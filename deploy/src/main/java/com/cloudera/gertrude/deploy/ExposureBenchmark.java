@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.deploy;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+import com.cloudera.gertrude.AbstractExperimentState;
+import com.cloudera.gertrude.ExperimentHandler;
+import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.ExperimentSpaceLoader;
+import com.cloudera.gertrude.Experiments;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.exposure.AvroExposureLogger;
+import com.cloudera.gertrude.space.AvroExperimentSpaceDeserializer;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Measures the cost of exposure logging by diverting synthetic requests through the
+ * {@link ExperimentHandler} of a deployment with an {@link AvroExposureLogger} registered, and reports the
+ * request throughput along with how many of the exposures were written or dropped by the logger.
+ *
+ * <p>Each request gets a random identifier for every one of the {@code --diversion-ids}, and the requests are
+ * split evenly across the {@code --threads}. Exposure files are written to {@code --output-dir}, or to a
+ * temporary directory that is removed afterwards.
+ */
+public class ExposureBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(ExposureBenchmark.class);
+
+  @Parameter(names = "--deployment", description = "The deployment, as an Avro data file or config file.",
+      required = true)
+  private String deploymentFile;
+
+  @Parameter(names = "--output-dir", description = "The directory to write exposure files to.")
+  private String outputDir;
+
+  @Parameter(names = "--diversion-ids", description = "The diversion ids to generate random identifiers for.")
+  private List<Integer> diversionIds = Lists.newArrayList(0);
+
+  @Parameter(names = "--threads", description = "The number of threads to handle requests on.")
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = "--requests", description = "The total number of requests to handle.")
+  private int requests = 1000000;
+
+  @Parameter(names = "--capacity", description = "The number of exposures the logger buffers in memory.")
+  private int capacity = 64 * 1024;
+
+  @Parameter(names = "--backpressure",
+      description = "What the logger does when its buffer is full: DROP, SAMPLE, or BLOCK.")
+  private AvroExposureLogger.Backpressure backpressure = AvroExposureLogger.Backpressure.DROP;
+
+  @Parameter(names = {"help", "-help", "-h", "--help"}, help = true, hidden = true)
+  private boolean help = false;
+
+  @ParametersDelegate
+  private AvroSupport avroSupport = new AvroSupport();
+
+  private ExposureBenchmark() {}
+
+  private int run(String[] args) throws Exception {
+    JCommander jc = new JCommander(this);
+    jc.setProgramName("exposures");
+    try {
+      jc.parse(args);
+    } catch (ParameterException e) {
+      log.error(e.getLocalizedMessage());
+      jc.usage();
+      return 1;
+    }
+
+    if (help) {
+      jc.usage();
+      return 0;
+    }
+
+    ExperimentDeployment deployment = avroSupport.loadDeployment(new File(deploymentFile));
+    if (deployment == null) {
+      log.error("Could not load a valid experiment deployment, exiting...");
+      return 1;
+    }
+    File dir = outputDir == null ? Files.createTempDir() : new File(outputDir);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.error("Could not create output directory {}, exiting...", dir);
+      return 1;
+    }
+
+    MetricRegistry metrics = new MetricRegistry();
+    AvroExposureLogger logger = AvroExposureLogger.builder(dir)
+        .capacity(capacity)
+        .backpressure(backpressure)
+        .metrics(metrics)
+        .build();
+    avroSupport.getExperimentFlags();
+    Experiments.registerConditionFactory(avroSupport.getConditionFactory());
+    Experiments.registerDeserializer(new AvroExperimentSpaceDeserializer(false));
+    Experiments.registerLoader(new DeploymentLoader(avroSupport.toBytes(deployment)));
+    Experiments.registerMetricRegistry(metrics);
+    Experiments.registerExposureLogger(logger);
+    ExperimentHandler handler = Experiments.getHandler();
+
+    long nanos;
+    try {
+      nanos = drive(handler);
+    } finally {
+      logger.close();
+    }
+    print(System.out, metrics, nanos);
+    if (outputDir == null) {
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+    }
+    return 0;
+  }
+
+  private long drive(final ExperimentHandler handler) throws InterruptedException {
+    final int[] ids = new int[diversionIds.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = diversionIds.get(i);
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int count = requests / threads + (t < requests % threads ? 1 : 0);
+      final long seed = t;
+      workers[t] = new Thread("exposures-" + t) {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < count; i++) {
+            handler.handle(new SyntheticState(ids, random));
+          }
+        }
+      };
+      workers[t].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread w : workers) {
+      w.join();
+    }
+    return System.nanoTime() - begin;
+  }
+
+  private void print(PrintStream out, MetricRegistry metrics, long nanos) {
+    long logged = metrics.meter(name(AvroExposureLogger.class, "logged")).getCount();
+    long dropped = metrics.meter(name(AvroExposureLogger.class, "dropped")).getCount();
+    long written = metrics.meter(name(AvroExposureLogger.class, "written")).getCount();
+    double seconds = nanos / 1e9;
+    out.printf("Handled %d requests on %d threads in %.1f ms (%s backpressure)%n",
+        requests, threads, nanos / 1e6, backpressure);
+    out.printf("%-12s %14.0f%n", "requests/s", requests / seconds);
+    out.printf("%-12s %14.0f%n", "exposures/s", logged / seconds);
+    out.printf("%-12s %14d%n", "logged", logged);
+    out.printf("%-12s %14d%n", "written", written);
+    out.printf("%-12s %14d (%.3f%%)%n", "dropped", dropped, logged == 0 ? 0.0 : 100.0 * dropped / logged);
+  }
+
+  private static final class DeploymentLoader extends ExperimentSpaceLoader {
+    private final byte[] serialized;
+
+    private DeploymentLoader(byte[] serialized) {
+      this.serialized = serialized;
+    }
+
+    @Override
+    protected Optional<ExperimentSpace.Serialized> getSerialized() {
+      return Optional.of(new ExperimentSpace.Serialized("benchmark", ByteStreams.newInputStreamSupplier(serialized)));
+    }
+  }
+
+  private static final class SyntheticState extends AbstractExperimentState {
+    private final int[] diversionIds;
+    private final String[] identifiers;
+
+    private SyntheticState(int[] diversionIds, Random random) {
+      this.diversionIds = diversionIds;
+      this.identifiers = new String[diversionIds.length];
+      for (int i = 0; i < identifiers.length; i++) {
+        identifiers[i] = Long.toHexString(random.nextLong());
+      }
+    }
+
+    @Override
+    public Optional<String> getDiversionIdentifier(int diversionId) {
+      for (int i = 0; i < diversionIds.length; i++) {
+        if (diversionIds[i] == diversionId) {
+          return Optional.of(identifiers[i]);
+        }
+      }
+      return Optional.absent();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(new ExposureBenchmark().run(args));
+  }
+}
@@ -14,12 +14,40 @@
  */
 package com.cloudera.gertrude.deploy;
 
+import com.cloudera.gertrude.Condition;
+import com.cloudera.gertrude.ConditionFactory;
+import com.cloudera.gertrude.ExperimentState;
+import com.cloudera.gertrude.condition.Cohort;
+import com.cloudera.gertrude.curator.ChunkedPayloads;
+import com.cloudera.gertrude.curator.NodeCacheExperimentSpaceLoader;
+import com.cloudera.gertrude.experiments.avro.BucketRange;
+import com.cloudera.gertrude.experiments.avro.ConditionDefinition;
+import com.cloudera.gertrude.experiments.avro.ExperimentDefinition;
 import com.cloudera.gertrude.experiments.avro.ExperimentDeployment;
+import com.cloudera.gertrude.experiments.avro.ExperimentDeploymentDelta;
+import com.cloudera.gertrude.space.DeploymentDeltas;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import com.typesafe.config.ConfigFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
 import org.apache.curator.test.TestingServer;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
 
 public class DeployTest {
   @Test
@@ -40,4 +68,203 @@ public class DeployTest {
     String path = "/some/curator/path";
     curator.deploy(avroSupport.toBytes(ed), path);
   }
+
+  @Test
+  public void testAvroFileDeployWithCodecs() throws Exception {
+    AvroSupport avroSupport = new AvroSupport();
+    ExperimentDeployment ed = avroSupport.createDeployment(ConfigFactory.load("gertrude.conf"));
+    for (String codec : new String[] { "deflate-9", "snappy" }) {
+      File tmpFile = File.createTempFile("experiments", ".avro");
+      tmpFile.deleteOnExit();
+      avroSupport.setCodec(codec);
+      avroSupport.deploy(ed, tmpFile.getAbsolutePath());
+      DataFileReader<ExperimentDeployment> reader = new DataFileReader<ExperimentDeployment>(tmpFile,
+          new SpecificDatumReader<ExperimentDeployment>(ExperimentDeployment.class));
+      assertEquals(ed, reader.next());
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testCuratorChunkedDeploy() throws Exception {
+    TestingServer server = new TestingServer();
+    AvroSupport avroSupport = new AvroSupport();
+    CuratorSupport curator = new CuratorSupport(server.getConnectString(), 9, 128);
+    ExperimentDeployment ed = avroSupport.createDeployment(ConfigFactory.load("gertrude.conf"));
+    String path = "/some/chunked/path";
+    byte[] data = avroSupport.toBytes(ed);
+    curator.deploy(data, path);
+
+    CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 100));
+    client.start();
+    byte[] manifest = client.getData().decompressed().forPath(path);
+    assertTrue(ChunkedPayloads.isManifest(manifest));
+    assertArrayEquals(data, ChunkedPayloads.read(client, path, manifest));
+    client.close();
+  }
+
+  @Test
+  public void testCuratorDeltaDeploy() throws Exception {
+    TestingServer server = new TestingServer();
+    AvroSupport avroSupport = new AvroSupport();
+    CuratorSupport curator = new CuratorSupport(server.getConnectString());
+    curator.setDelta(true);
+    ExperimentDeployment ed = avroSupport.createDeployment(ConfigFactory.load("gertrude.conf"));
+    String path = "/some/delta/path";
+    curator.deploy(ed, path);
+
+    CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 100));
+    client.start();
+    assertEquals(ed, DeploymentDeltas.deploymentFromBytes(ChunkedPayloads.readNode(client, path)));
+
+    ExperimentDeployment next = ExperimentDeployment.newBuilder(ed)
+        .setFlagDefinitions(ed.getFlagDefinitions().subList(1, ed.getFlagDefinitions().size()))
+        .build();
+    curator.deploy(next, path);
+    ExperimentDeploymentDelta delta = DeploymentDeltas.deltaFromBytes(ChunkedPayloads.readNode(client, path));
+    assertEquals(1, delta.getRemovedFlags().size());
+    assertEquals(DeploymentDeltas.fingerprint(next), delta.getTargetVersion().toString());
+    assertEquals(next, DeploymentDeltas.deploymentFromBytes(ChunkedPayloads.readNode(client,
+        path + "/" + NodeCacheExperimentSpaceLoader.FULL_DEPLOYMENT_NODE)));
+    client.close();
+  }
+
+  @Test
+  public void testChurnSimulator() throws Exception {
+    AvroSupport avroSupport = new AvroSupport();
+    ExperimentDeployment ed = avroSupport.createDeployment(ConfigFactory.load("gertrude.conf"));
+    StringBuilder ids = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      ids.append("user").append(i).append('\n');
+    }
+    long now = System.currentTimeMillis();
+    ChurnSimulator simulator = new ChurnSimulator(avroSupport, ImmutableList.of(0), 2, 100);
+    ChurnSimulator.ChurnReport same = simulator.simulate(ed, ed, new StringReader(ids.toString()), now);
+    assertEquals(5000, same.getRequests());
+    assertFalse(same.getLayerIds().isEmpty());
+    for (Integer layerId : same.getLayerIds()) {
+      assertEquals(0L, same.getMoved(layerId));
+    }
+    for (Integer id : same.getExperimentIds()) {
+      assertEquals(same.getBefore(id), same.getStayed(id));
+    }
+
+    // Triple the share of the control experiment in layer 1, leaving the buckets of experiment 16 alone.
+    List<ExperimentDefinition> experiments = Lists.newArrayList();
+    for (ExperimentDefinition def : ed.getExperiments()) {
+      if (def.getId() == 15) {
+        def = ExperimentDefinition.newBuilder(def)
+            .setBucketRanges(ImmutableList.of(new BucketRange(0, 100), new BucketRange(200, 400)))
+            .build();
+      }
+      experiments.add(def);
+    }
+    ExperimentDeployment next = ExperimentDeployment.newBuilder(ed).setExperiments(experiments).build();
+    ChurnSimulator.ChurnReport changed = simulator.simulate(ed, next, new StringReader(ids.toString()), now);
+    assertEquals(5000, changed.getRequests());
+    assertTrue(changed.getMoved(1) > 0);
+    assertEquals(changed.getMoved(1), changed.getAfter(15) - changed.getBefore(15));
+    assertEquals(changed.getBefore(15), changed.getStayed(15));
+    assertEquals(0L, changed.getMoved(2));
+  }
+
+  public static final class NeverConditionFactory implements ConditionFactory {
+    @Override
+    public Set<String> supportedNames() {
+      return ImmutableSet.of("Never", "Country", "IsWhitelist");
+    }
+
+    @Override
+    public Condition<ExperimentState> create(String name) {
+      return "Never".equals(name) ? Condition.FALSE : Condition.TRUE;
+    }
+  }
+
+  @Test
+  public void testChurnSimulatorWithConditionFactory() throws Exception {
+    AvroSupport avroSupport = new AvroSupport();
+    ExperimentDeployment ed = avroSupport.createDeployment(ConfigFactory.load("gertrude.conf"));
+    StringBuilder ids = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      ids.append("user").append(i).append('\n');
+    }
+    List<ExperimentDefinition> experiments = Lists.newArrayList();
+    for (ExperimentDefinition def : ed.getExperiments()) {
+      if (def.getId() == 15) {
+        def = ExperimentDefinition.newBuilder(def)
+            .setConditions(ImmutableList.of(ConditionDefinition.newBuilder().setName("Never")
+                .setArgs(ImmutableList.<CharSequence>of()).build()))
+            .build();
+      }
+      experiments.add(def);
+    }
+    ExperimentDeployment next = ExperimentDeployment.newBuilder(ed).setExperiments(experiments).build();
+    long now = System.currentTimeMillis();
+
+    // Without a condition factory, every condition is true and the new condition moves nobody.
+    ChurnSimulator.ChurnReport unmodeled = new ChurnSimulator(avroSupport, ImmutableList.of(0), 2, 100)
+        .simulate(ed, next, new StringReader(ids.toString()), now);
+    assertTrue(unmodeled.getBefore(15) > 0);
+    assertEquals(unmodeled.getBefore(15), unmodeled.getStayed(15));
+
+    AvroSupport evaluating = new AvroSupport(false,
+        new ConditionFactorySupport(null, NeverConditionFactory.class.getName()), new ExperimentFlagSupport());
+    ChurnSimulator.ChurnReport modeled = new ChurnSimulator(evaluating, ImmutableList.of(0), 2, 100)
+        .simulate(ed, next, new StringReader(ids.toString()), now);
+    assertEquals(unmodeled.getBefore(15), modeled.getBefore(15));
+    assertEquals(0L, modeled.getAfter(15));
+  }
+
+  @Test
+  public void testBucketAnalyzer() throws Exception {
+    List<String> ids = Lists.newArrayList();
+    for (int i = 0; i < 20000; i++) {
+      ids.add("user" + i);
+    }
+    BucketAnalyzer analyzer = new BucketAnalyzer(ImmutableList.of("md5", "murmur3_128"),
+        ImmutableList.of(0, 1, 1), 100, 10, 2, 1000);
+    Map<String, BucketAnalyzer.BucketStats> stats = analyzer.analyze(ids.iterator());
+    assertEquals(ImmutableList.of("md5", "murmur3_128"), ImmutableList.copyOf(stats.keySet()));
+    for (BucketAnalyzer.BucketStats s : stats.values()) {
+      assertEquals(20000, s.getIdentifiers());
+      for (int i = 0; i < 3; i++) {
+        assertTrue(Math.abs(BucketAnalyzer.zScore(s.getUniformityChiSquare(i),
+            s.getUniformityDegreesOfFreedom())) < 5);
+      }
+      assertTrue(Math.abs(BucketAnalyzer.zScore(s.getIndependenceChiSquare(0, 1),
+          s.getIndependenceDegreesOfFreedom())) < 5);
+      assertTrue(Math.abs(s.getCorrelation(0, 1)) < 0.05);
+      // The same salt always yields the same bucket.
+      assertEquals(1.0, s.getCorrelation(1, 2), 1e-9);
+      assertTrue(BucketAnalyzer.zScore(s.getIndependenceChiSquare(1, 2), s.getIndependenceDegreesOfFreedom()) > 100);
+    }
+  }
+
+  @Test
+  public void testCohortBuilder() throws Exception {
+    StringBuilder ids = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      ids.append(3L * i - 9000L).append('\n');
+    }
+    ids.append("0\n\n");
+    ByteArrayOutputStream exact = new ByteArrayOutputStream();
+    assertEquals(10001, new CohortBuilder(0.0).build(new StringReader(ids.toString()), exact));
+    ByteArrayOutputStream bloom = new ByteArrayOutputStream();
+    assertEquals(10001, new CohortBuilder(0.01).build(new StringReader(ids.toString()), bloom));
+    assertTrue(bloom.size() < exact.size() / 4);
+
+    // The output replaces an existing cohort file without leaving anything else behind.
+    File dir = Files.createTempDir();
+    File input = new File(dir, "ids.txt");
+    Files.write(ids.toString(), input, Charsets.UTF_8);
+    File output = new File(dir, "users.cohort");
+    Files.write(new byte[] { 1, 2, 3 }, output);
+    assertEquals(0, new CohortBuilder().run(new String[] {
+        "--input", input.getPath(), "--output", output.getPath() }));
+    Cohort cohort = Cohort.open(output);
+    assertTrue(cohort.isExact());
+    assertEquals(10000, cohort.size());
+    assertTrue(cohort.contains(20997L));
+    assertEquals(2, dir.listFiles().length);
+  }
 }
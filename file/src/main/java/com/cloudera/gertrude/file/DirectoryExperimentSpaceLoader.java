@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.file;
+
+import com.cloudera.gertrude.ExperimentSpace;
+import com.cloudera.gertrude.ExperimentSpaceLoader;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.apache.commons.io.monitor.FileAlterationMonitor;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An {@code ExperimentSpaceLoader} that treats each file in a directory as a separate fragment of the
+ * serialized {@code ExperimentSpace}. Hidden files are ignored, and the fragments are merged in the order
+ * of their names.
+ *
+ * <p>Each fragment is versioned by its name, modification time, and length, so that the deserializer only
+ * needs to read and decode the fragments that have changed.
+ */
+public final class DirectoryExperimentSpaceLoader extends ExperimentSpaceLoader {
+  private static final long DEFAULT_POLL_INTERVAL_MILLIS = 5 * 1000L;
+
+  private static final FileFilter FRAGMENT_FILTER = new FileFilter() {
+    @Override
+    public boolean accept(File file) {
+      return file.isFile() && !file.isHidden() && !file.getName().startsWith(".");
+    }
+  };
+
+  private final File dataDir;
+
+  public DirectoryExperimentSpaceLoader(File dataDir) throws Exception {
+    this(dataDir, DEFAULT_POLL_INTERVAL_MILLIS);
+  }
+
+  public DirectoryExperimentSpaceLoader(File dataDir, long pollIntervalMillis) throws Exception {
+    Preconditions.checkArgument(dataDir.isDirectory(), "Data directory must be a directory");
+    this.dataDir = dataDir;
+    FileAlterationMonitor monitor = getMonitor(pollIntervalMillis);
+    monitor.start();
+  }
+
+  private FileAlterationMonitor getMonitor(long pollIntervalMillis) {
+    FileAlterationObserver observer = new FileAlterationObserver(dataDir, FRAGMENT_FILTER);
+    observer.addListener(new FileAlterationListenerAdaptor() {
+      @Override
+      public void onFileCreate(File file) {
+        reload(false);
+      }
+
+      @Override
+      public void onFileChange(File file) {
+        reload(false);
+      }
+
+      @Override
+      public void onFileDelete(File file) {
+        reload(false);
+      }
+    });
+    FileAlterationMonitor m = new FileAlterationMonitor(pollIntervalMillis);
+    m.addObserver(observer);
+    return m;
+  }
+
+  @Override
+  protected Optional<ExperimentSpace.Serialized> getSerialized() {
+    File[] files = dataDir.listFiles(FRAGMENT_FILTER);
+    if (files == null || files.length == 0) {
+      return Optional.absent();
+    }
+    Arrays.sort(files);
+    List<InputSupplier<? extends InputStream>> suppliers = Lists.newArrayListWithExpectedSize(files.length);
+    List<String> partVersions = Lists.newArrayListWithExpectedSize(files.length);
+    for (File file : files) {
+      suppliers.add(Files.newInputStreamSupplier(file));
+      partVersions.add(file.getName() + '@' + file.lastModified() + ':' + file.length());
+    }
+    String version = Hashing.md5().hashString(Joiner.on(',').join(partVersions)).toString();
+    return Optional.of(new ExperimentSpace.Serialized(version, suppliers, partVersions));
+  }
+}
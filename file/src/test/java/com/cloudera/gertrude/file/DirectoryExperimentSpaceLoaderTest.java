@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.file;
+
+import com.cloudera.gertrude.ExperimentSpace;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class DirectoryExperimentSpaceLoaderTest {
+  @Test
+  public void testFragments() throws Exception {
+    File tmpDir = Files.createTempDir();
+    tmpDir.deleteOnExit();
+
+    DirectoryExperimentSpaceLoader loader = new DirectoryExperimentSpaceLoader(tmpDir, 1000L);
+    assertFalse(loader.getSerialized().isPresent());
+
+    byte[] a = "teamA".getBytes();
+    byte[] b = "teamB".getBytes();
+    File bFile = new File(tmpDir, "b.avro");
+    Files.write(b, bFile);
+    Files.write(a, new File(tmpDir, "a.avro"));
+    Files.write("ignored".getBytes(), new File(tmpDir, ".hidden"));
+
+    Optional<ExperimentSpace.Serialized> serData = loader.getSerialized();
+    assertEquals(2, serData.get().getSerializedData().size());
+    assertArrayEquals(a, ByteStreams.toByteArray(serData.get().getSerializedData().get(0)));
+    assertArrayEquals(b, ByteStreams.toByteArray(serData.get().getSerializedData().get(1)));
+    String aVersion = serData.get().getPartVersionIdentifiers().get(0);
+    String bVersion = serData.get().getPartVersionIdentifiers().get(1);
+
+    Files.write("otherTeamB".getBytes(), bFile);
+    serData = loader.getSerialized();
+    assertEquals(aVersion, serData.get().getPartVersionIdentifiers().get(0));
+    assertNotEquals(bVersion, serData.get().getPartVersionIdentifiers().get(1));
+  }
+}
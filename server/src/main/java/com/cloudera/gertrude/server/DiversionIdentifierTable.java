@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Maps each diversion id to the part of a {@link HttpServletRequest} that contains its identifier: a cookie,
+ * a header, or a query parameter. The table is built once when the {@link GertrudeFilter} is initialized,
+ * and the cookies of each request are indexed with a single pass the first time that a cookie-based
+ * identifier is needed.
+ */
+final class DiversionIdentifierTable {
+
+  enum Source { COOKIE, HEADER, PARAM }
+
+  private static final Pattern ENTRY_SEP = Pattern.compile(",");
+  private static final Pattern FIELD_SEP = Pattern.compile(":");
+
+  private final Source[] sources;
+  private final String[] names;
+  private final int[] cookieSlots;
+  private final Map<String, Integer> cookieSlotsByName;
+
+  private DiversionIdentifierTable(Source[] sources, String[] names) {
+    this.sources = sources;
+    this.names = names;
+    this.cookieSlots = new int[sources.length];
+    this.cookieSlotsByName = Maps.newHashMap();
+    for (int i = 0; i < sources.length; i++) {
+      if (sources[i] == Source.COOKIE) {
+        Integer slot = cookieSlotsByName.get(names[i]);
+        if (slot == null) {
+          slot = cookieSlotsByName.size();
+          cookieSlotsByName.put(names[i], slot);
+        }
+        cookieSlots[i] = slot;
+      }
+    }
+  }
+
+  /**
+   * Creates a table that reads the identifier for each diversion id from the cookie at the same position in
+   * the given list.
+   */
+  static DiversionIdentifierTable forCookies(List<String> cookieNames) {
+    Source[] sources = new Source[cookieNames.size()];
+    Arrays.fill(sources, Source.COOKIE);
+    return new DiversionIdentifierTable(sources, cookieNames.toArray(new String[cookieNames.size()]));
+  }
+
+  /**
+   * Parses a table from a comma-separated list of {@code <diversion id>:<cookie|header|param>:<name>}
+   * entries, e.g., {@code "0:cookie:uid,1:header:X-Device-Id"}.
+   *
+   * @throws IllegalArgumentException if the specification is not valid
+   */
+  static DiversionIdentifierTable parse(String spec) {
+    Map<Integer, String[]> entries = Maps.newTreeMap();
+    int maxId = -1;
+    for (String entry : ENTRY_SEP.split(spec.trim())) {
+      String[] fields = FIELD_SEP.split(entry.trim(), 3);
+      Preconditions.checkArgument(fields.length == 3 && !fields[2].trim().isEmpty(),
+          "Invalid diversion source: %s", entry);
+      int diversionId = Integer.parseInt(fields[0].trim());
+      Preconditions.checkArgument(diversionId >= 0, "Negative diversion id: %s", entry);
+      Preconditions.checkArgument(!entries.containsKey(diversionId), "Duplicate diversion id: %s", diversionId);
+      entries.put(diversionId, fields);
+      maxId = Math.max(maxId, diversionId);
+    }
+    Source[] sources = new Source[maxId + 1];
+    String[] names = new String[maxId + 1];
+    for (Map.Entry<Integer, String[]> e : entries.entrySet()) {
+      sources[e.getKey()] = Source.valueOf(e.getValue()[1].trim().toUpperCase(Locale.ENGLISH));
+      names[e.getKey()] = e.getValue()[2].trim();
+    }
+    return new DiversionIdentifierTable(sources, names);
+  }
+
+  /**
+   * Returns a new, empty array for caching the values of a request's diversion cookies.
+   */
+  String[] newCookieValues() {
+    return new String[cookieSlotsByName.size()];
+  }
+
+  /**
+   * Copies the values of the diversion cookies in the given array of request cookies (which may be null)
+   * into {@code values}. The first cookie with a given name wins.
+   */
+  void indexCookies(Cookie[] cookies, String[] values) {
+    if (cookies == null) {
+      return;
+    }
+    for (Cookie c : cookies) {
+      Integer slot = cookieSlotsByName.get(c.getName());
+      if (slot != null && values[slot] == null) {
+        values[slot] = c.getValue();
+      }
+    }
+  }
+
+  boolean isCookie(int diversionId) {
+    return diversionId >= 0 && diversionId < sources.length && sources[diversionId] == Source.COOKIE;
+  }
+
+  /**
+   * Returns the identifier for the given diversion id in the request, or null if there is none.
+   *
+   * @param request the current request
+   * @param diversionId the diversion id
+   * @param cookieValues the indexed cookies of the request, or null if the diversion id is not cookie-based
+   */
+  String extract(HttpServletRequest request, int diversionId, String[] cookieValues) {
+    if (diversionId < 0 || diversionId >= sources.length || sources[diversionId] == null) {
+      return null;
+    }
+    switch (sources[diversionId]) {
+      case COOKIE:
+        return cookieValues[cookieSlots[diversionId]];
+      case HEADER:
+        return request.getHeader(names[diversionId]);
+      case PARAM:
+        return request.getParameter(names[diversionId]);
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < sources.length; i++) {
+      if (sources[i] != null) {
+        if (sb.length() > 1) {
+          sb.append(", ");
+        }
+        sb.append(i).append(':').append(sources[i].name().toLowerCase(Locale.ENGLISH)).append(':').append(names[i]);
+      }
+    }
+    return sb.append(']').toString();
+  }
+}
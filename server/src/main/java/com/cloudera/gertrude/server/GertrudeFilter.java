@@ -16,45 +16,175 @@ package com.cloudera.gertrude.server;
 
 import com.cloudera.gertrude.ExperimentHandler;
 import com.cloudera.gertrude.Experiments;
+import com.cloudera.gertrude.ExperimentsRuntime;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
  *  A simple servlet {@link javax.servlet.Filter} for intercepting the current request, creating an associated
  *  {@link HttpServletExperimentStateImpl}, and diverting the request into one or more experiments using
  *  a pre-configured {@link com.cloudera.gertrude.ExperimentHandler}.
+ *
+ *  <p>The sources of the diversion identifiers are configured with the {@code gertrude-diversion-sources}
+ *  init parameter, a comma-separated list of {@code <diversion id>:<cookie|header|param>:<name>} entries. The
+ *  older {@code gertrude-diversion-cookies} parameter, a comma-separated list of cookie names whose positions
+ *  are their diversion ids, is still supported.
+ *
+ *  <p>If the {@code gertrude-async-diversion} init parameter is {@code true} and the request supports
+ *  asynchronous processing, the filter puts the request into asynchronous mode and diverts it with
+ *  {@link ExperimentHandler#handleAsync}, so that no thread is held while the
+ *  {@link com.cloudera.gertrude.AsyncCondition}s of the space (e.g., remote lookups) are evaluated. Conditions
+ *  that have not completed within {@code gertrude-async-timeout-millis} (default 100) take their default values.
+ *  Once the request is diverted, it is dispatched back through the filter chain, so the filter must be mapped
+ *  with the {@code ASYNC} dispatcher type in that case. Requests that have already been diverted, such as
+ *  asynchronous dispatches and forwards, keep their existing state, and requests are diverted synchronously
+ *  while the current space has no asynchronous conditions.
+ *
+ *  <p>If the {@code gertrude-experiment-ids-header} init parameter is set, the filter adds a response header
+ *  with that name whose value is the {@link com.cloudera.gertrude.ExperimentIdCodec} encoding of the ids of
+ *  the experiments that the request was diverted into.
+ *
+ *  <p>If the {@code gertrude-profiling-sample-rate} init parameter is set to a positive number N, the
+ *  handler profiles the diversion of one out of every N requests (see
+ *  {@link com.cloudera.gertrude.DiversionProfiler}).
+ *
+ *  <p>If the {@code gertrude-trace-sample-rate} init parameter is set to a positive number N, or the
+ *  {@code gertrude-trace-header} init parameter is set, the handler records a
+ *  {@link com.cloudera.gertrude.DiversionTrace} for one out of every N requests and for every request that
+ *  carries the trace header, and keeps the most recent {@code gertrude-trace-capacity} (default 1000) of
+ *  them for {@link com.cloudera.gertrude.ExperimentHandler#getRecentTraces()}.
  */
 public class GertrudeFilter implements Filter {
 
+  private static final String DIVERSION_SOURCES_PARAM = "gertrude-diversion-sources";
   private static final String DIVERSION_COOKIES_PARAM = "gertrude-diversion-cookies";
   private static final Pattern DIVERSION_COOKIES_SEP = Pattern.compile(",");
+  private static final String ASYNC_DIVERSION_PARAM = "gertrude-async-diversion";
+  private static final String ASYNC_TIMEOUT_MILLIS_PARAM = "gertrude-async-timeout-millis";
+  private static final int DEFAULT_ASYNC_TIMEOUT_MILLIS = 100;
+  private static final String EXPERIMENT_IDS_HEADER_PARAM = "gertrude-experiment-ids-header";
+  private static final String PROFILING_SAMPLE_RATE_PARAM = "gertrude-profiling-sample-rate";
+  private static final String TRACE_SAMPLE_RATE_PARAM = "gertrude-trace-sample-rate";
+  private static final String TRACE_HEADER_PARAM = "gertrude-trace-header";
+  private static final String TRACE_CAPACITY_PARAM = "gertrude-trace-capacity";
+  private static final int DEFAULT_TRACE_CAPACITY = 1000;
 
+  private final ExperimentsRuntime runtime;
   private ExperimentHandler handler;
-  private List<String> diversionCookies;
+  private DiversionIdentifierTable identifiers;
+  private boolean asyncDiversion;
+  private long asyncTimeoutMillis;
+  private ScheduledExecutorService asyncScheduler;
+  private ServletContext servletContext;
+  private String experimentIdsHeader;
+  private String traceHeader;
+
+  public GertrudeFilter() {
+    this(Experiments.getDefaultRuntime());
+  }
+
+  /**
+   * Creates a filter that diverts requests with the handler of the given runtime, for processes that
+   * register a filter for each of several experiment spaces.
+   */
+  public GertrudeFilter(ExperimentsRuntime runtime) {
+    this.runtime = Preconditions.checkNotNull(runtime);
+  }
 
   @Override
   public void init(FilterConfig filterConfig) throws ServletException {
+    String divSourcesStr = filterConfig.getInitParameter(DIVERSION_SOURCES_PARAM);
     String divCookiesStr = filterConfig.getInitParameter(DIVERSION_COOKIES_PARAM);
-    if (divCookiesStr == null || divCookiesStr.isEmpty()) {
-      diversionCookies = ImmutableList.of();
+    if (divSourcesStr != null && !divSourcesStr.isEmpty()) {
+      try {
+        identifiers = DiversionIdentifierTable.parse(divSourcesStr);
+      } catch (IllegalArgumentException e) {
+        throw new ServletException("Invalid " + DIVERSION_SOURCES_PARAM + " parameter: " + divSourcesStr, e);
+      }
+    } else if (divCookiesStr != null && !divCookiesStr.isEmpty()) {
+      identifiers = DiversionIdentifierTable.forCookies(
+          ImmutableList.copyOf(DIVERSION_COOKIES_SEP.split(divCookiesStr)));
     } else {
-      diversionCookies = ImmutableList.copyOf(DIVERSION_COOKIES_SEP.split(divCookiesStr));
+      identifiers = DiversionIdentifierTable.forCookies(ImmutableList.<String>of());
+    }
+    filterConfig.getServletContext().log("Gertrude diversion sources: " + identifiers);
+    servletContext = filterConfig.getServletContext();
+    asyncDiversion = Boolean.parseBoolean(filterConfig.getInitParameter(ASYNC_DIVERSION_PARAM));
+    if (asyncDiversion) {
+      asyncTimeoutMillis = getIntParameter(filterConfig, ASYNC_TIMEOUT_MILLIS_PARAM, DEFAULT_ASYNC_TIMEOUT_MILLIS);
+      if (asyncTimeoutMillis < 0) {
+        throw new ServletException("Invalid " + ASYNC_TIMEOUT_MILLIS_PARAM + " parameter: " + asyncTimeoutMillis);
+      }
+      // Only enforces the deadlines; the diversions themselves run on the threads that complete the conditions.
+      asyncScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("gertrude-async-diversion")
+          .setDaemon(true)
+          .build());
+    }
+    experimentIdsHeader = filterConfig.getInitParameter(EXPERIMENT_IDS_HEADER_PARAM);
+    if (experimentIdsHeader != null && experimentIdsHeader.isEmpty()) {
+      experimentIdsHeader = null;
     }
-    filterConfig.getServletContext().log("Gertrude diversion cookies: " + diversionCookies);
 
     // NOTE: assumption here is that the configuration of the experiment handler (deserializer, loader,
     // and condition factory) are done before the server startup.
-    this.handler = Experiments.getHandler();
+    this.handler = runtime.getHandler();
+
+    String sampleRateStr = filterConfig.getInitParameter(PROFILING_SAMPLE_RATE_PARAM);
+    if (sampleRateStr != null && !sampleRateStr.isEmpty()) {
+      try {
+        handler.setProfilingSampleRate(Integer.parseInt(sampleRateStr.trim()));
+      } catch (IllegalArgumentException e) {
+        throw new ServletException("Invalid " + PROFILING_SAMPLE_RATE_PARAM + " parameter: " + sampleRateStr, e);
+      }
+    }
+
+    traceHeader = filterConfig.getInitParameter(TRACE_HEADER_PARAM);
+    if (traceHeader != null && traceHeader.isEmpty()) {
+      traceHeader = null;
+    }
+    int traceSampleRate = getIntParameter(filterConfig, TRACE_SAMPLE_RATE_PARAM, 0);
+    if (traceSampleRate > 0 || traceHeader != null) {
+      try {
+        handler.setTracing(traceSampleRate,
+            getIntParameter(filterConfig, TRACE_CAPACITY_PARAM, DEFAULT_TRACE_CAPACITY));
+      } catch (IllegalArgumentException e) {
+        throw new ServletException("Invalid diversion tracing parameters", e);
+      }
+    }
+  }
+
+  private static int getIntParameter(FilterConfig filterConfig, String name, int defaultValue)
+      throws ServletException {
+    String value = filterConfig.getInitParameter(name);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new ServletException("Invalid " + name + " parameter: " + value, e);
+    }
   }
 
   @Override
@@ -62,14 +192,70 @@ public class GertrudeFilter implements Filter {
       ServletRequest servletRequest,
       ServletResponse servletResponse,
       FilterChain filterChain) throws IOException, ServletException {
-    HttpServletExperimentStateImpl state = new HttpServletExperimentStateImpl(
-        (HttpServletRequest) servletRequest, diversionCookies);
-    handler.handle(state);
+    if (GertrudeUtils.getState(servletRequest) != null) {
+      filterChain.doFilter(servletRequest, servletResponse);
+      return;
+    }
+    final HttpServletExperimentStateImpl state = new HttpServletExperimentStateImpl(
+        (HttpServletRequest) servletRequest, identifiers, traceHeader);
+    // Requests are only suspended when the current space has conditions that are worth waiting for.
+    if (asyncDiversion && servletRequest.isAsyncSupported() &&
+        servletRequest.getDispatcherType() != DispatcherType.ASYNC && handler.hasAsyncConditions()) {
+      final AsyncContext ctxt = servletRequest.startAsync(servletRequest, servletResponse);
+      try {
+        Futures.addCallback(
+            handler.handleAsync(state, asyncTimeoutMillis, TimeUnit.MILLISECONDS, asyncScheduler),
+            new FutureCallback<HttpServletExperimentStateImpl>() {
+              @Override
+              public void onSuccess(HttpServletExperimentStateImpl result) {
+                try {
+                  publish(result, ctxt.getRequest(), ctxt.getResponse());
+                } finally {
+                  ctxt.dispatch();
+                }
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                fail(ctxt, t);
+              }
+            });
+      } catch (RuntimeException e) {
+        // The request has already been suspended, so it has to be completed here rather than by the container.
+        fail(ctxt, e);
+      }
+    } else {
+      handler.handle(state);
+      publish(state, servletRequest, servletResponse);
+      filterChain.doFilter(servletRequest, servletResponse);
+    }
+  }
+
+  private void fail(AsyncContext ctxt, Throwable t) {
+    servletContext.log("Could not divert request", t);
+    try {
+      ((HttpServletResponse) ctxt.getResponse()).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } catch (IOException e) {
+      servletContext.log("Could not send error response", e);
+    } finally {
+      ctxt.complete();
+    }
+  }
+
+  private void publish(
+      HttpServletExperimentStateImpl state,
+      ServletRequest servletRequest,
+      ServletResponse servletResponse) {
     servletRequest.setAttribute(GertrudeUtils.GERTRUDE_EXPERIMENT_STATE_KEY, state);
-    filterChain.doFilter(servletRequest, servletResponse);
+    if (experimentIdsHeader != null && servletResponse instanceof HttpServletResponse) {
+      ((HttpServletResponse) servletResponse).setHeader(experimentIdsHeader, state.getEncodedExperimentIds());
+    }
   }
 
   @Override
   public void destroy() {
+    if (asyncScheduler != null) {
+      asyncScheduler.shutdownNow();
+    }
   }
 }
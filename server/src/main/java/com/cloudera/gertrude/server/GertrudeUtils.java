@@ -17,6 +17,7 @@ package com.cloudera.gertrude.server;
 import com.cloudera.gertrude.ExperimentFlag;
 import com.cloudera.gertrude.ExperimentState;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletRequest;
 
 /**
@@ -48,5 +49,28 @@ public final class GertrudeUtils {
     return state == null ? flag.getDefaultValue() : state.get(flag);
   }
 
+  /**
+   * Retrieves the {@code ExperimentState} for a request that is being processed asynchronously. The state is
+   * safe to use from any thread that handles the request.
+   *
+   * @param asyncContext the asynchronous context of the request
+   * @return the {@code ExperimentState} associated with the request, or null if none exists
+   */
+  public static ExperimentState getState(AsyncContext asyncContext) {
+    return getState(asyncContext.getRequest());
+  }
+
+  /**
+   * Shortcut for getting the value of an {@link ExperimentFlag} from any thread that is handling a request
+   * asynchronously.
+   *
+   * @param asyncContext the asynchronous context of the request
+   * @param flag the value whose value for the current request is returned
+   * @return the value of the flag, using the state associated with the request, or the default value of the flag
+   */
+  public static <T> T getFlagValue(AsyncContext asyncContext, ExperimentFlag<T> flag) {
+    return getFlagValue(asyncContext.getRequest(), flag);
+  }
+
   private GertrudeUtils() {}
 }
@@ -17,44 +17,46 @@ package com.cloudera.gertrude.server;
 import com.cloudera.gertrude.AbstractExperimentState;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableMap;
 
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
-import java.util.List;
-import java.util.Map;
 
 /**
  * A simple implementation of {@link AbstractExperimentState} and {@link HttpServletExperimentState} that
- * diverts input requests based on one or more cookie names that are associated with a {@link HttpServletRequest}.
+ * diverts input requests based on the cookies, headers, or query parameters of a {@link HttpServletRequest}.
+ * Identifiers are only extracted from the request when the {@code ExperimentHandler} asks for them.
  */
 class HttpServletExperimentStateImpl extends AbstractExperimentState implements HttpServletExperimentState {
 
   private final HttpServletRequest request;
-  private final Map<Integer, String> diversionCookies;
+  private final DiversionIdentifierTable identifiers;
+  private final String traceHeader;
+  // Written once the cookies are indexed, so that the async conditions' threads never see a partial index.
+  private volatile String[] cookieValues;
 
-  HttpServletExperimentStateImpl(HttpServletRequest request, List<String> diversionCookies) {
+  /**
+   * @param traceHeader the name of a header that asks for the diversion of the request to be traced, or null
+   */
+  HttpServletExperimentStateImpl(HttpServletRequest request, DiversionIdentifierTable identifiers,
+                                 String traceHeader) {
     this.request = Preconditions.checkNotNull(request);
-    this.diversionCookies = indexDiversionCookies(diversionCookies, request.getCookies());
+    this.identifiers = Preconditions.checkNotNull(identifiers);
+    this.traceHeader = traceHeader;
   }
 
-  private static Map<Integer, String> indexDiversionCookies(List<String> diversionCookies, Cookie[] cookies) {
-    ImmutableMap.Builder<Integer, String> b = ImmutableMap.builder();
-    for (int i = 0; i < diversionCookies.size(); i++) {
-      String cookieName = diversionCookies.get(i);
-      for (Cookie c : cookies) {
-        if (cookieName.equals(c.getName())) {
-          b.put(i, c.getValue());
-          break;
-        }
-      }
+  @Override
+  public Optional<String> getDiversionIdentifier(int diversionId) {
+    String[] values = cookieValues;
+    if (values == null && identifiers.isCookie(diversionId)) {
+      values = identifiers.newCookieValues();
+      identifiers.indexCookies(request.getCookies(), values);
+      cookieValues = values;
     }
-    return b.build();
+    return Optional.fromNullable(identifiers.extract(request, diversionId, values));
   }
 
   @Override
-  public Optional<String> getDiversionIdentifier(int diversionId) {
-    return Optional.fromNullable(diversionCookies.get(diversionId));
+  public boolean isTraceRequested() {
+    return traceHeader != null && request.getHeader(traceHeader) != null;
   }
 
   @Override
@@ -14,25 +14,25 @@
  */
 package com.cloudera.gertrude.server.condition;
 
-import com.cloudera.gertrude.condition.AbstractPropertyCondition;
+import com.cloudera.gertrude.AttributeExtractor;
+import com.cloudera.gertrude.AttributeKey;
+import com.cloudera.gertrude.ExperimentState;
+import com.cloudera.gertrude.condition.AbstractIntPropertyCondition;
 import com.cloudera.gertrude.server.HttpServletExperimentState;
-import com.google.common.base.Function;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 
 import java.util.List;
-import java.util.Set;
 
 /**
- * An example implementation of an {@link AbstractPropertyCondition} that retrieves values of a header parameter
+ * An example implementation of an {@link AbstractIntPropertyCondition} that retrieves values of a header parameter
  * from the {@code HttpServletRequest} associated with an {@link com.cloudera.gertrude.server.HttpServletExperimentState} implementation.
+ * The header is parsed once per request, no matter how many conditions check it.
  */
-public class IntHeaderCondition extends AbstractPropertyCondition<Integer, HttpServletExperimentState> {
+public class IntHeaderCondition extends AbstractIntPropertyCondition<HttpServletExperimentState> {
 
   private String header;
 
   @Override
-  protected Set<Integer> parseArgs(List<String> args) {
+  protected int[] parseArgs(List<String> args) {
     if (args.size() < 2) {
       throw new IllegalStateException("IntHeaderCondition function must have at least two arguments");
     }
@@ -40,16 +40,16 @@ public class IntHeaderCondition extends AbstractPropertyCondition<Integer, HttpS
     this.header = args.get(0);
 
     // the second
-    return ImmutableSet.copyOf(Lists.transform(args.subList(1, args.size()), new Function<String, Integer>() {
-      @Override
-      public Integer apply(String input) {
-        return Integer.valueOf(input);
-      }
-    }));
+    return parseInts(args.subList(1, args.size()));
   }
 
   @Override
-  public Integer getValue(HttpServletExperimentState state) {
+  protected AttributeKey<Integer> getAttributeKey() {
+    return AttributeKey.of("header:" + header, Integer.class, new HeaderExtractor(header));
+  }
+
+  @Override
+  public int getValue(HttpServletExperimentState state) {
     return state.getRequest().getIntHeader(header);
   }
 
@@ -57,4 +57,21 @@ public class IntHeaderCondition extends AbstractPropertyCondition<Integer, HttpS
   public CacheLevel getCacheLevel() {
     return CacheLevel.REQUEST;
   }
+
+  /**
+   * Only holds on to the name of the header, since the interned key that it is registered with outlives the
+   * condition that created it.
+   */
+  private static final class HeaderExtractor implements AttributeExtractor<Integer> {
+    private final String header;
+
+    private HeaderExtractor(String header) {
+      this.header = header;
+    }
+
+    @Override
+    public Integer extract(ExperimentState state) {
+      return ((HttpServletExperimentState) state).getRequest().getIntHeader(header);
+    }
+  }
 }
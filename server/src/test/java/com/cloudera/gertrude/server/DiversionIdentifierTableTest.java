@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.gertrude.server;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiversionIdentifierTableTest {
+
+  private static void assertInvalid(String spec) {
+    try {
+      DiversionIdentifierTable.parse(spec);
+      fail("Expected an invalid specification: " + spec);
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParse() {
+    DiversionIdentifierTable t = DiversionIdentifierTable.parse(" 2:param:user, 0:cookie:uid,1:HEADER:X-Device-Id ");
+    assertEquals("[0:cookie:uid, 1:header:X-Device-Id, 2:param:user]", t.toString());
+    assertTrue(t.isCookie(0));
+    assertFalse(t.isCookie(1));
+    assertFalse(t.isCookie(2));
+    assertFalse(t.isCookie(3));
+    assertFalse(t.isCookie(-1));
+    assertEquals(1, t.newCookieValues().length);
+  }
+
+  @Test
+  public void testParseSparseIds() {
+    DiversionIdentifierTable t = DiversionIdentifierTable.parse("3:cookie:uid");
+    assertEquals("[3:cookie:uid]", t.toString());
+    assertFalse(t.isCookie(0));
+    assertTrue(t.isCookie(3));
+    // Unmapped diversion ids never have an identifier.
+    assertNull(t.extract(null, 0, t.newCookieValues()));
+    assertNull(t.extract(null, 4, t.newCookieValues()));
+  }
+
+  @Test
+  public void testParseMalformed() {
+    assertInvalid("0:cookie");
+    assertInvalid("0:cookie:uid,,1:header:X-Device-Id");
+    assertInvalid("0:cookie:");
+    assertInvalid("zero:cookie:uid");
+    assertInvalid("-1:cookie:uid");
+    assertInvalid("0:body:uid");
+  }
+
+  @Test
+  public void testParseDuplicateIds() {
+    assertInvalid("0:cookie:uid,0:header:X-Device-Id");
+  }
+
+  @Test
+  public void testCookieValues() {
+    DiversionIdentifierTable t = DiversionIdentifierTable.parse("0:cookie:uid,1:header:X-Device-Id,2:cookie:sid");
+    String[] values = t.newCookieValues();
+    assertEquals(2, values.length);
+    // A request without cookies leaves every value unset.
+    t.indexCookies(null, values);
+    assertNull(t.extract(null, 0, values));
+    values[1] = "s1";
+    assertEquals("s1", t.extract(null, 2, values));
+  }
+
+  @Test
+  public void testForCookies() {
+    DiversionIdentifierTable t = DiversionIdentifierTable.forCookies(ImmutableList.of("uid", "sid", "uid"));
+    assertEquals("[0:cookie:uid, 1:cookie:sid, 2:cookie:uid]", t.toString());
+    assertTrue(t.isCookie(0));
+    assertTrue(t.isCookie(2));
+    // Diversion ids that read the same cookie share its value.
+    String[] values = t.newCookieValues();
+    assertEquals(2, values.length);
+    values[0] = "u1";
+    assertEquals("u1", t.extract(null, 0, values));
+    assertEquals("u1", t.extract(null, 2, values));
+    assertNull(t.extract(null, 1, values));
+  }
+
+  @Test
+  public void testForNoCookies() {
+    DiversionIdentifierTable t = DiversionIdentifierTable.forCookies(ImmutableList.<String>of());
+    assertEquals("[]", t.toString());
+    assertFalse(t.isCookie(0));
+    assertEquals(0, t.newCookieValues().length);
+  }
+}